@@ -0,0 +1,54 @@
+package com.talya.searchanalytics.config;
+
+import com.talya.searchanalytics.model.EventIds;
+import lombok.RequiredArgsConstructor;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.util.Map;
+
+/**
+ * Moves the event id sequences past the ids already stored. Tables created
+ * before the switch from IDENTITY to sequences keep their rows (and their
+ * identity column default, which is simply no longer used); without this step a
+ * freshly created sequence would hand out ids that already exist.
+ * <p>
+ * Runs while the context is being built, so the sequences are aligned before
+ * any event is persisted: the write-behind queue, which replays the journal on
+ * startup, depends on this bean, and the web server only accepts requests once
+ * every singleton is initialized. A failure to align is not swallowed: it
+ * fails startup, since the sequences would otherwise collide with stored ids.
+ */
+@Component
+@RequiredArgsConstructor
+public class EventIdSequenceBootstrap {
+    private static final Logger log = LoggerFactory.getLogger(EventIdSequenceBootstrap.class);
+    private final JdbcTemplate jdbcTemplate;
+    private final EntityManagerFactory entityManagerFactory;
+
+    @PostConstruct
+    public void alignSequences() {
+        Dialect dialect = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getJdbcServices().getDialect();
+        for (Map.Entry<String, String> entry : EventIds.TABLE_SEQUENCES.entrySet()) {
+            align(dialect, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void align(Dialect dialect, String table, String sequence) {
+        Long maxId = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from " + table, Long.class);
+        Long next = jdbcTemplate.queryForObject(dialect.getSequenceNextValString(sequence), Long.class);
+        // The pooled optimizer hands out (value - allocationSize, value] for each sequence value
+        long required = maxId + EventIds.ALLOCATION_SIZE;
+        if (next == null || next < required) {
+            jdbcTemplate.execute("alter sequence " + sequence + " restart with " + (required + 1));
+            log.info("Id sequence {} restarted at {} (max {} id is {})", sequence, required + 1, table, maxId);
+        }
+    }
+}
@@ -28,6 +28,7 @@ public class JwtProtectedApiConfig {
                         UsernamePasswordAuthenticationFilter.class)
                 .authorizeRequests()
                 .antMatchers("/api/v1/shops/**").hasRole("OWNER")
+                .antMatchers("/actuator/**").hasRole("OWNER")
                 .antMatchers("/api/v1/analytics/**").authenticated()
                 .antMatchers("/api/v1/events/**").permitAll();
         return http.build();
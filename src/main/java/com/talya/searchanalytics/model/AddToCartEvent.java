@@ -12,9 +12,11 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@EntityListeners(RollupFeedListener.class)
 public class AddToCartEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "add_to_cart_events_seq")
+    @SequenceGenerator(name = "add_to_cart_events_seq", sequenceName = "add_to_cart_events_seq", allocationSize = EventIds.ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -12,9 +12,11 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@EntityListeners(RollupFeedListener.class)
 public class BuyNowClickEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "buy_now_click_events_seq")
+    @SequenceGenerator(name = "buy_now_click_events_seq", sequenceName = "buy_now_click_events_seq", allocationSize = EventIds.ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -0,0 +1,72 @@
+package com.talya.searchanalytics.model;
+
+import lombok.*;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Dashboard counters of one shop, UTC day and search group, maintained by
+ * {@code DailyRollupService} as events are persisted. Only events that trace
+ * back to a search are counted, as in the raw-event summary; distinct sessions
+ * are kept per session in {@link SessionDay}.
+ */
+@Entity
+@Table(name = "daily_rollups")
+@IdClass(DailyRollup.Key.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class DailyRollup {
+
+    /** searchGroup of the row counting events sent without one */
+    public static final int NO_GROUP = -1;
+
+    @Id
+    private String shopId;
+
+    /** Days since 1970-01-01 (UTC) */
+    @Id
+    private long epochDay;
+
+    @Id
+    private int searchGroup;
+
+    private long searches;
+
+    /** Searches with a non-blank query, their total word count and those of 3+ words */
+    private long queries;
+    private long queryWords;
+    private long longQueries;
+
+    private long productClicks;
+    private long buyNowClicks;
+
+    private long addToCarts;
+    private double addToCartAmount;
+
+    /** Purchased products that were added to the cart in the same session */
+    private long purchasedProducts;
+    private double revenue;
+    private double revenueEur;
+
+    /** Currency of the first add-to-cart of the day that had one */
+    private String currency;
+
+    /** Upper-case currency of the latest counted purchase */
+    private String purchaseCurrency;
+
+    public static int groupKey(Integer searchGroup) {
+        return searchGroup != null ? searchGroup : NO_GROUP;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private String shopId;
+        private long epochDay;
+        private int searchGroup;
+    }
+}
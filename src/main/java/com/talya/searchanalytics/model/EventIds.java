@@ -0,0 +1,24 @@
+package com.talya.searchanalytics.model;
+
+/**
+ * Id generation settings shared by the event entities. Event ids come from one
+ * database sequence per table with a pooled optimizer: each sequence call
+ * reserves {@link #ALLOCATION_SIZE} ids, so inserts need no round trip per row
+ * and Hibernate can send them as JDBC batches (IDENTITY columns disable
+ * batching).
+ */
+public final class EventIds {
+
+    public static final int ALLOCATION_SIZE = 50;
+
+    /** Event table name to id sequence name. */
+    public static final java.util.Map<String, String> TABLE_SEQUENCES = java.util.Map.of(
+            "search_events", "search_events_seq",
+            "add_to_cart_events", "add_to_cart_events_seq",
+            "purchase_events", "purchase_events_seq",
+            "product_click_events", "product_click_events_seq",
+            "buy_now_click_events", "buy_now_click_events_seq");
+
+    private EventIds() {
+    }
+}
@@ -0,0 +1,21 @@
+package com.talya.searchanalytics.model;
+
+/** The shop and timestamp of an event entity. */
+record EventStamp(String shopId, Long timestampMs) {
+
+    /** The stamp of an event entity, or null for any other object. */
+    static EventStamp of(Object event) {
+        if (event instanceof SearchEvent e) {
+            return new EventStamp(e.getShopId(), e.getTimestampMs());
+        } else if (event instanceof AddToCartEvent e) {
+            return new EventStamp(e.getShopId(), e.getTimestampMs());
+        } else if (event instanceof PurchaseEvent e) {
+            return new EventStamp(e.getShopId(), e.getTimestampMs());
+        } else if (event instanceof ProductClickEvent e) {
+            return new EventStamp(e.getShopId(), e.getTimestampMs());
+        } else if (event instanceof BuyNowClickEvent e) {
+            return new EventStamp(e.getShopId(), e.getTimestampMs());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+package com.talya.searchanalytics.model;
+
+import lombok.*;
+import org.springframework.data.domain.Persistable;
+
+import javax.persistence.*;
+
+/**
+ * Idempotency key of an ingested event. Only a fixed-size digest of the key is
+ * stored, so rows stay small regardless of what clients send; rows older than
+ * the retention window are pruned.
+ */
+@Entity
+@Table(name = "idempotency_keys", indexes = {
+        @Index(name = "idx_idempotency_created", columnList = "createdAtMs")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class IdempotencyKey implements Persistable<String> {
+
+    /** Hex of the first 128 bits of SHA-256(scope + key) */
+    @Id
+    @Column(length = 32)
+    private String keyHash;
+
+    @Column(nullable = false)
+    private Long createdAtMs;
+
+    /** Keys are only ever inserted, so save() can skip the select that merge() would issue. */
+    @Override
+    public String getId() {
+        return keyHash;
+    }
+
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+}
@@ -12,9 +12,11 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@EntityListeners(RollupFeedListener.class)
 public class ProductClickEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "product_click_events_seq")
+    @SequenceGenerator(name = "product_click_events_seq", sequenceName = "product_click_events_seq", allocationSize = EventIds.ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -0,0 +1,124 @@
+package com.talya.searchanalytics.model;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs an ordered product id list into one binary column.
+ * <p>
+ * Layout: a format byte, the varint id count, then per id a kind byte followed by
+ * either the varint-encoded number ({@code gid://shopify/Product/<n>} or a bare
+ * decimal id) or the varint length and UTF-8 bytes for anything else. A typical
+ * Shopify product GID takes 7 bytes instead of ~30 characters plus a row.
+ */
+@Converter
+public class ProductIdListConverter implements AttributeConverter<List<String>, byte[]> {
+
+    static final String PRODUCT_GID_PREFIX = "gid://shopify/Product/";
+
+    private static final byte FORMAT = 1;
+    private static final byte KIND_STRING = 0;
+    private static final byte KIND_PRODUCT_GID = 1;
+    private static final byte KIND_NUMBER = 2;
+
+    @Override
+    public byte[] convertToDatabaseColumn(List<String> ids) {
+        if (ids == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + ids.size() * 8);
+        out.write(FORMAT);
+        writeVarint(out, ids.size());
+        for (String id : ids) {
+            long number;
+            if (id.startsWith(PRODUCT_GID_PREFIX)
+                    && (number = parseCanonical(id, PRODUCT_GID_PREFIX.length())) >= 0) {
+                out.write(KIND_PRODUCT_GID);
+                writeVarint(out, number);
+            } else if ((number = parseCanonical(id, 0)) >= 0) {
+                out.write(KIND_NUMBER);
+                writeVarint(out, number);
+            } else {
+                byte[] utf8 = id.getBytes(StandardCharsets.UTF_8);
+                out.write(KIND_STRING);
+                writeVarint(out, utf8.length);
+                out.write(utf8, 0, utf8.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public List<String> convertToEntityAttribute(byte[] column) {
+        if (column == null) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(column);
+        byte format = in.get();
+        if (format != FORMAT) {
+            throw new IllegalStateException("Unknown packed product id format " + format);
+        }
+        int count = (int) readVarint(in);
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            switch (kind) {
+                case KIND_PRODUCT_GID -> ids.add(PRODUCT_GID_PREFIX + Long.toString(readVarint(in)));
+                case KIND_NUMBER -> ids.add(Long.toString(readVarint(in)));
+                case KIND_STRING -> {
+                    int len = (int) readVarint(in);
+                    ids.add(new String(column, in.position(), len, StandardCharsets.UTF_8));
+                    in.position(in.position() + len);
+                }
+                default -> throw new IllegalStateException("Unknown packed product id kind " + kind);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the decimal number starting at {@code from}, or -1 when the rest of
+     *         the string is not a canonical non-negative long (so it would not
+     *         print back identically)
+     */
+    private static long parseCanonical(String s, int from) {
+        int len = s.length() - from;
+        if (len < 1 || len > 18 || (len > 1 && s.charAt(from) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint in packed product ids");
+    }
+}
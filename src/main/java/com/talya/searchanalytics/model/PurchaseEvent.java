@@ -12,10 +12,12 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@EntityListeners(RollupFeedListener.class)
 public class PurchaseEvent {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "purchase_events_seq")
+    @SequenceGenerator(name = "purchase_events_seq", sequenceName = "purchase_events_seq", allocationSize = EventIds.ALLOCATION_SIZE)
     private Long id;
 
     /** Shopify store domain */
@@ -33,6 +35,10 @@ public class PurchaseEvent {
     @CollectionTable(name = "purchase_products", joinColumns = @JoinColumn(name = "purchase_event_id"))
     private java.util.List<Product> products;
 
+    /** Shopify order id, used to recognise webhook redeliveries */
+    @Column
+    private String orderId;
+
     /** Total order value in currency */
     @Column(nullable = false)
     private Double totalAmount;
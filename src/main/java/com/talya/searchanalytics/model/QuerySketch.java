@@ -0,0 +1,39 @@
+package com.talya.searchanalytics.model;
+
+import lombok.*;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * The most frequent normalized queries of one shop and UTC day, all search
+ * groups, as a Space-Saving summary of bounded size however long-tailed the
+ * day's queries are. Summaries of a range of days are merged for the top
+ * queries of the dashboard summary.
+ */
+@Entity
+@Table(name = "query_sketches")
+@IdClass(QuerySketch.Key.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class QuerySketch {
+
+    @Id
+    private String shopId;
+
+    @Id
+    private long epochDay;
+
+    @Column(length = 1_048_576)
+    private byte[] summary;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private String shopId;
+        private long epochDay;
+    }
+}
@@ -0,0 +1,105 @@
+package com.talya.searchanalytics.model;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted events waiting to be folded into the daily rollups by
+ * {@code DailyRollupService}, filled by {@link RollupFeedListener}. Events are
+ * only queued: every path that persists an event (synchronous saves,
+ * write-behind batches, journal replay) is covered without adding database work
+ * to the insert. An event is queued once its transaction commits, so inserts
+ * that are rolled back, like a failed batch retried one event at a time, are
+ * not counted.
+ * <p>
+ * A removed event, or one that does not fit in the queue
+ * ({@code analytics.rollups.queue-capacity}), marks its shop and day stale
+ * instead; stale days are recomputed from the raw events.
+ */
+@Component
+public class RollupFeed {
+
+    public record Day(String shopId, long epochDay) {
+    }
+
+    private final boolean enabled;
+    private final BlockingQueue<Object> inserted;
+    private final Set<Day> stale = ConcurrentHashMap.newKeySet();
+
+    public RollupFeed(@Value("${analytics.summary.source:events}") String source,
+            @Value("${analytics.rollups.queue-capacity:100000}") int capacity) {
+        this.enabled = "rollups".equalsIgnoreCase(source.trim());
+        this.inserted = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void inserted(Object event) {
+        Day day = dayOf(event);
+        if (!enabled || day == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    queue(event, day);
+                }
+            });
+        } else {
+            queue(event, day);
+        }
+    }
+
+    private void queue(Object event, Day day) {
+        if (!inserted.offer(event)) {
+            stale.add(day);
+        }
+    }
+
+    public void removed(Object event) {
+        Day day = dayOf(event);
+        if (enabled && day != null) {
+            stale.add(day);
+        }
+    }
+
+    public void markStale(Day day) {
+        stale.add(day);
+    }
+
+    /** Persisted events not yet folded into the rollups, oldest first. */
+    public List<Object> drain() {
+        List<Object> events = new ArrayList<>();
+        inserted.drainTo(events);
+        return events;
+    }
+
+    public List<Day> drainStale() {
+        List<Day> days = new ArrayList<>();
+        for (Iterator<Day> it = stale.iterator(); it.hasNext();) {
+            days.add(it.next());
+            it.remove();
+        }
+        return days;
+    }
+
+    /** The shop and UTC day an event is counted on, or null when it has no timestamp. */
+    public static Day dayOf(Object event) {
+        EventStamp stamp = EventStamp.of(event);
+        return stamp == null || stamp.shopId() == null || stamp.timestampMs() == null ? null
+                : new Day(stamp.shopId(), Math.floorDiv(stamp.timestampMs(), 86_400_000L));
+    }
+}
@@ -0,0 +1,42 @@
+package com.talya.searchanalytics.model;
+
+import com.talya.searchanalytics.service.HotWindowStore;
+import org.springframework.beans.factory.ObjectProvider;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+
+/**
+ * Entity listener of the event entities, reporting inserts and removals to the
+ * rollups, the shop watermarks and the hot window. Hibernate creates its own
+ * instance through Spring, so the state lives in the injected {@link RollupFeed},
+ * {@link ShopWatermarks} and {@link HotWindowStore} singletons rather than here.
+ * The hot window loads events through the repositories, so it is looked up when
+ * the first event arrives rather than while the entity manager is being built.
+ */
+public class RollupFeedListener {
+
+    private final RollupFeed feed;
+    private final ShopWatermarks watermarks;
+    private final ObjectProvider<HotWindowStore> hotWindow;
+
+    public RollupFeedListener(RollupFeed feed, ShopWatermarks watermarks, ObjectProvider<HotWindowStore> hotWindow) {
+        this.feed = feed;
+        this.watermarks = watermarks;
+        this.hotWindow = hotWindow;
+    }
+
+    @PostPersist
+    public void afterInsert(Object event) {
+        feed.inserted(event);
+        watermarks.changed(event);
+        hotWindow.ifAvailable(w -> w.inserted(event));
+    }
+
+    @PostRemove
+    public void afterRemove(Object event) {
+        feed.removed(event);
+        watermarks.changed(event);
+        hotWindow.ifAvailable(w -> w.removed(event));
+    }
+}
@@ -1,5 +1,6 @@
 package com.talya.searchanalytics.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import javax.persistence.*;
 import lombok.*;
 
@@ -12,9 +13,11 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@EntityListeners({ SearchProductStorage.class, RollupFeedListener.class })
 public class SearchEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "search_events_seq")
+    @SequenceGenerator(name = "search_events_seq", sequenceName = "search_events_seq", allocationSize = EventIds.ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -32,15 +35,33 @@ public class SearchEvent {
     @Column(nullable = false, length = 2000)
     private String query;
 
+    /** Result product ids stored one row each (table storage, and rows written before packing) */
     @ElementCollection
     @CollectionTable(name = "search_result_products", joinColumns = @JoinColumn(name = "search_event_id"))
     @Column(name = "productId")
     private java.util.List<String> productIds;
 
+    /**
+     * Result product ids packed into one column (packed storage), see {@link SearchProductStorage}.
+     * Serialized only as {@code productIds}.
+     */
+    @JsonIgnore
+    @Convert(converter = ProductIdListConverter.class)
+    @Column(length = 65536)
+    private java.util.List<String> packedProductIds;
+
     /** A/B test search group: 0 = Shopify search, 1 = AI search */
     @Column
     private Integer searchGroup;
 
     @Column(nullable = false)
     private Long timestampMs;
+
+    /**
+     * The ordered search result product ids, whichever way the row stores them.
+     * Packed rows never touch the collection, so reading them costs no extra select.
+     */
+    public java.util.List<String> getProductIds() {
+        return packedProductIds != null ? packedProductIds : productIds;
+    }
 }
@@ -0,0 +1,60 @@
+package com.talya.searchanalytics.model;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.PrePersist;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses how new {@link SearchEvent}s store their result product ids
+ * ({@code search-events.product-ids.storage}):
+ * <ul>
+ * <li>{@code table} (the default): one {@code search_result_products} row per id.</li>
+ * <li>{@code packed}: one binary column on the event row
+ * ({@link ProductIdListConverter}), so a search is a single insert and reads need
+ * no extra select per event.</li>
+ * </ul>
+ * Rows in either layout stay readable through {@link SearchEvent#getProductIds()};
+ * {@code DataMigrationService#migrateSearchProducts} moves existing rows to the
+ * configured layout.
+ */
+@Component
+public class SearchProductStorage {
+
+    public enum Mode {
+        TABLE, PACKED
+    }
+
+    private final Mode mode;
+
+    public SearchProductStorage(@Value("${search-events.product-ids.storage:table}") String mode) {
+        this.mode = Mode.valueOf(mode.trim().toUpperCase());
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    @PrePersist
+    public void beforeInsert(SearchEvent event) {
+        if (mode == Mode.PACKED && event.getPackedProductIds() == null) {
+            pack(event);
+        }
+    }
+
+    /** Move the event's product ids into the packed column; its collection rows are deleted on flush. */
+    public static void pack(SearchEvent event) {
+        List<String> ids = event.getProductIds();
+        event.setPackedProductIds(ids != null ? new ArrayList<>(ids) : new ArrayList<>());
+        event.setProductIds(null);
+    }
+
+    /** Move the event's packed product ids back into the collection table. */
+    public static void unpack(SearchEvent event) {
+        List<String> ids = event.getPackedProductIds();
+        event.setPackedProductIds(null);
+        event.setProductIds(ids != null ? new ArrayList<>(ids) : new ArrayList<>());
+    }
+}
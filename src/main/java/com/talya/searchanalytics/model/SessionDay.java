@@ -0,0 +1,68 @@
+package com.talya.searchanalytics.model;
+
+import lombok.*;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * What one session did on a UTC day in a search group, so rollups can count
+ * distinct sessions over any range of days. Flags are only set for events
+ * that trace back to a search.
+ */
+@Entity
+@Table(name = "session_days", indexes = {
+        @Index(name = "idx_session_day_shop_day", columnList = "shopId, epochDay")
+})
+@IdClass(SessionDay.Key.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SessionDay {
+
+    public static final int SEARCHED = 1;
+    public static final int CLICKED = 2;
+    public static final int CARTED = 4;
+    public static final int PURCHASED = 8;
+
+    @Id
+    private String shopId;
+
+    @Id
+    private long epochDay;
+
+    /** {@link DailyRollup#NO_GROUP} for events sent without one */
+    @Id
+    private int searchGroup;
+
+    @Id
+    private String sessionId;
+
+    private boolean searched;
+    private boolean clicked;
+    private boolean carted;
+    private boolean purchased;
+
+    public int flags() {
+        return (searched ? SEARCHED : 0) | (clicked ? CLICKED : 0) | (carted ? CARTED : 0)
+                | (purchased ? PURCHASED : 0);
+    }
+
+    public void addFlags(int flags) {
+        searched |= (flags & SEARCHED) != 0;
+        clicked |= (flags & CLICKED) != 0;
+        carted |= (flags & CARTED) != 0;
+        purchased |= (flags & PURCHASED) != 0;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private String shopId;
+        private long epochDay;
+        private int searchGroup;
+        private String sessionId;
+    }
+}
@@ -0,0 +1,44 @@
+package com.talya.searchanalytics.model;
+
+import lombok.*;
+
+import javax.persistence.*;
+
+/**
+ * HyperLogLog sketches of the sessions of one shop, UTC day and search group
+ * that searched, clicked, added to cart and purchased, the same sessions
+ * {@link SessionDay} flags. Unioned over a range for approximate distinct
+ * session counts ({@code analytics.sessions.counting=approximate}); null when
+ * no session has the flag.
+ */
+@Entity
+@Table(name = "session_sketches")
+@IdClass(DailyRollup.Key.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SessionSketch {
+
+    @Id
+    private String shopId;
+
+    @Id
+    private long epochDay;
+
+    /** {@link DailyRollup#NO_GROUP} for events sent without one */
+    @Id
+    private int searchGroup;
+
+    @Column(length = 4096)
+    private byte[] searched;
+
+    @Column(length = 4096)
+    private byte[] clicked;
+
+    @Column(length = 4096)
+    private byte[] carted;
+
+    @Column(length = 4096)
+    private byte[] purchased;
+}
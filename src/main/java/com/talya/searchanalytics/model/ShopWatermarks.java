@@ -0,0 +1,81 @@
+package com.talya.searchanalytics.model;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-shop versions of the stored events, bumped by {@link RollupFeedListener}
+ * whenever an event is persisted or removed, so results computed from a shop's
+ * events can tell whether they are still current.
+ * <p>
+ * Each shop has two versions. The open version changes with every event. The
+ * closed version only changes for events timestamped before the closed horizon
+ * ({@code analytics.summary-cache.closed-after-ms} before now), such as late
+ * events, removals and backfills, so results that end before the horizon stay
+ * valid while live traffic keeps arriving.
+ */
+@Component
+public class ShopWatermarks {
+
+    private static final int OPEN = 0;
+    private static final int CLOSED = 1;
+
+    private final long closedAfterMs;
+    private final ConcurrentMap<String, AtomicLongArray> versions = new ConcurrentHashMap<>();
+
+    public ShopWatermarks(@Value("${analytics.summary-cache.closed-after-ms:3600000}") long closedAfterMs) {
+        this.closedAfterMs = closedAfterMs;
+    }
+
+    /** Events timestamped before this are part of closed periods. */
+    public long closedHorizonMs() {
+        return System.currentTimeMillis() - closedAfterMs;
+    }
+
+    /**
+     * The version results over a shop's events up to {@code toMs} depend on: the
+     * closed version when {@code toMs} is before the closed horizon, else the open one.
+     */
+    public long version(String shopId, long toMs) {
+        AtomicLongArray shop = versions.get(shopId);
+        if (toMs < closedHorizonMs()) {
+            // Negative, so closed and open versions never collide
+            return -1 - (shop == null ? 0 : shop.get(CLOSED));
+        }
+        return shop == null ? 0 : shop.get(OPEN);
+    }
+
+    /** Record a persisted or removed event, again once its transaction completes. */
+    public void changed(Object event) {
+        EventStamp stamp = EventStamp.of(event);
+        if (stamp == null || stamp.shopId() == null) {
+            return;
+        }
+        String shopId = stamp.shopId();
+        Long timestampMs = stamp.timestampMs();
+        bump(shopId, timestampMs);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // A result computed before the commit cannot see the event, so it must not stay current
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    bump(shopId, timestampMs);
+                }
+            });
+        }
+    }
+
+    private void bump(String shopId, Long timestampMs) {
+        AtomicLongArray shop = versions.computeIfAbsent(shopId, k -> new AtomicLongArray(2));
+        shop.incrementAndGet(OPEN);
+        if (timestampMs == null || timestampMs < closedHorizonMs()) {
+            shop.incrementAndGet(CLOSED);
+        }
+    }
+}
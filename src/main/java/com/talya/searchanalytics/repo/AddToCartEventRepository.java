@@ -1,10 +1,12 @@
 package com.talya.searchanalytics.repo;
 
 import com.talya.searchanalytics.model.AddToCartEvent;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface AddToCartEventRepository extends JpaRepository<AddToCartEvent, Long> {
@@ -14,6 +16,8 @@ public interface AddToCartEventRepository extends JpaRepository<AddToCartEvent,
 
     List<AddToCartEvent> findAllByShopIdAndTimestampMsBetween(String shopId, Long from, Long to);
 
+    List<AddToCartEvent> findAllByShopIdAndSessionId(String shopId, String sessionId);
+
     @Query("SELECT SUM(e.price) FROM AddToCartEvent e WHERE e.shopId = :shopId AND e.timestampMs BETWEEN :from AND :to")
     Double sumPriceByShopIdAndTimestampMsBetween(@Param("shopId") String shopId, @Param("from") Long from,
             @Param("to") Long to); // Sum price of all add-to-cart events in the given period
@@ -27,4 +31,24 @@ public interface AddToCartEventRepository extends JpaRepository<AddToCartEvent,
     @Query("SELECT SUM(e.price) FROM AddToCartEvent e WHERE e.shopId = :shopId AND e.timestampMs BETWEEN :from AND :to AND e.searchGroup = :searchGroup")
     Double sumPriceByShopIdAndTimestampMsBetweenAndSearchGroup(@Param("shopId") String shopId, @Param("from") Long from,
             @Param("to") Long to, @Param("searchGroup") Integer searchGroup);
+
+    // Analytics reads: unmanaged rows with only the fields the metrics use
+    @Query("select new com.talya.searchanalytics.repo.CartRow(e.id, e.sessionId, e.productId, e.price, e.currency, e.searchGroup, e.timestampMs) from AddToCartEvent e where e.shopId = :shop and e.timestampMs between :from and :to")
+    List<CartRow> findRows(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to);
+
+    @Query("select new com.talya.searchanalytics.repo.CartRow(e.id, e.sessionId, e.productId, e.price, e.currency, e.searchGroup, e.timestampMs) from AddToCartEvent e where e.shopId = :shop and e.timestampMs between :from and :to and e.searchGroup = :group")
+    List<CartRow> findRowsInGroup(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to,
+            @Param("group") Integer searchGroup);
+
+    /** @param searchGroup the group, or null for all groups */
+    default List<CartRow> findAnalyticsRows(String shopId, long from, long to, Integer searchGroup) {
+        return searchGroup == null ? findRows(shopId, from, to) : findRowsInGroup(shopId, from, to, searchGroup);
+    }
+
+    // Export pages, walked by (timestampMs, id) from a start key (inclusive) to an end key (exclusive)
+    @Query("select e.timestampMs, e.id from AddToCartEvent e where e.shopId = :shop and e.timestampMs >= :fromTs and (e.timestampMs > :fromTs or e.id >= :fromId) and e.timestampMs <= :toTs and (e.timestampMs < :toTs or e.id < :toId) order by e.timestampMs, e.id")
+    List<Object[]> findExportKeys(@Param("shop") String shopId, @Param("fromTs") long fromTs, @Param("fromId") long fromId,
+            @Param("toTs") long toTs, @Param("toId") long toId, Pageable page);
+
+    List<AddToCartEvent> findAllByIdIn(Collection<Long> ids);
 }
@@ -1,7 +1,11 @@
 package com.talya.searchanalytics.repo;
 
 import com.talya.searchanalytics.model.BuyNowClickEvent;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import java.util.Collection;
 import java.util.List;
 
 public interface BuyNowClickEventRepository extends JpaRepository<BuyNowClickEvent, Long> {
@@ -14,4 +18,24 @@ public interface BuyNowClickEventRepository extends JpaRepository<BuyNowClickEve
 
     List<BuyNowClickEvent> findAllByShopIdAndTimestampMsBetweenAndSearchGroup(String shopId, Long from, Long to,
             Integer searchGroup);
+
+    // Analytics reads: unmanaged rows with only the fields the metrics use
+    @Query("select new com.talya.searchanalytics.repo.ClickRow(e.id, e.sessionId, e.productId, e.searchGroup, e.timestampMs) from BuyNowClickEvent e where e.shopId = :shop and e.timestampMs between :from and :to")
+    List<ClickRow> findRows(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to);
+
+    @Query("select new com.talya.searchanalytics.repo.ClickRow(e.id, e.sessionId, e.productId, e.searchGroup, e.timestampMs) from BuyNowClickEvent e where e.shopId = :shop and e.timestampMs between :from and :to and e.searchGroup = :group")
+    List<ClickRow> findRowsInGroup(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to,
+            @Param("group") Integer searchGroup);
+
+    /** @param searchGroup the group, or null for all groups */
+    default List<ClickRow> findAnalyticsRows(String shopId, long from, long to, Integer searchGroup) {
+        return searchGroup == null ? findRows(shopId, from, to) : findRowsInGroup(shopId, from, to, searchGroup);
+    }
+
+    // Export pages, walked by (timestampMs, id) from a start key (inclusive) to an end key (exclusive)
+    @Query("select e.timestampMs, e.id from BuyNowClickEvent e where e.shopId = :shop and e.timestampMs >= :fromTs and (e.timestampMs > :fromTs or e.id >= :fromId) and e.timestampMs <= :toTs and (e.timestampMs < :toTs or e.id < :toId) order by e.timestampMs, e.id")
+    List<Object[]> findExportKeys(@Param("shop") String shopId, @Param("fromTs") long fromTs, @Param("fromId") long fromId,
+            @Param("toTs") long toTs, @Param("toId") long toId, Pageable page);
+
+    List<BuyNowClickEvent> findAllByIdIn(Collection<Long> ids);
 }
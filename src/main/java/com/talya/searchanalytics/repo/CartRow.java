@@ -0,0 +1,6 @@
+package com.talya.searchanalytics.repo;
+
+/** The fields of an add-to-cart event the analytics read. */
+public record CartRow(Long id, String sessionId, String productId, Double price, String currency,
+        Integer searchGroup, Long timestampMs) {
+}
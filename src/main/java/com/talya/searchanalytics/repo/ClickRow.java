@@ -0,0 +1,5 @@
+package com.talya.searchanalytics.repo;
+
+/** The fields of a product click or buy now click the analytics read. */
+public record ClickRow(Long id, String sessionId, String productId, Integer searchGroup, Long timestampMs) {
+}
@@ -0,0 +1,47 @@
+package com.talya.searchanalytics.repo;
+
+import com.talya.searchanalytics.model.DailyRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface DailyRollupRepository extends JpaRepository<DailyRollup, DailyRollup.Key> {
+
+    List<DailyRollup> findAllByShopIdAndEpochDayBetweenOrderByEpochDayAscSearchGroupAsc(String shopId, long fromDay,
+            long toDay);
+
+    /** Adds the counters of {@code d} to its row; returns 0 when the row does not exist yet. */
+    @Modifying
+    @Query("update DailyRollup r set r.searches = r.searches + :#{#d.searches},"
+            + " r.queries = r.queries + :#{#d.queries}, r.queryWords = r.queryWords + :#{#d.queryWords},"
+            + " r.longQueries = r.longQueries + :#{#d.longQueries},"
+            + " r.productClicks = r.productClicks + :#{#d.productClicks},"
+            + " r.buyNowClicks = r.buyNowClicks + :#{#d.buyNowClicks},"
+            + " r.addToCarts = r.addToCarts + :#{#d.addToCarts},"
+            + " r.addToCartAmount = r.addToCartAmount + :#{#d.addToCartAmount},"
+            + " r.purchasedProducts = r.purchasedProducts + :#{#d.purchasedProducts},"
+            + " r.revenue = r.revenue + :#{#d.revenue}, r.revenueEur = r.revenueEur + :#{#d.revenueEur}"
+            + " where r.shopId = :#{#d.shopId} and r.epochDay = :#{#d.epochDay} and r.searchGroup = :#{#d.searchGroup}")
+    int addCounters(@Param("d") DailyRollup d);
+
+    @Modifying
+    @Query("update DailyRollup r set r.currency = :currency where r.shopId = :#{#d.shopId}"
+            + " and r.epochDay = :#{#d.epochDay} and r.searchGroup = :#{#d.searchGroup} and r.currency is null")
+    int setCurrencyIfAbsent(@Param("d") DailyRollup d, @Param("currency") String currency);
+
+    @Modifying
+    @Query("update DailyRollup r set r.purchaseCurrency = :currency where r.shopId = :#{#d.shopId}"
+            + " and r.epochDay = :#{#d.epochDay} and r.searchGroup = :#{#d.searchGroup}")
+    int setPurchaseCurrency(@Param("d") DailyRollup d, @Param("currency") String currency);
+
+    @Modifying
+    @Query("delete from DailyRollup r where r.shopId = :shopId and r.epochDay = :day")
+    int deleteDay(@Param("shopId") String shopId, @Param("day") long epochDay);
+
+    @Modifying
+    @Query("delete from DailyRollup r where r.shopId = :shopId")
+    int deleteShop(@Param("shopId") String shopId);
+}
@@ -0,0 +1,16 @@
+package com.talya.searchanalytics.repo;
+
+import com.talya.searchanalytics.model.IdempotencyKey;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface IdempotencyKeyRepository extends JpaRepository<IdempotencyKey, String> {
+
+    @Transactional
+    @Modifying
+    @Query("delete from IdempotencyKey k where k.createdAtMs < :cutoff")
+    int deleteOlderThan(@Param("cutoff") long cutoff);
+}
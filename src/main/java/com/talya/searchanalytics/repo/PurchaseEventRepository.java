@@ -1,9 +1,12 @@
 package com.talya.searchanalytics.repo;
 
 import com.talya.searchanalytics.model.PurchaseEvent;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import java.util.Collection;
 import java.util.List;
 
 public interface PurchaseEventRepository extends JpaRepository<PurchaseEvent, Long> {
@@ -26,4 +29,27 @@ public interface PurchaseEventRepository extends JpaRepository<PurchaseEvent, Lo
     @Query("select coalesce(sum(p.totalAmount), 0) from PurchaseEvent p where p.shopId=:shop and p.timestampMs between :from and :to and p.searchGroup = :searchGroup")
     Double sumTotalAmountByShopIdAndTimestampMsBetweenAndSearchGroup(@Param("shop") String shopId,
             @Param("from") Long from, @Param("to") Long to, @Param("searchGroup") Integer searchGroup);
+
+    // Analytics reads: each purchase flattened to one unmanaged row per product
+    @Query("select new com.talya.searchanalytics.repo.PurchaseProductRow(e.id, e.sessionId, e.totalAmount, e.currency, e.searchGroup, e.timestampMs, p.productId, p.price, p.amount) from PurchaseEvent e left join e.products p where e.shopId = :shop and e.timestampMs between :from and :to order by e.id")
+    List<PurchaseProductRow> findProductRows(@Param("shop") String shopId, @Param("from") Long from,
+            @Param("to") Long to);
+
+    @Query("select new com.talya.searchanalytics.repo.PurchaseProductRow(e.id, e.sessionId, e.totalAmount, e.currency, e.searchGroup, e.timestampMs, p.productId, p.price, p.amount) from PurchaseEvent e left join e.products p where e.shopId = :shop and e.timestampMs between :from and :to and e.searchGroup = :group order by e.id")
+    List<PurchaseProductRow> findProductRowsInGroup(@Param("shop") String shopId, @Param("from") Long from,
+            @Param("to") Long to, @Param("group") Integer searchGroup);
+
+    /** @param searchGroup the group, or null for all groups */
+    default List<PurchaseRow> findAnalyticsRows(String shopId, long from, long to, Integer searchGroup) {
+        return PurchaseRow.group(searchGroup == null ? findProductRows(shopId, from, to)
+                : findProductRowsInGroup(shopId, from, to, searchGroup));
+    }
+
+    // Export pages, walked by (timestampMs, id) from a start key (inclusive) to an end key (exclusive)
+    @Query("select e.timestampMs, e.id from PurchaseEvent e where e.shopId = :shop and e.timestampMs >= :fromTs and (e.timestampMs > :fromTs or e.id >= :fromId) and e.timestampMs <= :toTs and (e.timestampMs < :toTs or e.id < :toId) order by e.timestampMs, e.id")
+    List<Object[]> findExportKeys(@Param("shop") String shopId, @Param("fromTs") long fromTs, @Param("fromId") long fromId,
+            @Param("toTs") long toTs, @Param("toId") long toId, Pageable page);
+
+    @EntityGraph(attributePaths = "products")
+    List<PurchaseEvent> findAllByIdIn(Collection<Long> ids);
 }
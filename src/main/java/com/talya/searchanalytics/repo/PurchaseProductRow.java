@@ -0,0 +1,9 @@
+package com.talya.searchanalytics.repo;
+
+/**
+ * A purchase joined with one of its products, or with nulls when it has none.
+ * Grouped back into {@link PurchaseRow}s by {@link PurchaseRow#group}.
+ */
+public record PurchaseProductRow(Long purchaseId, String sessionId, Double totalAmount, String currency,
+        Integer searchGroup, Long timestampMs, String productId, Double price, Integer amount) {
+}
@@ -0,0 +1,45 @@
+package com.talya.searchanalytics.repo;
+
+import com.talya.searchanalytics.model.Product;
+import com.talya.searchanalytics.model.PurchaseEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The fields of a purchase event and its products the analytics read. */
+public record PurchaseRow(Long id, String sessionId, Double totalAmount, String currency, Integer searchGroup,
+        Long timestampMs, List<Item> products) {
+
+    public record Item(String productId, Double price, Integer amount) {
+    }
+
+    /** The row of an event already in memory, such as one queued for the rollups. */
+    public static PurchaseRow of(PurchaseEvent e) {
+        List<Item> products = new ArrayList<>();
+        if (e.getProducts() != null) {
+            for (Product p : e.getProducts()) {
+                products.add(new Item(p.getProductId(), p.getPrice(), p.getAmount()));
+            }
+        }
+        return new PurchaseRow(e.getId(), e.getSessionId(), e.getTotalAmount(), e.getCurrency(), e.getSearchGroup(),
+                e.getTimestampMs(), products);
+    }
+
+    /** Folds rows ordered by purchase id into one row per purchase. */
+    static List<PurchaseRow> group(List<PurchaseProductRow> rows) {
+        List<PurchaseRow> purchases = new ArrayList<>();
+        PurchaseRow current = null;
+        for (PurchaseProductRow row : rows) {
+            if (current == null || !current.id().equals(row.purchaseId())) {
+                current = new PurchaseRow(row.purchaseId(), row.sessionId(), row.totalAmount(), row.currency(),
+                        row.searchGroup(), row.timestampMs(), new ArrayList<>());
+                purchases.add(current);
+            }
+            // The outer join yields one all-null product for a purchase without products
+            if (row.productId() != null || row.price() != null || row.amount() != null) {
+                current.products().add(new Item(row.productId(), row.price(), row.amount()));
+            }
+        }
+        return purchases;
+    }
+}
@@ -0,0 +1,22 @@
+package com.talya.searchanalytics.repo;
+
+import com.talya.searchanalytics.model.QuerySketch;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface QuerySketchRepository extends JpaRepository<QuerySketch, QuerySketch.Key> {
+
+    List<QuerySketch> findAllByShopIdAndEpochDayBetween(String shopId, long fromDay, long toDay);
+
+    @Modifying
+    @Query("delete from QuerySketch q where q.shopId = :shopId and q.epochDay = :day")
+    int deleteDay(@Param("shopId") String shopId, @Param("day") long epochDay);
+
+    @Modifying
+    @Query("delete from QuerySketch q where q.shopId = :shopId")
+    int deleteShop(@Param("shopId") String shopId);
+}
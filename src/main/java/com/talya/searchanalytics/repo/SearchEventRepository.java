@@ -1,10 +1,17 @@
 package com.talya.searchanalytics.repo;
 
 import com.talya.searchanalytics.model.SearchEvent;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
+
+import javax.persistence.QueryHint;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface SearchEventRepository extends JpaRepository<SearchEvent, Long> {
     long countByShopIdAndTimestampMsBetween(String shopId, Long from, Long to);
@@ -13,16 +20,69 @@ public interface SearchEventRepository extends JpaRepository<SearchEvent, Long>
 
     List<SearchEvent> findAllByShopIdAndTimestampMsBetween(String shopId, Long from, Long to);
 
+    // Session lookups also run on the ingestion executor, outside any open session,
+    // so the product ids are fetched with the events rather than lazily
+    @EntityGraph(attributePaths = "productIds")
     List<SearchEvent> findAllByShopIdAndSessionId(String shopId, String sessionId);
 
+    @EntityGraph(attributePaths = "productIds")
     List<SearchEvent> findAllByShopIdAndSessionIdAndSearchGroup(String shopId, String sessionId, Integer searchGroup);
 
-    @Query("select e.query as term, count(e.id) as cnt from SearchEvent e where e.shopId=:shop and e.timestampMs between :from and :to group by e.query order by cnt desc")
-    List<Object[]> topQueries(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to);
+    /** Searches per raw query, unordered; streamed so distinct queries are never all held at once. */
+    @QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select e.query as term, count(e.id) as cnt from SearchEvent e where e.shopId=:shop and e.timestampMs between :from and :to group by e.query")
+    Stream<Object[]> queryCounts(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to);
 
     // A/B Testing: Filter by searchGroup (ignores null searchGroup)
     long countByShopIdAndTimestampMsBetweenAndSearchGroup(String shopId, Long from, Long to, Integer searchGroup);
 
     List<SearchEvent> findAllByShopIdAndTimestampMsBetweenAndSearchGroup(String shopId, Long from, Long to,
             Integer searchGroup);
+
+    // Product id storage migration (see SearchProductStorage), walked by id
+    @Query("select e.id from SearchEvent e where e.id > :after and e.packedProductIds is null order by e.id")
+    List<Long> findUnpackedIdsAfter(@Param("after") long after, Pageable page);
+
+    @Query("select e.id from SearchEvent e where e.id > :after and e.packedProductIds is not null order by e.id")
+    List<Long> findPackedIdsAfter(@Param("after") long after, Pageable page);
+
+    @EntityGraph(attributePaths = "productIds")
+    List<SearchEvent> findAllByIdIn(Collection<Long> ids);
+
+    // Daily rollup rebuilds walk each shop's days from its first to its last search
+    @Query("select e.shopId, min(e.timestampMs), max(e.timestampMs) from SearchEvent e group by e.shopId")
+    List<Object[]> timestampRangeByShop();
+
+    @Query("select e.shopId, min(e.timestampMs), max(e.timestampMs) from SearchEvent e where e.shopId = :shop group by e.shopId")
+    List<Object[]> timestampRange(@Param("shop") String shopId);
+
+    // Analytics reads: unmanaged rows with only the fields the metrics use, product ids
+    // packed in the row or flattened to one (search, product id) row each
+    @Query("select new com.talya.searchanalytics.repo.SearchRow(e.id, e.sessionId, e.query, e.searchGroup, e.timestampMs, e.packedProductIds) from SearchEvent e where e.shopId = :shop and e.timestampMs between :from and :to")
+    List<SearchRow> findRows(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to);
+
+    @Query("select new com.talya.searchanalytics.repo.SearchRow(e.id, e.sessionId, e.query, e.searchGroup, e.timestampMs, e.packedProductIds) from SearchEvent e where e.shopId = :shop and e.timestampMs between :from and :to and e.searchGroup = :group")
+    List<SearchRow> findRowsInGroup(@Param("shop") String shopId, @Param("from") Long from, @Param("to") Long to,
+            @Param("group") Integer searchGroup);
+
+    @Query("select new com.talya.searchanalytics.repo.SearchProductRow(e.id, p) from SearchEvent e join e.productIds p where e.shopId = :shop and e.timestampMs between :from and :to and e.packedProductIds is null")
+    List<SearchProductRow> findTableProductIds(@Param("shop") String shopId, @Param("from") Long from,
+            @Param("to") Long to);
+
+    @Query("select new com.talya.searchanalytics.repo.SearchProductRow(e.id, p) from SearchEvent e join e.productIds p where e.shopId = :shop and e.timestampMs between :from and :to and e.searchGroup = :group and e.packedProductIds is null")
+    List<SearchProductRow> findTableProductIdsInGroup(@Param("shop") String shopId, @Param("from") Long from,
+            @Param("to") Long to, @Param("group") Integer searchGroup);
+
+    /** @param searchGroup the group, or null for all groups */
+    default List<SearchRow> findAnalyticsRows(String shopId, long from, long to, Integer searchGroup) {
+        return searchGroup == null
+                ? SearchRow.withTableProductIds(findRows(shopId, from, to), findTableProductIds(shopId, from, to))
+                : SearchRow.withTableProductIds(findRowsInGroup(shopId, from, to, searchGroup),
+                        findTableProductIdsInGroup(shopId, from, to, searchGroup));
+    }
+
+    // Export pages, walked by (timestampMs, id) from a start key (inclusive) to an end key (exclusive)
+    @Query("select e.timestampMs, e.id from SearchEvent e where e.shopId = :shop and e.timestampMs >= :fromTs and (e.timestampMs > :fromTs or e.id >= :fromId) and e.timestampMs <= :toTs and (e.timestampMs < :toTs or e.id < :toId) order by e.timestampMs, e.id")
+    List<Object[]> findExportKeys(@Param("shop") String shopId, @Param("fromTs") long fromTs, @Param("fromId") long fromId,
+            @Param("toTs") long toTs, @Param("toId") long toId, Pageable page);
 }
@@ -0,0 +1,5 @@
+package com.talya.searchanalytics.repo;
+
+/** One result product id of a search event whose ids are stored one row each. */
+public record SearchProductRow(Long searchEventId, String productId) {
+}
@@ -0,0 +1,37 @@
+package com.talya.searchanalytics.repo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of a search event the analytics read, selected into an unmanaged
+ * row instead of an entity. Product ids come from the packed column, or are
+ * added from {@link SearchProductRow}s for rows in table storage.
+ */
+public record SearchRow(Long id, String sessionId, String query, Integer searchGroup, Long timestampMs,
+        List<String> productIds) {
+
+    public SearchRow {
+        productIds = productIds != null ? productIds : new ArrayList<>();
+    }
+
+    /** Adds the (search, product id) rows of searches whose ids are not packed. */
+    static List<SearchRow> withTableProductIds(List<SearchRow> searches, List<SearchProductRow> products) {
+        if (products.isEmpty()) {
+            return searches;
+        }
+        Map<Long, SearchRow> byId = new HashMap<>(searches.size() * 2);
+        for (SearchRow search : searches) {
+            byId.put(search.id(), search);
+        }
+        for (SearchProductRow product : products) {
+            SearchRow search = byId.get(product.searchEventId());
+            if (search != null) {
+                search.productIds().add(product.productId());
+            }
+        }
+        return searches;
+    }
+}
@@ -0,0 +1,52 @@
+package com.talya.searchanalytics.repo;
+
+import com.talya.searchanalytics.model.SessionDay;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface SessionDayRepository extends JpaRepository<SessionDay, SessionDay.Key> {
+
+    /** Distinct sessions with searches, clicks, add-to-carts and purchases over a range of days, all groups. */
+    @Query(value = "select count(distinct case when searched then session_id end),"
+            + " count(distinct case when clicked then session_id end),"
+            + " count(distinct case when carted then session_id end),"
+            + " count(distinct case when purchased then session_id end)"
+            + " from session_days where shop_id = :shopId and epoch_day between :fromDay and :toDay",
+            nativeQuery = true)
+    List<Object[]> countSessions(@Param("shopId") String shopId, @Param("fromDay") long fromDay,
+            @Param("toDay") long toDay);
+
+    @Query(value = "select count(distinct case when searched then session_id end),"
+            + " count(distinct case when clicked then session_id end),"
+            + " count(distinct case when carted then session_id end),"
+            + " count(distinct case when purchased then session_id end)"
+            + " from session_days where shop_id = :shopId and epoch_day between :fromDay and :toDay"
+            + " and search_group = :searchGroup",
+            nativeQuery = true)
+    List<Object[]> countSessionsInGroup(@Param("shopId") String shopId, @Param("fromDay") long fromDay,
+            @Param("toDay") long toDay, @Param("searchGroup") int searchGroup);
+
+    /** {@link #countSessionsInGroup} of every group at once, led by the group. */
+    @Query(value = "select search_group,"
+            + " count(distinct case when searched then session_id end),"
+            + " count(distinct case when clicked then session_id end),"
+            + " count(distinct case when carted then session_id end),"
+            + " count(distinct case when purchased then session_id end)"
+            + " from session_days where shop_id = :shopId and epoch_day between :fromDay and :toDay"
+            + " group by search_group",
+            nativeQuery = true)
+    List<Object[]> countSessionsByGroup(@Param("shopId") String shopId, @Param("fromDay") long fromDay,
+            @Param("toDay") long toDay);
+
+    @Modifying
+    @Query("delete from SessionDay s where s.shopId = :shopId and s.epochDay = :day")
+    int deleteDay(@Param("shopId") String shopId, @Param("day") long epochDay);
+
+    @Modifying
+    @Query("delete from SessionDay s where s.shopId = :shopId")
+    int deleteShop(@Param("shopId") String shopId);
+}
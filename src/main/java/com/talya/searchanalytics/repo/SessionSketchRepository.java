@@ -0,0 +1,23 @@
+package com.talya.searchanalytics.repo;
+
+import com.talya.searchanalytics.model.DailyRollup;
+import com.talya.searchanalytics.model.SessionSketch;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface SessionSketchRepository extends JpaRepository<SessionSketch, DailyRollup.Key> {
+
+    List<SessionSketch> findAllByShopIdAndEpochDayBetween(String shopId, long fromDay, long toDay);
+
+    @Modifying
+    @Query("delete from SessionSketch s where s.shopId = :shopId and s.epochDay = :day")
+    int deleteDay(@Param("shopId") String shopId, @Param("day") long epochDay);
+
+    @Modifying
+    @Query("delete from SessionSketch s where s.shopId = :shopId")
+    int deleteShop(@Param("shopId") String shopId);
+}
@@ -0,0 +1,72 @@
+package com.talya.searchanalytics.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded thread pool that runs the dashboard's independent reads concurrently,
+ * so a summary waits for its slowest query rather than for the sum of them. Each
+ * read runs in its own read-only transaction, holding a connection only while it
+ * runs, and must load everything it returns, as its session is closed afterwards.
+ * When the pool and its queue are full, reads run on the calling thread instead.
+ * <p>
+ * Exported under the {@code analytics} executor name plus the
+ * {@code analytics.executor.caller.runs} counter.
+ */
+@Service
+@Slf4j
+public class AnalyticsExecutor {
+
+    private final ExecutorService executor;
+    private final TransactionTemplate readOnly;
+
+    public AnalyticsExecutor(MeterRegistry meterRegistry, PlatformTransactionManager transactionManager,
+            @Value("${analytics.executor.threads:6}") int threads,
+            @Value("${analytics.executor.queue-capacity:200}") int queueCapacity) {
+        AtomicInteger index = new AtomicInteger();
+        Counter callerRuns = meterRegistry.counter("analytics.executor.caller.runs");
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                r -> {
+                    Thread t = new Thread(r, "analytics-" + index.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, p) -> {
+                    if (p.isShutdown()) {
+                        throw new RejectedExecutionException("Analytics executor is shut down");
+                    }
+                    callerRuns.increment();
+                    r.run();
+                });
+        this.executor = ExecutorServiceMetrics.monitor(meterRegistry, pool, "analytics", Collections.emptyList());
+        this.readOnly = new TransactionTemplate(transactionManager);
+        this.readOnly.setReadOnly(true);
+    }
+
+    /** Run a read in a read-only transaction on the analytics pool. */
+    public <T> CompletableFuture<T> read(Supplier<T> read) {
+        return CompletableFuture.supplyAsync(() -> readOnly.execute(status -> read.get()), executor);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Analytics executor did not finish in-flight reads before shutdown");
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,20 +1,25 @@
 package com.talya.searchanalytics.service;
 
-import com.talya.searchanalytics.model.Product;
+import com.talya.searchanalytics.model.*;
 import com.talya.searchanalytics.repo.*;
 import com.talya.searchanalytics.web.dto.AnalyticsFullResponse;
 import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import com.talya.searchanalytics.web.dto.GroupComparisonResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @RequiredArgsConstructor
@@ -27,116 +32,318 @@ public class AnalyticsService {
     private final ProductClickEventRepository clickRepo;
     private final BuyNowClickEventRepository buyNowRepo;
     private final CurrencyService currencyService;
+    private final DailyRollupService dailyRollups;
+    private final AnalyticsExecutor analyticsExecutor;
+    private final SqlPeriodAnalytics sqlAnalytics;
+    private final HotWindowStore hotWindow;
+
+    /** Time series granularity; hours, days and Monday-based weeks are all UTC. */
+    public enum Granularity {
+        HOUR, DAY, WEEK
+    }
+
+    /** Longest time series a summary returns */
+    public static final long MAX_SERIES_POINTS = 100_000;
+
+    /** Top queries a summary returns by default, and at most */
+    public static final int DEFAULT_TOP_QUERIES = 10;
+    public static final int MAX_TOP_QUERIES = 100;
+
+    /** Counters per top-query summary, twice the most queries returned so the last ones are accurate */
+    static final int TOP_QUERY_CAPACITY = 2 * MAX_TOP_QUERIES;
+
+    /** Number of time series points a range has at a granularity. */
+    public static long seriesPoints(Granularity granularity, long fromMs, long toMs) {
+        return TimeSeriesBuckets.count(granularity, fromMs, toMs);
+    }
 
     public AnalyticsSummaryResponse summary(String shopId, long fromMs, long toMs, Integer searchGroup) {
+        return summary(shopId, fromMs, toMs, searchGroup, Granularity.DAY);
+    }
+
+    public AnalyticsSummaryResponse summary(String shopId, long fromMs, long toMs, Integer searchGroup,
+            Granularity granularity) {
+        return summary(shopId, fromMs, toMs, searchGroup, granularity, DEFAULT_TOP_QUERIES);
+    }
+
+    /** @param topQueryLimit number of top queries to return, at most {@link #MAX_TOP_QUERIES} */
+    public AnalyticsSummaryResponse summary(String shopId, long fromMs, long toMs, Integer searchGroup,
+            Granularity granularity, int topQueryLimit) {
         try {
             log.info("Starting analytics summary for shopId: {}, fromMs: {}, toMs: {}, searchGroup: {}",
                     shopId, fromMs, toMs, searchGroup);
 
-            // Calculate periods
-            long periodMs = toMs - fromMs;
-            long prevFromMs = fromMs - periodMs;
-            long prevToMs = fromMs;
-
-            // Get current and previous period analytics
-            Map<String, Double> conversionRatesUsed = new HashMap<>();
-            PeriodAnalytics currentPeriod = calculatePeriodAnalytics(shopId, fromMs, toMs, conversionRatesUsed,
-                    searchGroup);
-            PeriodAnalytics previousPeriod = calculatePeriodAnalytics(shopId, prevFromMs, prevToMs,
-                    conversionRatesUsed, searchGroup);
-
-            // Calculate percentage changes
-            Double searchesChange = percentChange(
-                    countSearches(shopId, prevFromMs, prevToMs, searchGroup),
-                    countSearches(shopId, fromMs, toMs, searchGroup));
-            Double addToCartChange = percentChange(previousPeriod.addToCartCount, currentPeriod.addToCartCount);
-            Double purchasesChange = percentChange(previousPeriod.validPurchasedProductCount,
-                    currentPeriod.validPurchasedProductCount);
-            Double productClicksChange = percentChange(previousPeriod.productClicks, currentPeriod.productClicks);
-            Double buyNowClicksChange = percentChange(previousPeriod.buyNowClicks, currentPeriod.buyNowClicks);
-            Double revenueChange = percentChange(previousPeriod.validPurchaseRevenue,
-                    currentPeriod.validPurchaseRevenue);
-            Double purchaseValueChangePercent = percentChange(previousPeriod.totalPurchaseValueEur,
-                    currentPeriod.totalPurchaseValueEur);
-            Double convChange = percentChange(calculateConversionRate(previousPeriod),
-                    calculateConversionRate(currentPeriod));
-            Double clickThroughRateChange = percentChange(calculateClickThroughRate(previousPeriod),
-                    calculateClickThroughRate(currentPeriod));
-            Double addToCartRateChange = percentChange(calculateAddToCartRate(previousPeriod),
-                    calculateAddToCartRate(currentPeriod));
-            Double sessionsWithClicksChange = percentChange(previousPeriod.sessionsWithClicks.size(),
-                    currentPeriod.sessionsWithClicks.size());
-            Double sessionsWithAddToCartsChange = percentChange(previousPeriod.sessionsWithAddToCarts.size(),
-                    currentPeriod.sessionsWithAddToCarts.size());
-            Double sessionsWithPurchasesChange = percentChange(previousPeriod.sessionsWithPurchases.size(),
-                    currentPeriod.sessionsWithPurchases.size());
-            Double sessionsWithSearchesChange = percentChange(previousPeriod.totalSearchSessions.size(),
-                    currentPeriod.totalSearchSessions.size());
-            Double averageWordsPerQueryChange = percentChange(calculateAverageWordsPerQuery(previousPeriod),
-                    calculateAverageWordsPerQuery(currentPeriod));
-            Double longQueryCountChange = percentChange(previousPeriod.longQueryCount, currentPeriod.longQueryCount);
-            Double longQueryPercentageChange = percentChange(calculateLongQueryPercentage(previousPeriod),
-                    calculateLongQueryPercentage(currentPeriod));
-            Double addToCartAmountChangePercent = percentChange(previousPeriod.addToCartAmount,
-                    currentPeriod.addToCartAmount);
-
-            // Generate time series
-            List<AnalyticsSummaryResponse.TimePoint> series = generateTimeSeries(shopId, fromMs, toMs,
-                    currentPeriod.currency, searchGroup);
-
-            // Get top queries
-            List<AnalyticsSummaryResponse.TopQuery> topQueries = getTopQueries(shopId, fromMs, toMs);
-
-            return AnalyticsSummaryResponse.builder()
-                    .totalSearches(countSearches(shopId, fromMs, toMs, searchGroup))
-                    .totalAddToCart(currentPeriod.addToCartCount)
-                    .totalPurchases(currentPeriod.validPurchasedProductCount)
-                    .totalProductClicks(currentPeriod.productClicks)
-                    .totalBuyNowClicks(currentPeriod.buyNowClicks)
-                    .totalRevenue(currentPeriod.validPurchaseRevenue)
-                    .conversionRate(Math.round(calculateConversionRate(currentPeriod) * 10.0) / 10.0)
-                    .clickThroughRate(Math.round(calculateClickThroughRate(currentPeriod) * 10.0) / 10.0)
-                    .timeSeries(series)
-                    .topQueries(topQueries)
-                    .searchesChangePercent(searchesChange)
-                    .addToCartChangePercent(addToCartChange)
-                    .purchasesChangePercent(purchasesChange)
-                    .productClicksChangePercent(productClicksChange)
-                    .buyNowClicksChangePercent(buyNowClicksChange)
-                    .revenueChangePercent(revenueChange)
-                    .conversionRateChangePercent(convChange)
-                    .clickThroughRateChangePercent(clickThroughRateChange)
-                    .totalAddToCartAmount(currentPeriod.addToCartAmount)
-                    .prevAddToCartAmount(previousPeriod.addToCartAmount)
-                    .addToCartAmountChangePercent(addToCartAmountChangePercent)
-                    .currency(currentPeriod.currency)
-                    .totalPurchaseValueEur(currentPeriod.totalPurchaseValueEur)
-                    .purchaseValueChangePercent(purchaseValueChangePercent)
-                    .conversionRatesUsed(conversionRatesUsed)
-                    // New session-based metrics
-                    .sessionsWithClicks((long) currentPeriod.sessionsWithClicks.size())
-                    .sessionsWithAddToCarts((long) currentPeriod.sessionsWithAddToCarts.size())
-                    .sessionsWithPurchases((long) currentPeriod.sessionsWithPurchases.size())
-                    .sessionsWithSearches((long) currentPeriod.totalSearchSessions.size())
-                    .addToCartRate(Math.round(calculateAddToCartRate(currentPeriod) * 10.0) / 10.0)
-                    .averageWordsPerQuery(calculateAverageWordsPerQuery(currentPeriod))
-                    .longQueryCount(currentPeriod.longQueryCount)
-                    .longQueryPercentage(calculateLongQueryPercentage(currentPeriod))
-                    .sessionsWithClicksChangePercent(sessionsWithClicksChange)
-                    .sessionsWithAddToCartsChangePercent(sessionsWithAddToCartsChange)
-                    .sessionsWithPurchasesChangePercent(sessionsWithPurchasesChange)
-                    .sessionsWithSearchesChangePercent(sessionsWithSearchesChange)
-                    .addToCartRateChangePercent(addToCartRateChange)
-                    .averageWordsPerQueryChangePercent(averageWordsPerQueryChange)
-                    .longQueryCountChangePercent(longQueryCountChange)
-                    .longQueryPercentageChangePercent(longQueryPercentageChange)
-                    .build();
+            // Filled by both periods, possibly at the same time
+            Map<String, Double> conversionRatesUsed = new ConcurrentHashMap<>();
+            CompletableFuture<PeriodAnalytics> currentPeriod;
+            CompletableFuture<PeriodAnalytics> previousPeriod;
+            CompletableFuture<List<AnalyticsSummaryResponse.TopQuery>> topQueries = analyticsExecutor
+                    .read(() -> getTopQueries(shopId, fromMs, toMs, topQueryLimit));
+            TimeSeriesBuckets series = new TimeSeriesBuckets(granularity, fromMs, toMs);
+            if (dailyRollups.useForSummary()) {
+                // Whole UTC days; the previous period is the same number of days before
+                long fromDay = epochDay(fromMs);
+                long toDay = epochDay(toMs);
+                long prevFromDay = fromDay - (toDay - fromDay + 1);
+                // Fold in pending events first, so the concurrent reads below all see them
+                dailyRollups.flush();
+                CompletableFuture<List<DailyRollup>> rollups = analyticsExecutor
+                        .read(() -> dailyRollups.rows(shopId, prevFromDay, toDay, searchGroup));
+                CompletableFuture<long[]> sessions = analyticsExecutor
+                        .read(() -> dailyRollups.sessionCounts(shopId, fromDay, toDay, searchGroup));
+                CompletableFuture<long[]> prevSessions = analyticsExecutor
+                        .read(() -> dailyRollups.sessionCounts(shopId, prevFromDay, fromDay - 1, searchGroup));
+                CompletableFuture<PeriodAnalytics> hours = granularity == Granularity.HOUR
+                        // Rollups are daily, hours come from the range's raw events
+                        ? calculatePeriodAnalytics(shopId, fromMs, toMs, new HashMap<>(), searchGroup, series)
+                        : null;
+                List<DailyRollup> rows = rollups.join();
+                Double sessionCountError = dailyRollups.sessionCountError();
+                currentPeriod = sessions.thenApply(counts -> PeriodAnalytics.sum(rows, fromDay, toDay, counts,
+                        sessionCountError, currencyService, conversionRatesUsed));
+                previousPeriod = prevSessions.thenApply(counts -> PeriodAnalytics.sum(rows, prevFromDay,
+                        fromDay - 1, counts, sessionCountError, currencyService, conversionRatesUsed));
+                if (hours != null) {
+                    hours.join();
+                } else {
+                    addRollups(series, rows, fromDay);
+                }
+            } else {
+                // Calculate periods
+                long periodMs = toMs - fromMs;
+                long prevFromMs = fromMs - periodMs;
+                long prevToMs = fromMs;
+
+                // Get current and previous period analytics; the time series is
+                // bucketed in the same pass over the current period's events
+                currentPeriod = calculatePeriodAnalytics(shopId, fromMs, toMs, conversionRatesUsed, searchGroup,
+                        series);
+                previousPeriod = calculatePeriodAnalytics(shopId, prevFromMs, prevToMs, conversionRatesUsed,
+                        searchGroup, null);
+            }
+
+            return summaryResponse(currentPeriod.join(), previousPeriod.join(), series.points(), topQueries.join(),
+                    conversionRatesUsed);
         } catch (Exception e) {
             log.error("Error calculating analytics summary for shopId: {}", shopId, e);
             return createDefaultResponse();
         }
     }
 
+    /**
+     * Summaries of several search groups over one range, as {@link #summary} returns
+     * them. Each event table (or the rollups) is read once for the range and its
+     * previous period and partitioned by group, so any number of groups costs
+     * about one summary.
+     *
+     * @param searchGroups groups in response order; null stands for all groups
+     */
+    public Map<Integer, AnalyticsSummaryResponse> summaries(String shopId, long fromMs, long toMs,
+            List<Integer> searchGroups, Granularity granularity) {
+        Map<Integer, AnalyticsSummaryResponse> summaries = new LinkedHashMap<>();
+        try {
+            log.info("Starting analytics summaries for shopId: {}, fromMs: {}, toMs: {}, searchGroups: {}",
+                    shopId, fromMs, toMs, searchGroups);
+
+            Map<Integer, PeriodAnalytics> currentPeriods = new HashMap<>();
+            Map<Integer, PeriodAnalytics> previousPeriods = new HashMap<>();
+            Map<Integer, Map<String, Double>> conversionRates = new HashMap<>();
+            Map<Integer, TimeSeriesBuckets> series = new HashMap<>();
+            for (Integer group : searchGroups) {
+                // Filled by both periods, possibly at the same time
+                conversionRates.put(group, new ConcurrentHashMap<>());
+                series.put(group, new TimeSeriesBuckets(granularity, fromMs, toMs));
+            }
+            CompletableFuture<List<AnalyticsSummaryResponse.TopQuery>> topQueries = analyticsExecutor
+                    .read(() -> getTopQueries(shopId, fromMs, toMs, DEFAULT_TOP_QUERIES));
+            if (dailyRollups.useForSummary()) {
+                long fromDay = epochDay(fromMs);
+                long toDay = epochDay(toMs);
+                long prevFromDay = fromDay - (toDay - fromDay + 1);
+                // Fold in pending events first, so the concurrent reads below all see them
+                dailyRollups.flush();
+                CompletableFuture<List<DailyRollup>> rollups = analyticsExecutor
+                        .read(() -> dailyRollups.rows(shopId, prevFromDay, toDay, null));
+                CompletableFuture<Map<Integer, long[]>> sessions = analyticsExecutor
+                        .read(() -> dailyRollups.sessionCounts(shopId, fromDay, toDay, searchGroups));
+                CompletableFuture<Map<Integer, long[]>> prevSessions = analyticsExecutor
+                        .read(() -> dailyRollups.sessionCounts(shopId, prevFromDay, fromDay - 1, searchGroups));
+                GroupedEvents hourEvents = granularity == Granularity.HOUR
+                        ? fetchGroupedEvents(shopId, fromMs, toMs) : null;
+                List<DailyRollup> rows = rollups.join();
+                Double sessionCountError = dailyRollups.sessionCountError();
+                for (Integer group : searchGroups) {
+                    List<DailyRollup> groupRows = group == null ? rows
+                            : rows.stream().filter(r -> r.getSearchGroup() == group).collect(Collectors.toList());
+                    currentPeriods.put(group, PeriodAnalytics.sum(groupRows, fromDay, toDay,
+                            sessions.join().get(group), sessionCountError, currencyService,
+                            conversionRates.get(group)));
+                    previousPeriods.put(group, PeriodAnalytics.sum(groupRows, prevFromDay, fromDay - 1,
+                            prevSessions.join().get(group), sessionCountError, currencyService,
+                            conversionRates.get(group)));
+                    if (hourEvents != null) {
+                        hourEvents.compute(group, fromMs, toMs, currencyService, new HashMap<>(), series.get(group));
+                    } else {
+                        addRollups(series.get(group), groupRows, fromDay);
+                    }
+                }
+            } else if (sqlAnalytics.isEnabled()) {
+                // Aggregated in the database, one query set per group and period
+                long prevFromMs = fromMs - (toMs - fromMs);
+                Map<Integer, CompletableFuture<PeriodAnalytics>> current = new HashMap<>();
+                Map<Integer, CompletableFuture<PeriodAnalytics>> previous = new HashMap<>();
+                for (Integer group : searchGroups) {
+                    current.put(group, calculatePeriodAnalytics(shopId, fromMs, toMs, conversionRates.get(group),
+                            group, series.get(group)));
+                    previous.put(group, calculatePeriodAnalytics(shopId, prevFromMs, fromMs,
+                            conversionRates.get(group), group, null));
+                }
+                for (Integer group : searchGroups) {
+                    currentPeriods.put(group, current.get(group).join());
+                    previousPeriods.put(group, previous.get(group).join());
+                }
+            } else {
+                long prevFromMs = fromMs - (toMs - fromMs);
+                GroupedEvents events = fetchGroupedEvents(shopId, prevFromMs, toMs);
+                for (Integer group : searchGroups) {
+                    currentPeriods.put(group, events.compute(group, fromMs, toMs, currencyService,
+                            conversionRates.get(group), series.get(group)));
+                    previousPeriods.put(group, events.compute(group, prevFromMs, fromMs, currencyService,
+                            conversionRates.get(group), null));
+                }
+            }
+
+            for (Integer group : searchGroups) {
+                summaries.put(group, summaryResponse(currentPeriods.get(group), previousPeriods.get(group),
+                        series.get(group).points(), topQueries.join(), conversionRates.get(group)));
+            }
+        } catch (Exception e) {
+            log.error("Error calculating analytics summaries for shopId: {}", shopId, e);
+            for (Integer group : searchGroups) {
+                summaries.put(group, createDefaultResponse());
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * All of a shop's events between {@code fromMs} and {@code toMs}, from the hot
+     * window or with one concurrent query per event table.
+     */
+    private GroupedEvents fetchGroupedEvents(String shopId, long fromMs, long toMs) {
+        Optional<GroupedEvents> hot = hotWindow.events(shopId, fromMs, dailyRollups.approximateSessions());
+        if (hot.isPresent()) {
+            return hot.get();
+        }
+        CompletableFuture<List<SearchRow>> searches = analyticsExecutor
+                .read(() -> searchRepo.findAnalyticsRows(shopId, fromMs, toMs, null));
+        CompletableFuture<List<CartRow>> carts = analyticsExecutor
+                .read(() -> cartRepo.findAnalyticsRows(shopId, fromMs, toMs, null));
+        CompletableFuture<List<ClickRow>> clicks = analyticsExecutor
+                .read(() -> clickRepo.findAnalyticsRows(shopId, fromMs, toMs, null));
+        CompletableFuture<List<ClickRow>> buyNows = analyticsExecutor
+                .read(() -> buyNowRepo.findAnalyticsRows(shopId, fromMs, toMs, null));
+        CompletableFuture<List<PurchaseRow>> purchases = analyticsExecutor
+                .read(() -> purchaseRepo.findAnalyticsRows(shopId, fromMs, toMs, null));
+        return new GroupedEvents(searches.join(), carts.join(), clicks.join(), buyNows.join(), purchases.join(),
+                dailyRollups.approximateSessions());
+    }
+
+    private static void addRollups(TimeSeriesBuckets series, List<DailyRollup> rows, long fromDay) {
+        for (DailyRollup r : rows) {
+            if (r.getEpochDay() >= fromDay) {
+                long dayStartMs = r.getEpochDay() * 86_400_000L;
+                series.addSearches(dayStartMs, r.getSearches());
+                series.addCarts(dayStartMs, r.getAddToCarts(), r.getAddToCartAmount(), r.getCurrency());
+                series.addPurchases(dayStartMs, r.getPurchasedProducts());
+            }
+        }
+    }
+
+    private AnalyticsSummaryResponse summaryResponse(PeriodAnalytics currentPeriod, PeriodAnalytics previousPeriod,
+            List<AnalyticsSummaryResponse.TimePoint> series, List<AnalyticsSummaryResponse.TopQuery> topQueries,
+            Map<String, Double> conversionRatesUsed) {
+        // Calculate percentage changes
+        Double searchesChange = percentChange(previousPeriod.searchCount, currentPeriod.searchCount);
+        Double addToCartChange = percentChange(previousPeriod.addToCartCount, currentPeriod.addToCartCount);
+        Double purchasesChange = percentChange(previousPeriod.validPurchasedProductCount,
+                currentPeriod.validPurchasedProductCount);
+        Double productClicksChange = percentChange(previousPeriod.productClicks, currentPeriod.productClicks);
+        Double buyNowClicksChange = percentChange(previousPeriod.buyNowClicks, currentPeriod.buyNowClicks);
+        Double revenueChange = percentChange(previousPeriod.validPurchaseRevenue,
+                currentPeriod.validPurchaseRevenue);
+        Double purchaseValueChangePercent = percentChange(previousPeriod.totalPurchaseValueEur,
+                currentPeriod.totalPurchaseValueEur);
+        Double convChange = percentChange(calculateConversionRate(previousPeriod),
+                calculateConversionRate(currentPeriod));
+        Double clickThroughRateChange = percentChange(calculateClickThroughRate(previousPeriod),
+                calculateClickThroughRate(currentPeriod));
+        Double addToCartRateChange = percentChange(calculateAddToCartRate(previousPeriod),
+                calculateAddToCartRate(currentPeriod));
+        Double sessionsWithClicksChange = percentChange(previousPeriod.clickSessionCount,
+                currentPeriod.clickSessionCount);
+        Double sessionsWithAddToCartsChange = percentChange(previousPeriod.cartSessionCount,
+                currentPeriod.cartSessionCount);
+        Double sessionsWithPurchasesChange = percentChange(previousPeriod.purchaseSessionCount,
+                currentPeriod.purchaseSessionCount);
+        Double sessionsWithSearchesChange = percentChange(previousPeriod.searchSessionCount,
+                currentPeriod.searchSessionCount);
+        Double averageWordsPerQueryChange = percentChange(calculateAverageWordsPerQuery(previousPeriod),
+                calculateAverageWordsPerQuery(currentPeriod));
+        Double longQueryCountChange = percentChange(previousPeriod.longQueryCount, currentPeriod.longQueryCount);
+        Double longQueryPercentageChange = percentChange(calculateLongQueryPercentage(previousPeriod),
+                calculateLongQueryPercentage(currentPeriod));
+        Double addToCartAmountChangePercent = percentChange(previousPeriod.addToCartAmount,
+                currentPeriod.addToCartAmount);
+
+        return AnalyticsSummaryResponse.builder()
+                .totalSearches(currentPeriod.searchCount)
+                .totalAddToCart(currentPeriod.addToCartCount)
+                .totalPurchases(currentPeriod.validPurchasedProductCount)
+                .totalProductClicks(currentPeriod.productClicks)
+                .totalBuyNowClicks(currentPeriod.buyNowClicks)
+                .totalRevenue(currentPeriod.validPurchaseRevenue)
+                .conversionRate(Math.round(calculateConversionRate(currentPeriod) * 10.0) / 10.0)
+                .clickThroughRate(Math.round(calculateClickThroughRate(currentPeriod) * 10.0) / 10.0)
+                .timeSeries(series)
+                .topQueries(topQueries)
+                .searchesChangePercent(searchesChange)
+                .addToCartChangePercent(addToCartChange)
+                .purchasesChangePercent(purchasesChange)
+                .productClicksChangePercent(productClicksChange)
+                .buyNowClicksChangePercent(buyNowClicksChange)
+                .revenueChangePercent(revenueChange)
+                .conversionRateChangePercent(convChange)
+                .clickThroughRateChangePercent(clickThroughRateChange)
+                .totalAddToCartAmount(currentPeriod.addToCartAmount)
+                .prevAddToCartAmount(previousPeriod.addToCartAmount)
+                .addToCartAmountChangePercent(addToCartAmountChangePercent)
+                .currency(currentPeriod.currency)
+                .totalPurchaseValueEur(currentPeriod.totalPurchaseValueEur)
+                .purchaseValueChangePercent(purchaseValueChangePercent)
+                .conversionRatesUsed(conversionRatesUsed)
+                // New session-based metrics
+                .sessionsWithClicks((long) currentPeriod.clickSessionCount)
+                .sessionsWithAddToCarts((long) currentPeriod.cartSessionCount)
+                .sessionsWithPurchases((long) currentPeriod.purchaseSessionCount)
+                .sessionsWithSearches((long) currentPeriod.searchSessionCount)
+                .addToCartRate(Math.round(calculateAddToCartRate(currentPeriod) * 10.0) / 10.0)
+                .averageWordsPerQuery(calculateAverageWordsPerQuery(currentPeriod))
+                .longQueryCount(currentPeriod.longQueryCount)
+                .longQueryPercentage(calculateLongQueryPercentage(currentPeriod))
+                .sessionsWithClicksChangePercent(sessionsWithClicksChange)
+                .sessionsWithAddToCartsChangePercent(sessionsWithAddToCartsChange)
+                .sessionsWithPurchasesChangePercent(sessionsWithPurchasesChange)
+                .sessionsWithSearchesChangePercent(sessionsWithSearchesChange)
+                .addToCartRateChangePercent(addToCartRateChange)
+                .averageWordsPerQueryChangePercent(averageWordsPerQueryChange)
+                .longQueryCountChangePercent(longQueryCountChange)
+                .longQueryPercentageChangePercent(longQueryPercentageChange)
+                .sessionCountErrorPercent(currentPeriod.sessionCountError != null
+                        ? Math.round(currentPeriod.sessionCountError * 1000.0) / 10.0 : null)
+                .build();
+    }
+
     // Helper method to count searches with optional searchGroup filter
     private long countSearches(String shopId, long fromMs, long toMs, Integer searchGroup) {
         if (searchGroup != null) {
@@ -161,12 +368,54 @@ public class AnalyticsService {
         log.info("Comparing search groups - shopId: {}, fromMs: {}, toMs: {}, groupA: {}, groupB: {}",
                 shopId, fromMs, toMs, groupA, groupB);
 
-        // Get summaries for both groups
-        AnalyticsSummaryResponse summaryA = summary(shopId, fromMs, toMs, groupA);
-        AnalyticsSummaryResponse summaryB = summary(shopId, fromMs, toMs, groupB);
+        // Get summaries for both groups from one read of the range
+        Map<Integer, AnalyticsSummaryResponse> summaries = summaries(shopId, fromMs, toMs,
+                Arrays.asList(groupA, groupB), Granularity.DAY);
+        AnalyticsSummaryResponse summaryA = summaries.get(groupA);
+        AnalyticsSummaryResponse summaryB = summaries.get(groupB);
+
+        return com.talya.searchanalytics.web.dto.ABTestComparisonResponse.builder()
+                .groupA(summaryA)
+                .groupALabel(getGroupLabel(groupA))
+                .groupB(summaryB)
+                .groupBLabel(getGroupLabel(groupB))
+                .comparison(compareSummaries(summaryA, summaryB))
+                .build();
+    }
 
-        // Calculate comparison metrics
-        com.talya.searchanalytics.web.dto.ABTestComparisonResponse.ComparisonMetrics comparison = com.talya.searchanalytics.web.dto.ABTestComparisonResponse.ComparisonMetrics
+    /**
+     * Compare any number of search groups (multi-variant testing). Every group is
+     * compared with the first one, the baseline.
+     *
+     * @param searchGroups groups to compare, baseline first
+     */
+    public GroupComparisonResponse compareGroups(String shopId, long fromMs, long toMs, List<Integer> searchGroups) {
+        log.info("Comparing search groups - shopId: {}, fromMs: {}, toMs: {}, groups: {}",
+                shopId, fromMs, toMs, searchGroups);
+
+        Map<Integer, AnalyticsSummaryResponse> summaries = summaries(shopId, fromMs, toMs, searchGroups,
+                Granularity.DAY);
+        AnalyticsSummaryResponse baseline = summaries.get(searchGroups.get(0));
+        List<GroupComparisonResponse.Variant> variants = new ArrayList<>();
+        for (Integer group : searchGroups) {
+            AnalyticsSummaryResponse summary = summaries.get(group);
+            variants.add(GroupComparisonResponse.Variant.builder()
+                    .searchGroup(group)
+                    .label(getGroupLabel(group))
+                    .summary(summary)
+                    .comparison(variants.isEmpty() ? null : compareSummaries(baseline, summary))
+                    .build());
+        }
+        return GroupComparisonResponse.builder()
+                .baselineGroup(searchGroups.get(0))
+                .variants(variants)
+                .build();
+    }
+
+    // Helper: Differences of summary B against summary A
+    private com.talya.searchanalytics.web.dto.ABTestComparisonResponse.ComparisonMetrics compareSummaries(
+            AnalyticsSummaryResponse summaryA, AnalyticsSummaryResponse summaryB) {
+        return com.talya.searchanalytics.web.dto.ABTestComparisonResponse.ComparisonMetrics
                 .builder()
                 // Core metrics (percentage difference)
                 .searchesDiff(percentDifference(summaryA.getTotalSearches(), summaryB.getTotalSearches()))
@@ -211,14 +460,6 @@ public class AnalyticsService {
                 .revenueWinner(determineWinner(summaryA.getTotalRevenue(), summaryB.getTotalRevenue()))
                 .clickThroughWinner(determineWinner(summaryA.getClickThroughRate(), summaryB.getClickThroughRate()))
                 .build();
-
-        return com.talya.searchanalytics.web.dto.ABTestComparisonResponse.builder()
-                .groupA(summaryA)
-                .groupALabel(getGroupLabel(groupA))
-                .groupB(summaryB)
-                .groupBLabel(getGroupLabel(groupB))
-                .comparison(comparison)
-                .build();
     }
 
     // Helper: Get descriptive label for search group
@@ -265,172 +506,66 @@ public class AnalyticsService {
         return valB > valA ? "B" : "A";
     }
 
-    // Helper class to hold period analytics data
-    private static class PeriodAnalytics {
-        long validPurchasedProductCount = 0;
-        double validPurchaseRevenue = 0.0;
-        double totalPurchaseValueEur = 0.0;
-        long addToCartCount = 0;
-        double addToCartAmount = 0.0;
-        long productClicks = 0;
-        long buyNowClicks = 0;
-        String currency = "NIS";
-        java.util.Set<String> totalSearchSessions = new java.util.HashSet<>();
-        java.util.Set<String> sessionsWithPurchases = new java.util.HashSet<>();
-        java.util.Set<String> sessionsWithClicks = new java.util.HashSet<>();
-        java.util.Set<String> sessionsWithAddToCarts = new java.util.HashSet<>();
-        long totalWordCount = 0;
-        long queryCount = 0;
-        long longQueryCount = 0; // Queries with 3+ words
-    }
-
-    private PeriodAnalytics calculatePeriodAnalytics(String shopId, long fromMs, long toMs,
-            Map<String, Double> conversionRatesUsed, Integer searchGroup) {
-        return calculatePeriodAnalytics(shopId, fromMs, toMs, conversionRatesUsed, true, searchGroup);
-    }
-
-    private PeriodAnalytics calculatePeriodAnalytics(String shopId, long fromMs, long toMs,
-            Map<String, Double> conversionRatesUsed, boolean enableLogging, Integer searchGroup) {
-        PeriodAnalytics analytics = new PeriodAnalytics();
-
-        // Get all events for this period (filtered by searchGroup if provided)
-        List<com.talya.searchanalytics.model.SearchEvent> searchEvents = searchGroup != null
-                ? searchRepo.findAllByShopIdAndTimestampMsBetweenAndSearchGroup(shopId, fromMs, toMs, searchGroup)
-                : searchRepo.findAllByShopIdAndTimestampMsBetween(shopId, fromMs, toMs);
-        List<com.talya.searchanalytics.model.AddToCartEvent> cartEvents = searchGroup != null
-                ? cartRepo.findAllByShopIdAndTimestampMsBetweenAndSearchGroup(shopId, fromMs, toMs, searchGroup)
-                : cartRepo.findAllByShopIdAndTimestampMsBetween(shopId, fromMs, toMs);
-        List<com.talya.searchanalytics.model.ProductClickEvent> clickEvents = searchGroup != null
-                ? clickRepo.findAllByShopIdAndTimestampMsBetweenAndSearchGroup(shopId, fromMs, toMs, searchGroup)
-                : clickRepo.findAllByShopIdAndTimestampMsBetween(shopId, fromMs, toMs);
-        List<com.talya.searchanalytics.model.BuyNowClickEvent> buyNowEvents = searchGroup != null
-                ? buyNowRepo.findAllByShopIdAndTimestampMsBetweenAndSearchGroup(shopId, fromMs, toMs, searchGroup)
-                : buyNowRepo.findAllByShopIdAndTimestampMsBetween(shopId, fromMs, toMs);
-        List<com.talya.searchanalytics.model.PurchaseEvent> purchaseEvents = searchGroup != null
-                ? purchaseRepo.findAllByShopIdAndTimestampMsBetweenAndSearchGroup(shopId, fromMs, toMs, searchGroup)
-                : purchaseRepo.findAllByShopIdAndTimestampMsBetween(shopId, fromMs, toMs);
-
-        // Build session products map and calculate word counts
-        java.util.Map<String, java.util.Set<String>> sessionProducts = new java.util.HashMap<>();
-        for (com.talya.searchanalytics.model.SearchEvent se : searchEvents) {
-            sessionProducts.computeIfAbsent(se.getSessionId(), k -> new java.util.HashSet<>())
-                    .addAll(se.getProductIds());
-            if (se.getSessionId() != null) {
-                analytics.totalSearchSessions.add(se.getSessionId());
-            }
-            // Calculate word count for this query
-            if (se.getQuery() != null && !se.getQuery().trim().isEmpty()) {
-                String[] words = se.getQuery().trim().split("\\s+");
-                int wordCount = words.length;
-                analytics.totalWordCount += wordCount;
-                analytics.queryCount++;
-                // Track queries with 3+ words
-                if (wordCount >= 3) {
-                    analytics.longQueryCount++;
-                }
-            }
-        }
-
-        // Filter and count add-to-cart events
-        List<com.talya.searchanalytics.model.AddToCartEvent> validCartEvents = new ArrayList<>();
-        for (com.talya.searchanalytics.model.AddToCartEvent e : cartEvents) {
-            java.util.Set<String> products = sessionProducts.get(e.getSessionId());
-            if (products != null && products.contains(e.getProductId())) {
-                validCartEvents.add(e);
-                // Track sessions with add-to-carts
-                if (e.getSessionId() != null) {
-                    analytics.sessionsWithAddToCarts.add(e.getSessionId());
-                }
-            }
-        }
-        analytics.addToCartCount = validCartEvents.size();
-        analytics.addToCartAmount = validCartEvents.stream()
-                .mapToDouble(ev -> ev.getPrice() != null ? ev.getPrice() : 0d).sum();
-        analytics.currency = validCartEvents.stream().map(com.talya.searchanalytics.model.AddToCartEvent::getCurrency)
-                .filter(c -> c != null && !c.isEmpty()).findFirst().orElse("NIS");
-
-        // Build session cart products map
-        java.util.Map<String, java.util.Set<String>> sessionCartProducts = new java.util.HashMap<>();
-        for (com.talya.searchanalytics.model.AddToCartEvent e : validCartEvents) {
-            sessionCartProducts.computeIfAbsent(e.getSessionId(), k -> new java.util.HashSet<>()).add(e.getProductId());
-        }
-
-        // Filter and calculate purchase metrics with fallback logic
-        int fallbackOrdersCount = 0;
-        for (com.talya.searchanalytics.model.PurchaseEvent pe : purchaseEvents) {
-            if (pe.getProducts() != null && pe.getSessionId() != null) {
-                java.util.Set<String> cartProductsInSession = sessionCartProducts.get(pe.getSessionId());
-
-                int validProductsInThisOrder = 0;
-                boolean hasProductPrices = false;
-
-                for (Product product : pe.getProducts()) {
-                    if (cartProductsInSession != null && cartProductsInSession.contains(product.getProductId())) {
-                        analytics.validPurchasedProductCount++;
-                        validProductsInThisOrder++;
-
-                        if (product.getPrice() != null) {
-                            hasProductPrices = true;
-                            double productTotal = product.getPrice()
-                                    * (product.getAmount() != null ? product.getAmount() : 1);
-                            analytics.validPurchaseRevenue += productTotal;
-
-                            if (pe.getCurrency() != null) {
-                                String purchaseCurrency = pe.getCurrency().toUpperCase();
-                                double rate = currencyService.getExchangeRate(purchaseCurrency);
-                                conversionRatesUsed.put(purchaseCurrency, rate);
-                                analytics.totalPurchaseValueEur += currencyService.convertToEur(productTotal,
-                                        purchaseCurrency);
-                            }
+    /**
+     * Fetches the period's events concurrently on the analytics executor and
+     * computes its metrics as soon as the last of them arrives, or aggregates them
+     * in the database with {@code analytics.summary.source=sql}, unless the period
+     * has searches with packed product ids. Periods within the hot window are
+     * computed from its columns instead, without a query.
+     */
+    private CompletableFuture<PeriodAnalytics> calculatePeriodAnalytics(String shopId, long fromMs, long toMs,
+            Map<String, Double> conversionRatesUsed, Integer searchGroup, TimeSeriesBuckets series) {
+        if (sqlAnalytics.isEnabled()) {
+            return analyticsExecutor.read(() -> sqlAnalytics.compute(shopId, fromMs, toMs, searchGroup,
+                    currencyService, conversionRatesUsed, series)).thenCompose(sql -> {
+                        if (sql.isEmpty()) {
+                            log.info("Period of shop {} has packed search product ids, computing it from rows",
+                                    shopId);
+                            return calculateFromRows(shopId, fromMs, toMs, conversionRatesUsed, searchGroup, series);
                         }
-                    }
-                }
-
-                // Fallback: use proportional amount if no product prices
-                if (validProductsInThisOrder > 0 && !hasProductPrices && pe.getTotalAmount() != null) {
-                    fallbackOrdersCount++;
-
-                    double proportionalAmount = (pe.getTotalAmount() * validProductsInThisOrder)
-                            / pe.getProducts().size();
-                    analytics.validPurchaseRevenue += proportionalAmount;
-
-                    if (pe.getCurrency() != null) {
-                        String purchaseCurrency = pe.getCurrency().toUpperCase();
-                        double rate = currencyService.getExchangeRate(purchaseCurrency);
-                        conversionRatesUsed.put(purchaseCurrency, rate);
-                        analytics.totalPurchaseValueEur += currencyService.convertToEur(proportionalAmount,
-                                purchaseCurrency);
-                    }
-                }
-
-                // Track sessions with purchases
-                if (validProductsInThisOrder > 0 && analytics.totalSearchSessions.contains(pe.getSessionId())) {
-                    analytics.sessionsWithPurchases.add(pe.getSessionId());
-                }
-            }
-        }
-
-        // Filter and count click events
-        for (com.talya.searchanalytics.model.ProductClickEvent e : clickEvents) {
-            java.util.Set<String> products = sessionProducts.get(e.getSessionId());
-            if (products != null && e.getProductId() != null && e.getProductId().startsWith("gid://shopify/Product/")) {
-                analytics.productClicks++;
-                if (e.getSessionId() != null) {
-                    analytics.sessionsWithClicks.add(e.getSessionId());
-                }
-            }
+                        PeriodAnalytics analytics = sql.get();
+                        log.info(String.format(
+                                "Analytics aggregated in SQL - Cart: %d, Purchases: %d products (%.2f€), Clicks: %d, BuyNow: %d, Conv: %.1f%%, CTR: %.1f%%",
+                                analytics.addToCartCount, analytics.validPurchasedProductCount,
+                                analytics.totalPurchaseValueEur, analytics.productClicks, analytics.buyNowClicks,
+                                calculateConversionRate(analytics), calculateClickThroughRate(analytics)));
+                        return CompletableFuture.completedFuture(analytics);
+                    });
         }
+        return calculateFromRows(shopId, fromMs, toMs, conversionRatesUsed, searchGroup, series);
+    }
 
-        // Filter and count buy now events
-        for (com.talya.searchanalytics.model.BuyNowClickEvent e : buyNowEvents) {
-            java.util.Set<String> products = sessionProducts.get(e.getSessionId());
-            if (products != null && e.getProductId() != null && e.getProductId().startsWith("gid://shopify/Product/")) {
-                analytics.buyNowClicks++;
-            }
+    private CompletableFuture<PeriodAnalytics> calculateFromRows(String shopId, long fromMs, long toMs,
+            Map<String, Double> conversionRatesUsed, Integer searchGroup, TimeSeriesBuckets series) {
+        Optional<PeriodAnalytics> hot = hotWindow.compute(shopId, fromMs, toMs, searchGroup, currencyService,
+                conversionRatesUsed, series, dailyRollups.approximateSessions());
+        if (hot.isPresent()) {
+            return CompletableFuture.completedFuture(hot.get());
         }
-
-        // Log summary with fallback info if used (only when logging is enabled)
-        if (enableLogging) {
+        // Get all event rows for this period (filtered by searchGroup if provided)
+        CompletableFuture<List<SearchRow>> searches = analyticsExecutor
+                .read(() -> searchRepo.findAnalyticsRows(shopId, fromMs, toMs, searchGroup));
+        CompletableFuture<List<CartRow>> carts = analyticsExecutor
+                .read(() -> cartRepo.findAnalyticsRows(shopId, fromMs, toMs, searchGroup));
+        CompletableFuture<List<ClickRow>> clicks = analyticsExecutor
+                .read(() -> clickRepo.findAnalyticsRows(shopId, fromMs, toMs, searchGroup));
+        CompletableFuture<List<ClickRow>> buyNows = analyticsExecutor
+                .read(() -> buyNowRepo.findAnalyticsRows(shopId, fromMs, toMs, searchGroup));
+        CompletableFuture<List<PurchaseRow>> purchases = analyticsExecutor
+                .read(() -> purchaseRepo.findAnalyticsRows(shopId, fromMs, toMs, searchGroup));
+        CompletableFuture<Long> searchCount = analyticsExecutor
+                .read(() -> countSearches(shopId, fromMs, toMs, searchGroup));
+
+        return CompletableFuture.allOf(searches, carts, clicks, buyNows, purchases, searchCount).thenApply(v -> {
+            List<CartRow> cartEvents = carts.join();
+            List<ClickRow> clickEvents = clicks.join();
+            List<ClickRow> buyNowEvents = buyNows.join();
+            PeriodAnalytics analytics = PeriodAnalytics.compute(searches.join(), cartEvents, clickEvents,
+                    buyNowEvents, purchases.join(), currencyService, conversionRatesUsed, series,
+                    dailyRollups.approximateSessions());
+            analytics.searchCount = searchCount.join();
+
+            // Log summary with fallback info if used
             String logMessage = String.format(
                     "Analytics processed - Cart: %d/%d valid, Purchases: %d products (%.2f€), Clicks: %d/%d, BuyNow: %d/%d, Conv: %.1f%%, CTR: %.1f%%",
                     analytics.addToCartCount, cartEvents.size(),
@@ -439,29 +574,29 @@ public class AnalyticsService {
                     analytics.buyNowClicks, buyNowEvents.size(),
                     calculateConversionRate(analytics), calculateClickThroughRate(analytics));
 
-            if (fallbackOrdersCount > 0) {
-                logMessage += String.format(" [Fallback: %d orders used avg pricing]", fallbackOrdersCount);
+            if (analytics.fallbackOrdersCount > 0) {
+                logMessage += String.format(" [Fallback: %d orders used avg pricing]", analytics.fallbackOrdersCount);
             }
 
             log.info(logMessage);
-        }
 
-        return analytics;
+            return analytics;
+        });
     }
 
     private double calculateConversionRate(PeriodAnalytics analytics) {
-        return analytics.totalSearchSessions.size() == 0 ? 0
-                : (analytics.sessionsWithPurchases.size() * 100.0 / analytics.totalSearchSessions.size());
+        return analytics.searchSessionCount == 0 ? 0
+                : (analytics.purchaseSessionCount * 100.0 / analytics.searchSessionCount);
     }
 
     private double calculateClickThroughRate(PeriodAnalytics analytics) {
-        return analytics.totalSearchSessions.size() == 0 ? 0
-                : (analytics.sessionsWithClicks.size() * 100.0 / analytics.totalSearchSessions.size());
+        return analytics.searchSessionCount == 0 ? 0
+                : (analytics.clickSessionCount * 100.0 / analytics.searchSessionCount);
     }
 
     private double calculateAddToCartRate(PeriodAnalytics analytics) {
-        return analytics.totalSearchSessions.size() == 0 ? 0
-                : (analytics.sessionsWithAddToCarts.size() * 100.0 / analytics.totalSearchSessions.size());
+        return analytics.searchSessionCount == 0 ? 0
+                : (analytics.cartSessionCount * 100.0 / analytics.searchSessionCount);
     }
 
     private double calculateAverageWordsPerQuery(PeriodAnalytics analytics) {
@@ -474,43 +609,49 @@ public class AnalyticsService {
                 : Math.round((analytics.longQueryCount * 1000.0) / analytics.queryCount) / 10.0;
     }
 
-    private List<AnalyticsSummaryResponse.TimePoint> generateTimeSeries(String shopId, long fromMs, long toMs,
-            String currency, Integer searchGroup) {
-        List<AnalyticsSummaryResponse.TimePoint> series = new ArrayList<>();
-        LocalDate start = Instant.ofEpochMilli(fromMs).atZone(ZoneOffset.UTC).toLocalDate();
-        LocalDate end = Instant.ofEpochMilli(toMs).atZone(ZoneOffset.UTC).toLocalDate();
-
-        for (LocalDate d = start; !d.isAfter(end); d = d.plusDays(1)) {
-            long dayStartMs = d.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
-            long dayEndMs = d.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 1;
-
-            Map<String, Double> dayConversionRates = new HashMap<>();
-            PeriodAnalytics dayAnalytics = calculatePeriodAnalytics(shopId, dayStartMs, dayEndMs, dayConversionRates,
-                    false, searchGroup);
-
-            series.add(AnalyticsSummaryResponse.TimePoint.builder()
-                    .date(d.toString())
-                    .searches((int) countSearches(shopId, dayStartMs, dayEndMs, searchGroup))
-                    .addToCart((int) dayAnalytics.addToCartCount)
-                    .purchases((int) dayAnalytics.validPurchasedProductCount)
-                    .addToCartAmount(dayAnalytics.addToCartAmount)
-                    .currency(dayAnalytics.currency.isEmpty() ? currency : dayAnalytics.currency)
-                    .build());
-        }
-        return series;
+    private static long epochDay(long ms) {
+        return Math.floorDiv(ms, 86_400_000L);
     }
 
-    private List<AnalyticsSummaryResponse.TopQuery> getTopQueries(String shopId, long fromMs, long toMs) {
-        List<Object[]> rows = searchRepo.topQueries(shopId, fromMs, toMs);
+    /**
+     * The range's most frequent normalized queries, over all groups. With rollups
+     * they are merged from the daily query summaries of the range's whole days;
+     * otherwise the per-query counts, counted in the hot window or streamed from
+     * the database, go through one summary. Either way memory is bounded however
+     * many distinct queries there are.
+     */
+    private List<AnalyticsSummaryResponse.TopQuery> getTopQueries(String shopId, long fromMs, long toMs,
+            int limit) {
+        List<SpaceSaving.Term> terms;
+        if (dailyRollups.useForSummary()) {
+            dailyRollups.flush();
+            terms = dailyRollups.topQueries(shopId, epochDay(fromMs), epochDay(toMs), limit);
+        } else {
+            SpaceSaving summary = new SpaceSaving(TOP_QUERY_CAPACITY);
+            Optional<Map<String, Long>> hot = hotWindow.queryCounts(shopId, fromMs, toMs);
+            if (hot.isPresent()) {
+                hot.get().forEach((query, count) -> addQuery(summary, query, count));
+            } else {
+                try (Stream<Object[]> rows = searchRepo.queryCounts(shopId, fromMs, toMs)) {
+                    rows.forEach(r -> addQuery(summary, (String) r[0], ((Number) r[1]).longValue()));
+                }
+            }
+            terms = summary.top(limit);
+        }
         List<AnalyticsSummaryResponse.TopQuery> topQueries = new ArrayList<>();
-        for (Object[] r : rows) {
-            String term = (String) r[0];
-            long cnt = (r[1] instanceof Long) ? (Long) r[1] : ((Number) r[1]).longValue();
-            topQueries.add(new AnalyticsSummaryResponse.TopQuery(term, cnt));
+        for (SpaceSaving.Term term : terms) {
+            topQueries.add(new AnalyticsSummaryResponse.TopQuery(term.term(), term.count()));
         }
         return topQueries;
     }
 
+    private static void addQuery(SpaceSaving summary, String query, long count) {
+        String term = PeriodAnalytics.normalizeQuery(query);
+        if (term != null) {
+            summary.add(term, count, 0);
+        }
+    }
+
     private AnalyticsSummaryResponse createDefaultResponse() {
         return AnalyticsSummaryResponse.builder()
                 .totalSearches(0L).totalAddToCart(0L).totalPurchases(0L)
@@ -558,12 +699,12 @@ public class AnalyticsService {
     }
 
     public void recordBuyNow(String shopId, java.util.Map<String, Object> event) {
-        String sessionId = (String) event.get("session_id");
-        String productId = (String) event.get("product_id");
+        String sessionId = EventFieldDecoder.string(event.get("session_id"));
+        String productId = EventFieldDecoder.productId(event.get("product_id"));
 
         // Validate that this event came from a search session
         if (sessionId != null) {
-            List<com.talya.searchanalytics.model.SearchEvent> searchEvents = searchRepo
+            List<SearchEvent> searchEvents = searchRepo
                     .findAllByShopIdAndSessionId(shopId, sessionId);
             if (searchEvents.isEmpty()) {
                 return; // Skip events not from search sessions
@@ -585,35 +726,23 @@ public class AnalyticsService {
         buyNow.setShopId(shopId);
         buyNow.setProductId(productId);
 
-        // Handle price conversion safely
-        Object priceObj = event.get("price");
-        if (priceObj != null) {
-            if (priceObj instanceof Number) {
-                buyNow.setPrice(((Number) priceObj).doubleValue());
-            } else if (priceObj instanceof String) {
-                try {
-                    buyNow.setPrice(Double.parseDouble((String) priceObj));
-                } catch (NumberFormatException e) {
-                    buyNow.setPrice(null);
-                }
-            }
-        }
-
-        buyNow.setCurrency((String) event.get("currency"));
+        buyNow.setPrice(EventFieldDecoder.price(event.get("price")));
+        // An explicit currency field wins over one following the price ("12.90 ILS")
+        String currency = EventFieldDecoder.string(event.get("currency"));
+        buyNow.setCurrency(currency != null ? currency : EventFieldDecoder.currency(event.get("price")));
         buyNow.setSessionId(sessionId);
-        buyNow.setClientId((String) event.get("client_id"));
-        buyNow.setTimestampMs(event.get("timestamp") != null ? ((Number) event.get("timestamp")).longValue()
-                : System.currentTimeMillis());
+        buyNow.setClientId(EventFieldDecoder.string(event.get("client_id")));
+        buyNow.setTimestampMs(EventFieldDecoder.timestamp(event.get("timestamp"), System.currentTimeMillis()));
         buyNowRepo.save(buyNow);
     }
 
     public void recordProductClick(String shopId, java.util.Map<String, Object> event) {
-        String sessionId = (String) event.get("session_id");
-        String productId = (String) event.get("product_id");
+        String sessionId = EventFieldDecoder.string(event.get("session_id"));
+        String productId = EventFieldDecoder.productId(event.get("product_id"));
 
         // Validate that this event came from a search session
         if (sessionId != null) {
-            List<com.talya.searchanalytics.model.SearchEvent> searchEvents = searchRepo
+            List<SearchEvent> searchEvents = searchRepo
                     .findAllByShopIdAndSessionId(shopId, sessionId);
             if (searchEvents.isEmpty()) {
                 return; // Skip events not from search sessions
@@ -633,15 +762,14 @@ public class AnalyticsService {
 
         com.talya.searchanalytics.model.ProductClickEvent click = new com.talya.searchanalytics.model.ProductClickEvent();
         click.setShopId(shopId);
-        click.setQuery((String) event.get("query"));
+        click.setQuery(EventFieldDecoder.string(event.get("query")));
         click.setProductId(productId);
-        click.setSearchId((String) event.get("search_id"));
-        click.setProductTitle((String) event.get("product_title"));
-        click.setUrl((String) event.get("url"));
+        click.setSearchId(EventFieldDecoder.string(event.get("search_id")));
+        click.setProductTitle(EventFieldDecoder.string(event.get("product_title")));
+        click.setUrl(EventFieldDecoder.string(event.get("url")));
         click.setSessionId(sessionId);
-        click.setClientId((String) event.get("client_id"));
-        click.setTimestampMs(event.get("timestamp") != null ? ((Number) event.get("timestamp")).longValue()
-                : System.currentTimeMillis());
+        click.setClientId(EventFieldDecoder.string(event.get("client_id")));
+        click.setTimestampMs(EventFieldDecoder.timestamp(event.get("timestamp"), System.currentTimeMillis()));
         clickRepo.save(click);
     }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.talya.searchanalytics.service;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a columnar export ({@link ColumnarEvents}) back into unmanaged event
+ * entities, ids included, one block at a time. Plain and gzipped streams are
+ * both accepted, e.g. a saved download:
+ * <pre>
+ * try (ColumnarEventReader reader = ColumnarEventReader.open(new FileInputStream("events.bin"))) {
+ *     for (List&lt;Object&gt; block; (block = reader.nextBlock()) != null; ) {
+ *         // reader.type() is the block's event type
+ *     }
+ * }
+ * </pre>
+ */
+public class ColumnarEventReader implements Closeable {
+
+    private final DataInputStream in;
+    private ColumnarEvents.Schema<?> section;
+    private EventExporter.Type type;
+
+    private ColumnarEventReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    public static ColumnarEventReader open(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        buffered.mark(2);
+        boolean gzip = buffered.read() == 0x1f && buffered.read() == 0x8b;
+        buffered.reset();
+        return new ColumnarEventReader(gzip ? new BufferedInputStream(new GZIPInputStream(buffered, 1 << 16), 1 << 16)
+                : buffered);
+    }
+
+    /** Every event of the stream, in order. */
+    public static List<Object> readAll(InputStream in) throws IOException {
+        List<Object> events = new ArrayList<>();
+        try (ColumnarEventReader reader = open(in)) {
+            for (List<Object> block; (block = reader.nextBlock()) != null; ) {
+                events.addAll(block);
+            }
+        }
+        return events;
+    }
+
+    /** Event type of the block last returned by {@link #nextBlock}. */
+    public EventExporter.Type type() {
+        return type;
+    }
+
+    /** The next block's events, or null at the end of the stream. */
+    public List<Object> nextBlock() throws IOException {
+        while (true) {
+            if (section == null) {
+                int first = in.read();
+                if (first < 0) {
+                    return null;
+                }
+                byte[] magic = new byte[ColumnarEvents.MAGIC.length];
+                magic[0] = (byte) first;
+                in.readFully(magic, 1, magic.length - 1);
+                if (!Arrays.equals(magic, ColumnarEvents.MAGIC)) {
+                    throw new IOException("Not a columnar event export");
+                }
+                int version = in.readUnsignedByte();
+                if (version != ColumnarEvents.VERSION) {
+                    throw new IOException("Unsupported columnar export version " + version);
+                }
+                try {
+                    section = ColumnarEvents.schema(in.readByte());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            int rows = varint();
+            if (rows == 0) {
+                section = null;
+                continue;
+            }
+            List<ByteBuffer> columns = new ArrayList<>(section.columns().size());
+            for (int c = 0; c < section.columns().size(); c++) {
+                byte[] column = new byte[varint()];
+                in.readFully(column);
+                columns.add(ByteBuffer.wrap(column));
+            }
+            try {
+                List<Object> events = ColumnarEvents.decodeBlock(section, rows, columns);
+                type = section.type();
+                return events;
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt columnar block", e);
+            }
+        }
+    }
+
+    private int varint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
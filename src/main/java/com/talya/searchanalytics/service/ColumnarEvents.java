@@ -0,0 +1,384 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Column-oriented binary encoding of exported events, read back by
+ * {@link ColumnarEventReader}. A stream is one or more sections of one event
+ * type each:
+ * <pre>
+ * section: "SAEC" | version | type byte (as in EventCodec) | block* | varint 0
+ * block:   varint rows | per column: varint byte length, column bytes
+ * </pre>
+ * Columns follow the type's fields, starting with id and timestampMs, which are
+ * zigzag varint deltas from the previous row. Strings are dictionary-encoded per
+ * block: the distinct values, Shopify product gids as just their number, then
+ * one varint index per row (0 for null). Integers are zigzag varints plus one (0
+ * for null) and doubles a presence byte and 8 bytes. Lists store a count per
+ * row, then their elements as one column.
+ */
+public final class ColumnarEvents {
+
+    public static final String CONTENT_TYPE = "application/vnd.search-analytics.columnar";
+
+    static final byte[] MAGIC = { 'S', 'A', 'E', 'C' };
+    static final byte VERSION = 1;
+
+    private static final String PRODUCT_GID_PREFIX = "gid://shopify/Product/";
+    private static final byte ENTRY_STRING = 0;
+    private static final byte ENTRY_PRODUCT_GID = 1;
+
+    enum Kind {
+        DELTA, INT, DOUBLE, STRING, STRINGS, PRODUCTS
+    }
+
+    record Column<T>(Kind kind, Function<T, ?> get, BiConsumer<T, Object> set) {
+    }
+
+    record Schema<T>(EventExporter.Type type, byte code, Supplier<T> create, List<Column<T>> columns) {
+    }
+
+    private static final Map<EventExporter.Type, Schema<?>> SCHEMAS = new EnumMap<>(EventExporter.Type.class);
+
+    static {
+        add(new Schema<>(EventExporter.Type.SEARCHES, EventCodec.SEARCH, SearchEvent::new, List.of(
+                column(Kind.DELTA, SearchEvent::getId, SearchEvent::setId),
+                column(Kind.DELTA, SearchEvent::getTimestampMs, SearchEvent::setTimestampMs),
+                column(Kind.STRING, SearchEvent::getShopId, SearchEvent::setShopId),
+                column(Kind.STRING, SearchEvent::getSearchId, SearchEvent::setSearchId),
+                column(Kind.STRING, SearchEvent::getClientId, SearchEvent::setClientId),
+                column(Kind.STRING, SearchEvent::getSessionId, SearchEvent::setSessionId),
+                column(Kind.STRING, SearchEvent::getQuery, SearchEvent::setQuery),
+                column(Kind.STRINGS, SearchEvent::getProductIds, SearchEvent::setProductIds),
+                column(Kind.INT, SearchEvent::getSearchGroup, SearchEvent::setSearchGroup))));
+        add(new Schema<>(EventExporter.Type.CLICKS, EventCodec.PRODUCT_CLICK, ProductClickEvent::new, List.of(
+                column(Kind.DELTA, ProductClickEvent::getId, ProductClickEvent::setId),
+                column(Kind.DELTA, ProductClickEvent::getTimestampMs, ProductClickEvent::setTimestampMs),
+                column(Kind.STRING, ProductClickEvent::getShopId, ProductClickEvent::setShopId),
+                column(Kind.STRING, ProductClickEvent::getClientId, ProductClickEvent::setClientId),
+                column(Kind.STRING, ProductClickEvent::getSessionId, ProductClickEvent::setSessionId),
+                column(Kind.STRING, ProductClickEvent::getProductId, ProductClickEvent::setProductId),
+                column(Kind.STRING, ProductClickEvent::getSearchId, ProductClickEvent::setSearchId),
+                column(Kind.STRING, ProductClickEvent::getQuery, ProductClickEvent::setQuery),
+                column(Kind.STRING, ProductClickEvent::getProductTitle, ProductClickEvent::setProductTitle),
+                column(Kind.STRING, ProductClickEvent::getUrl, ProductClickEvent::setUrl),
+                column(Kind.INT, ProductClickEvent::getSearchGroup, ProductClickEvent::setSearchGroup))));
+        add(new Schema<>(EventExporter.Type.CARTS, EventCodec.ADD_TO_CART, AddToCartEvent::new, List.of(
+                column(Kind.DELTA, AddToCartEvent::getId, AddToCartEvent::setId),
+                column(Kind.DELTA, AddToCartEvent::getTimestampMs, AddToCartEvent::setTimestampMs),
+                column(Kind.STRING, AddToCartEvent::getShopId, AddToCartEvent::setShopId),
+                column(Kind.STRING, AddToCartEvent::getClientId, AddToCartEvent::setClientId),
+                column(Kind.STRING, AddToCartEvent::getSessionId, AddToCartEvent::setSessionId),
+                column(Kind.STRING, AddToCartEvent::getProductId, AddToCartEvent::setProductId),
+                column(Kind.STRING, AddToCartEvent::getSearchId, AddToCartEvent::setSearchId),
+                column(Kind.DOUBLE, AddToCartEvent::getPrice, AddToCartEvent::setPrice),
+                column(Kind.STRING, AddToCartEvent::getCurrency, AddToCartEvent::setCurrency),
+                column(Kind.INT, AddToCartEvent::getSearchGroup, AddToCartEvent::setSearchGroup))));
+        add(new Schema<>(EventExporter.Type.PURCHASES, EventCodec.PURCHASE, PurchaseEvent::new, List.of(
+                column(Kind.DELTA, PurchaseEvent::getId, PurchaseEvent::setId),
+                column(Kind.DELTA, PurchaseEvent::getTimestampMs, PurchaseEvent::setTimestampMs),
+                column(Kind.STRING, PurchaseEvent::getShopId, PurchaseEvent::setShopId),
+                column(Kind.STRING, PurchaseEvent::getClientId, PurchaseEvent::setClientId),
+                column(Kind.STRING, PurchaseEvent::getSessionId, PurchaseEvent::setSessionId),
+                column(Kind.STRING, PurchaseEvent::getOrderId, PurchaseEvent::setOrderId),
+                column(Kind.STRING, PurchaseEvent::getOrderStatus, PurchaseEvent::setOrderStatus),
+                column(Kind.DOUBLE, PurchaseEvent::getTotalAmount, PurchaseEvent::setTotalAmount),
+                column(Kind.STRING, PurchaseEvent::getCurrency, PurchaseEvent::setCurrency),
+                column(Kind.STRING, PurchaseEvent::getProductTitles, PurchaseEvent::setProductTitles),
+                column(Kind.INT, PurchaseEvent::getSearchGroup, PurchaseEvent::setSearchGroup),
+                column(Kind.PRODUCTS, PurchaseEvent::getProducts, PurchaseEvent::setProducts))));
+        add(new Schema<>(EventExporter.Type.BUY_NOW_CLICKS, EventCodec.BUY_NOW_CLICK, BuyNowClickEvent::new, List.of(
+                column(Kind.DELTA, BuyNowClickEvent::getId, BuyNowClickEvent::setId),
+                column(Kind.DELTA, BuyNowClickEvent::getTimestampMs, BuyNowClickEvent::setTimestampMs),
+                column(Kind.STRING, BuyNowClickEvent::getShopId, BuyNowClickEvent::setShopId),
+                column(Kind.STRING, BuyNowClickEvent::getClientId, BuyNowClickEvent::setClientId),
+                column(Kind.STRING, BuyNowClickEvent::getSessionId, BuyNowClickEvent::setSessionId),
+                column(Kind.STRING, BuyNowClickEvent::getProductId, BuyNowClickEvent::setProductId),
+                column(Kind.DOUBLE, BuyNowClickEvent::getPrice, BuyNowClickEvent::setPrice),
+                column(Kind.STRING, BuyNowClickEvent::getCurrency, BuyNowClickEvent::setCurrency),
+                column(Kind.INT, BuyNowClickEvent::getSearchGroup, BuyNowClickEvent::setSearchGroup))));
+    }
+
+    private ColumnarEvents() {
+    }
+
+    private static void add(Schema<?> schema) {
+        SCHEMAS.put(schema.type(), schema);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, V> Column<T> column(Kind kind, Function<T, V> get, BiConsumer<T, V> set) {
+        return new Column<>(kind, get, (event, value) -> set.accept(event, (V) value));
+    }
+
+    /** The schema of a section's type byte. */
+    static Schema<?> schema(byte code) {
+        for (Schema<?> schema : SCHEMAS.values()) {
+            if (schema.code() == code) {
+                return schema;
+            }
+        }
+        throw new IllegalArgumentException("Unknown event type " + code);
+    }
+
+    /** Starts a section of {@code type} events. */
+    static byte[] header(EventExporter.Type type) {
+        byte[] header = Arrays.copyOf(MAGIC, MAGIC.length + 2);
+        header[MAGIC.length] = VERSION;
+        header[MAGIC.length + 1] = SCHEMAS.get(type).code();
+        return header;
+    }
+
+    /** Ends a section: a block of no rows. */
+    static byte[] end() {
+        return new byte[] { 0 };
+    }
+
+    /** One block of {@code events}, all of {@code type}; there must be at least one. */
+    @SuppressWarnings("unchecked")
+    static byte[] block(EventExporter.Type type, List<?> events) {
+        Schema<Object> schema = (Schema<Object>) SCHEMAS.get(type);
+        EventCodec.Writer block = new EventCodec.Writer();
+        EventCodec.Writer column = new EventCodec.Writer();
+        block.varint(events.size());
+        List<Object> values = new ArrayList<>(events.size());
+        for (Column<Object> c : schema.columns()) {
+            values.clear();
+            for (Object event : events) {
+                values.add(c.get().apply(event));
+            }
+            column.reset();
+            encode(c.kind(), values, column);
+            block.varint(column.size());
+            block.bytes(column.array(), 0, column.size());
+        }
+        return block.toByteArray();
+    }
+
+    /** The events of a block whose columns have been read into {@code columns}. */
+    static <T> List<Object> decodeBlock(Schema<T> schema, int rows, List<ByteBuffer> columns) {
+        List<T> events = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            events.add(schema.create().get());
+        }
+        for (int c = 0; c < schema.columns().size(); c++) {
+            Column<T> column = schema.columns().get(c);
+            List<?> values = decode(column.kind(), rows, columns.get(c));
+            for (int i = 0; i < rows; i++) {
+                column.set().accept(events.get(i), values.get(i));
+            }
+        }
+        return new ArrayList<>(events);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void encode(Kind kind, List<?> values, EventCodec.Writer w) {
+        switch (kind) {
+            case DELTA -> {
+                long previous = 0;
+                for (Object value : values) {
+                    long v = (Long) value;
+                    w.varlong(zigzag(v - previous));
+                    previous = v;
+                }
+            }
+            case INT -> {
+                for (Object value : values) {
+                    w.varlong(value == null ? 0 : zigzag((Integer) value) + 1);
+                }
+            }
+            case DOUBLE -> {
+                for (Object value : values) {
+                    w.raw((byte) (value == null ? 0 : 1));
+                    if (value != null) {
+                        w.fixed64(Double.doubleToRawLongBits((Double) value));
+                    }
+                }
+            }
+            case STRING -> dictionary((List<String>) values, w);
+            case STRINGS -> {
+                List<String> elements = new ArrayList<>();
+                for (Object value : values) {
+                    List<String> list = (List<String>) value;
+                    w.varint(list == null ? 0 : list.size() + 1);
+                    if (list != null) {
+                        elements.addAll(list);
+                    }
+                }
+                dictionary(elements, w);
+            }
+            case PRODUCTS -> {
+                List<String> ids = new ArrayList<>();
+                List<String> names = new ArrayList<>();
+                List<Double> prices = new ArrayList<>();
+                List<Integer> amounts = new ArrayList<>();
+                for (Object value : values) {
+                    List<Product> products = (List<Product>) value;
+                    w.varint(products == null ? 0 : products.size() + 1);
+                    if (products != null) {
+                        for (Product p : products) {
+                            ids.add(p.getProductId());
+                            names.add(p.getName());
+                            prices.add(p.getPrice());
+                            amounts.add(p.getAmount());
+                        }
+                    }
+                }
+                dictionary(ids, w);
+                dictionary(names, w);
+                encode(Kind.DOUBLE, prices, w);
+                encode(Kind.INT, amounts, w);
+            }
+        }
+    }
+
+    private static List<?> decode(Kind kind, int rows, ByteBuffer in) {
+        List<Object> values = new ArrayList<>(rows);
+        switch (kind) {
+            case DELTA -> {
+                long previous = 0;
+                for (int i = 0; i < rows; i++) {
+                    previous += unzigzag(EventCodec.varlong(in));
+                    values.add(previous);
+                }
+            }
+            case INT -> {
+                for (int i = 0; i < rows; i++) {
+                    long v = EventCodec.varlong(in);
+                    values.add(v == 0 ? null : (int) unzigzag(v - 1));
+                }
+            }
+            case DOUBLE -> {
+                for (int i = 0; i < rows; i++) {
+                    values.add(in.get() == 0 ? null : Double.longBitsToDouble(in.getLong()));
+                }
+            }
+            case STRING -> values.addAll(dictionary(rows, in));
+            case STRINGS -> {
+                int[] counts = counts(rows, in);
+                List<String> elements = dictionary(total(counts), in);
+                int next = 0;
+                for (int count : counts) {
+                    values.add(count == 0 ? null : new ArrayList<>(elements.subList(next, next += count - 1)));
+                }
+            }
+            case PRODUCTS -> {
+                int[] counts = counts(rows, in);
+                int total = total(counts);
+                List<String> ids = dictionary(total, in);
+                List<String> names = dictionary(total, in);
+                List<?> prices = decode(Kind.DOUBLE, total, in);
+                List<?> amounts = decode(Kind.INT, total, in);
+                int next = 0;
+                for (int count : counts) {
+                    if (count == 0) {
+                        values.add(null);
+                        continue;
+                    }
+                    List<Product> products = new ArrayList<>(count - 1);
+                    for (int i = 0; i < count - 1; i++, next++) {
+                        products.add(new Product(ids.get(next), names.get(next), (Double) prices.get(next),
+                                (Integer) amounts.get(next)));
+                    }
+                    values.add(products);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static void dictionary(List<String> values, EventCodec.Writer w) {
+        Map<String, Integer> indexes = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        int[] rows = new int[values.size()];
+        for (int i = 0; i < rows.length; i++) {
+            String value = values.get(i);
+            if (value != null) {
+                rows[i] = indexes.computeIfAbsent(value, v -> {
+                    entries.add(v);
+                    return entries.size();
+                });
+            }
+        }
+        w.varint(entries.size());
+        for (String entry : entries) {
+            long number = productNumber(entry);
+            if (number >= 0) {
+                w.raw(ENTRY_PRODUCT_GID);
+                w.varlong(number);
+            } else {
+                w.raw(ENTRY_STRING);
+                w.string(entry);
+            }
+        }
+        for (int index : rows) {
+            w.varint(index);
+        }
+    }
+
+    private static List<String> dictionary(int rows, ByteBuffer in) {
+        String[] entries = new String[EventCodec.varint(in)];
+        for (int i = 0; i < entries.length; i++) {
+            byte kind = in.get();
+            entries[i] = switch (kind) {
+                case ENTRY_PRODUCT_GID -> PRODUCT_GID_PREFIX + EventCodec.varlong(in);
+                case ENTRY_STRING -> EventCodec.string(in);
+                default -> throw new IllegalArgumentException("Unknown dictionary entry " + kind);
+            };
+        }
+        List<String> values = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            int index = EventCodec.varint(in);
+            values.add(index == 0 ? null : entries[index - 1]);
+        }
+        return values;
+    }
+
+    private static int[] counts(int rows, ByteBuffer in) {
+        int[] counts = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            counts[i] = EventCodec.varint(in);
+        }
+        return counts;
+    }
+
+    private static int total(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += Math.max(0, count - 1);
+        }
+        return total;
+    }
+
+    /** The number of a canonical {@code gid://shopify/Product/<n>}, or -1 for any other string. */
+    static long productNumber(String value) {
+        int digits = value.length() - PRODUCT_GID_PREFIX.length();
+        if (digits < 1 || digits > 18 || !value.startsWith(PRODUCT_GID_PREFIX)
+                || (digits > 1 && value.charAt(PRODUCT_GID_PREFIX.length()) == '0')) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = PRODUCT_GID_PREFIX.length(); i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
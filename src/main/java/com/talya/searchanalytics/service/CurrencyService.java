@@ -4,7 +4,7 @@ import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
@@ -16,10 +16,11 @@ import java.time.LocalDate;
 public class CurrencyService {
     
     private static final Logger log = LoggerFactory.getLogger(CurrencyService.class);
-    private final Map<String, Double> rateCache = new HashMap<>();
+    // Read by concurrent summaries while a refresh may be writing it
+    private final Map<String, Double> rateCache = new ConcurrentHashMap<>();
     private final HttpClient httpClient = HttpClient.newHttpClient();
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private LocalDate lastUpdate = null;
+    private volatile LocalDate lastUpdate = null;
     
     public CurrencyService() {
         // Don't set lastUpdate here, so it will fetch live rates on first use
@@ -62,7 +63,6 @@ public class CurrencyService {
                 Map<String, Object> data = objectMapper.readValue(response.body(), Map.class);
                 Map<String, Double> rates = (Map<String, Double>) data.get("rates");
                 
-                rateCache.clear();
                 rateCache.putAll(rates);
                 lastUpdate = LocalDate.now();
                 log.info("Currency rates updated successfully from API");
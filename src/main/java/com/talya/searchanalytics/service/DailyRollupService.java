@@ -0,0 +1,737 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains {@link DailyRollup}, {@link SessionDay}, {@link SessionSketch} and
+ * {@link QuerySketch} rows so the dashboard summary reads a handful of rows per
+ * day instead of every raw event ({@code analytics.summary.source=rollups}). Distinct sessions are
+ * counted exactly from the session rows, or estimated from the daily sketches
+ * with {@code analytics.sessions.counting=approximate}.
+ * <p>
+ * Persisted events arrive through {@link RollupFeed} and are folded in every
+ * {@code analytics.rollups.flush-interval-ms}, or before a summary is read. An
+ * event is validated as the summary does, but per UTC day: clicks count when
+ * their session searched that day, add-to-carts when the product was in the
+ * results of the session's searches that day, purchases count the products of
+ * those add-to-carts. Events are written in separate transactions, so one can
+ * be folded in before the search or add-to-cart it depends on; its session is
+ * then remembered and the day recomputed once that event arrives. Days whose
+ * events were removed, or that could not be updated, are recomputed from the
+ * raw events with the summary's own calculation; {@link #rebuild} does that for
+ * whole shops, and runs on startup when the rollup table is still empty.
+ */
+@Service
+@Slf4j
+public class DailyRollupService {
+
+    private static final long DAY_MS = 86_400_000L;
+
+    private final RollupFeed feed;
+    private final DailyRollupRepository rollupRepo;
+    private final SessionDayRepository sessionRepo;
+    private final SessionSketchRepository sketchRepo;
+    private final QuerySketchRepository querySketchRepo;
+    private final SearchEventRepository searchRepo;
+    private final AddToCartEventRepository cartRepo;
+    private final PurchaseEventRepository purchaseRepo;
+    private final ProductClickEventRepository clickRepo;
+    private final BuyNowClickEventRepository buyNowRepo;
+    private final CurrencyService currencyService;
+    private final TransactionTemplate tx;
+    private final long flushIntervalMs;
+    private final boolean approximateSessions;
+    /** Session flags already stored, so repeated events of a session need no lookup or write */
+    private final Cache<SessionDay.Key, Integer> storedFlags;
+    /** Sessions with events not counted yet, waiting for a search or add-to-cart of the session */
+    private final Cache<SessionDay.Key, Boolean> unresolved;
+    /** Events counted by rebuilt days since the last flush, which may still be queued in the feed */
+    private Set<Counted> rebuiltEvents = new HashSet<>();
+    private volatile boolean ready = true;
+    private ScheduledExecutorService flusher;
+
+    public DailyRollupService(RollupFeed feed, DailyRollupRepository rollupRepo, SessionDayRepository sessionRepo,
+            SessionSketchRepository sketchRepo, QuerySketchRepository querySketchRepo,
+            SearchEventRepository searchRepo, AddToCartEventRepository cartRepo,
+            PurchaseEventRepository purchaseRepo, ProductClickEventRepository clickRepo,
+            BuyNowClickEventRepository buyNowRepo, CurrencyService currencyService,
+            PlatformTransactionManager transactionManager,
+            @Value("${analytics.rollups.flush-interval-ms:1000}") long flushIntervalMs,
+            @Value("${analytics.rollups.session-cache-size:200000}") long sessionCacheSize,
+            @Value("${analytics.sessions.counting:exact}") String sessionCounting) {
+        this.feed = feed;
+        this.rollupRepo = rollupRepo;
+        this.sessionRepo = sessionRepo;
+        this.sketchRepo = sketchRepo;
+        this.querySketchRepo = querySketchRepo;
+        this.searchRepo = searchRepo;
+        this.cartRepo = cartRepo;
+        this.purchaseRepo = purchaseRepo;
+        this.clickRepo = clickRepo;
+        this.buyNowRepo = buyNowRepo;
+        this.currencyService = currencyService;
+        this.tx = new TransactionTemplate(transactionManager);
+        // Commit on their own, so reads on the analytics executor see a flush made inside a caller's transaction
+        this.tx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.flushIntervalMs = flushIntervalMs;
+        this.approximateSessions = "approximate".equalsIgnoreCase(sessionCounting.trim());
+        this.storedFlags = Caffeine.newBuilder()
+                .maximumSize(sessionCacheSize)
+                .expireAfterAccess(Duration.ofHours(26))
+                .build();
+        this.unresolved = Caffeine.newBuilder()
+                .maximumSize(sessionCacheSize)
+                .expireAfterAccess(Duration.ofHours(26))
+                .build();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!feed.isEnabled() || flushIntervalMs <= 0) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rollup-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Daily rollup flush failed", e);
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+    }
+
+    /** Fill the rollups from the raw events when they are used but were never built, or lack sketches. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        if (!feed.isEnabled() || searchRepo.count() == 0
+                || (rollupRepo.count() > 0 && sketchRepo.count() > 0 && querySketchRepo.count() > 0)) {
+            return;
+        }
+        ready = false;
+        Thread t = new Thread(() -> {
+            try {
+                log.info("Daily rollups are empty, rebuilding them from raw events");
+                log.info("Rebuilt {} rollup days", rebuild(null));
+            } catch (RuntimeException e) {
+                log.error("Daily rollup backfill failed, summaries keep using raw events", e);
+                return;
+            }
+            ready = true;
+        }, "rollup-backfill");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Whether summaries should be answered from the rollups. */
+    public boolean useForSummary() {
+        return feed.isEnabled() && ready;
+    }
+
+    /**
+     * Rollup rows of a shop's days {@code fromDay..toDay}, ordered by day. Call
+     * {@link #flush} first to include every event persisted so far.
+     *
+     * @param searchGroup the group, or null for all groups
+     */
+    public List<DailyRollup> rows(String shopId, long fromDay, long toDay, Integer searchGroup) {
+        List<DailyRollup> rows = rollupRepo.findAllByShopIdAndEpochDayBetweenOrderByEpochDayAscSearchGroupAsc(
+                shopId, fromDay, toDay);
+        if (searchGroup != null) {
+            rows.removeIf(r -> r.getSearchGroup() != searchGroup);
+        }
+        return rows;
+    }
+
+    /** Whether session counts are estimated from the daily sketches rather than counted exactly. */
+    public boolean approximateSessions() {
+        return approximateSessions;
+    }
+
+    /** Relative standard error of {@link #sessionCounts}, or null when they are exact. */
+    public Double sessionCountError() {
+        return approximateSessions ? HyperLogLog.RELATIVE_ERROR : null;
+    }
+
+    /** Distinct sessions with searches, clicks, add-to-carts and purchases over days {@code fromDay..toDay}. */
+    public long[] sessionCounts(String shopId, long fromDay, long toDay, Integer searchGroup) {
+        if (approximateSessions) {
+            return sessionCounts(shopId, fromDay, toDay, Collections.singletonList(searchGroup)).get(searchGroup);
+        }
+        List<Object[]> rows = searchGroup != null
+                ? sessionRepo.countSessionsInGroup(shopId, fromDay, toDay, searchGroup)
+                : sessionRepo.countSessions(shopId, fromDay, toDay);
+        long[] counts = new long[4];
+        if (!rows.isEmpty()) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = rows.get(0)[i] != null ? ((Number) rows.get(0)[i]).longValue() : 0;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * {@link #sessionCounts} of several groups, with one query for all numeric
+     * groups; a null group counts sessions over all groups.
+     */
+    public Map<Integer, long[]> sessionCounts(String shopId, long fromDay, long toDay, Collection<Integer> groups) {
+        if (approximateSessions) {
+            return estimateSessions(shopId, fromDay, toDay, groups);
+        }
+        Map<Integer, long[]> counts = new HashMap<>();
+        if (groups.stream().anyMatch(Objects::nonNull)) {
+            for (Object[] row : sessionRepo.countSessionsByGroup(shopId, fromDay, toDay)) {
+                long[] groupCounts = new long[4];
+                for (int i = 0; i < groupCounts.length; i++) {
+                    groupCounts[i] = row[i + 1] != null ? ((Number) row[i + 1]).longValue() : 0;
+                }
+                counts.put(((Number) row[0]).intValue(), groupCounts);
+            }
+        }
+        Map<Integer, long[]> requested = new HashMap<>();
+        for (Integer group : groups) {
+            requested.put(group, group == null ? sessionCounts(shopId, fromDay, toDay, (Integer) null)
+                    : counts.getOrDefault(group, new long[4]));
+        }
+        return requested;
+    }
+
+    /**
+     * The most frequent normalized queries of days {@code fromDay..toDay}, all
+     * groups, merged from the daily summaries; counts may be over-estimated by
+     * up to the merged summary's error.
+     */
+    public List<SpaceSaving.Term> topQueries(String shopId, long fromDay, long toDay, int limit) {
+        SpaceSaving merged = new SpaceSaving(AnalyticsService.TOP_QUERY_CAPACITY);
+        for (QuerySketch row : querySketchRepo.findAllByShopIdAndEpochDayBetween(shopId, fromDay, toDay)) {
+            merged.merge(SpaceSaving.fromBytes(row.getSummary()));
+        }
+        return merged.top(limit);
+    }
+
+    /** {@link #sessionCounts} estimated from the union of the range's daily sketches, per group. */
+    private Map<Integer, long[]> estimateSessions(String shopId, long fromDay, long toDay,
+            Collection<Integer> groups) {
+        Map<Integer, HyperLogLog[]> unions = new HashMap<>();
+        for (Integer group : groups) {
+            unions.put(group, emptySketches());
+        }
+        for (SessionSketch row : sketchRepo.findAllByShopIdAndEpochDayBetween(shopId, fromDay, toDay)) {
+            HyperLogLog[] day = sketches(row);
+            for (Integer group : groups) {
+                if (group == null || group == row.getSearchGroup()) {
+                    HyperLogLog[] union = unions.get(group);
+                    for (int i = 0; i < union.length; i++) {
+                        union[i].merge(day[i]);
+                    }
+                }
+            }
+        }
+        Map<Integer, long[]> counts = new HashMap<>();
+        unions.forEach((group, union) -> {
+            long[] estimates = new long[union.length];
+            for (int i = 0; i < union.length; i++) {
+                estimates[i] = union[i].estimate();
+            }
+            counts.put(group, estimates);
+        });
+        return counts;
+    }
+
+    /** Searched, clicked, carted and purchased sketches, in {@link #sessionCounts} order */
+    private static HyperLogLog[] emptySketches() {
+        return new HyperLogLog[] { new HyperLogLog(), new HyperLogLog(), new HyperLogLog(), new HyperLogLog() };
+    }
+
+    private static HyperLogLog[] sketches(SessionSketch row) {
+        return new HyperLogLog[] { HyperLogLog.fromBytes(row.getSearched()), HyperLogLog.fromBytes(row.getClicked()),
+                HyperLogLog.fromBytes(row.getCarted()), HyperLogLog.fromBytes(row.getPurchased()) };
+    }
+
+    private static void store(SessionSketch row, HyperLogLog[] sketches) {
+        row.setSearched(sketches[0].isEmpty() ? null : sketches[0].toBytes());
+        row.setClicked(sketches[1].isEmpty() ? null : sketches[1].toBytes());
+        row.setCarted(sketches[2].isEmpty() ? null : sketches[2].toBytes());
+        row.setPurchased(sketches[3].isEmpty() ? null : sketches[3].toBytes());
+    }
+
+    /** Adds a session to the sketches of each of its {@link SessionDay} flags. */
+    private static void addSession(HyperLogLog[] sketches, String sessionId, int flags) {
+        int[] order = { SessionDay.SEARCHED, SessionDay.CLICKED, SessionDay.CARTED, SessionDay.PURCHASED };
+        for (int i = 0; i < order.length; i++) {
+            if ((flags & order[i]) != 0) {
+                sketches[i].add(sessionId);
+            }
+        }
+    }
+
+    /** Fold queued events into the rollups and recompute stale days. */
+    public synchronized void flush() {
+        if (!feed.isEnabled()) {
+            return;
+        }
+        List<Object> events = feed.drain();
+        Set<RollupFeed.Day> stale = new LinkedHashSet<>(feed.drainStale());
+        for (Object event : events) {
+            SessionDay.Key session = dependedOn(event);
+            if (session != null && unresolved.asMap().remove(session) != null) {
+                stale.add(new RollupFeed.Day(session.getShopId(), session.getEpochDay()));
+            }
+        }
+        // Any event such a rebuild counted was queued before it read, so it is in this drain at the latest
+        Set<Counted> counted = rebuiltEvents;
+        rebuiltEvents = new HashSet<>();
+        if (!events.isEmpty()) {
+            Map<SessionDay.Key, Integer> written = new HashMap<>();
+            try {
+                tx.executeWithoutResult(status -> apply(events, stale, counted, written));
+                written.forEach(storedFlags::put);
+            } catch (RuntimeException e) {
+                log.warn("Could not fold {} events into the daily rollups, recomputing their days: {}",
+                        events.size(), e.toString());
+                storedFlags.invalidateAll();
+                events.stream().map(RollupFeed::dayOf).filter(Objects::nonNull).forEach(stale::add);
+            }
+        }
+        for (RollupFeed.Day day : stale) {
+            rebuildDay(day.shopId(), day.epochDay());
+        }
+    }
+
+    /**
+     * Recompute a shop's rollups (all shops when null) from the raw events.
+     *
+     * @return the number of days rebuilt
+     */
+    public int rebuild(String shopId) {
+        flush();
+        List<Object[]> ranges = shopId == null ? searchRepo.timestampRangeByShop() : searchRepo.timestampRange(shopId);
+        if (shopId != null && ranges.isEmpty()) {
+            clear(shopId);
+        }
+        int days = 0;
+        for (Object[] range : ranges) {
+            String shop = (String) range[0];
+            clear(shop);
+            if (range[1] == null) {
+                continue;
+            }
+            long lastDay = Math.floorDiv((Long) range[2], DAY_MS);
+            for (long day = Math.floorDiv((Long) range[1], DAY_MS); day <= lastDay; day++) {
+                rebuildDay(shop, day);
+                days++;
+            }
+        }
+        return days;
+    }
+
+    private void clear(String shopId) {
+        tx.executeWithoutResult(status -> {
+            rollupRepo.deleteShop(shopId);
+            sessionRepo.deleteShop(shopId);
+            sketchRepo.deleteShop(shopId);
+            querySketchRepo.deleteShop(shopId);
+        });
+        storedFlags.asMap().keySet().removeIf(k -> k.getShopId().equals(shopId));
+    }
+
+    /** Replace one shop day's rows with the summary's calculation over its raw events. */
+    synchronized void rebuildDay(String shopId, long epochDay) {
+        long fromMs = epochDay * DAY_MS;
+        long toMs = fromMs + DAY_MS - 1;
+        tx.executeWithoutResult(status -> {
+            List<SearchRow> searches = searchRepo.findAnalyticsRows(shopId, fromMs, toMs, null);
+            List<CartRow> carts = cartRepo.findAnalyticsRows(shopId, fromMs, toMs, null);
+            List<ClickRow> clicks = clickRepo.findAnalyticsRows(shopId, fromMs, toMs, null);
+            List<ClickRow> buyNows = buyNowRepo.findAnalyticsRows(shopId, fromMs, toMs, null);
+            List<PurchaseRow> purchases = purchaseRepo.findAnalyticsRows(shopId, fromMs, toMs, null);
+            searches.forEach(e -> rebuiltEvents.add(new Counted(SearchEvent.class, e.id())));
+            carts.forEach(e -> rebuiltEvents.add(new Counted(AddToCartEvent.class, e.id())));
+            clicks.forEach(e -> rebuiltEvents.add(new Counted(ProductClickEvent.class, e.id())));
+            buyNows.forEach(e -> rebuiltEvents.add(new Counted(BuyNowClickEvent.class, e.id())));
+            purchases.forEach(e -> rebuiltEvents.add(new Counted(PurchaseEvent.class, e.id())));
+            rollupRepo.deleteDay(shopId, epochDay);
+            sessionRepo.deleteDay(shopId, epochDay);
+            sketchRepo.deleteDay(shopId, epochDay);
+            querySketchRepo.deleteDay(shopId, epochDay);
+            SpaceSaving queries = new SpaceSaving(AnalyticsService.TOP_QUERY_CAPACITY);
+            searches.forEach(e -> addQuery(queries, e.query()));
+            if (!queries.isEmpty()) {
+                querySketchRepo.save(new QuerySketch(shopId, epochDay, queries.toBytes()));
+            }
+
+            // Nothing counts without a search, so the groups searched that day are all the rows
+            Set<Integer> groups = searches.stream().map(e -> DailyRollup.groupKey(e.searchGroup()))
+                    .collect(Collectors.toCollection(TreeSet::new));
+            for (int group : groups) {
+                Map<String, Double> rates = new HashMap<>();
+                PeriodAnalytics a = PeriodAnalytics.compute(
+                        inGroup(searches, group, SearchRow::searchGroup),
+                        inGroup(carts, group, CartRow::searchGroup),
+                        inGroup(clicks, group, ClickRow::searchGroup),
+                        inGroup(buyNows, group, ClickRow::searchGroup),
+                        inGroup(purchases, group, PurchaseRow::searchGroup),
+                        currencyService, rates, null);
+                rollupRepo.save(DailyRollup.builder()
+                        .shopId(shopId).epochDay(epochDay).searchGroup(group)
+                        .searches(a.searchCount).queries(a.queryCount).queryWords(a.totalWordCount)
+                        .longQueries(a.longQueryCount).productClicks(a.productClicks)
+                        .buyNowClicks(a.buyNowClicks).addToCarts(a.addToCartCount)
+                        .addToCartAmount(a.addToCartAmount).purchasedProducts(a.validPurchasedProductCount)
+                        .revenue(a.validPurchaseRevenue).revenueEur(a.totalPurchaseValueEur)
+                        .currency(a.addToCartCount > 0 ? a.currency : null)
+                        .purchaseCurrency(rates.isEmpty() ? null : rates.keySet().iterator().next())
+                        .build());
+
+                Map<String, Integer> sessions = new HashMap<>();
+                a.totalSearchSessions.forEach(s -> sessions.merge(s, SessionDay.SEARCHED, (x, y) -> x | y));
+                a.sessionsWithClicks.forEach(s -> sessions.merge(s, SessionDay.CLICKED, (x, y) -> x | y));
+                a.sessionsWithAddToCarts.forEach(s -> sessions.merge(s, SessionDay.CARTED, (x, y) -> x | y));
+                a.sessionsWithPurchases.forEach(s -> sessions.merge(s, SessionDay.PURCHASED, (x, y) -> x | y));
+                HyperLogLog[] sketches = emptySketches();
+                sessions.forEach((sessionId, flags) -> addSession(sketches, sessionId, flags));
+                SessionSketch sketch = new SessionSketch();
+                sketch.setShopId(shopId);
+                sketch.setEpochDay(epochDay);
+                sketch.setSearchGroup(group);
+                store(sketch, sketches);
+                sketchRepo.save(sketch);
+                sessions.forEach((sessionId, flags) -> {
+                    SessionDay row = new SessionDay();
+                    row.setShopId(shopId);
+                    row.setEpochDay(epochDay);
+                    row.setSearchGroup(group);
+                    row.setSessionId(sessionId);
+                    row.addFlags(flags);
+                    sessionRepo.save(row);
+                });
+            }
+        });
+        storedFlags.asMap().keySet().removeIf(k -> k.getEpochDay() == epochDay && k.getShopId().equals(shopId));
+    }
+
+    private static <T> List<T> inGroup(List<T> events, int group, Function<T, Integer> searchGroup) {
+        return events.stream().filter(e -> DailyRollup.groupKey(searchGroup.apply(e)) == group)
+                .collect(Collectors.toList());
+    }
+
+    /** Adds the events of days that are not about to be recomputed anyway, nor already counted by a rebuild. */
+    private void apply(List<Object> events, Set<RollupFeed.Day> stale, Set<Counted> counted,
+            Map<SessionDay.Key, Integer> written) {
+        Map<DailyRollup.Key, DailyRollup> deltas = new LinkedHashMap<>();
+        Map<SessionDay.Key, Integer> flags = new HashMap<>();
+        Map<QuerySketch.Key, SpaceSaving> queries = new HashMap<>();
+        Map<SessionDay.Key, Set<String>> shown = new HashMap<>();
+        for (Object event : events) {
+            RollupFeed.Day day = RollupFeed.dayOf(event);
+            if (day == null || stale.contains(day) || (!counted.isEmpty() && counted.contains(counted(event)))) {
+                continue;
+            }
+            if (event instanceof SearchEvent e) {
+                DailyRollup d = delta(deltas, day, e.getSearchGroup());
+                d.setSearches(d.getSearches() + 1);
+                if (e.getQuery() != null && !e.getQuery().trim().isEmpty()) {
+                    int words = e.getQuery().trim().split("\\s+").length;
+                    d.setQueries(d.getQueries() + 1);
+                    d.setQueryWords(d.getQueryWords() + words);
+                    d.setLongQueries(d.getLongQueries() + (words >= 3 ? 1 : 0));
+                }
+                addQuery(queries.computeIfAbsent(new QuerySketch.Key(day.shopId(), day.epochDay()),
+                        k -> new SpaceSaving(AnalyticsService.TOP_QUERY_CAPACITY)), e.getQuery());
+                SessionDay.Key session = sessionKey(day, e.getSearchGroup(), e.getSessionId());
+                mark(flags, session, SessionDay.SEARCHED);
+                Set<String> products = session != null ? shown.get(session) : null;
+                if (products != null && e.getProductIds() != null) {
+                    products.addAll(e.getProductIds());
+                }
+            } else if (event instanceof ProductClickEvent e) {
+                SessionDay.Key session = sessionKey(day, e.getSearchGroup(), e.getSessionId());
+                if (!PeriodAnalytics.isProductGid(e.getProductId())) {
+                    continue;
+                }
+                if (searched(flags, session)) {
+                    DailyRollup d = delta(deltas, day, e.getSearchGroup());
+                    d.setProductClicks(d.getProductClicks() + 1);
+                    mark(flags, session, SessionDay.CLICKED);
+                } else {
+                    defer(session);
+                }
+            } else if (event instanceof BuyNowClickEvent e) {
+                SessionDay.Key session = sessionKey(day, e.getSearchGroup(), e.getSessionId());
+                if (!PeriodAnalytics.isProductGid(e.getProductId())) {
+                    continue;
+                }
+                if (searched(flags, session)) {
+                    DailyRollup d = delta(deltas, day, e.getSearchGroup());
+                    d.setBuyNowClicks(d.getBuyNowClicks() + 1);
+                } else {
+                    defer(session);
+                }
+            } else if (event instanceof AddToCartEvent e) {
+                SessionDay.Key session = sessionKey(day, e.getSearchGroup(), e.getSessionId());
+                if (session == null) {
+                    continue;
+                }
+                if (shownProducts(shown, session).contains(e.getProductId())) {
+                    DailyRollup d = delta(deltas, day, e.getSearchGroup());
+                    d.setAddToCarts(d.getAddToCarts() + 1);
+                    d.setAddToCartAmount(d.getAddToCartAmount() + (e.getPrice() != null ? e.getPrice() : 0d));
+                    if (d.getCurrency() == null && e.getCurrency() != null && !e.getCurrency().isEmpty()) {
+                        d.setCurrency(e.getCurrency());
+                    }
+                    mark(flags, session, SessionDay.CARTED);
+                } else {
+                    defer(session);
+                }
+            } else if (event instanceof PurchaseEvent e) {
+                SessionDay.Key session = sessionKey(day, e.getSearchGroup(), e.getSessionId());
+                if (session == null) {
+                    continue;
+                }
+                if (searched(flags, session)) {
+                    applyPurchase(e, day, session, shownProducts(shown, session), deltas, flags);
+                } else {
+                    defer(session);
+                }
+            }
+        }
+
+        for (DailyRollup d : deltas.values()) {
+            if (rollupRepo.addCounters(d) == 0) {
+                rollupRepo.save(d);
+                continue;
+            }
+            if (d.getCurrency() != null) {
+                rollupRepo.setCurrencyIfAbsent(d, d.getCurrency());
+            }
+            if (d.getPurchaseCurrency() != null) {
+                rollupRepo.setPurchaseCurrency(d, d.getPurchaseCurrency());
+            }
+        }
+
+        Map<SessionDay.Key, SessionDay> rows = new HashMap<>();
+        sessionRepo.findAllById(flags.keySet()).forEach(row -> rows.put(
+                new SessionDay.Key(row.getShopId(), row.getEpochDay(), row.getSearchGroup(), row.getSessionId()),
+                row));
+        flags.forEach((key, bits) -> {
+            SessionDay row = rows.get(key);
+            if (row == null) {
+                row = new SessionDay();
+                row.setShopId(key.getShopId());
+                row.setEpochDay(key.getEpochDay());
+                row.setSearchGroup(key.getSearchGroup());
+                row.setSessionId(key.getSessionId());
+            }
+            row.addFlags(bits);
+            sessionRepo.save(row);
+            written.put(key, row.flags());
+        });
+
+        // Newly set flags go into their day's sketches; adding a session twice changes nothing
+        Map<DailyRollup.Key, HyperLogLog[]> added = new HashMap<>();
+        flags.forEach((key, bits) -> addSession(added.computeIfAbsent(
+                new DailyRollup.Key(key.getShopId(), key.getEpochDay(), key.getSearchGroup()),
+                k -> emptySketches()), key.getSessionId(), bits));
+        Map<DailyRollup.Key, SessionSketch> stored = new HashMap<>();
+        sketchRepo.findAllById(added.keySet()).forEach(row -> stored.put(
+                new DailyRollup.Key(row.getShopId(), row.getEpochDay(), row.getSearchGroup()), row));
+        added.forEach((key, sketches) -> {
+            SessionSketch row = stored.get(key);
+            if (row == null) {
+                row = new SessionSketch();
+                row.setShopId(key.getShopId());
+                row.setEpochDay(key.getEpochDay());
+                row.setSearchGroup(key.getSearchGroup());
+            } else {
+                HyperLogLog[] current = sketches(row);
+                for (int i = 0; i < sketches.length; i++) {
+                    sketches[i].merge(current[i]);
+                }
+            }
+            store(row, sketches);
+            sketchRepo.save(row);
+        });
+
+        Map<QuerySketch.Key, QuerySketch> storedQueries = new HashMap<>();
+        querySketchRepo.findAllById(queries.keySet()).forEach(row -> storedQueries.put(
+                new QuerySketch.Key(row.getShopId(), row.getEpochDay()), row));
+        queries.forEach((key, summary) -> {
+            QuerySketch row = storedQueries.get(key);
+            if (row == null) {
+                row = new QuerySketch(key.getShopId(), key.getEpochDay(), null);
+            } else {
+                summary.merge(SpaceSaving.fromBytes(row.getSummary()));
+            }
+            row.setSummary(summary.toBytes());
+            querySketchRepo.save(row);
+        });
+    }
+
+    private static void addQuery(SpaceSaving queries, String query) {
+        String term = PeriodAnalytics.normalizeQuery(query);
+        if (term != null) {
+            queries.add(term);
+        }
+    }
+
+    private static Counted counted(Object event) {
+        if (event instanceof SearchEvent e) {
+            return new Counted(SearchEvent.class, e.getId());
+        } else if (event instanceof AddToCartEvent e) {
+            return new Counted(AddToCartEvent.class, e.getId());
+        } else if (event instanceof ProductClickEvent e) {
+            return new Counted(ProductClickEvent.class, e.getId());
+        } else if (event instanceof BuyNowClickEvent e) {
+            return new Counted(BuyNowClickEvent.class, e.getId());
+        } else if (event instanceof PurchaseEvent e) {
+            return new Counted(PurchaseEvent.class, e.getId());
+        }
+        return null;
+    }
+
+    private record Counted(Class<?> type, Long id) {
+    }
+
+    /**
+     * Adds the products of an order that were validly added to the cart in its
+     * session that day. An order with products not matched yet waits for a later
+     * add-to-cart of the session.
+     *
+     * @param shown the products of the session's search results that day
+     */
+    private void applyPurchase(PurchaseEvent e, RollupFeed.Day day, SessionDay.Key session, Set<String> shown,
+            Map<DailyRollup.Key, DailyRollup> deltas, Map<SessionDay.Key, Integer> flags) {
+        Set<String> cartProducts = new HashSet<>();
+        for (AddToCartEvent cart : cartRepo.findAllByShopIdAndSessionId(e.getShopId(), e.getSessionId())) {
+            if (day.equals(RollupFeed.dayOf(cart))
+                    && DailyRollup.groupKey(cart.getSearchGroup()) == session.getSearchGroup()
+                    && shown.contains(cart.getProductId())) {
+                cartProducts.add(cart.getProductId());
+            }
+        }
+        PeriodAnalytics order = new PeriodAnalytics();
+        Map<String, Double> rates = new HashMap<>();
+        int valid = order.addPurchase(PurchaseRow.of(e), cartProducts, currencyService, rates);
+        if (e.getProducts() != null && valid < e.getProducts().size()) {
+            defer(session);
+        }
+        if (valid == 0) {
+            return;
+        }
+        DailyRollup d = delta(deltas, day, e.getSearchGroup());
+        d.setPurchasedProducts(d.getPurchasedProducts() + order.validPurchasedProductCount);
+        d.setRevenue(d.getRevenue() + order.validPurchaseRevenue);
+        d.setRevenueEur(d.getRevenueEur() + order.totalPurchaseValueEur);
+        if (!rates.isEmpty()) {
+            d.setPurchaseCurrency(rates.keySet().iterator().next());
+        }
+        mark(flags, session, SessionDay.PURCHASED);
+    }
+
+    private static DailyRollup delta(Map<DailyRollup.Key, DailyRollup> deltas, RollupFeed.Day day,
+            Integer searchGroup) {
+        int group = DailyRollup.groupKey(searchGroup);
+        return deltas.computeIfAbsent(new DailyRollup.Key(day.shopId(), day.epochDay(), group),
+                k -> DailyRollup.builder().shopId(k.getShopId()).epochDay(k.getEpochDay())
+                        .searchGroup(k.getSearchGroup()).build());
+    }
+
+    private static SessionDay.Key sessionKey(RollupFeed.Day day, Integer searchGroup, String sessionId) {
+        return sessionId == null ? null
+                : new SessionDay.Key(day.shopId(), day.epochDay(), DailyRollup.groupKey(searchGroup), sessionId);
+    }
+
+    private void mark(Map<SessionDay.Key, Integer> flags, SessionDay.Key session, int flag) {
+        if (session == null) {
+            return;
+        }
+        Integer stored = storedFlags.getIfPresent(session);
+        if (stored != null && (stored & flag) != 0) {
+            return;
+        }
+        flags.merge(session, flag, (x, y) -> x | y);
+    }
+
+    /**
+     * The products shown by the session's searches that day, read once per flush
+     * and extended by the searches folded in since.
+     */
+    private Set<String> shownProducts(Map<SessionDay.Key, Set<String>> shown, SessionDay.Key session) {
+        return shown.computeIfAbsent(session, k -> {
+            Set<String> products = new HashSet<>();
+            for (SearchEvent search : searchRepo.findAllByShopIdAndSessionId(k.getShopId(), k.getSessionId())) {
+                RollupFeed.Day day = RollupFeed.dayOf(search);
+                if (day != null && day.epochDay() == k.getEpochDay()
+                        && DailyRollup.groupKey(search.getSearchGroup()) == k.getSearchGroup()
+                        && search.getProductIds() != null) {
+                    products.addAll(search.getProductIds());
+                }
+            }
+            return products;
+        });
+    }
+
+    /** Recompute the session's day once a later search or add-to-cart of the session is folded in. */
+    private void defer(SessionDay.Key session) {
+        if (session != null) {
+            unresolved.put(session, Boolean.TRUE);
+        }
+    }
+
+    /** The session whose waiting events a search or add-to-cart may validate, or null for other events. */
+    private static SessionDay.Key dependedOn(Object event) {
+        RollupFeed.Day day = RollupFeed.dayOf(event);
+        if (day == null) {
+            return null;
+        } else if (event instanceof SearchEvent e) {
+            return sessionKey(day, e.getSearchGroup(), e.getSessionId());
+        } else if (event instanceof AddToCartEvent e) {
+            return sessionKey(day, e.getSearchGroup(), e.getSessionId());
+        }
+        return null;
+    }
+
+    private boolean searched(Map<SessionDay.Key, Integer> flags, SessionDay.Key session) {
+        if (session == null) {
+            return false;
+        }
+        Integer pending = flags.get(session);
+        if (pending != null && (pending & SessionDay.SEARCHED) != 0) {
+            return true;
+        }
+        Integer stored = storedFlags.get(session,
+                k -> sessionRepo.findById(k).map(SessionDay::flags).orElse(0));
+        return (stored & SessionDay.SEARCHED) != 0;
+    }
+}
@@ -1,13 +1,19 @@
 package com.talya.searchanalytics.service;
 
+import com.talya.searchanalytics.model.SearchEvent;
+import com.talya.searchanalytics.model.SearchProductStorage;
 import com.talya.searchanalytics.repo.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.LocalDate;
 import java.time.ZoneOffset;
+import java.util.List;
 
 @Service
 @RequiredArgsConstructor
@@ -19,6 +25,7 @@ public class DataMigrationService {
     private final ProductClickEventRepository clickRepo;
     private final BuyNowClickEventRepository buyNowRepo;
     private final PurchaseEventRepository purchaseRepo;
+    private final PlatformTransactionManager transactionManager;
 
     /**
      * Backfill searchGroup field for all events before February 8, 2026.
@@ -99,4 +106,41 @@ public class DataMigrationService {
         log.info(summary);
         return summary;
     }
+
+    /**
+     * Move search result product ids to the given storage layout, one transaction
+     * per batch of events so the migration can run on a live database and be
+     * resumed if interrupted.
+     */
+    public String migrateSearchProducts(SearchProductStorage.Mode target, int batchSize) {
+        log.info("Starting search product id migration to {} storage", target);
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        PageRequest page = PageRequest.of(0, Math.max(1, batchSize));
+        long after = Long.MIN_VALUE;
+        int migrated = 0;
+        while (true) {
+            List<Long> ids = target == SearchProductStorage.Mode.PACKED
+                    ? searchRepo.findUnpackedIdsAfter(after, page)
+                    : searchRepo.findPackedIdsAfter(after, page);
+            if (ids.isEmpty()) {
+                break;
+            }
+            tx.executeWithoutResult(status -> {
+                for (SearchEvent event : searchRepo.findAllByIdIn(ids)) {
+                    if (target == SearchProductStorage.Mode.PACKED) {
+                        SearchProductStorage.pack(event);
+                    } else {
+                        SearchProductStorage.unpack(event);
+                    }
+                }
+            });
+            migrated += ids.size();
+            after = ids.get(ids.size() - 1);
+        }
+
+        String summary = String.format("Search product id migration completed! SearchEvents moved to %s storage: %d",
+                target.name().toLowerCase(), migrated);
+        log.info(summary);
+        return summary;
+    }
 }
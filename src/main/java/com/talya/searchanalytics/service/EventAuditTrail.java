@@ -0,0 +1,222 @@
+package com.talya.searchanalytics.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size in-memory record of the most recently ingested events, kept in
+ * {@link EventCodec} form so capturing an event costs one encode and one copy
+ * instead of formatting its payload into the log.
+ * <p>
+ * The ring is an array of equal slots. A writer claims the next sequence number
+ * with one atomic increment, marks the slot busy with a CAS on its stamp, copies
+ * the encoded event in and publishes it by storing the sequence number as the
+ * stamp. Readers copy a slot and keep it only when its stamp was the expected
+ * sequence number both before and after the copy (a seqlock), so neither side
+ * takes a lock. A writer that finds its slot still busy from a lapped writer
+ * drops its event rather than wait; events larger than a slot are kept truncated
+ * (type and shop only).
+ * <p>
+ * Instead of per-event log lines, ingestion volume is logged as a summary every
+ * {@code ingestion.audit.summary-interval-seconds}, and
+ * {@code ingestion.audit.log-every} can log one in N events in full.
+ */
+@Service
+@Slf4j
+public class EventAuditTrail {
+
+    private static final String[] TYPE_NAMES = { null, EventIngestionService.TYPE_SEARCH,
+            EventIngestionService.TYPE_ADD_TO_CART, EventIngestionService.TYPE_PURCHASE, EventIngestionService.TYPE_PRODUCT_CLICK,
+            EventIngestionService.TYPE_BUY_NOW_CLICK };
+    private static final long EMPTY = -1;
+    private static final long BUSY = -2;
+    /** receivedAtMs (long) and encoded length (int) precede the payload */
+    private static final int HEADER_BYTES = 12;
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final ThreadLocal<EventCodec.Writer> WRITER = ThreadLocal.withInitial(EventCodec.Writer::new);
+
+    private final boolean enabled;
+    private final int slotBytes;
+    private final int mask;
+    private final byte[] data;
+    private final AtomicLongArray stamps;
+    private final AtomicLong cursor = new AtomicLong();
+    private final LongAdder[] counts = new LongAdder[TYPE_NAMES.length];
+    private final LongAdder droppedSinceSummary = new LongAdder();
+    private final Counter droppedCounter;
+    private final long logEvery;
+    private final long summaryIntervalSeconds;
+    private ScheduledExecutorService summarizer;
+
+    public EventAuditTrail(MeterRegistry meterRegistry,
+            @Value("${ingestion.audit.enabled:true}") boolean enabled,
+            @Value("${ingestion.audit.slots:8192}") int slots,
+            @Value("${ingestion.audit.slot-bytes:2048}") int slotBytes,
+            @Value("${ingestion.audit.log-every:0}") long logEvery,
+            @Value("${ingestion.audit.summary-interval-seconds:60}") long summaryIntervalSeconds) {
+        this.enabled = enabled;
+        int capacity = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.slotBytes = Math.max(HEADER_BYTES + 64, slotBytes);
+        this.mask = capacity - 1;
+        this.data = new byte[enabled ? capacity * this.slotBytes : 0];
+        this.stamps = new AtomicLongArray(enabled ? capacity : 0);
+        for (int i = 0; i < stamps.length(); i++) {
+            stamps.set(i, EMPTY);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        this.droppedCounter = meterRegistry.counter("ingestion.audit.dropped");
+        this.logEvery = logEvery;
+        this.summaryIntervalSeconds = summaryIntervalSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (summaryIntervalSeconds <= 0) {
+            return;
+        }
+        summarizer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ingestion-summary");
+            t.setDaemon(true);
+            return t;
+        });
+        summarizer.scheduleAtFixedRate(this::logSummary, summaryIntervalSeconds, summaryIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (summarizer != null) {
+            summarizer.shutdownNow();
+        }
+    }
+
+    /** Capture an event entity that is about to be persisted. */
+    public void record(Object event) {
+        int type = EventCodec.typeOf(event);
+        counts[type].increment();
+        if (logEvery > 0 && counts[type].sum() % logEvery == 0) {
+            log.info("Sampled {} event: {}", TYPE_NAMES[type], event);
+        }
+        if (!enabled) {
+            return;
+        }
+
+        EventCodec.Writer w = WRITER.get();
+        w.reset();
+        EventCodec.encode(event, w);
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & mask);
+        long previous = stamps.get(slot);
+        if (previous == BUSY || !stamps.compareAndSet(slot, previous, BUSY)) {
+            droppedSinceSummary.increment();
+            droppedCounter.increment();
+            return;
+        }
+        // Keep the payload writes below from being reordered before the busy mark
+        VarHandle.releaseFence();
+        int base = slot * slotBytes;
+        LONG.set(data, base, System.currentTimeMillis());
+        INT.set(data, base + 8, w.size());
+        System.arraycopy(w.array(), 0, data, base + HEADER_BYTES, Math.min(w.size(), slotBytes - HEADER_BYTES));
+        stamps.set(slot, seq);
+    }
+
+    /**
+     * The shop's most recent events still in the ring, newest first.
+     *
+     * @param shopId the shop, or null for all shops
+     */
+    public List<Entry> recent(String shopId, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        if (!enabled) {
+            return entries;
+        }
+        long end = cursor.get();
+        long start = Math.max(0, end - stamps.length());
+        byte[] copy = new byte[slotBytes];
+        for (long seq = end - 1; seq >= start && entries.size() < limit; seq--) {
+            int slot = (int) (seq & mask);
+            if (stamps.get(slot) != seq) {
+                continue;
+            }
+            System.arraycopy(data, slot * slotBytes, copy, 0, slotBytes);
+            VarHandle.acquireFence();
+            if (stamps.get(slot) != seq) {
+                continue;
+            }
+            Entry entry = entry(seq, copy, shopId);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /** The entry in a copied slot, or null when it belongs to another shop. */
+    private Entry entry(long seq, byte[] slot, String shopId) {
+        long receivedAtMs = (long) LONG.get(slot, 0);
+        int length = (int) INT.get(slot, 8);
+        int stored = Math.min(length, slotBytes - HEADER_BYTES);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(slot, HEADER_BYTES, stored);
+            String type = TYPE_NAMES[in.get()];
+            String eventShop = EventCodec.string(in);
+            if (shopId != null && !shopId.equals(eventShop)) {
+                return null;
+            }
+            byte[] encoded = new byte[stored];
+            System.arraycopy(slot, HEADER_BYTES, encoded, 0, stored);
+            boolean truncated = stored < length;
+            Object event = truncated ? null : EventCodec.decode(ByteBuffer.wrap(encoded));
+            return new Entry(seq, receivedAtMs, type, eventShop, event, encoded, truncated);
+        } catch (BufferUnderflowException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            log.warn("Unreadable audit trail slot {}: {}", seq, e.toString());
+            return null;
+        }
+    }
+
+    void logSummary() {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        for (int type = 1; type < counts.length; type++) {
+            long n = counts[type].sumThenReset();
+            total += n;
+            sb.append(sb.length() == 0 ? "" : ", ").append(TYPE_NAMES[type]).append('=').append(n);
+        }
+        long dropped = droppedSinceSummary.sumThenReset();
+        if (total > 0 || dropped > 0) {
+            log.info("Ingested {} events in the last {}s: {} (audit trail dropped {})",
+                    total, summaryIntervalSeconds, sb, dropped);
+        }
+    }
+
+    /**
+     * One captured event. Truncated entries keep only the type and shop; their
+     * {@code encoded} bytes are the stored prefix.
+     */
+    public record Entry(long seq, long receivedAtMs, String type, String shopId, Object event, byte[] encoded,
+            boolean truncated) {
+    }
+}
@@ -0,0 +1,378 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the ingested event entities. An encoded event is a
+ * type byte followed by the entity fields in declaration order (the generated id
+ * is not included). Nullable values are prefixed so absent fields cost one byte;
+ * strings and lists carry a varint length.
+ */
+public final class EventCodec {
+
+    public static final byte SEARCH = 1;
+    public static final byte ADD_TO_CART = 2;
+    public static final byte PURCHASE = 3;
+    public static final byte PRODUCT_CLICK = 4;
+    public static final byte BUY_NOW_CLICK = 5;
+
+    private EventCodec() {
+    }
+
+    public static byte[] encode(Object event) {
+        Writer w = new Writer();
+        encode(event, w);
+        return w.toByteArray();
+    }
+
+    /** The type byte an event is encoded with. */
+    static byte typeOf(Object event) {
+        if (event instanceof SearchEvent) {
+            return SEARCH;
+        } else if (event instanceof AddToCartEvent) {
+            return ADD_TO_CART;
+        } else if (event instanceof PurchaseEvent) {
+            return PURCHASE;
+        } else if (event instanceof ProductClickEvent) {
+            return PRODUCT_CLICK;
+        } else if (event instanceof BuyNowClickEvent) {
+            return BUY_NOW_CLICK;
+        }
+        throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+    }
+
+    /** Append the encoded event to {@code w}, so callers can reuse one writer. */
+    static void encode(Object event, Writer w) {
+        if (event instanceof SearchEvent) {
+            SearchEvent e = (SearchEvent) event;
+            w.raw(SEARCH);
+            w.string(e.getShopId());
+            w.string(e.getSearchId());
+            w.string(e.getClientId());
+            w.string(e.getSessionId());
+            w.string(e.getQuery());
+            w.strings(e.getProductIds());
+            w.integer(e.getSearchGroup());
+            w.int64(e.getTimestampMs());
+        } else if (event instanceof AddToCartEvent) {
+            AddToCartEvent e = (AddToCartEvent) event;
+            w.raw(ADD_TO_CART);
+            w.string(e.getShopId());
+            w.string(e.getClientId());
+            w.string(e.getSessionId());
+            w.string(e.getProductId());
+            w.string(e.getSearchId());
+            w.integer(e.getSearchGroup());
+            w.int64(e.getTimestampMs());
+            w.float64(e.getPrice());
+            w.string(e.getCurrency());
+        } else if (event instanceof PurchaseEvent) {
+            PurchaseEvent e = (PurchaseEvent) event;
+            w.raw(PURCHASE);
+            w.string(e.getShopId());
+            w.string(e.getClientId());
+            w.string(e.getSessionId());
+            List<Product> products = e.getProducts();
+            w.varint(products == null ? 0 : products.size() + 1);
+            if (products != null) {
+                for (Product p : products) {
+                    w.string(p.getProductId());
+                    w.string(p.getName());
+                    w.float64(p.getPrice());
+                    w.integer(p.getAmount());
+                }
+            }
+            w.string(e.getOrderId());
+            w.float64(e.getTotalAmount());
+            w.string(e.getCurrency());
+            w.string(e.getProductTitles());
+            w.string(e.getOrderStatus());
+            w.integer(e.getSearchGroup());
+            w.int64(e.getTimestampMs());
+        } else if (event instanceof ProductClickEvent) {
+            ProductClickEvent e = (ProductClickEvent) event;
+            w.raw(PRODUCT_CLICK);
+            w.string(e.getShopId());
+            w.string(e.getClientId());
+            w.string(e.getSessionId());
+            w.string(e.getProductId());
+            w.string(e.getSearchId());
+            w.string(e.getQuery());
+            w.string(e.getProductTitle());
+            w.string(e.getUrl());
+            w.integer(e.getSearchGroup());
+            w.int64(e.getTimestampMs());
+        } else if (event instanceof BuyNowClickEvent) {
+            BuyNowClickEvent e = (BuyNowClickEvent) event;
+            w.raw(BUY_NOW_CLICK);
+            w.string(e.getShopId());
+            w.string(e.getClientId());
+            w.string(e.getSessionId());
+            w.string(e.getProductId());
+            w.float64(e.getPrice());
+            w.string(e.getCurrency());
+            w.integer(e.getSearchGroup());
+            w.int64(e.getTimestampMs());
+        } else {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+        }
+    }
+
+    /** Decode one event starting at the buffer's position, advancing past it. */
+    public static Object decode(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case SEARCH:
+                return SearchEvent.builder()
+                        .shopId(string(in))
+                        .searchId(string(in))
+                        .clientId(string(in))
+                        .sessionId(string(in))
+                        .query(string(in))
+                        .productIds(strings(in))
+                        .searchGroup(integer(in))
+                        .timestampMs(int64(in))
+                        .build();
+            case ADD_TO_CART:
+                return AddToCartEvent.builder()
+                        .shopId(string(in))
+                        .clientId(string(in))
+                        .sessionId(string(in))
+                        .productId(string(in))
+                        .searchId(string(in))
+                        .searchGroup(integer(in))
+                        .timestampMs(int64(in))
+                        .price(float64(in))
+                        .currency(string(in))
+                        .build();
+            case PURCHASE: {
+                PurchaseEvent.PurchaseEventBuilder b = PurchaseEvent.builder()
+                        .shopId(string(in))
+                        .clientId(string(in))
+                        .sessionId(string(in));
+                int count = varint(in);
+                List<Product> products = null;
+                if (count > 0) {
+                    products = new ArrayList<>(count - 1);
+                    for (int i = 0; i < count - 1; i++) {
+                        products.add(new Product(string(in), string(in), float64(in), integer(in)));
+                    }
+                }
+                return b.products(products)
+                        .orderId(string(in))
+                        .totalAmount(float64(in))
+                        .currency(string(in))
+                        .productTitles(string(in))
+                        .orderStatus(string(in))
+                        .searchGroup(integer(in))
+                        .timestampMs(int64(in))
+                        .build();
+            }
+            case PRODUCT_CLICK:
+                return ProductClickEvent.builder()
+                        .shopId(string(in))
+                        .clientId(string(in))
+                        .sessionId(string(in))
+                        .productId(string(in))
+                        .searchId(string(in))
+                        .query(string(in))
+                        .productTitle(string(in))
+                        .url(string(in))
+                        .searchGroup(integer(in))
+                        .timestampMs(int64(in))
+                        .build();
+            case BUY_NOW_CLICK:
+                return BuyNowClickEvent.builder()
+                        .shopId(string(in))
+                        .clientId(string(in))
+                        .sessionId(string(in))
+                        .productId(string(in))
+                        .price(float64(in))
+                        .currency(string(in))
+                        .searchGroup(integer(in))
+                        .timestampMs(int64(in))
+                        .build();
+            default:
+                throw new IllegalArgumentException("Unknown event type " + type);
+        }
+    }
+
+    static int varint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static long varlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static String string(ByteBuffer in) {
+        int len = varint(in);
+        if (len == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len - 1];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> strings(ByteBuffer in) {
+        int count = varint(in);
+        if (count == 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(count - 1);
+        for (int i = 0; i < count - 1; i++) {
+            values.add(string(in));
+        }
+        return values;
+    }
+
+    private static Integer integer(ByteBuffer in) {
+        return in.get() == 0 ? null : in.getInt();
+    }
+
+    private static Long int64(ByteBuffer in) {
+        return in.get() == 0 ? null : in.getLong();
+    }
+
+    private static Double float64(ByteBuffer in) {
+        return in.get() == 0 ? null : in.getDouble();
+    }
+
+    /** Growable big-endian byte writer, matching {@link ByteBuffer}'s default order. */
+    static final class Writer {
+        private byte[] buf = new byte[128];
+        private int size;
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        void raw(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        void varlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, size, length);
+            size += length;
+        }
+
+        void fixed32(int value) {
+            ensure(4);
+            for (int i = 3; i >= 0; i--) {
+                buf[size++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void fixed64(long value) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[size++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void strings(List<String> values) {
+            if (values == null) {
+                varint(0);
+                return;
+            }
+            varint(values.size() + 1);
+            for (String s : values) {
+                string(s);
+            }
+        }
+
+        void integer(Integer v) {
+            raw((byte) (v == null ? 0 : 1));
+            if (v != null) {
+                fixed32(v);
+            }
+        }
+
+        void int64(Long v) {
+            raw((byte) (v == null ? 0 : 1));
+            if (v != null) {
+                fixed64(v);
+            }
+        }
+
+        void float64(Double v) {
+            raw((byte) (v == null ? 0 : 1));
+            if (v != null) {
+                fixed64(Double.doubleToRawLongBits(v));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
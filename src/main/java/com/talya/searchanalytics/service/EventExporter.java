@@ -0,0 +1,266 @@
+package com.talya.searchanalytics.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Streams a shop's raw events of one type as NDJSON (one event per line, as
+ * {@code /full} serialises them), CSV or {@link ColumnarEvents} blocks. Events are read in chunks of
+ * {@code analytics.export.chunk-size}, walked by (timestamp, id) keys instead of
+ * offsets, so each chunk is an index range scan and at most two chunks (the one
+ * being written and the next, read ahead on the analytics pool) are held
+ * however long the range is.
+ * <p>
+ * A {@link Cursor} is the key of the first event to export. Clients resume an
+ * export, or page through one, by passing the cursor back.
+ */
+@Service
+public class EventExporter {
+
+    public static final int MAX_PAGE_SIZE = 1_000_000;
+
+    public enum Type {
+        SEARCHES, CLICKS, CARTS, PURCHASES, BUY_NOW_CLICKS
+    }
+
+    public enum Format {
+        NDJSON("application/x-ndjson"), CSV("text/csv"), COLUMNAR(ColumnarEvents.CONTENT_TYPE);
+
+        public final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+    }
+
+    /** Key of an event in export order: its timestamp, then its id. */
+    public record Cursor(long timestampMs, long id) {
+
+        public String token() {
+            return timestampMs + "_" + id;
+        }
+
+        /** @throws IllegalArgumentException when the token was not made by {@link #token} */
+        public static Cursor parse(String token) {
+            int separator = token.indexOf('_');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid cursor " + token);
+            }
+            return new Cursor(Long.parseLong(token.substring(0, separator)),
+                    Long.parseLong(token.substring(separator + 1)));
+        }
+    }
+
+    /** Matches the repositories' {@code findExportKeys} */
+    @FunctionalInterface
+    private interface KeyQuery {
+        List<Object[]> keys(String shopId, long fromTs, long fromId, long toTs, long toId, Pageable page);
+    }
+
+    private record Source<T>(KeyQuery keys, Function<List<Long>, List<T>> load, ToLongFunction<T> id,
+            List<String> header, Function<T, List<List<Object>>> csvRows) {
+    }
+
+    private record Chunk<T>(List<T> events, Cursor next) {
+    }
+
+    private final Map<Type, Source<?>> sources = new EnumMap<>(Type.class);
+    private final AnalyticsExecutor analyticsExecutor;
+    private final ObjectMapper objectMapper;
+    private final int chunkSize;
+
+    public EventExporter(SearchEventRepository searchRepo, ProductClickEventRepository clickRepo,
+            AddToCartEventRepository cartRepo, PurchaseEventRepository purchaseRepo,
+            BuyNowClickEventRepository buyNowRepo, AnalyticsExecutor analyticsExecutor, ObjectMapper objectMapper,
+            @Value("${analytics.export.chunk-size:1000}") int chunkSize) {
+        this.analyticsExecutor = analyticsExecutor;
+        this.objectMapper = objectMapper;
+        this.chunkSize = Math.max(1, chunkSize);
+        sources.put(Type.SEARCHES, new Source<>(searchRepo::findExportKeys, searchRepo::findAllByIdIn,
+                SearchEvent::getId,
+                List.of("id", "shopId", "searchId", "clientId", "sessionId", "query", "searchGroup", "timestampMs",
+                        "productIds"),
+                e -> List.of(Arrays.asList(e.getId(), e.getShopId(), e.getSearchId(), e.getClientId(),
+                        e.getSessionId(), e.getQuery(), e.getSearchGroup(), e.getTimestampMs(),
+                        e.getProductIds() == null ? null : String.join(" ", e.getProductIds())))));
+        sources.put(Type.CLICKS, new Source<>(clickRepo::findExportKeys, clickRepo::findAllByIdIn,
+                ProductClickEvent::getId,
+                List.of("id", "shopId", "clientId", "sessionId", "productId", "searchId", "query", "productTitle",
+                        "url", "searchGroup", "timestampMs"),
+                e -> List.of(Arrays.asList(e.getId(), e.getShopId(), e.getClientId(), e.getSessionId(),
+                        e.getProductId(), e.getSearchId(), e.getQuery(), e.getProductTitle(), e.getUrl(),
+                        e.getSearchGroup(), e.getTimestampMs()))));
+        sources.put(Type.CARTS, new Source<>(cartRepo::findExportKeys, cartRepo::findAllByIdIn,
+                AddToCartEvent::getId,
+                List.of("id", "shopId", "clientId", "sessionId", "productId", "searchId", "price", "currency",
+                        "searchGroup", "timestampMs"),
+                e -> List.of(Arrays.asList(e.getId(), e.getShopId(), e.getClientId(), e.getSessionId(),
+                        e.getProductId(), e.getSearchId(), e.getPrice(), e.getCurrency(), e.getSearchGroup(),
+                        e.getTimestampMs()))));
+        // One CSV line per purchased product, the purchase's columns repeated
+        sources.put(Type.PURCHASES, new Source<>(purchaseRepo::findExportKeys, purchaseRepo::findAllByIdIn,
+                PurchaseEvent::getId,
+                List.of("id", "shopId", "clientId", "sessionId", "orderId", "orderStatus", "totalAmount",
+                        "currency", "productTitles", "searchGroup", "timestampMs", "productId", "productName",
+                        "productPrice", "productAmount"),
+                e -> {
+                    List<Object> purchase = Arrays.asList(e.getId(), e.getShopId(), e.getClientId(),
+                            e.getSessionId(), e.getOrderId(), e.getOrderStatus(), e.getTotalAmount(),
+                            e.getCurrency(), e.getProductTitles(), e.getSearchGroup(), e.getTimestampMs());
+                    if (e.getProducts() == null || e.getProducts().isEmpty()) {
+                        return List.of(purchase);
+                    }
+                    List<List<Object>> rows = new ArrayList<>(e.getProducts().size());
+                    for (Product p : e.getProducts()) {
+                        List<Object> row = new ArrayList<>(purchase);
+                        row.addAll(Arrays.asList(p.getProductId(), p.getName(), p.getPrice(), p.getAmount()));
+                        rows.add(row);
+                    }
+                    return rows;
+                }));
+        sources.put(Type.BUY_NOW_CLICKS, new Source<>(buyNowRepo::findExportKeys, buyNowRepo::findAllByIdIn,
+                BuyNowClickEvent::getId,
+                List.of("id", "shopId", "clientId", "sessionId", "productId", "price", "currency", "searchGroup",
+                        "timestampMs"),
+                e -> List.of(Arrays.asList(e.getId(), e.getShopId(), e.getClientId(), e.getSessionId(),
+                        e.getProductId(), e.getPrice(), e.getCurrency(), e.getSearchGroup(), e.getTimestampMs()))));
+    }
+
+    /** Where an export of the range starts: the cursor if it is in the range, else its first key. */
+    public static Cursor start(long fromMs, Cursor cursor) {
+        return cursor != null && cursor.timestampMs() >= fromMs ? cursor : new Cursor(fromMs, Long.MIN_VALUE);
+    }
+
+    /**
+     * The key of the first event after {@code pageSize} events from {@code start}:
+     * where that page ends and the next one starts, or empty when the page reaches
+     * the end of the range.
+     */
+    public Optional<Cursor> pageEnd(String shopId, Type type, long toMs, Cursor start, int pageSize) {
+        KeyQuery keys = sources.get(type).keys();
+        List<Object[]> next = analyticsExecutor.read(() -> keys.keys(shopId, start.timestampMs(), start.id(), toMs,
+                Long.MAX_VALUE, PageRequest.of(pageSize, 1))).join();
+        return next.isEmpty() ? Optional.empty() : Optional.of(key(next.get(0)));
+    }
+
+    /**
+     * Writes the events from {@code start} (inclusive) up to {@code end}
+     * (exclusive, or the end of the range when null), flushing after every chunk.
+     * Columnar output is one section, a block per chunk.
+     */
+    public void write(String shopId, Type type, Format format, long toMs, Cursor start, Cursor end, OutputStream out)
+            throws IOException {
+        write(shopId, type, sources.get(type), format, start, end != null ? end : new Cursor(toMs, Long.MAX_VALUE),
+                out);
+    }
+
+    private <T> void write(String shopId, Type type, Source<T> source, Format format, Cursor start, Cursor end,
+            OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (format == Format.CSV) {
+            writeCsvLine(writer, source.header());
+        } else if (format == Format.COLUMNAR) {
+            out.write(ColumnarEvents.header(type));
+        }
+        CompletableFuture<Chunk<T>> next = analyticsExecutor.read(() -> chunk(shopId, source, start, end));
+        while (next != null) {
+            Chunk<T> chunk = next.join();
+            // Read the next chunk while this one is written
+            next = chunk.next() == null ? null
+                    : analyticsExecutor.read(() -> chunk(shopId, source, chunk.next(), end));
+            if (format == Format.COLUMNAR) {
+                if (!chunk.events().isEmpty()) {
+                    out.write(ColumnarEvents.block(type, chunk.events()));
+                }
+                out.flush();
+                continue;
+            }
+            for (T event : chunk.events()) {
+                if (format == Format.CSV) {
+                    for (List<Object> row : source.csvRows().apply(event)) {
+                        writeCsvLine(writer, row);
+                    }
+                } else {
+                    writer.write(objectMapper.writeValueAsString(event));
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+        }
+        if (format == Format.COLUMNAR) {
+            out.write(ColumnarEvents.end());
+            out.flush();
+        }
+    }
+
+    /** Up to one chunk of events from {@code start}, in key order, and the key after the last when it was full. */
+    private <T> Chunk<T> chunk(String shopId, Source<T> source, Cursor start, Cursor end) {
+        List<Object[]> keys = source.keys().keys(shopId, start.timestampMs(), start.id(), end.timestampMs(),
+                end.id(), PageRequest.of(0, chunkSize));
+        if (keys.isEmpty()) {
+            return new Chunk<>(List.of(), null);
+        }
+        List<Long> ids = new ArrayList<>(keys.size());
+        for (Object[] key : keys) {
+            ids.add(((Number) key[1]).longValue());
+        }
+        // Fetch-joined collections can repeat an event, once per element
+        Map<Long, T> byId = new HashMap<>(keys.size() * 2);
+        for (T event : source.load().apply(ids)) {
+            byId.put(source.id().applyAsLong(event), event);
+        }
+        List<T> events = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            T event = byId.get(id);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        Cursor last = key(keys.get(keys.size() - 1));
+        return new Chunk<>(events, keys.size() < chunkSize ? null : new Cursor(last.timestampMs(), last.id() + 1));
+    }
+
+    private static Cursor key(Object[] row) {
+        return new Cursor(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+    }
+
+    private static void writeCsvLine(Writer writer, List<?> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = values.get(i);
+            if (value != null) {
+                writer.write(csvField(value.toString()));
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    /** RFC 4180: fields with a comma, quote or line break are quoted, quotes doubled. */
+    static String csvField(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,235 @@
+package com.talya.searchanalytics.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Field decoding shared by the event endpoints: {@code "12.90 ILS"} price/currency
+ * pairs, URL-encoded product GIDs, timestamps and loosely typed values from
+ * {@code Map<String, Object>} bodies.
+ * <p>
+ * The common cases allocate nothing beyond the returned value: prices are parsed
+ * in place (falling back to {@link Double#parseDouble} only for exponents or more
+ * than 15 significant digits), three-letter currency codes come from a shared
+ * table so every event of a currency references the same String, and product
+ * ids without a {@code %} are returned as is.
+ */
+@Slf4j
+public final class EventFieldDecoder {
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+    /** Below 2^53, so the mantissa converts to double exactly */
+    private static final long MAX_EXACT_MANTISSA = 999_999_999_999_999L;
+
+    /** Interned codes indexed by their three letters A-Z, filled on first use (racy but benign) */
+    private static final String[] CURRENCIES = new String[26 * 26 * 26];
+
+    private EventFieldDecoder() {
+    }
+
+    /**
+     * The price of a {@code "12.90"} / {@code "12.90 ILS"} string or a JSON number.
+     *
+     * @return null when absent or not a number
+     */
+    public static Double price(Object value) {
+        if (value instanceof Number n) {
+            return n.doubleValue();
+        }
+        if (!(value instanceof CharSequence s)) {
+            return null;
+        }
+        double price = parsePrice(s);
+        if (Double.isNaN(price)) {
+            log.warn("Failed to parse price: {}", s);
+            return null;
+        }
+        return price;
+    }
+
+    /**
+     * The leading number of a price string, parsed without allocating.
+     *
+     * @return NaN when it is not a number
+     */
+    public static double parsePrice(CharSequence s) {
+        int start = skipSpaces(s, 0);
+        int end = tokenEnd(s, start);
+        if (start == end) {
+            return Double.NaN;
+        }
+        int i = start;
+        boolean negative = false;
+        char first = s.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean dot = false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (mantissa > MAX_EXACT_MANTISSA / 10) {
+                    return slowParse(s, start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (dot) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                return slowParse(s, start, end);
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (fractionDigits >= POW10.length) {
+            return slowParse(s, start, end);
+        }
+        // Both operands are exact doubles, so the single division is correctly rounded
+        double value = mantissa / POW10[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * The currency code following the price in {@code "12.90 ILS"}.
+     *
+     * @return null when there is none
+     */
+    public static String currency(Object value) {
+        if (!(value instanceof CharSequence s)) {
+            return null;
+        }
+        int start = skipSpaces(s, tokenEnd(s, skipSpaces(s, 0)));
+        int end = tokenEnd(s, start);
+        return start == end ? null : currencyCode(s, start, end);
+    }
+
+    /** The shared instance of a currency code such as {@code "ILS"}. */
+    public static String currencyCode(String code) {
+        return code == null || code.isEmpty() ? code : currencyCode(code, 0, code.length());
+    }
+
+    private static String currencyCode(CharSequence s, int start, int end) {
+        if (end - start != 3) {
+            return s.subSequence(start, end).toString();
+        }
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            int letter = s.charAt(i) - 'A';
+            if (letter < 0 || letter >= 26) {
+                return s.subSequence(start, end).toString();
+            }
+            index = index * 26 + letter;
+        }
+        String code = CURRENCIES[index];
+        if (code == null) {
+            code = s.subSequence(start, end).toString().intern();
+            CURRENCIES[index] = code;
+        }
+        return code;
+    }
+
+    /**
+     * A product id as sent by the storefront, URL-decoded when it contains
+     * {@code %} escapes (e.g. {@code gid%3A%2F%2Fshopify%2FProduct%2F123}).
+     * Malformed escapes leave the id unchanged.
+     */
+    public static String productId(Object value) {
+        String id = string(value);
+        if (id == null || id.indexOf('%') < 0) {
+            return id;
+        }
+        byte[] bytes = new byte[id.length()];
+        int n = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c == '%') {
+                int hi = i + 2 < id.length() ? Character.digit(id.charAt(i + 1), 16) : -1;
+                int lo = hi >= 0 ? Character.digit(id.charAt(i + 2), 16) : -1;
+                if (lo < 0) {
+                    log.warn("Failed to decode productId: {}", id);
+                    return id;
+                }
+                bytes[n++] = (byte) (hi << 4 | lo);
+                i += 2;
+            } else if (c == '+') {
+                bytes[n++] = ' ';
+            } else if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else {
+                // Unescaped non-ASCII text is rare enough to leave to the JDK
+                try {
+                    return URLDecoder.decode(id, StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Failed to decode productId: {}", id);
+                    return id;
+                }
+            }
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Epoch milliseconds from a JSON number or numeric string.
+     *
+     * @return {@code fallback} when absent or not a whole number
+     */
+    public static long timestamp(Object value, long fallback) {
+        if (value instanceof Number n) {
+            return n.longValue();
+        }
+        if (!(value instanceof CharSequence s) || s.length() == 0 || s.length() > 18) {
+            return fallback;
+        }
+        long ms = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return fallback;
+            }
+            ms = ms * 10 + (c - '0');
+        }
+        return ms;
+    }
+
+    /** A string field of a loosely typed body; numbers and booleans are accepted as their text. */
+    public static String string(Object value) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        return value.toString();
+    }
+
+    private static double slowParse(CharSequence s, int start, int end) {
+        try {
+            return Double.parseDouble(s.subSequence(start, end).toString());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int skipSpaces(CharSequence s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int tokenEnd(CharSequence s, int i) {
+        while (i < s.length() && !Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
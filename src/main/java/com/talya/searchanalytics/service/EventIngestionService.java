@@ -0,0 +1,313 @@
+package com.talya.searchanalytics.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.web.dto.EventDTOs.*;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts storefront event requests into entities and applies the ingestion
+ * rules shared by the single-event endpoints and the batch endpoint.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EventIngestionService {
+
+    public static final String TYPE_SEARCH = "search";
+    public static final String TYPE_ADD_TO_CART = "add-to-cart";
+    public static final String TYPE_PRODUCT_CLICK = "product-click";
+    public static final String TYPE_BUY_NOW_CLICK = "buy-now-click";
+    /** Purchases come from the order webhook, never in a batch */
+    public static final String TYPE_PURCHASE = "purchase";
+
+    private final SearchEventRepository searchRepo;
+    private final AddToCartEventRepository cartRepo;
+    private final ProductClickEventRepository clickRepo;
+    private final BuyNowClickEventRepository buyNowRepo;
+    private final EventWriteBehindQueue writeQueue;
+    private final SessionSearchIndex searchIndex;
+    private final SessionProductFilters sessionFilters;
+    private final IdempotencyGuard idempotency;
+    private final ShopRateLimiter rateLimiter;
+    private final EventAuditTrail auditTrail;
+    private final ObjectMapper objectMapper;
+
+    public SearchEvent toSearchEvent(SearchEventRequest req) {
+        return SearchEvent.builder()
+                .shopId(req.getShopId())
+                .searchId(req.getSearchId())
+                .clientId(req.getClientId())
+                .sessionId(req.getSessionId())
+                .query(req.getQuery())
+                .productIds(req.getProductIds())
+                .searchGroup(req.getSearchGroup())
+                .timestampMs(req.getTimestampMs())
+                .build();
+    }
+
+    public AddToCartEvent toAddToCartEvent(AddToCartRequest req) {
+        return AddToCartEvent.builder()
+                .shopId(req.getShopId())
+                .clientId(req.getClientId())
+                .sessionId(req.getSessionId())
+                .productId(req.getProductId())
+                .searchId(req.getSearchId())
+                .searchGroup(req.getSearchGroup())
+                .timestampMs(req.getTimestampMs())
+                .price(EventFieldDecoder.price(req.getPrice()))
+                .currency(EventFieldDecoder.currency(req.getPrice()))
+                .build();
+    }
+
+    public ProductClickEvent toProductClickEvent(ProductClickRequest req) {
+        return ProductClickEvent.builder()
+                .shopId(req.getShopId())
+                .clientId(req.getClientId())
+                .sessionId(req.getSessionId())
+                .productId(req.getProductId())
+                .searchId(req.getSearchId())
+                .searchGroup(req.getSearchGroup())
+                .timestampMs(req.getTimestampMs())
+                .build();
+    }
+
+    public BuyNowClickEvent toBuyNowClickEvent(BuyNowClickRequest req) {
+        return BuyNowClickEvent.builder()
+                .shopId(req.getShopId())
+                .clientId(req.getClientId())
+                .sessionId(req.getSessionId())
+                .productId(req.getProductId())
+                .searchGroup(req.getSearchGroup())
+                .timestampMs(req.getTimestampMs())
+                .build();
+    }
+
+    /**
+     * Smart add-to-cart logic - validate product is in search results from the
+     * SAME search group of the same session.
+     */
+    public boolean isInSearchResults(String shopId, String sessionId, Integer searchGroup, String productId) {
+        if (searchIndex.contains(shopId, sessionId, searchGroup, productId)) {
+            log.debug("✅ Product {} found in search results of session {} (group {})",
+                    productId, sessionId, searchGroup);
+            return true;
+        }
+        log.debug("AddToCartEvent REJECTED: productId {} not found in search results for group {} in session {}.",
+                productId, searchGroup, sessionId);
+        return false;
+    }
+
+    /** Make an accepted search visible to add-to-cart and click validation. */
+    public void onSearchAccepted(SearchEvent e) {
+        searchIndex.recordSearch(e);
+        sessionFilters.recordSearch(e);
+    }
+
+    /**
+     * Record a batch of heterogeneous events. Each item is a JSON object with a
+     * {@code type} discriminator ({@code search}, {@code add-to-cart},
+     * {@code product-click}, {@code buy-now-click}) and the fields of the matching
+     * single-event request. Items are validated in order, and an add-to-cart may
+     * refer to a search accepted earlier in the same batch; accepted searches are
+     * only added to the shared session index once the batch commits. Searches
+     * whose search id was already ingested are rejected as duplicates, checked for
+     * the whole batch at once, and items over their shop's rate limit are rejected
+     * as {@code RATE_LIMITED}. All accepted items are persisted in one transaction
+     * with one {@code saveAll} per entity type.
+     *
+     * @param retryAfterMs per item, what {@link #acquireRateLimits} returned for it
+     */
+    @Transactional
+    public List<BatchItemResult> recordBatch(List<JsonNode> items, long[] retryAfterMs) {
+        List<BatchItemResult> results = new ArrayList<>(items.size());
+        List<SearchEvent> searches = new ArrayList<>();
+        List<AddToCartEvent> carts = new ArrayList<>();
+        List<ProductClickEvent> clicks = new ArrayList<>();
+        List<BuyNowClickEvent> buyNows = new ArrayList<>();
+        // Results of accepted items by entity instance, filled with the generated ids after saving
+        Map<Object, BatchItemResult> pending = new IdentityHashMap<>();
+        // Idempotency keys claimed by this batch, released again if the batch cannot be saved
+        List<IdempotencyGuard.Claim> claimed = new ArrayList<>();
+        // Products of the searches accepted so far, by shop, session and search group
+        Map<List<Object>, Set<String>> batchResults = new HashMap<>();
+
+        Object[] events = new Object[items.size()];
+        List<IdempotencyGuard.Claim> searchClaims = new ArrayList<>();
+        Map<Integer, Integer> claimOfItem = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonNode item = items.get(i);
+            String type = item != null && item.hasNonNull("type") ? item.get("type").asText() : null;
+            BatchItemResult result = BatchItemResult.builder().index(i).type(type).build();
+            results.add(result);
+            Object event;
+            try {
+                event = toEvent(type, item);
+            } catch (Exception e) {
+                log.warn("Batch item {} ({}) rejected: {}", i, type, e.getMessage());
+                reject(result, "INVALID_PAYLOAD");
+                continue;
+            }
+            if (event == null) {
+                reject(result, "UNKNOWN_TYPE");
+                continue;
+            }
+            if (retryAfterMs[i] > 0) {
+                reject(result, "RATE_LIMITED");
+                continue;
+            }
+            events[i] = event;
+            if (event instanceof SearchEvent) {
+                SearchEvent e = (SearchEvent) event;
+                claimOfItem.put(i, searchClaims.size());
+                searchClaims.add(new IdempotencyGuard.Claim(e.getShopId(), e.getSearchId()));
+            }
+        }
+        // One lookup and insert for every search id of the batch rather than a commit per search
+        boolean[] fresh = idempotency.claimAll(TYPE_SEARCH, searchClaims);
+
+        for (int i = 0; i < items.size(); i++) {
+            Object event = events[i];
+            if (event == null) {
+                continue;
+            }
+            BatchItemResult result = results.get(i);
+            if (event instanceof AddToCartEvent) {
+                AddToCartEvent e = (AddToCartEvent) event;
+                Set<String> earlier = batchResults.get(
+                        Arrays.asList(e.getShopId(), e.getSessionId(), e.getSearchGroup()));
+                if (!(earlier != null && earlier.contains(e.getProductId()))
+                        && !isInSearchResults(e.getShopId(), e.getSessionId(), e.getSearchGroup(), e.getProductId())) {
+                    reject(result, "NOT_IN_SEARCH_RESULTS");
+                    continue;
+                }
+            }
+            IdempotencyGuard.Claim claim = null;
+            if (event instanceof SearchEvent) {
+                int c = claimOfItem.get(i);
+                if (!fresh[c]) {
+                    reject(result, "DUPLICATE");
+                    continue;
+                }
+                claim = searchClaims.get(c);
+            }
+            Runnable release = claim == null ? null
+                    : idempotency.releaser(TYPE_SEARCH, claim.shopId(), claim.key());
+            if (writeQueue.isEnabled() && !writeQueue.offer(event, release)) {
+                if (release != null) {
+                    release.run();
+                }
+                reject(result, "INGESTION_QUEUE_FULL");
+                continue;
+            }
+            if (claim != null && claim.key() != null) {
+                claimed.add(claim);
+            }
+            auditTrail.record(event);
+
+            if (event instanceof SearchEvent) {
+                SearchEvent e = (SearchEvent) event;
+                if (e.getProductIds() != null) {
+                    batchResults.computeIfAbsent(Arrays.asList(e.getShopId(), e.getSessionId(),
+                            e.getSearchGroup()), k -> new HashSet<>()).addAll(e.getProductIds());
+                }
+                searches.add(e);
+            } else if (event instanceof AddToCartEvent) {
+                carts.add((AddToCartEvent) event);
+            } else if (event instanceof ProductClickEvent) {
+                clicks.add((ProductClickEvent) event);
+            } else {
+                buyNows.add((BuyNowClickEvent) event);
+            }
+            result.setStatus(BatchItemResult.ACCEPTED);
+            pending.put(event, result);
+        }
+
+        if (!writeQueue.isEnabled()) {
+            try {
+                searchRepo.saveAll(searches).forEach(e -> pending.get(e).setId(e.getId()));
+                cartRepo.saveAll(carts).forEach(e -> pending.get(e).setId(e.getId()));
+                clickRepo.saveAll(clicks).forEach(e -> pending.get(e).setId(e.getId()));
+                buyNowRepo.saveAll(buyNows).forEach(e -> pending.get(e).setId(e.getId()));
+            } catch (RuntimeException e) {
+                claimed.forEach(k -> idempotency.release(TYPE_SEARCH, k.shopId(), k.key()));
+                throw e;
+            }
+        }
+        publishAfterCommit(searches);
+        log.debug("Batch ingested: {} items, {} searches, {} add-to-cart, {} clicks, {} buy-now",
+                items.size(), searches.size(), carts.size(), clicks.size(), buyNows.size());
+        return results;
+    }
+
+    /**
+     * Take one permit of its shop's rate limit for every item of a known type, on
+     * the request thread, so a batch over the limit is answered before it is handed
+     * to the ingestion executor.
+     *
+     * @return per item, 0 when admitted, otherwise milliseconds until it would be
+     */
+    public long[] acquireRateLimits(List<JsonNode> items) {
+        long[] retryAfterMs = new long[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            JsonNode item = items.get(i);
+            String type = item != null && item.hasNonNull("type") ? item.get("type").asText() : null;
+            if (TYPE_SEARCH.equals(type) || TYPE_ADD_TO_CART.equals(type) || TYPE_PRODUCT_CLICK.equals(type)
+                    || TYPE_BUY_NOW_CLICK.equals(type)) {
+                retryAfterMs[i] = rateLimiter.tryAcquire(item.path("shopId").asText(null), 1);
+            }
+        }
+        return retryAfterMs;
+    }
+
+    /** Index the batch's searches once it commits, so a rolled-back batch leaves no trace in the index. */
+    private void publishAfterCommit(List<SearchEvent> searches) {
+        if (searches.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            searches.forEach(this::onSearchAccepted);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                searches.forEach(EventIngestionService.this::onSearchAccepted);
+            }
+        });
+    }
+
+    private static void reject(BatchItemResult result, String error) {
+        result.setStatus(BatchItemResult.REJECTED);
+        result.setError(error);
+    }
+
+    private Object toEvent(String type, JsonNode item) throws Exception {
+        if (TYPE_SEARCH.equals(type)) {
+            return toSearchEvent(objectMapper.treeToValue(item, SearchEventRequest.class));
+        } else if (TYPE_ADD_TO_CART.equals(type)) {
+            return toAddToCartEvent(objectMapper.treeToValue(item, AddToCartRequest.class));
+        } else if (TYPE_PRODUCT_CLICK.equals(type)) {
+            return toProductClickEvent(objectMapper.treeToValue(item, ProductClickRequest.class));
+        } else if (TYPE_BUY_NOW_CLICK.equals(type)) {
+            return toBuyNowClickEvent(objectMapper.treeToValue(item, BuyNowClickRequest.class));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,298 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-process queue between the ingestion endpoints and the database.
+ * When enabled, accepted events are only enqueued on the request thread; a small
+ * pool of writer threads drains the queue and persists each entity type with one
+ * {@code saveAll} per batch so Hibernate can group the inserts into JDBC batches.
+ * <p>
+ * With the {@link IngestionJournal} enabled, every event is journaled before it
+ * is enqueued and acknowledged in the journal once its batch commits; events left
+ * unacknowledged by a crash are persisted again on startup.
+ */
+@Service
+@Slf4j
+// Replays the journal on startup, so the id sequences must be aligned first
+@DependsOn("eventIdSequenceBootstrap")
+public class EventWriteBehindQueue {
+
+    private static final long NOT_JOURNALED = -1;
+
+    private final Map<Class<?>, JpaRepository<?, Long>> repositories = new LinkedHashMap<>();
+    private final TransactionTemplate transactionTemplate;
+    private final IngestionJournal journal;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int writerThreads;
+    private final BlockingQueue<Pending> queue;
+    private final Counter writtenCounter;
+    private final Counter failedCounter;
+    private final Counter rejectedCounter;
+    private final List<Thread> writers = new ArrayList<>();
+    private volatile boolean running;
+
+    public EventWriteBehindQueue(SearchEventRepository searchRepo,
+            AddToCartEventRepository cartRepo,
+            PurchaseEventRepository purchaseRepo,
+            ProductClickEventRepository clickRepo,
+            BuyNowClickEventRepository buyNowRepo,
+            PlatformTransactionManager transactionManager,
+            IngestionJournal journal,
+            MeterRegistry meterRegistry,
+            @Value("${ingestion.async.enabled:false}") boolean enabled,
+            @Value("${ingestion.async.queue-capacity:10000}") int queueCapacity,
+            @Value("${ingestion.async.batch-size:200}") int batchSize,
+            @Value("${ingestion.async.flush-interval-ms:500}") long flushIntervalMs,
+            @Value("${ingestion.async.writer-threads:2}") int writerThreads) {
+        repositories.put(SearchEvent.class, searchRepo);
+        repositories.put(AddToCartEvent.class, cartRepo);
+        repositories.put(PurchaseEvent.class, purchaseRepo);
+        repositories.put(ProductClickEvent.class, clickRepo);
+        repositories.put(BuyNowClickEvent.class, buyNowRepo);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.journal = journal;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+        this.writerThreads = Math.max(1, writerThreads);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+
+        meterRegistry.gauge("ingestion.queue.depth", queue, BlockingQueue::size);
+        meterRegistry.gauge("ingestion.queue.remaining", queue, BlockingQueue::remainingCapacity);
+        this.writtenCounter = meterRegistry.counter("ingestion.queue.written");
+        this.failedCounter = meterRegistry.counter("ingestion.queue.failed");
+        this.rejectedCounter = meterRegistry.counter("ingestion.queue.rejected");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Enqueue an event for background persistence.
+     *
+     * @return false when the queue is full and the event was not accepted
+     */
+    public boolean offer(Object event) {
+        return offer(event, null);
+    }
+
+    /**
+     * Enqueue an event for background persistence.
+     *
+     * @param onLost run when the event cannot be persisted and is not journaled
+     *               either, e.g. to release its idempotency key so the client may
+     *               send it again; may be null
+     * @return false when the queue is full and the event was not accepted
+     */
+    public boolean offer(Object event, Runnable onLost) {
+        if (!repositories.containsKey(event.getClass())) {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+        }
+        long seq = journal.isEnabled() ? journal.append(event) : NOT_JOURNALED;
+        if (!queue.offer(new Pending(seq, event, onLost))) {
+            if (seq != NOT_JOURNALED) {
+                // The client is told to retry, so the journaled copy must not be replayed
+                journal.ack(List.of(seq));
+            }
+            rejectedCounter.increment();
+            return false;
+        }
+        return true;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (journal.isEnabled()) {
+            replay(journal.open());
+        }
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < writerThreads; i++) {
+            Thread t = new Thread(this::drainLoop, "event-writer-" + i);
+            t.setDaemon(true);
+            t.start();
+            writers.add(t);
+        }
+        log.info("Write-behind ingestion enabled: capacity={}, batchSize={}, flushIntervalMs={}, writers={}",
+                queue.remainingCapacity(), batchSize, flushIntervalMs, writerThreads);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (Thread t : writers) {
+            t.interrupt();
+        }
+        for (Thread t : writers) {
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Flush whatever is still queued so a clean shutdown does not drop events
+        List<Pending> remaining = new ArrayList<>();
+        while (queue.drainTo(remaining, batchSize) > 0) {
+            write(remaining);
+            remaining.clear();
+        }
+    }
+
+    /** Persist the events a previous run journaled but never committed. */
+    private void replay(List<IngestionJournal.Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        log.warn("Replaying {} journaled events", entries.size());
+        List<Pending> batch = new ArrayList<>(batchSize);
+        for (IngestionJournal.Entry entry : entries) {
+            batch.add(new Pending(entry.seq(), entry.event(), null));
+            if (batch.size() == batchSize) {
+                write(batch, true);
+                batch.clear();
+            }
+        }
+        write(batch, true);
+    }
+
+    private void drainLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                Pending first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Wait up to one flush interval for the batch to fill before writing
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long waitMs = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || waitMs <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(waitMs, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            // An interrupted writer still persists the events it already took off the queue
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        write(batch, false);
+    }
+
+    /**
+     * Persist a batch with one transaction per entity type. When a type's batch
+     * fails, its events are retried one at a time so a single bad event does not
+     * cost the others. Events that still fail stay unacknowledged in the journal
+     * and are replayed on the next start, unless this already is the replay, in
+     * which case they are dropped so they cannot block the journal forever.
+     * Events that are not journaled are lost, and their {@code onLost} callback runs.
+     */
+    private void write(List<Pending> batch, boolean replay) {
+        Map<Class<?>, List<Pending>> byType = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            byType.computeIfAbsent(pending.event.getClass(), k -> new ArrayList<>()).add(pending);
+        }
+        for (Map.Entry<Class<?>, List<Pending>> entry : byType.entrySet()) {
+            List<Pending> events = entry.getValue();
+            if (save(entry.getKey(), events)) {
+                continue;
+            }
+            for (Pending pending : events) {
+                if (events.size() > 1 && save(entry.getKey(), List.of(pending))) {
+                    continue;
+                }
+                failedCounter.increment();
+                if (pending.seq == NOT_JOURNALED && pending.onLost != null) {
+                    pending.onLost.run();
+                }
+                if (replay) {
+                    log.error("Dropping journaled {} {} that cannot be persisted",
+                            entry.getKey().getSimpleName(), pending.seq);
+                    acknowledge(List.of(pending));
+                }
+            }
+        }
+    }
+
+    private boolean save(Class<?> type, List<Pending> events) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> saveAll(type, events));
+            writtenCounter.increment(events.size());
+            acknowledge(events);
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to persist batch of {} {} events: {}", events.size(),
+                    type.getSimpleName(), e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private void acknowledge(List<Pending> events) {
+        List<Long> seqs = new ArrayList<>(events.size());
+        for (Pending pending : events) {
+            if (pending.seq != NOT_JOURNALED) {
+                seqs.add(pending.seq);
+            }
+        }
+        journal.ack(seqs);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void saveAll(Class<?> type, List<Pending> events) {
+        JpaRepository<Object, Long> repo = (JpaRepository<Object, Long>) repositories.get(type);
+        List<Object> entities = new ArrayList<>(events.size());
+        for (Pending pending : events) {
+            entities.add(pending.event);
+        }
+        repo.saveAll(entities);
+    }
+
+    /** A queued event, its journal sequence number and what to do when it is lost. */
+    private record Pending(long seq, Object event, Runnable onLost) {
+    }
+}
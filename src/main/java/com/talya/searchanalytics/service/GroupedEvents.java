@@ -0,0 +1,97 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.repo.CartRow;
+import com.talya.searchanalytics.repo.ClickRow;
+import com.talya.searchanalytics.repo.PurchaseRow;
+import com.talya.searchanalytics.repo.SearchRow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A shop's events of one time range, read once and partitioned by search
+ * group, so the metrics of any number of groups and sub-ranges can be computed
+ * without going back to the database. Events held in the hot window are not
+ * read into rows: their metrics are computed on the shop's columns.
+ */
+class GroupedEvents {
+
+    private final Partition<SearchRow> searches;
+    private final Partition<CartRow> carts;
+    private final Partition<ClickRow> clicks;
+    private final Partition<ClickRow> buyNows;
+    private final Partition<PurchaseRow> purchases;
+    /** The hot window columns the events are in, or null when they were read into the partitions */
+    private final ShopColumns columns;
+    private final boolean approximateSessions;
+
+    /** @param approximateSessions count distinct sessions with sketches, see {@link PeriodAnalytics#compute} */
+    GroupedEvents(List<SearchRow> searches, List<CartRow> carts, List<ClickRow> clicks, List<ClickRow> buyNows,
+            List<PurchaseRow> purchases, boolean approximateSessions) {
+        this.searches = new Partition<>(searches, SearchRow::searchGroup, SearchRow::timestampMs);
+        this.carts = new Partition<>(carts, CartRow::searchGroup, CartRow::timestampMs);
+        this.clicks = new Partition<>(clicks, ClickRow::searchGroup, ClickRow::timestampMs);
+        this.buyNows = new Partition<>(buyNows, ClickRow::searchGroup, ClickRow::timestampMs);
+        this.purchases = new Partition<>(purchases, PurchaseRow::searchGroup, PurchaseRow::timestampMs);
+        this.columns = null;
+        this.approximateSessions = approximateSessions;
+    }
+
+    GroupedEvents(ShopColumns columns, boolean approximateSessions) {
+        this.searches = null;
+        this.carts = null;
+        this.clicks = null;
+        this.buyNows = null;
+        this.purchases = null;
+        this.columns = columns;
+        this.approximateSessions = approximateSessions;
+    }
+
+    /**
+     * {@link PeriodAnalytics#compute} over the events of a group between
+     * {@code fromMs} and {@code toMs}, both inclusive as in the repository queries.
+     *
+     * @param searchGroup the group, or null for all groups
+     * @param series      filled with the counted events, or null
+     */
+    PeriodAnalytics compute(Integer searchGroup, long fromMs, long toMs, CurrencyService currencyService,
+            Map<String, Double> conversionRatesUsed, TimeSeriesBuckets series) {
+        if (columns != null) {
+            return columns.compute(fromMs, toMs, searchGroup, currencyService, conversionRatesUsed, series,
+                    approximateSessions);
+        }
+        return PeriodAnalytics.compute(searches.slice(searchGroup, fromMs, toMs),
+                carts.slice(searchGroup, fromMs, toMs), clicks.slice(searchGroup, fromMs, toMs),
+                buyNows.slice(searchGroup, fromMs, toMs), purchases.slice(searchGroup, fromMs, toMs),
+                currencyService, conversionRatesUsed, series, approximateSessions);
+    }
+
+    private static class Partition<T> {
+        private final List<T> all;
+        private final Map<Integer, List<T>> byGroup = new HashMap<>();
+        private final Function<T, Long> timestamp;
+
+        Partition(List<T> events, Function<T, Integer> group, Function<T, Long> timestamp) {
+            this.all = events;
+            this.timestamp = timestamp;
+            for (T e : events) {
+                byGroup.computeIfAbsent(group.apply(e), k -> new ArrayList<>()).add(e);
+            }
+        }
+
+        List<T> slice(Integer searchGroup, long fromMs, long toMs) {
+            List<T> events = searchGroup == null ? all : byGroup.getOrDefault(searchGroup, List.of());
+            List<T> slice = new ArrayList<>();
+            for (T e : events) {
+                Long ts = timestamp.apply(e);
+                if (ts != null && ts >= fromMs && ts <= toMs) {
+                    slice.add(e);
+                }
+            }
+            return slice;
+        }
+    }
+}
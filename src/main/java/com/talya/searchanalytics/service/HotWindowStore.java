@@ -0,0 +1,431 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Each shop's events of the last {@code analytics.hot-window.days} days held in
+ * memory as {@link ShopColumns}, so summaries over recent ranges are computed
+ * without reading the event tables ({@code analytics.hot-window.enabled}).
+ * <p>
+ * Shops with searches in the window are loaded from the database on startup,
+ * others the first time a summary asks for them; until a shop is loaded its
+ * summaries read the database. Persisted events are added once their
+ * transaction commits, events loaded meanwhile are not added twice, and a
+ * removed event drops its shop until it is loaded again. A shop is reloaded once
+ * its columns hold a day more than the window, which drops the older events.
+ * <p>
+ * All shops together are held to an estimated {@code analytics.hot-window.max-bytes};
+ * the least recently read shops are evicted beyond that and, like a shop too big
+ * to fit at all, read from the database for a while before they are loaded again.
+ * Exported as {@code analytics.hot-window.bytes}, {@code .shops} and
+ * {@code .reads} (tagged hit or miss).
+ */
+@Service
+@Slf4j
+public class HotWindowStore {
+
+    private static final long DAY_MS = 86_400_000L;
+    /** How long an evicted shop, or one that does not fit, is read from the database before it is loaded again */
+    private static final long SPILL_MS = 10 * 60_000L;
+    /** Columns are weighed again after growing by this much, which may evict other shops */
+    private static final long REWEIGH_BYTES = 1 << 20;
+
+    private record Insert(String shopId, EventExporter.Type type, Long id, Object row) {
+    }
+
+    private final SearchEventRepository searchRepo;
+    private final AddToCartEventRepository cartRepo;
+    private final PurchaseEventRepository purchaseRepo;
+    private final ProductClickEventRepository clickRepo;
+    private final BuyNowClickEventRepository buyNowRepo;
+    private final AnalyticsExecutor analyticsExecutor;
+    private final boolean enabled;
+    private final long windowMs;
+    private final Cache<String, ShopColumns> shops;
+    /** Shops being loaded, with the events committed meanwhile */
+    private final ConcurrentMap<String, List<Insert>> loading = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> spilledUntil = new ConcurrentHashMap<>();
+    /** Bumped by every removal, so a load that overlapped one is discarded */
+    private final AtomicLong removals = new AtomicLong();
+    private final Counter hits;
+    private final Counter misses;
+    private ExecutorService loader;
+
+    public HotWindowStore(SearchEventRepository searchRepo, AddToCartEventRepository cartRepo,
+            PurchaseEventRepository purchaseRepo, ProductClickEventRepository clickRepo,
+            BuyNowClickEventRepository buyNowRepo, AnalyticsExecutor analyticsExecutor, MeterRegistry meterRegistry,
+            @Value("${analytics.hot-window.enabled:false}") boolean enabled,
+            @Value("${analytics.hot-window.days:30}") int days,
+            @Value("${analytics.hot-window.max-bytes:268435456}") long maxBytes) {
+        this.searchRepo = searchRepo;
+        this.cartRepo = cartRepo;
+        this.purchaseRepo = purchaseRepo;
+        this.clickRepo = clickRepo;
+        this.buyNowRepo = buyNowRepo;
+        this.analyticsExecutor = analyticsExecutor;
+        this.enabled = enabled;
+        this.windowMs = Math.max(1, days) * DAY_MS;
+        // Weighed in KB, as a shop's columns can outgrow an int of bytes
+        this.shops = Caffeine.newBuilder()
+                .maximumWeight(Math.max(1, maxBytes / 1024))
+                .weigher((String shopId, ShopColumns columns) -> (int) Math.min(Integer.MAX_VALUE,
+                        columns.weighedBytes / 1024))
+                .executor(Runnable::run)
+                .removalListener((String shopId, ShopColumns columns, RemovalCause cause) -> {
+                    if (cause == RemovalCause.SIZE) {
+                        spill(shopId);
+                    }
+                })
+                .build();
+        this.hits = meterRegistry.counter("analytics.hot-window.reads", "result", "hit");
+        this.misses = meterRegistry.counter("analytics.hot-window.reads", "result", "miss");
+        meterRegistry.gauge("analytics.hot-window.bytes", shops,
+                c -> c.policy().eviction().map(e -> e.weightedSize().orElse(0L) * 1024).orElse(0L));
+        meterRegistry.gauge("analytics.hot-window.shops", shops, Cache::estimatedSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Load the shops that searched within the window. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadRecentShops() {
+        if (!enabled) {
+            return;
+        }
+        long fromMs = windowStartMs();
+        for (Object[] range : searchRepo.timestampRangeByShop()) {
+            if (range[2] != null && ((Number) range[2]).longValue() >= fromMs) {
+                loadLater((String) range[0]);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (loader != null) {
+            loader.shutdownNow();
+        }
+    }
+
+    /** Start of the window: midnight UTC {@code days} days ago, so whole-day ranges fit. */
+    long windowStartMs() {
+        return Math.floorDiv(System.currentTimeMillis() - windowMs, DAY_MS) * DAY_MS;
+    }
+
+    /** Whether the shop's recent events are held in memory. */
+    public boolean isResident(String shopId) {
+        return shops.getIfPresent(shopId) != null;
+    }
+
+    /**
+     * The metrics of a group's events between {@code fromMs} and {@code toMs}
+     * (both inclusive), see {@link ShopColumns#compute}, or empty when the shop is
+     * not held or the range starts before its columns; such reads go to the
+     * database, and a shop not held is loaded in the background.
+     *
+     * @param searchGroup the group, or null for all groups
+     */
+    Optional<PeriodAnalytics> compute(String shopId, long fromMs, long toMs, Integer searchGroup,
+            CurrencyService currencyService, Map<String, Double> conversionRatesUsed, TimeSeriesBuckets series,
+            boolean approximateSessions) {
+        return columns(shopId, fromMs).map(columns -> columns.compute(fromMs, toMs, searchGroup, currencyService,
+                conversionRatesUsed, series, approximateSessions));
+    }
+
+    /**
+     * The shop's events from {@code fromMs} on, for the metrics of any groups and
+     * sub-ranges, or empty as for {@link #compute}.
+     */
+    Optional<GroupedEvents> events(String shopId, long fromMs, boolean approximateSessions) {
+        return columns(shopId, fromMs).map(columns -> new GroupedEvents(columns, approximateSessions));
+    }
+
+    /** Searches per raw query between {@code fromMs} and {@code toMs}, or empty as for {@link #compute}. */
+    public Optional<Map<String, Long>> queryCounts(String shopId, long fromMs, long toMs) {
+        return columns(shopId, fromMs).map(columns -> columns.queryCounts(fromMs, toMs));
+    }
+
+    private Optional<ShopColumns> columns(String shopId, long fromMs) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        ShopColumns columns = shops.getIfPresent(shopId);
+        if (columns == null || columns.fromMs < windowStartMs() - DAY_MS) {
+            loadLater(shopId);
+        }
+        if (columns == null || fromMs < columns.fromMs) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(columns);
+    }
+
+    private void loadLater(String shopId) {
+        Long until = spilledUntil.get(shopId);
+        long removalsBefore = removals.get();
+        if (until != null && until > System.currentTimeMillis()
+                || loading.putIfAbsent(shopId, new ArrayList<>()) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (loader == null) {
+                loader = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "hot-window-loader");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        loader.execute(() -> {
+            try {
+                load(shopId, removalsBefore);
+            } catch (RuntimeException e) {
+                log.error("Loading the hot window of shop {} failed, its summaries keep reading the database",
+                        shopId, e);
+            }
+        });
+    }
+
+    /**
+     * Reads the shop's events of the window from the database into new columns,
+     * replacing any it had.
+     *
+     * @return whether the shop is held afterwards; false when it does not fit, or
+     *         is already being loaded
+     */
+    public boolean load(String shopId) {
+        long removalsBefore = removals.get();
+        if (!enabled || loading.putIfAbsent(shopId, new ArrayList<>()) != null) {
+            return false;
+        }
+        return load(shopId, removalsBefore);
+    }
+
+    /** Loads a shop claimed in {@link #loading}; discarded if an event was removed since {@code removalsBefore}. */
+    private boolean load(String shopId, long removalsBefore) {
+        ShopColumns columns = new ShopColumns(windowStartMs());
+        boolean fits;
+        try {
+            fits = read(shopId, columns);
+        } catch (RuntimeException e) {
+            loading.remove(shopId);
+            throw e;
+        }
+        boolean[] held = new boolean[1];
+        loading.compute(shopId, (k, committed) -> {
+            if (removals.get() != removalsBefore) {
+                // May hold a removed event; the next read loads the shop again
+                shops.invalidate(shopId);
+                return null;
+            }
+            boolean added = fits;
+            try {
+                addCommitted(columns, committed);
+            } catch (IllegalArgumentException e) {
+                added = false;
+            }
+            columns.weighedBytes = columns.bytes();
+            if (added) {
+                shops.put(shopId, columns);
+                held[0] = true;
+            } else {
+                shops.invalidate(shopId);
+                spill(shopId);
+            }
+            return null;
+        });
+        shops.cleanUp();
+        held[0] = held[0] && isResident(shopId);
+        log.info("Hot window of shop {}: {} KB from {}{}", shopId, columns.weighedBytes / 1024,
+                Instant.ofEpochMilli(columns.fromMs), held[0] ? "" : ", not held");
+        return held[0];
+    }
+
+    /** Reads the window's events into the columns; false when their groups cannot be held. */
+    private boolean read(String shopId, ShopColumns columns) {
+        long fromMs = columns.fromMs;
+        CompletableFuture<List<SearchRow>> searches = analyticsExecutor
+                .read(() -> searchRepo.findAnalyticsRows(shopId, fromMs, Long.MAX_VALUE, null));
+        CompletableFuture<List<CartRow>> carts = analyticsExecutor
+                .read(() -> cartRepo.findAnalyticsRows(shopId, fromMs, Long.MAX_VALUE, null));
+        CompletableFuture<List<ClickRow>> clicks = analyticsExecutor
+                .read(() -> clickRepo.findAnalyticsRows(shopId, fromMs, Long.MAX_VALUE, null));
+        CompletableFuture<List<ClickRow>> buyNows = analyticsExecutor
+                .read(() -> buyNowRepo.findAnalyticsRows(shopId, fromMs, Long.MAX_VALUE, null));
+        CompletableFuture<List<PurchaseRow>> purchases = analyticsExecutor
+                .read(() -> purchaseRepo.findAnalyticsRows(shopId, fromMs, Long.MAX_VALUE, null));
+        try {
+            // In id order, as later events are appended
+            addAll(columns, EventExporter.Type.SEARCHES, searches.join(), SearchRow::id);
+            addAll(columns, EventExporter.Type.CARTS, carts.join(), CartRow::id);
+            addAll(columns, EventExporter.Type.CLICKS, clicks.join(), ClickRow::id);
+            addAll(columns, EventExporter.Type.BUY_NOW_CLICKS, buyNows.join(), ClickRow::id);
+            addAll(columns, EventExporter.Type.PURCHASES, purchases.join(), PurchaseRow::id);
+            return true;
+        } catch (IllegalArgumentException e) {
+            log.warn("Shop {} cannot be held in the hot window: {}", shopId, e.getMessage());
+            return false;
+        }
+    }
+
+    private static <T> void addAll(ShopColumns columns, EventExporter.Type type, List<T> rows,
+            Function<T, Long> id) {
+        List<T> sorted = new ArrayList<>(rows);
+        sorted.sort(Comparator.comparing(id, Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (T row : sorted) {
+            columns.add(type, row);
+        }
+    }
+
+    /** Adds the events committed while the columns were read, unless the read already saw them. */
+    private static void addCommitted(ShopColumns columns, List<Insert> committed) {
+        if (committed == null || committed.isEmpty()) {
+            return;
+        }
+        Map<EventExporter.Type, Set<Long>> held = new EnumMap<>(EventExporter.Type.class);
+        for (Insert insert : committed) {
+            Set<Long> ids = held.computeIfAbsent(insert.type(), type -> {
+                Set<Long> set = new HashSet<>();
+                for (long id : columns.ids(type)) {
+                    set.add(id);
+                }
+                return set;
+            });
+            if (insert.id() == null || ids.add(insert.id())) {
+                columns.add(insert.type(), insert.row());
+            }
+        }
+    }
+
+    private void spill(String shopId) {
+        spilledUntil.put(shopId, System.currentTimeMillis() + SPILL_MS);
+    }
+
+    /** Add a persisted event once its transaction commits; called by {@link RollupFeedListener}. */
+    public void inserted(Object event) {
+        Insert insert = enabled ? insert(event) : null;
+        if (insert == null || insert.shopId() == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    add(insert);
+                }
+            });
+        } else {
+            add(insert);
+        }
+    }
+
+    /** Drop the shop of a removed event once its transaction completes; called by {@link RollupFeedListener}. */
+    public void removed(Object event) {
+        // Only the shop is read: the entity's lazy collections cannot be loaded while it is being removed
+        String shopId = enabled ? shopId(event) : null;
+        if (shopId == null) {
+            return;
+        }
+        removals.incrementAndGet();
+        shops.invalidate(shopId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    removals.incrementAndGet();
+                    shops.invalidate(shopId);
+                }
+            });
+        }
+    }
+
+    private void add(Insert insert) {
+        // Atomic with the end of a load of the shop, so the event lands in exactly one set of columns
+        loading.compute(insert.shopId(), (shopId, committed) -> {
+            if (committed != null) {
+                committed.add(insert);
+            }
+            ShopColumns columns = shops.getIfPresent(shopId);
+            if (columns != null) {
+                try {
+                    columns.add(insert.type(), insert.row());
+                } catch (IllegalArgumentException e) {
+                    log.warn("Shop {} cannot be held in the hot window: {}", shopId, e.getMessage());
+                    shops.invalidate(shopId);
+                    spill(shopId);
+                    return committed;
+                }
+                long bytes = columns.bytes();
+                if (bytes > columns.weighedBytes + REWEIGH_BYTES) {
+                    columns.weighedBytes = bytes;
+                    shops.asMap().replace(shopId, columns, columns);
+                }
+            }
+            return committed;
+        });
+    }
+
+    private static String shopId(Object event) {
+        if (event instanceof SearchEvent e) {
+            return e.getShopId();
+        } else if (event instanceof AddToCartEvent e) {
+            return e.getShopId();
+        } else if (event instanceof ProductClickEvent e) {
+            return e.getShopId();
+        } else if (event instanceof BuyNowClickEvent e) {
+            return e.getShopId();
+        } else if (event instanceof PurchaseEvent e) {
+            return e.getShopId();
+        }
+        return null;
+    }
+
+    /** The analytics row of an event entity, read now as the entity may change after the insert. */
+    private static Insert insert(Object event) {
+        if (event instanceof SearchEvent e) {
+            return new Insert(e.getShopId(), EventExporter.Type.SEARCHES, e.getId(), new SearchRow(e.getId(),
+                    e.getSessionId(), e.getQuery(), e.getSearchGroup(), e.getTimestampMs(),
+                    e.getProductIds() != null ? new ArrayList<>(e.getProductIds()) : null));
+        } else if (event instanceof AddToCartEvent e) {
+            return new Insert(e.getShopId(), EventExporter.Type.CARTS, e.getId(), new CartRow(e.getId(),
+                    e.getSessionId(), e.getProductId(), e.getPrice(), e.getCurrency(), e.getSearchGroup(),
+                    e.getTimestampMs()));
+        } else if (event instanceof ProductClickEvent e) {
+            return new Insert(e.getShopId(), EventExporter.Type.CLICKS, e.getId(), new ClickRow(e.getId(),
+                    e.getSessionId(), e.getProductId(), e.getSearchGroup(), e.getTimestampMs()));
+        } else if (event instanceof BuyNowClickEvent e) {
+            return new Insert(e.getShopId(), EventExporter.Type.BUY_NOW_CLICKS, e.getId(), new ClickRow(e.getId(),
+                    e.getSessionId(), e.getProductId(), e.getSearchGroup(), e.getTimestampMs()));
+        } else if (event instanceof PurchaseEvent e) {
+            return new Insert(e.getShopId(), EventExporter.Type.PURCHASES, e.getId(), PurchaseRow.of(e));
+        }
+        return null;
+    }
+}
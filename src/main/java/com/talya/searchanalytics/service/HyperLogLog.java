@@ -0,0 +1,87 @@
+package com.talya.searchanalytics.service;
+
+/**
+ * HyperLogLog sketch of a set of session ids: a fixed {@value #REGISTERS} bytes
+ * however many sessions are added, with a relative standard error of
+ * {@link #RELATIVE_ERROR}. Sketches merge losslessly, so daily sketches can be
+ * stored once and unioned for any range of days. Small sets are counted with
+ * linear counting, which is close to exact up to a few thousand sessions.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 12;
+    public static final int REGISTERS = 1 << PRECISION;
+    public static final double RELATIVE_ERROR = 1.04 / Math.sqrt(REGISTERS);
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this.registers = new byte[REGISTERS];
+    }
+
+    /** A sketch stored with {@link #toBytes}; null or empty is an empty sketch. */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        HyperLogLog sketch = new HyperLogLog();
+        if (bytes != null && bytes.length > 0) {
+            if (bytes.length != REGISTERS) {
+                throw new IllegalArgumentException("Expected " + REGISTERS + " registers, got " + bytes.length);
+            }
+            System.arraycopy(bytes, 0, sketch.registers, 0, REGISTERS);
+        }
+        return sketch;
+    }
+
+    public byte[] toBytes() {
+        return registers.clone();
+    }
+
+    public void add(String value) {
+        if (value == null) {
+            return;
+        }
+        long hash = ProductBloomFilter.hash(value);
+        int index = (int) (hash >>> (64 - PRECISION));
+        // Position of the first set bit after the index bits; the guard bit bounds it
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /** Adds every value of {@code other}, as if they had been added here. */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        for (byte register : registers) {
+            if (register != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Estimated number of distinct values added. */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,261 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.talya.searchanalytics.model.IdempotencyKey;
+import com.talya.searchanalytics.repo.IdempotencyKeyRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rejects events whose idempotency key was already seen, so client retries and
+ * webhook redeliveries do not write duplicate rows. Keys are checked against a
+ * bounded in-memory window first and then against the {@code idempotency_keys}
+ * table, which keeps them across restarts and instances until they are pruned.
+ * <p>
+ * A key is claimed before its event is written; callers release it when the
+ * write does not happen so the client can retry. A batch's keys are claimed
+ * together with {@link #claimAll}, one lookup and one insert for all of them.
+ */
+@Service
+@Slf4j
+public class IdempotencyGuard {
+
+    public static final String HEADER = "x-idempotency-key";
+
+    /** A key to claim with {@link #claimAll}. */
+    public record Claim(String shopId, String key) {
+    }
+
+    private final IdempotencyKeyRepository repo;
+    private final TransactionTemplate requiresNew;
+    private final Cache<String, Boolean> window;
+    private final boolean enabled;
+    private final long retentionMs;
+    private final long pruneIntervalMs;
+    private final Counter memoryHits;
+    private final Counter storeHits;
+    private ScheduledExecutorService pruner;
+
+    public IdempotencyGuard(IdempotencyKeyRepository repo,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${ingestion.dedup.enabled:true}") boolean enabled,
+            @Value("${ingestion.dedup.memory-max-keys:100000}") long memoryMaxKeys,
+            @Value("${ingestion.dedup.memory-ttl-minutes:60}") long memoryTtlMinutes,
+            @Value("${ingestion.dedup.retention-hours:72}") long retentionHours,
+            @Value("${ingestion.dedup.prune-interval-minutes:30}") long pruneIntervalMinutes) {
+        this.repo = repo;
+        // Claims commit on their own so a concurrent request sees them immediately
+        this.requiresNew = new TransactionTemplate(transactionManager);
+        this.requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.enabled = enabled;
+        this.retentionMs = TimeUnit.HOURS.toMillis(retentionHours);
+        this.pruneIntervalMs = TimeUnit.MINUTES.toMillis(Math.max(1, pruneIntervalMinutes));
+        this.window = Caffeine.newBuilder()
+                .maximumSize(memoryMaxKeys)
+                .expireAfterWrite(Duration.ofMinutes(memoryTtlMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, window, "idempotencyWindow");
+        this.memoryHits = meterRegistry.counter("ingestion.dedup.hits", "layer", "memory");
+        this.storeHits = meterRegistry.counter("ingestion.dedup.hits", "layer", "store");
+    }
+
+    /**
+     * Claim an idempotency key.
+     *
+     * @param scope  kind of request the key belongs to, e.g. {@code purchase}
+     * @param shopId shop the request is for, so keys of different shops never collide
+     * @param key    client-supplied or derived key; requests without one are always accepted
+     * @return false when the key was already claimed and the request is a duplicate
+     */
+    public boolean claim(String scope, String shopId, String key) {
+        if (!enabled || key == null || key.isBlank()) {
+            return true;
+        }
+        String hash = hash(scope, shopId, key);
+        if (window.asMap().putIfAbsent(hash, Boolean.TRUE) != null) {
+            memoryHits.increment();
+            log.info("Duplicate {} for shop {} rejected (key {})", scope, shopId, key);
+            return false;
+        }
+        try {
+            boolean fresh = Boolean.TRUE.equals(requiresNew.execute(status -> {
+                if (repo.existsById(hash)) {
+                    return false;
+                }
+                repo.saveAndFlush(new IdempotencyKey(hash, System.currentTimeMillis()));
+                return true;
+            }));
+            if (!fresh) {
+                storeHits.increment();
+                log.info("Duplicate {} for shop {} rejected (key {})", scope, shopId, key);
+            }
+            return fresh;
+        } catch (DataIntegrityViolationException e) {
+            // Another instance inserted the same key between our check and insert
+            storeHits.increment();
+            return false;
+        } catch (Exception e) {
+            // The in-memory window still covers this key; do not fail ingestion over it
+            log.warn("Failed to persist idempotency key for {} of shop {}: {}", scope, shopId, e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Claim the keys of several requests of one scope, checking and inserting the
+     * persisted keys in one transaction rather than committing each key on its
+     * own as {@link #claim} does.
+     *
+     * @return per claim, false when its key was already claimed, also by an
+     *         earlier claim of the same call
+     */
+    public boolean[] claimAll(String scope, List<Claim> claims) {
+        boolean[] fresh = new boolean[claims.size()];
+        Map<String, Integer> unseen = new LinkedHashMap<>();
+        for (int i = 0; i < claims.size(); i++) {
+            Claim claim = claims.get(i);
+            fresh[i] = true;
+            if (!enabled || claim.key() == null || claim.key().isBlank()) {
+                continue;
+            }
+            String hash = hash(scope, claim.shopId(), claim.key());
+            if (window.asMap().putIfAbsent(hash, Boolean.TRUE) != null) {
+                memoryHits.increment();
+                log.info("Duplicate {} for shop {} rejected (key {})", scope, claim.shopId(), claim.key());
+                fresh[i] = false;
+            } else {
+                unseen.put(hash, i);
+            }
+        }
+        if (unseen.isEmpty()) {
+            return fresh;
+        }
+        try {
+            Set<String> stored = requiresNew.execute(status -> {
+                Set<String> found = new HashSet<>();
+                repo.findAllById(unseen.keySet()).forEach(k -> found.add(k.getKeyHash()));
+                long now = System.currentTimeMillis();
+                List<IdempotencyKey> rows = new ArrayList<>(unseen.size());
+                for (String hash : unseen.keySet()) {
+                    if (!found.contains(hash)) {
+                        rows.add(new IdempotencyKey(hash, now));
+                    }
+                }
+                repo.saveAll(rows);
+                repo.flush();
+                return found;
+            });
+            for (String hash : stored) {
+                Claim claim = claims.get(unseen.get(hash));
+                storeHits.increment();
+                log.info("Duplicate {} for shop {} rejected (key {})", scope, claim.shopId(), claim.key());
+                fresh[unseen.get(hash)] = false;
+            }
+        } catch (DataIntegrityViolationException e) {
+            // Another instance inserted one of the keys meanwhile; sort out which one key by key
+            unseen.forEach((hash, i) -> {
+                window.invalidate(hash);
+                fresh[i] = claim(scope, claims.get(i).shopId(), claims.get(i).key());
+            });
+        } catch (Exception e) {
+            // The in-memory window still covers these keys; do not fail ingestion over them
+            log.warn("Failed to persist {} idempotency keys for {}: {}", unseen.size(), scope, e.getMessage());
+        }
+        return fresh;
+    }
+
+    /** Forget a claimed key after its event could not be written. */
+    public void release(String scope, String shopId, String key) {
+        if (!enabled || key == null || key.isBlank()) {
+            return;
+        }
+        String hash = hash(scope, shopId, key);
+        window.invalidate(hash);
+        try {
+            requiresNew.executeWithoutResult(status -> repo.deleteAllByIdInBatch(List.of(hash)));
+        } catch (Exception e) {
+            log.warn("Failed to release idempotency key for {} of shop {}: {}", scope, shopId, e.getMessage());
+        }
+    }
+
+    /** A callback that releases the key, for writes that fail after the request was answered. */
+    public Runnable releaser(String scope, String shopId, String key) {
+        return () -> release(scope, shopId, key);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idempotency-pruner");
+            t.setDaemon(true);
+            return t;
+        });
+        pruner.scheduleWithFixedDelay(this::prune, pruneIntervalMs, pruneIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (pruner != null) {
+            pruner.shutdownNow();
+        }
+    }
+
+    /** Delete persisted keys older than the retention window. */
+    public int prune() {
+        try {
+            int deleted = repo.deleteOlderThan(System.currentTimeMillis() - retentionMs);
+            if (deleted > 0) {
+                log.info("Pruned {} expired idempotency keys", deleted);
+            }
+            return deleted;
+        } catch (Exception e) {
+            log.warn("Failed to prune idempotency keys: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    static String hash(String scope, String shopId, String key) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = sha256.digest((scope + '\u0000' + shopId + '\u0000' + key).getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
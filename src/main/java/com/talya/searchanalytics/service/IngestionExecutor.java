@@ -0,0 +1,70 @@
+package com.talya.searchanalytics.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded thread pool that runs the event endpoints' database work, so Tomcat
+ * threads are released while events are validated and stored and a slow database
+ * cannot starve the dashboard endpoints served by the same connector. When the
+ * pool and its queue are full, work is rejected rather than queued without limit.
+ * <p>
+ * Exported under the {@code ingestion} executor name ({@code executor.active},
+ * {@code executor.queued}, {@code executor.queue.remaining}, ...) plus the
+ * {@code ingestion.executor.rejected} counter.
+ */
+@Service
+@Slf4j
+// Shut down before the write-behind queue so in-flight requests can still enqueue
+@DependsOn("eventWriteBehindQueue")
+public class IngestionExecutor {
+
+    private final ExecutorService executor;
+    private final Counter rejectedCounter;
+
+    public IngestionExecutor(MeterRegistry meterRegistry,
+            @Value("${ingestion.executor.threads:8}") int threads,
+            @Value("${ingestion.executor.queue-capacity:1000}") int queueCapacity) {
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                r -> new Thread(r, "ingestion-" + index.getAndIncrement()),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor = ExecutorServiceMetrics.monitor(meterRegistry, pool, "ingestion", Collections.emptyList());
+        this.rejectedCounter = meterRegistry.counter("ingestion.executor.rejected");
+    }
+
+    /**
+     * Run the work on the ingestion pool.
+     *
+     * @throws RejectedExecutionException when the pool is saturated
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, executor);
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Ingestion executor did not finish in-flight requests before shutdown");
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.talya.searchanalytics.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of events acknowledged by the write-behind queue but not
+ * yet committed to the database. Records are written to memory-mapped segment
+ * files; once the writers persist an event its sequence number is acknowledged
+ * with an ack record, and the oldest segments are deleted as soon as every event
+ * in them has been acknowledged. On startup, events without an ack are returned
+ * by {@link #open()} so they can be persisted again.
+ * <p>
+ * Record layout: {@code int length | long seq | byte kind | payload | int crc32},
+ * where the length covers seq, kind and payload and the CRC protects the same
+ * bytes. A zero length (the zero-filled tail of a segment) or a CRC mismatch (a
+ * torn write) ends a segment on replay. Event payloads use {@link EventCodec}.
+ * <p>
+ * When an append is durable depends on the fsync policy: {@code per-event}
+ * forces every record before returning, {@code group} lets concurrent appenders
+ * wait for one shared force, and {@code periodic} forces every
+ * {@code fsync-interval-ms} without blocking appenders. Acks never wait for a
+ * force, but are forced too: at once with {@code per-event}, otherwise with the
+ * next force, at the latest {@code fsync-interval-ms} later. Until then a crash
+ * replays their events, which are already in the database, a second time.
+ */
+@Service
+@Slf4j
+public class IngestionJournal {
+
+    public enum FsyncPolicy { PER_EVENT, GROUP, PERIODIC }
+
+    /** An event read back from the journal that has not been acknowledged. */
+    public record Entry(long seq, Object event) {
+    }
+
+    private static final byte KIND_EVENT = 0;
+    private static final byte KIND_ACK = 1;
+    /** Length prefix and CRC trailer around each record body */
+    private static final int FRAME_BYTES = 8;
+    private static final int BODY_HEADER_BYTES = 9;
+    private static final String SUFFIX = ".seg";
+
+    private final boolean enabled;
+    private final Path dir;
+    private final int segmentBytes;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMs;
+    private final Counter appendedCounter;
+    private final Counter replayedCounter;
+    private final Timer fsyncTimer;
+
+    /** Live segments by first sequence number; guarded by this */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long nextSeq = 1;
+    private long appendedSeq;
+    private long flushedSeq;
+    private volatile boolean running;
+    private Thread flusher;
+
+    public IngestionJournal(MeterRegistry meterRegistry,
+            @Value("${ingestion.journal.enabled:false}") boolean enabled,
+            @Value("${ingestion.journal.dir:${DB_PATH:./data}/journal}") String dir,
+            @Value("${ingestion.journal.segment-bytes:16777216}") int segmentBytes,
+            @Value("${ingestion.journal.fsync:group}") String fsync,
+            @Value("${ingestion.journal.fsync-interval-ms:1000}") long fsyncIntervalMs) {
+        this.enabled = enabled;
+        this.dir = Paths.get(dir);
+        this.segmentBytes = segmentBytes;
+        this.policy = FsyncPolicy.valueOf(fsync.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        this.fsyncIntervalMs = Math.max(1, fsyncIntervalMs);
+        this.appendedCounter = meterRegistry.counter("ingestion.journal.appended");
+        this.replayedCounter = meterRegistry.counter("ingestion.journal.replayed");
+        this.fsyncTimer = meterRegistry.timer("ingestion.journal.fsync", "policy", policy.name().toLowerCase(Locale.ROOT));
+        meterRegistry.gauge("ingestion.journal.segments", this, IngestionJournal::segmentCount);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Read the existing segments, start a new active segment and return the events
+     * that were never acknowledged, in append order. Those events keep their
+     * segments alive until they are acknowledged.
+     */
+    public synchronized List<Entry> open() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList());
+        }
+        Map<Long, Entry> unacked = new LinkedHashMap<>();
+        Map<Long, Segment> owner = new HashMap<>();
+        Set<Long> acked = new HashSet<>();
+        long maxSeq = 0;
+        for (Path file : files) {
+            Segment segment = new Segment(file, firstSeqOf(file), null);
+            segment.sealed = true;
+            segments.put(segment.firstSeq, segment);
+            // An empty segment still reserves its name, so new segments must start after it
+            maxSeq = Math.max(maxSeq, segment.firstSeq);
+            maxSeq = Math.max(maxSeq, scan(file, (seq, kind, payload) -> {
+                if (kind == KIND_ACK) {
+                    int count = payload.getInt();
+                    for (int i = 0; i < count; i++) {
+                        acked.add(payload.getLong());
+                    }
+                } else {
+                    try {
+                        unacked.put(seq, new Entry(seq, EventCodec.decode(payload)));
+                        owner.put(seq, segment);
+                    } catch (RuntimeException e) {
+                        log.error("Skipping undecodable journal record {} in {}: {}", seq, file, e.getMessage());
+                    }
+                }
+            }));
+        }
+        unacked.keySet().removeAll(acked);
+        for (Long seq : unacked.keySet()) {
+            owner.get(seq).pending++;
+        }
+        nextSeq = maxSeq + 1;
+        appendedSeq = maxSeq;
+        flushedSeq = maxSeq;
+        roll(nextSeq);
+        deleteAcknowledgedSegments();
+        replayedCounter.increment(unacked.size());
+        if (!unacked.isEmpty()) {
+            log.warn("Ingestion journal has {} unacknowledged events to replay", unacked.size());
+        }
+
+        running = true;
+        if (policy != FsyncPolicy.PER_EVENT) {
+            flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        log.info("Ingestion journal opened at {}: segmentBytes={}, fsync={}", dir, segmentBytes, policy);
+        return new ArrayList<>(unacked.values());
+    }
+
+    /**
+     * Append an event and return its sequence number once the record is as durable
+     * as the fsync policy promises.
+     */
+    public long append(Object event) {
+        byte[] payload = EventCodec.encode(event);
+        long seq;
+        synchronized (this) {
+            seq = nextSeq++;
+            write(seq, KIND_EVENT, payload);
+            active.pending++;
+            appendedSeq = seq;
+            if (policy == FsyncPolicy.PER_EVENT) {
+                forceActive();
+                flushedSeq = seq;
+            } else if (policy == FsyncPolicy.GROUP) {
+                notifyAll();
+            }
+        }
+        appendedCounter.increment();
+        if (policy == FsyncPolicy.GROUP) {
+            awaitFlushed(seq);
+        }
+        return seq;
+    }
+
+    /** Record that the events with these sequence numbers were committed to the database. */
+    public synchronized void ack(Collection<Long> seqs) {
+        if (seqs.isEmpty()) {
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 * seqs.size());
+        payload.putInt(seqs.size());
+        for (long seq : seqs) {
+            payload.putLong(seq);
+            Map.Entry<Long, Segment> owner = segments.floorEntry(seq);
+            if (owner != null) {
+                owner.getValue().pending--;
+            }
+        }
+        long seq = nextSeq++;
+        write(seq, KIND_ACK, payload.array());
+        appendedSeq = seq;
+        if (policy == FsyncPolicy.PER_EVENT) {
+            forceActive();
+            flushedSeq = seq;
+        }
+        // Otherwise the flusher forces the ack within the interval, without being woken for it
+        deleteAcknowledgedSegments();
+    }
+
+    @PreDestroy
+    public void close() {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (active != null) {
+                forceActive();
+                flushedSeq = appendedSeq;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private void write(long seq, byte kind, byte[] payload) {
+        int bodyLength = BODY_HEADER_BYTES + payload.length;
+        int recordLength = bodyLength + FRAME_BYTES;
+        if (recordLength > segmentBytes) {
+            throw new IllegalArgumentException("Journal record of " + recordLength + " bytes exceeds the segment size");
+        }
+        if (active.position + recordLength > segmentBytes) {
+            roll(seq);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(bodyLength).putLong(seq).put(kind).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, bodyLength);
+        record.putInt((int) crc.getValue());
+        active.buffer.put(active.position, record.array());
+        active.position += recordLength;
+    }
+
+    /** Seal the active segment and start a new one whose first record is {@code firstSeq}. */
+    private void roll(long firstSeq) {
+        if (active != null) {
+            forceActive();
+            active.sealed = true;
+        }
+        Path file = dir.resolve(String.format("%020d%s", firstSeq, SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            active = new Segment(file, firstSeq, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create journal segment " + file, e);
+        }
+        segments.put(active.firstSeq, active);
+    }
+
+    /**
+     * Delete sealed segments from the oldest one while all their events are
+     * acknowledged. Segments are only deleted in order because a segment may hold
+     * the acks of events in the segments before it.
+     */
+    private void deleteAcknowledgedSegments() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.firstEntry().getValue();
+            if (head == active || !head.sealed || head.pending > 0) {
+                return;
+            }
+            segments.pollFirstEntry();
+            try {
+                Files.deleteIfExists(head.file);
+            } catch (IOException e) {
+                log.warn("Failed to delete journal segment {}: {}", head.file, e.getMessage());
+            }
+        }
+    }
+
+    private void awaitFlushed(long seq) {
+        synchronized (this) {
+            while (flushedSeq < seq && running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for journal fsync", e);
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        long lastForce = System.currentTimeMillis();
+        while (running) {
+            Segment segment;
+            int from;
+            int to;
+            long target;
+            synchronized (this) {
+                try {
+                    if (policy == FsyncPolicy.GROUP) {
+                        // Appends wake the flusher; acks written since the last force are picked up on the timeout
+                        while (running && flushedSeq >= appendedSeq) {
+                            wait(fsyncIntervalMs);
+                        }
+                    } else {
+                        // Wakeups before the deadline are absorbed, so the interval holds under load
+                        for (long now = System.currentTimeMillis(); running && now < lastForce + fsyncIntervalMs;
+                                now = System.currentTimeMillis()) {
+                            wait(lastForce + fsyncIntervalMs - now);
+                        }
+                        lastForce = System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (flushedSeq >= appendedSeq) {
+                    continue;
+                }
+                segment = active;
+                from = segment.flushedPosition;
+                to = segment.position;
+                target = appendedSeq;
+            }
+            // Appenders keep writing past 'to' while this range is forced
+            force(segment, from, to);
+            synchronized (this) {
+                segment.flushedPosition = Math.max(segment.flushedPosition, to);
+                flushedSeq = Math.max(flushedSeq, target);
+                notifyAll();
+            }
+        }
+    }
+
+    /** Force everything written to the active segment since its last force; caller holds the lock. */
+    private void forceActive() {
+        force(active, active.flushedPosition, active.position);
+        active.flushedPosition = active.position;
+    }
+
+    private void force(Segment segment, int from, int to) {
+        if (to > from) {
+            fsyncTimer.record(() -> segment.buffer.force(from, to - from));
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long seq, byte kind, ByteBuffer payload);
+    }
+
+    /** Visit the valid records of a segment file and return the highest sequence number seen. */
+    private static long scan(Path file, RecordVisitor visitor) throws IOException {
+        long maxSeq = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= 4) {
+                int start = buf.position();
+                int bodyLength = buf.getInt();
+                if (bodyLength < BODY_HEADER_BYTES || bodyLength + 4 > buf.remaining()) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buf.slice(start + 4, bodyLength));
+                if ((int) crc.getValue() != buf.getInt(start + 4 + bodyLength)) {
+                    log.warn("Journal segment {} ends with a torn record at offset {}", file, start);
+                    break;
+                }
+                long seq = buf.getLong();
+                byte kind = buf.get();
+                visitor.visit(seq, kind, buf.slice(buf.position(), bodyLength - BODY_HEADER_BYTES));
+                maxSeq = Math.max(maxSeq, seq);
+                buf.position(start + 4 + bodyLength + 4);
+            }
+        }
+        return maxSeq;
+    }
+
+    private static long firstSeqOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static final class Segment {
+        final Path file;
+        final long firstSeq;
+        final MappedByteBuffer buffer;
+        int position;
+        int flushedPosition;
+        /** Events in this segment that have not been acknowledged */
+        int pending;
+        boolean sealed;
+
+        Segment(Path file, long firstSeq, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.DailyRollup;
+import com.talya.searchanalytics.repo.CartRow;
+import com.talya.searchanalytics.repo.ClickRow;
+import com.talya.searchanalytics.repo.PurchaseRow;
+import com.talya.searchanalytics.repo.SearchRow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dashboard metrics of one period. Computed from the period's raw event rows by
+ * {@link #compute}, or summed from daily rollups by {@link DailyRollupService},
+ * in which case only the session counts are filled, not the session sets. When
+ * sessions are counted approximately, HyperLogLog sketches replace the sets.
+ */
+class PeriodAnalytics {
+    long searchCount = 0;
+    long validPurchasedProductCount = 0;
+    double validPurchaseRevenue = 0.0;
+    double totalPurchaseValueEur = 0.0;
+    long addToCartCount = 0;
+    double addToCartAmount = 0.0;
+    long productClicks = 0;
+    long buyNowClicks = 0;
+    String currency = "NIS";
+    Set<String> totalSearchSessions = new HashSet<>();
+    Set<String> sessionsWithPurchases = new HashSet<>();
+    Set<String> sessionsWithClicks = new HashSet<>();
+    Set<String> sessionsWithAddToCarts = new HashSet<>();
+    long searchSessionCount = 0;
+    long purchaseSessionCount = 0;
+    long clickSessionCount = 0;
+    long cartSessionCount = 0;
+    HyperLogLog searchSessionSketch;
+    HyperLogLog purchaseSessionSketch;
+    HyperLogLog clickSessionSketch;
+    HyperLogLog cartSessionSketch;
+    /** Relative standard error of the session counts, or null when they are exact */
+    Double sessionCountError;
+    long totalWordCount = 0;
+    long queryCount = 0;
+    long longQueryCount = 0; // Queries with 3+ words
+    int fallbackOrdersCount = 0;
+
+    /**
+     * Counts only events that trace back to a search: add-to-carts of products
+     * shown in a search of the same session, purchases of products added to the
+     * cart in that session, and clicks from sessions that searched.
+     *
+     * @param series filled in the same pass with the counted events, or null
+     */
+    static PeriodAnalytics compute(List<SearchRow> searchEvents, List<CartRow> cartEvents,
+            List<ClickRow> clickEvents, List<ClickRow> buyNowEvents,
+            List<PurchaseRow> purchaseEvents, CurrencyService currencyService,
+            Map<String, Double> conversionRatesUsed, TimeSeriesBuckets series) {
+        return compute(searchEvents, cartEvents, clickEvents, buyNowEvents, purchaseEvents, currencyService,
+                conversionRatesUsed, series, false);
+    }
+
+    /**
+     * {@link #compute}, counting distinct sessions with sketches instead of sets
+     * when {@code approximateSessions} is set.
+     */
+    static PeriodAnalytics compute(List<SearchRow> searchEvents, List<CartRow> cartEvents,
+            List<ClickRow> clickEvents, List<ClickRow> buyNowEvents,
+            List<PurchaseRow> purchaseEvents, CurrencyService currencyService,
+            Map<String, Double> conversionRatesUsed, TimeSeriesBuckets series, boolean approximateSessions) {
+        PeriodAnalytics analytics = new PeriodAnalytics();
+        if (approximateSessions) {
+            analytics.searchSessionSketch = new HyperLogLog();
+            analytics.purchaseSessionSketch = new HyperLogLog();
+            analytics.clickSessionSketch = new HyperLogLog();
+            analytics.cartSessionSketch = new HyperLogLog();
+            analytics.sessionCountError = HyperLogLog.RELATIVE_ERROR;
+        }
+        analytics.searchCount = searchEvents.size();
+
+        // Build session products map and calculate word counts
+        Map<String, Set<String>> sessionProducts = new HashMap<>();
+        for (SearchRow se : searchEvents) {
+            sessionProducts.computeIfAbsent(se.sessionId(), k -> new HashSet<>())
+                    .addAll(se.productIds());
+            if (se.sessionId() != null) {
+                addSession(analytics.totalSearchSessions, analytics.searchSessionSketch, se.sessionId());
+            }
+            if (series != null) {
+                series.addSearches(se.timestampMs(), 1);
+            }
+            // Calculate word count for this query
+            if (se.query() != null && !se.query().trim().isEmpty()) {
+                String[] words = se.query().trim().split("\\s+");
+                int wordCount = words.length;
+                analytics.totalWordCount += wordCount;
+                analytics.queryCount++;
+                // Track queries with 3+ words
+                if (wordCount >= 3) {
+                    analytics.longQueryCount++;
+                }
+            }
+        }
+
+        // Filter and count add-to-cart events
+        List<CartRow> validCartEvents = new ArrayList<>();
+        for (CartRow e : cartEvents) {
+            Set<String> products = sessionProducts.get(e.sessionId());
+            if (products != null && products.contains(e.productId())) {
+                validCartEvents.add(e);
+                // Track sessions with add-to-carts
+                if (e.sessionId() != null) {
+                    addSession(analytics.sessionsWithAddToCarts, analytics.cartSessionSketch, e.sessionId());
+                }
+                if (series != null) {
+                    series.addCarts(e.timestampMs(), 1, e.price() != null ? e.price() : 0d,
+                            e.currency());
+                }
+            }
+        }
+        analytics.addToCartCount = validCartEvents.size();
+        analytics.addToCartAmount = validCartEvents.stream()
+                .mapToDouble(ev -> ev.price() != null ? ev.price() : 0d).sum();
+        analytics.currency = validCartEvents.stream().map(CartRow::currency)
+                .filter(c -> c != null && !c.isEmpty()).findFirst().orElse("NIS");
+
+        // Build session cart products map
+        Map<String, Set<String>> sessionCartProducts = new HashMap<>();
+        for (CartRow e : validCartEvents) {
+            sessionCartProducts.computeIfAbsent(e.sessionId(), k -> new HashSet<>()).add(e.productId());
+        }
+
+        // Filter and calculate purchase metrics with fallback logic
+        for (PurchaseRow pe : purchaseEvents) {
+            if (pe.sessionId() != null) {
+                int validProducts = analytics.addPurchase(pe, sessionCartProducts.get(pe.sessionId()),
+                        currencyService, conversionRatesUsed);
+                if (series != null && validProducts > 0) {
+                    series.addPurchases(pe.timestampMs(), validProducts);
+                }
+                // Track sessions with purchases
+                if (validProducts > 0 && sessionProducts.containsKey(pe.sessionId())) {
+                    addSession(analytics.sessionsWithPurchases, analytics.purchaseSessionSketch, pe.sessionId());
+                }
+            }
+        }
+
+        // Filter and count click events
+        for (ClickRow e : clickEvents) {
+            Set<String> products = sessionProducts.get(e.sessionId());
+            if (products != null && isProductGid(e.productId())) {
+                analytics.productClicks++;
+                if (e.sessionId() != null) {
+                    addSession(analytics.sessionsWithClicks, analytics.clickSessionSketch, e.sessionId());
+                }
+            }
+        }
+
+        // Filter and count buy now events
+        for (ClickRow e : buyNowEvents) {
+            Set<String> products = sessionProducts.get(e.sessionId());
+            if (products != null && isProductGid(e.productId())) {
+                analytics.buyNowClicks++;
+            }
+        }
+
+        analytics.searchSessionCount = count(analytics.totalSearchSessions, analytics.searchSessionSketch);
+        analytics.purchaseSessionCount = count(analytics.sessionsWithPurchases, analytics.purchaseSessionSketch);
+        analytics.clickSessionCount = count(analytics.sessionsWithClicks, analytics.clickSessionSketch);
+        analytics.cartSessionCount = count(analytics.sessionsWithAddToCarts, analytics.cartSessionSketch);
+        return analytics;
+    }
+
+    private static void addSession(Set<String> sessions, HyperLogLog sketch, String sessionId) {
+        if (sketch != null) {
+            sketch.add(sessionId);
+        } else {
+            sessions.add(sessionId);
+        }
+    }
+
+    private static long count(Set<String> sessions, HyperLogLog sketch) {
+        return sketch != null ? sketch.estimate() : sessions.size();
+    }
+
+    /**
+     * Sums the rollup rows of days {@code fromDay..toDay} (other rows are skipped).
+     *
+     * @param sessions distinct sessions with searches, clicks, add-to-carts and purchases
+     * @param sessionCountError relative standard error of {@code sessions}, or null when exact
+     */
+    static PeriodAnalytics sum(List<DailyRollup> rows, long fromDay, long toDay, long[] sessions,
+            Double sessionCountError, CurrencyService currencyService, Map<String, Double> conversionRatesUsed) {
+        PeriodAnalytics analytics = new PeriodAnalytics();
+        String currency = null;
+        for (DailyRollup r : rows) {
+            if (r.getEpochDay() < fromDay || r.getEpochDay() > toDay) {
+                continue;
+            }
+            analytics.searchCount += r.getSearches();
+            analytics.queryCount += r.getQueries();
+            analytics.totalWordCount += r.getQueryWords();
+            analytics.longQueryCount += r.getLongQueries();
+            analytics.productClicks += r.getProductClicks();
+            analytics.buyNowClicks += r.getBuyNowClicks();
+            analytics.addToCartCount += r.getAddToCarts();
+            analytics.addToCartAmount += r.getAddToCartAmount();
+            analytics.validPurchasedProductCount += r.getPurchasedProducts();
+            analytics.validPurchaseRevenue += r.getRevenue();
+            analytics.totalPurchaseValueEur += r.getRevenueEur();
+            if (currency == null && r.getCurrency() != null && !r.getCurrency().isEmpty()) {
+                currency = r.getCurrency();
+            }
+            if (r.getPurchaseCurrency() != null) {
+                conversionRatesUsed.put(r.getPurchaseCurrency(),
+                        currencyService.getExchangeRate(r.getPurchaseCurrency()));
+            }
+        }
+        analytics.currency = currency != null ? currency : "NIS";
+        analytics.searchSessionCount = sessions[0];
+        analytics.clickSessionCount = sessions[1];
+        analytics.cartSessionCount = sessions[2];
+        analytics.purchaseSessionCount = sessions[3];
+        analytics.sessionCountError = sessionCountError;
+        return analytics;
+    }
+
+    /**
+     * Adds the products of an order that were added to the cart in its session.
+     * Revenue is price x amount per product, or the order total split evenly over
+     * its products when none of the valid ones has a price.
+     *
+     * @param cartProducts products validly added to the cart in the order's session, or null
+     * @return the number of valid products in the order
+     */
+    int addPurchase(PurchaseRow pe, Set<String> cartProducts, CurrencyService currencyService,
+            Map<String, Double> conversionRatesUsed) {
+        int validProductsInThisOrder = 0;
+        boolean hasProductPrices = false;
+
+        for (PurchaseRow.Item product : pe.products()) {
+            if (cartProducts != null && cartProducts.contains(product.productId())) {
+                validPurchasedProductCount++;
+                validProductsInThisOrder++;
+
+                if (product.price() != null) {
+                    hasProductPrices = true;
+                    double productTotal = product.price()
+                            * (product.amount() != null ? product.amount() : 1);
+                    validPurchaseRevenue += productTotal;
+                    addEur(pe.currency(), productTotal, currencyService, conversionRatesUsed);
+                }
+            }
+        }
+
+        // Fallback: use proportional amount if no product prices
+        if (validProductsInThisOrder > 0 && !hasProductPrices && pe.totalAmount() != null) {
+            fallbackOrdersCount++;
+
+            double proportionalAmount = (pe.totalAmount() * validProductsInThisOrder)
+                    / pe.products().size();
+            validPurchaseRevenue += proportionalAmount;
+            addEur(pe.currency(), proportionalAmount, currencyService, conversionRatesUsed);
+        }
+        return validProductsInThisOrder;
+    }
+
+    /** Adds an amount paid in {@code currency} to the EUR total; amounts without a currency are left out. */
+    void addEur(String currency, double amount, CurrencyService currencyService,
+            Map<String, Double> conversionRatesUsed) {
+        if (currency != null) {
+            String purchaseCurrency = currency.toUpperCase();
+            double rate = currencyService.getExchangeRate(purchaseCurrency);
+            conversionRatesUsed.put(purchaseCurrency, rate);
+            totalPurchaseValueEur += currencyService.convertToEur(amount, purchaseCurrency);
+        }
+    }
+
+    /** Longest normalized query kept for the top queries; longer ones are cut */
+    static final int MAX_QUERY_TERM_LENGTH = 200;
+
+    /**
+     * The query as counted for the top queries: trimmed, whitespace runs folded
+     * into one space, lower case and cut to {@link #MAX_QUERY_TERM_LENGTH}; null
+     * for a blank query.
+     */
+    static String normalizeQuery(String query) {
+        if (query == null || query.trim().isEmpty()) {
+            return null;
+        }
+        String term = query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return term.length() > MAX_QUERY_TERM_LENGTH ? term.substring(0, MAX_QUERY_TERM_LENGTH) : term;
+    }
+
+    static boolean isProductGid(String productId) {
+        return productId != null && productId.startsWith("gid://shopify/Product/");
+    }
+}
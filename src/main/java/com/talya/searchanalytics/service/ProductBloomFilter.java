@@ -0,0 +1,131 @@
+package com.talya.searchanalytics.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scalable Bloom filter over the product ids shown to one session. It starts
+ * small and adds a larger slice whenever the current one reaches its capacity, so
+ * short sessions stay tiny while long browsing sessions keep a bounded false
+ * positive rate. Once {@code maxBits} is reached no further slices are added and
+ * the last slice keeps absorbing products: the false positive rate then grows,
+ * but there are never false negatives.
+ */
+public class ProductBloomFilter {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final double BITS_PER_ITEM = -Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+    private static final int HASHES = (int) Math.round(BITS_PER_ITEM * Math.log(2));
+
+    private final int maxBits;
+    private final List<Slice> slices = new ArrayList<>();
+    private int searchCount;
+    private int totalBits;
+
+    public ProductBloomFilter(int initialCapacity, int maxBits) {
+        this.maxBits = maxBits;
+        addSlice(initialCapacity);
+    }
+
+    public synchronized void addAll(List<String> productIds) {
+        searchCount++;
+        if (productIds == null) {
+            return;
+        }
+        for (String productId : productIds) {
+            if (productId == null || mightContainUnlocked(productId)) {
+                continue;
+            }
+            Slice current = slices.get(slices.size() - 1);
+            if (current.count >= current.capacity && totalBits < maxBits) {
+                current = addSlice(current.capacity * 2);
+            }
+            current.add(productId);
+        }
+    }
+
+    public synchronized boolean mightContain(String productId) {
+        return productId != null && mightContainUnlocked(productId);
+    }
+
+    /** Number of searches recorded for the session, including ones without results. */
+    public synchronized int searchCount() {
+        return searchCount;
+    }
+
+    public synchronized int sizeInBytes() {
+        return totalBits / 8 + 32 * slices.size() + 64;
+    }
+
+    private boolean mightContainUnlocked(String productId) {
+        long hash = hash(productId);
+        for (Slice slice : slices) {
+            if (slice.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Slice addSlice(int capacity) {
+        int bits = (int) Math.min((long) Math.ceil(capacity * BITS_PER_ITEM), Math.max(64, maxBits - totalBits));
+        Slice slice = new Slice(capacity, bits);
+        slices.add(slice);
+        totalBits += slice.bitCount;
+        return slice;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 code units followed by a murmur3 finalizer
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Slice {
+        final int capacity;
+        final int bitCount;
+        final long[] words;
+        int count;
+
+        Slice(int capacity, int bits) {
+            this.capacity = capacity;
+            this.words = new long[(bits + 63) >>> 6];
+            this.bitCount = words.length << 6;
+        }
+
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bitCount);
+                words[bit >>> 6] |= 1L << bit;
+            }
+            count++;
+        }
+
+        void add(String productId) {
+            add(hash(productId));
+        }
+
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.talya.searchanalytics.model.SearchEvent;
+import com.talya.searchanalytics.repo.SearchEventRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+
+/**
+ * Per-session Bloom filters of the products returned by the session's searches,
+ * across all search groups. The legacy click / add-to-cart validation consults
+ * the filter first and only reads the session's searches from the database to
+ * confirm a positive hit.
+ */
+@Service
+public class SessionProductFilters {
+
+    private final SearchEventRepository searchRepo;
+    private final Cache<String, ProductBloomFilter> cache;
+    private final int initialCapacity;
+    private final int maxBitsPerSession;
+
+    public SessionProductFilters(SearchEventRepository searchRepo,
+            MeterRegistry meterRegistry,
+            @Value("${ingestion.session-filter.initial-capacity:64}") int initialCapacity,
+            @Value("${ingestion.session-filter.max-bytes-per-session:16384}") int maxBytesPerSession,
+            @Value("${ingestion.session-filter.max-bytes:33554432}") long maxBytes,
+            @Value("${ingestion.session-filter.ttl-minutes:120}") long ttlMinutes) {
+        this.searchRepo = searchRepo;
+        this.initialCapacity = initialCapacity;
+        this.maxBitsPerSession = maxBytesPerSession * 8;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, ProductBloomFilter filter) -> key.length() * 2 + filter.sizeInBytes())
+                .expireAfterAccess(Duration.ofMinutes(ttlMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "sessionProductFilters");
+    }
+
+    /**
+     * Filter for the session, built from the database when the session is not
+     * cached. A session without searches yields an empty filter.
+     */
+    public ProductBloomFilter get(String shopId, String sessionId) {
+        return cache.get(key(shopId, sessionId), k -> load(shopId, sessionId));
+    }
+
+    public void recordSearch(SearchEvent e) {
+        if (e.getSessionId() == null) {
+            return;
+        }
+        // Re-put after adding so the weigher sees the grown filter
+        cache.asMap().compute(key(e.getShopId(), e.getSessionId()), (k, filter) -> {
+            ProductBloomFilter f = filter != null ? filter : load(e.getShopId(), e.getSessionId());
+            f.addAll(e.getProductIds());
+            return f;
+        });
+    }
+
+    private ProductBloomFilter load(String shopId, String sessionId) {
+        ProductBloomFilter filter = new ProductBloomFilter(initialCapacity, maxBitsPerSession);
+        for (SearchEvent search : searchRepo.findAllByShopIdAndSessionId(shopId, sessionId)) {
+            filter.addAll(search.getProductIds());
+        }
+        return filter;
+    }
+
+    private static String key(String shopId, String sessionId) {
+        return shopId + '\u0000' + sessionId;
+    }
+}
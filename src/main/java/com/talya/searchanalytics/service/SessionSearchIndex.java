@@ -0,0 +1,102 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.talya.searchanalytics.model.SearchEvent;
+import com.talya.searchanalytics.repo.SearchEventRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory index of the products returned to each (shop, session, search group),
+ * used to validate add-to-cart events without reading every search of the session
+ * and its product collection from the database. Entries are filled as searches are
+ * ingested, warmed from the database on a miss, expire after a period of
+ * inactivity and are bounded by an estimate of their heap footprint.
+ */
+@Service
+@Slf4j
+public class SessionSearchIndex {
+
+    private final SearchEventRepository searchRepo;
+    private final Cache<Key, Set<String>> cache;
+
+    public SessionSearchIndex(SearchEventRepository searchRepo,
+            MeterRegistry meterRegistry,
+            @Value("${ingestion.search-index.max-bytes:67108864}") long maxBytes,
+            @Value("${ingestion.search-index.ttl-minutes:120}") long ttlMinutes) {
+        this.searchRepo = searchRepo;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Set<String> products) -> estimateBytes(key, products))
+                .expireAfterAccess(Duration.ofMinutes(ttlMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "sessionSearchIndex");
+        meterRegistry.gauge("session.search.index.bytes", cache,
+                c -> c.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L));
+    }
+
+    /**
+     * Whether the product was returned by any search of the session in the given
+     * search group.
+     */
+    public boolean contains(String shopId, String sessionId, Integer searchGroup, String productId) {
+        if (productId == null) {
+            return false;
+        }
+        return cache.get(new Key(shopId, sessionId, searchGroup), this::load).contains(productId);
+    }
+
+    /** Add the results of an accepted search to its session entry. */
+    public void recordSearch(SearchEvent e) {
+        if (e.getProductIds() == null || e.getProductIds().isEmpty()) {
+            return;
+        }
+        // Entries are replaced rather than mutated so the weigher sees the new size
+        cache.asMap().compute(new Key(e.getShopId(), e.getSessionId(), e.getSearchGroup()), (key, current) -> {
+            Set<String> merged = new HashSet<>(current != null ? current : load(key));
+            merged.addAll(e.getProductIds());
+            return Collections.unmodifiableSet(merged);
+        });
+    }
+
+    private Set<String> load(Key key) {
+        List<SearchEvent> searches = searchRepo.findAllByShopIdAndSessionIdAndSearchGroup(
+                key.shopId, key.sessionId, key.searchGroup);
+        Set<String> products = new HashSet<>();
+        for (SearchEvent search : searches) {
+            if (search.getProductIds() != null) {
+                products.addAll(search.getProductIds());
+            }
+        }
+        log.debug("Session search index warmed for session {} (group {}): {} searches, {} products",
+                key.sessionId, key.searchGroup, searches.size(), products.size());
+        return Collections.unmodifiableSet(products);
+    }
+
+    // Rough heap estimate: entry and set overhead plus a String object per product
+    private static int estimateBytes(Key key, Set<String> products) {
+        long bytes = 128 + stringBytes(key.shopId) + stringBytes(key.sessionId);
+        for (String p : products) {
+            bytes += 32 + stringBytes(p);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long stringBytes(String s) {
+        return s == null ? 0 : 40 + s.length();
+    }
+
+    private record Key(String shopId, String sessionId, Integer searchGroup) {
+    }
+}
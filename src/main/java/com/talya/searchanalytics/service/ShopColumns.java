@@ -0,0 +1,533 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.repo.CartRow;
+import com.talya.searchanalytics.repo.ClickRow;
+import com.talya.searchanalytics.repo.PurchaseRow;
+import com.talya.searchanalytics.repo.SearchRow;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One shop's events timestamped from {@link #fromMs} on, as primitive columns
+ * per event type: long ids and timestamps, doubles for prices, a byte per search
+ * group, and every string (sessions, products, queries, currencies) as an int
+ * code into the shop's dictionary. Rows are appended under a write lock; the
+ * period metrics are computed on the columns under a read lock, to the same
+ * results as {@link PeriodAnalytics#compute} over the repositories' rows.
+ */
+class ShopColumns {
+
+    /** Byte of a null search group; groups outside -127..127 cannot be held */
+    static final byte NO_GROUP = Byte.MIN_VALUE;
+    private static final int NO_STRING = -1;
+    private static final int NO_AMOUNT = Integer.MIN_VALUE;
+    /** Estimated heap bytes of a dictionary entry besides its characters: string, array, map entry, boxed code */
+    private static final int STRING_OVERHEAD = 120;
+
+    final long fromMs;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> codes = new HashMap<>();
+    private String[] strings = new String[64];
+    private int stringCount;
+    private long stringBytes;
+    private final Searches searches = new Searches();
+    private final Carts carts = new Carts();
+    private final Clicks clicks = new Clicks();
+    private final Clicks buyNows = new Clicks();
+    private final Purchases purchases = new Purchases();
+    /** Bytes when the store last weighed these columns */
+    volatile long weighedBytes;
+
+    ShopColumns(long fromMs) {
+        this.fromMs = fromMs;
+    }
+
+    /**
+     * Appends an analytics row of the given type; rows timestamped before
+     * {@link #fromMs}, or without a timestamp, are skipped.
+     *
+     * @throws IllegalArgumentException when the row's search group does not fit in a byte
+     */
+    void add(EventExporter.Type type, Object row) {
+        lock.writeLock().lock();
+        try {
+            switch (type) {
+                case SEARCHES -> add((SearchRow) row);
+                case CARTS -> add((CartRow) row);
+                case CLICKS -> add(clicks, (ClickRow) row);
+                case BUY_NOW_CLICKS -> add(buyNows, (ClickRow) row);
+                case PURCHASES -> add((PurchaseRow) row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean skipped(Long timestampMs) {
+        return timestampMs == null || timestampMs < fromMs;
+    }
+
+    private void add(SearchRow r) {
+        if (skipped(r.timestampMs())) {
+            return;
+        }
+        Searches c = searches;
+        int i = c.append(r.id(), r.timestampMs(), code(r.sessionId()), group(r.searchGroup()));
+        c.query[i] = code(r.query());
+        for (String productId : r.productIds()) {
+            c.addProduct(code(productId));
+        }
+        c.productEnd[i] = c.productCount;
+    }
+
+    private void add(CartRow r) {
+        if (skipped(r.timestampMs())) {
+            return;
+        }
+        Carts c = carts;
+        int i = c.append(r.id(), r.timestampMs(), code(r.sessionId()), group(r.searchGroup()));
+        c.product[i] = code(r.productId());
+        c.price[i] = r.price() != null ? r.price() : Double.NaN;
+        c.currency[i] = code(r.currency());
+    }
+
+    private void add(Clicks c, ClickRow r) {
+        if (skipped(r.timestampMs())) {
+            return;
+        }
+        int i = c.append(r.id(), r.timestampMs(), code(r.sessionId()), group(r.searchGroup()));
+        c.product[i] = code(r.productId());
+    }
+
+    private void add(PurchaseRow r) {
+        if (skipped(r.timestampMs())) {
+            return;
+        }
+        Purchases c = purchases;
+        int i = c.append(r.id(), r.timestampMs(), code(r.sessionId()), group(r.searchGroup()));
+        c.total[i] = r.totalAmount() != null ? r.totalAmount() : Double.NaN;
+        c.currency[i] = code(r.currency());
+        for (PurchaseRow.Item item : r.products()) {
+            c.addItem(code(item.productId()), item.price() != null ? item.price() : Double.NaN,
+                    item.amount() != null ? item.amount() : NO_AMOUNT);
+        }
+        c.itemEnd[i] = c.itemCount;
+    }
+
+    private int code(String value) {
+        if (value == null) {
+            return NO_STRING;
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = stringCount;
+            if (stringCount == strings.length) {
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            }
+            strings[stringCount++] = value;
+            codes.put(value, code);
+            stringBytes += STRING_OVERHEAD + 2L * value.length();
+        }
+        return code;
+    }
+
+    private String string(int code) {
+        return code == NO_STRING ? null : strings[code];
+    }
+
+    static byte group(Integer searchGroup) {
+        if (searchGroup == null) {
+            return NO_GROUP;
+        }
+        if (searchGroup <= Byte.MIN_VALUE || searchGroup > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Search group " + searchGroup + " does not fit the hot window");
+        }
+        return searchGroup.byteValue();
+    }
+
+    /** Estimated heap bytes of the columns and the dictionary. */
+    long bytes() {
+        lock.readLock().lock();
+        try {
+            return searches.bytes() + carts.bytes() + clicks.bytes() + buyNows.bytes() + purchases.bytes()
+                    + 4L * strings.length + stringBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@link PeriodAnalytics#compute} over the events of a search group between
+     * {@code fromMs} and {@code toMs}, both inclusive as in the repository
+     * queries, computed on the columns themselves: products and sessions are
+     * matched by their dictionary codes and no rows are built. Distinct sessions
+     * are counted, not collected into the analytics' session sets.
+     *
+     * @param searchGroup the group, or null for all groups
+     * @param series      filled with the counted events, or null
+     */
+    PeriodAnalytics compute(long fromMs, long toMs, Integer searchGroup, CurrencyService currencyService,
+            Map<String, Double> conversionRatesUsed, TimeSeriesBuckets series, boolean approximateSessions) {
+        lock.readLock().lock();
+        try {
+            PeriodAnalytics analytics = new PeriodAnalytics();
+            if (approximateSessions) {
+                analytics.searchSessionSketch = new HyperLogLog();
+                analytics.purchaseSessionSketch = new HyperLogLog();
+                analytics.clickSessionSketch = new HyperLogLog();
+                analytics.cartSessionSketch = new HyperLogLog();
+                analytics.sessionCountError = HyperLogLog.RELATIVE_ERROR;
+            }
+            // Sessions by code + 1, so a search without a session still lets its session's events count
+            BitSet searched = new BitSet();
+            BitSet searchSessions = new BitSet();
+            BitSet cartSessions = new BitSet();
+            BitSet purchaseSessions = new BitSet();
+            BitSet clickSessions = new BitSet();
+
+            // (session, product) pairs shown in the searches, sorted for lookup
+            Searches s = searches;
+            long[] shown = new long[16];
+            int shownCount = 0;
+            // Words per query code plus one, zero until the query is first seen
+            int[] queryWords = new int[stringCount];
+            for (int i = 0; i < s.size; i++) {
+                if (!s.matches(i, fromMs, toMs, searchGroup)) {
+                    continue;
+                }
+                analytics.searchCount++;
+                int session = s.session[i];
+                searched.set(session + 1);
+                for (int p = i == 0 ? 0 : s.productEnd[i - 1]; p < s.productEnd[i]; p++) {
+                    if (shownCount == shown.length) {
+                        shown = Arrays.copyOf(shown, shownCount * 2);
+                    }
+                    shown[shownCount++] = pair(session, s.products[p]);
+                }
+                if (session != NO_STRING) {
+                    addSession(searchSessions, analytics.searchSessionSketch, session);
+                }
+                if (series != null) {
+                    series.addSearches(s.ts[i], 1);
+                }
+                int query = s.query[i];
+                if (query != NO_STRING) {
+                    if (queryWords[query] == 0) {
+                        String trimmed = strings[query].trim();
+                        queryWords[query] = trimmed.isEmpty() ? 1 : trimmed.split("\\s+").length + 1;
+                    }
+                    int wordCount = queryWords[query] - 1;
+                    if (wordCount > 0) {
+                        analytics.totalWordCount += wordCount;
+                        analytics.queryCount++;
+                        if (wordCount >= 3) {
+                            analytics.longQueryCount++;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(shown, 0, shownCount);
+
+            Carts c = carts;
+            long[] carted = new long[16];
+            int cartedCount = 0;
+            String currency = null;
+            for (int i = 0; i < c.size; i++) {
+                if (!c.matches(i, fromMs, toMs, searchGroup)) {
+                    continue;
+                }
+                long cart = pair(c.session[i], c.product[i]);
+                if (Arrays.binarySearch(shown, 0, shownCount, cart) < 0) {
+                    continue;
+                }
+                if (cartedCount == carted.length) {
+                    carted = Arrays.copyOf(carted, cartedCount * 2);
+                }
+                carted[cartedCount++] = cart;
+                analytics.addToCartCount++;
+                double price = Double.isNaN(c.price[i]) ? 0d : c.price[i];
+                analytics.addToCartAmount += price;
+                if (currency == null && c.currency[i] != NO_STRING && !strings[c.currency[i]].isEmpty()) {
+                    currency = strings[c.currency[i]];
+                }
+                if (c.session[i] != NO_STRING) {
+                    addSession(cartSessions, analytics.cartSessionSketch, c.session[i]);
+                }
+                if (series != null) {
+                    series.addCarts(c.ts[i], 1, price, string(c.currency[i]));
+                }
+            }
+            analytics.currency = currency != null ? currency : "NIS";
+            Arrays.sort(carted, 0, cartedCount);
+
+            Purchases p = purchases;
+            for (int i = 0; i < p.size; i++) {
+                int session = p.session[i];
+                if (session == NO_STRING || !p.matches(i, fromMs, toMs, searchGroup)) {
+                    continue;
+                }
+                int validProducts = addPurchase(analytics, i, carted, cartedCount, currencyService,
+                        conversionRatesUsed);
+                if (series != null && validProducts > 0) {
+                    series.addPurchases(p.ts[i], validProducts);
+                }
+                if (validProducts > 0 && searched.get(session + 1)) {
+                    addSession(purchaseSessions, analytics.purchaseSessionSketch, session);
+                }
+            }
+
+            Clicks k = clicks;
+            for (int i = 0; i < k.size; i++) {
+                if (k.matches(i, fromMs, toMs, searchGroup) && searched.get(k.session[i] + 1)
+                        && PeriodAnalytics.isProductGid(string(k.product[i]))) {
+                    analytics.productClicks++;
+                    if (k.session[i] != NO_STRING) {
+                        addSession(clickSessions, analytics.clickSessionSketch, k.session[i]);
+                    }
+                }
+            }
+            Clicks b = buyNows;
+            for (int i = 0; i < b.size; i++) {
+                if (b.matches(i, fromMs, toMs, searchGroup) && searched.get(b.session[i] + 1)
+                        && PeriodAnalytics.isProductGid(string(b.product[i]))) {
+                    analytics.buyNowClicks++;
+                }
+            }
+
+            analytics.searchSessionCount = count(searchSessions, analytics.searchSessionSketch);
+            analytics.purchaseSessionCount = count(purchaseSessions, analytics.purchaseSessionSketch);
+            analytics.clickSessionCount = count(clickSessions, analytics.clickSessionSketch);
+            analytics.cartSessionCount = count(cartSessions, analytics.cartSessionSketch);
+            return analytics;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@link PeriodAnalytics#addPurchase} for the purchase at {@code i}, with the
+     * session's valid add-to-carts given as sorted (session, product) pairs.
+     */
+    private int addPurchase(PeriodAnalytics analytics, int i, long[] carted, int cartedCount,
+            CurrencyService currencyService, Map<String, Double> conversionRatesUsed) {
+        Purchases p = purchases;
+        String currency = string(p.currency[i]);
+        int first = i == 0 ? 0 : p.itemEnd[i - 1];
+        int validProducts = 0;
+        boolean hasProductPrices = false;
+        for (int k = first; k < p.itemEnd[i]; k++) {
+            if (Arrays.binarySearch(carted, 0, cartedCount, pair(p.session[i], p.itemProduct[k])) < 0) {
+                continue;
+            }
+            analytics.validPurchasedProductCount++;
+            validProducts++;
+            if (!Double.isNaN(p.itemPrice[k])) {
+                hasProductPrices = true;
+                double productTotal = p.itemPrice[k] * (p.itemAmount[k] != NO_AMOUNT ? p.itemAmount[k] : 1);
+                analytics.validPurchaseRevenue += productTotal;
+                analytics.addEur(currency, productTotal, currencyService, conversionRatesUsed);
+            }
+        }
+        if (validProducts > 0 && !hasProductPrices && !Double.isNaN(p.total[i])) {
+            analytics.fallbackOrdersCount++;
+            double proportionalAmount = (p.total[i] * validProducts) / (p.itemEnd[i] - first);
+            analytics.validPurchaseRevenue += proportionalAmount;
+            analytics.addEur(currency, proportionalAmount, currencyService, conversionRatesUsed);
+        }
+        return validProducts;
+    }
+
+    private static long pair(int session, int product) {
+        return ((long) session << 32) | (product & 0xffffffffL);
+    }
+
+    private void addSession(BitSet sessions, HyperLogLog sketch, int session) {
+        if (sketch != null) {
+            sketch.add(strings[session]);
+        } else {
+            sessions.set(session);
+        }
+    }
+
+    private static long count(BitSet sessions, HyperLogLog sketch) {
+        return sketch != null ? sketch.estimate() : sessions.cardinality();
+    }
+
+    /** Searches per raw query between {@code fromMs} and {@code toMs}, over all groups; null queries are left out. */
+    Map<String, Long> queryCounts(long fromMs, long toMs) {
+        lock.readLock().lock();
+        try {
+            // Counted per dictionary code, so only distinct queries are looked up
+            int[] counts = new int[stringCount];
+            Searches s = searches;
+            for (int i = 0; i < s.size; i++) {
+                if (s.ts[i] >= fromMs && s.ts[i] <= toMs && s.query[i] != NO_STRING) {
+                    counts[s.query[i]]++;
+                }
+            }
+            Map<String, Long> queries = new HashMap<>();
+            for (int code = 0; code < counts.length; code++) {
+                if (counts[code] > 0) {
+                    queries.put(strings[code], (long) counts[code]);
+                }
+            }
+            return queries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Ids of the rows of a type, to tell which events the columns already hold. */
+    long[] ids(EventExporter.Type type) {
+        lock.readLock().lock();
+        try {
+            Columns c = switch (type) {
+                case SEARCHES -> searches;
+                case CARTS -> carts;
+                case CLICKS -> clicks;
+                case BUY_NOW_CLICKS -> buyNows;
+                case PURCHASES -> purchases;
+            };
+            return Arrays.copyOf(c.id, c.size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Columns every event type has; subclasses grow their own columns with these. */
+    private static class Columns {
+        int size;
+        long[] id = new long[0];
+        long[] ts = new long[0];
+        int[] session = new int[0];
+        byte[] group = new byte[0];
+
+        int append(long id, long timestampMs, int session, byte group) {
+            if (size == this.id.length) {
+                resize(Math.max(16, size * 2));
+            }
+            this.id[size] = id;
+            this.ts[size] = timestampMs;
+            this.session[size] = session;
+            this.group[size] = group;
+            return size++;
+        }
+
+        void resize(int capacity) {
+            id = Arrays.copyOf(id, capacity);
+            ts = Arrays.copyOf(ts, capacity);
+            session = Arrays.copyOf(session, capacity);
+            group = Arrays.copyOf(group, capacity);
+        }
+
+        boolean matches(int i, long fromMs, long toMs, Integer searchGroup) {
+            return ts[i] >= fromMs && ts[i] <= toMs
+                    && (searchGroup == null || (group[i] != NO_GROUP && group[i] == searchGroup));
+        }
+
+        long bytes() {
+            return (8L + 8 + 4 + 1) * id.length;
+        }
+    }
+
+    private static class Searches extends Columns {
+        int[] query = new int[0];
+        /** End of each search's product codes in {@link #products} */
+        int[] productEnd = new int[0];
+        int[] products = new int[0];
+        int productCount;
+
+        @Override
+        void resize(int capacity) {
+            super.resize(capacity);
+            query = Arrays.copyOf(query, capacity);
+            productEnd = Arrays.copyOf(productEnd, capacity);
+        }
+
+        void addProduct(int code) {
+            if (productCount == products.length) {
+                products = Arrays.copyOf(products, Math.max(64, productCount * 2));
+            }
+            products[productCount++] = code;
+        }
+
+        @Override
+        long bytes() {
+            return super.bytes() + (4L + 4) * query.length + 4L * products.length;
+        }
+    }
+
+    private static class Clicks extends Columns {
+        int[] product = new int[0];
+
+        @Override
+        void resize(int capacity) {
+            super.resize(capacity);
+            product = Arrays.copyOf(product, capacity);
+        }
+
+        @Override
+        long bytes() {
+            return super.bytes() + 4L * product.length;
+        }
+    }
+
+    private static class Carts extends Clicks {
+        double[] price = new double[0];
+        int[] currency = new int[0];
+
+        @Override
+        void resize(int capacity) {
+            super.resize(capacity);
+            price = Arrays.copyOf(price, capacity);
+            currency = Arrays.copyOf(currency, capacity);
+        }
+
+        @Override
+        long bytes() {
+            return super.bytes() + (8L + 4) * price.length;
+        }
+    }
+
+    private static class Purchases extends Columns {
+        double[] total = new double[0];
+        int[] currency = new int[0];
+        /** End of each purchase's products in the item columns */
+        int[] itemEnd = new int[0];
+        int[] itemProduct = new int[0];
+        double[] itemPrice = new double[0];
+        int[] itemAmount = new int[0];
+        int itemCount;
+
+        @Override
+        void resize(int capacity) {
+            super.resize(capacity);
+            total = Arrays.copyOf(total, capacity);
+            currency = Arrays.copyOf(currency, capacity);
+            itemEnd = Arrays.copyOf(itemEnd, capacity);
+        }
+
+        void addItem(int product, double price, int amount) {
+            if (itemCount == itemProduct.length) {
+                int capacity = Math.max(16, itemCount * 2);
+                itemProduct = Arrays.copyOf(itemProduct, capacity);
+                itemPrice = Arrays.copyOf(itemPrice, capacity);
+                itemAmount = Arrays.copyOf(itemAmount, capacity);
+            }
+            itemProduct[itemCount] = product;
+            itemPrice[itemCount] = price;
+            itemAmount[itemCount] = amount;
+            itemCount++;
+        }
+
+        @Override
+        long bytes() {
+            return super.bytes() + (8L + 4 + 4) * total.length + (4L + 8 + 4) * itemProduct.length;
+        }
+    }
+}
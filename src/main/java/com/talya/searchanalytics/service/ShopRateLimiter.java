@@ -0,0 +1,149 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-shop token buckets for the ingestion endpoints, so a burst from one shop
+ * (or a bot posting with its shopId) is shed before it reaches the database
+ * instead of slowing down ingestion for every other shop.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the bucket's theoretical
+ * arrival time (the generic cell rate algorithm, equivalent to a token bucket):
+ * a request is admitted when advancing that time by its cost stays within the
+ * burst allowance of now, and the advance is published with one CAS, so the
+ * hot path takes no locks.
+ */
+@Service
+@Slf4j
+public class ShopRateLimiter {
+
+    private final boolean enabled;
+    private final Limit defaultLimit;
+    private final Map<String, Limit> overrides;
+    private final Cache<String, Bucket> buckets;
+    private final Counter shedCounter;
+
+    /**
+     * @param overrides comma-separated {@code shopId=ratePerSecond:burst} entries
+     */
+    public ShopRateLimiter(MeterRegistry meterRegistry,
+            @Value("${ingestion.rate-limit.enabled:true}") boolean enabled,
+            @Value("${ingestion.rate-limit.rate-per-second:100}") double ratePerSecond,
+            @Value("${ingestion.rate-limit.burst:200}") int burst,
+            @Value("${ingestion.rate-limit.overrides:}") String overrides,
+            @Value("${ingestion.rate-limit.max-shops:100000}") long maxShops) {
+        this.enabled = enabled;
+        this.defaultLimit = new Limit(ratePerSecond, burst);
+        this.overrides = parseOverrides(overrides);
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(maxShops)
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build();
+        this.shedCounter = meterRegistry.counter("ingestion.rate-limit.shed");
+        meterRegistry.gauge("ingestion.rate-limit.shops", buckets, Cache::estimatedSize);
+    }
+
+    /**
+     * Take {@code permits} tokens from the shop's bucket.
+     *
+     * @return 0 when admitted, otherwise how many milliseconds to wait before the
+     *         request would be admitted
+     */
+    public long tryAcquire(String shopId, int permits) {
+        if (!enabled) {
+            return 0;
+        }
+        String key = shopId != null ? shopId : "";
+        Bucket bucket = buckets.get(key, k -> new Bucket(overrides.getOrDefault(k, defaultLimit)));
+        long waitNanos = bucket.tryAcquire(System.nanoTime(), permits);
+        if (waitNanos == 0) {
+            return 0;
+        }
+        bucket.shed.increment();
+        shedCounter.increment();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    /** Shops that had requests shed since their bucket was created, most shed first. */
+    public Map<String, Long> shedByShop(int limit) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        buckets.asMap().entrySet().stream()
+                .filter(e -> e.getValue().shed.sum() > 0)
+                .sorted((a, b) -> Long.compare(b.getValue().shed.sum(), a.getValue().shed.sum()))
+                .limit(limit)
+                .forEach(e -> result.put(e.getKey(), e.getValue().shed.sum()));
+        return result;
+    }
+
+    private static Map<String, Limit> parseOverrides(String spec) {
+        Map<String, Limit> limits = new HashMap<>();
+        if (spec == null || spec.isBlank()) {
+            return limits;
+        }
+        for (String entry : spec.split(",")) {
+            String[] shopAndLimit = entry.trim().split("=", 2);
+            String[] rateAndBurst = shopAndLimit.length == 2 ? shopAndLimit[1].split(":", 2) : new String[0];
+            if (rateAndBurst.length != 2) {
+                throw new IllegalArgumentException("Invalid rate limit override '" + entry
+                        + "', expected shopId=ratePerSecond:burst");
+            }
+            limits.put(shopAndLimit[0].trim(),
+                    new Limit(Double.parseDouble(rateAndBurst[0].trim()), Integer.parseInt(rateAndBurst[1].trim())));
+        }
+        log.info("Ingestion rate limit overrides: {}", limits.keySet());
+        return limits;
+    }
+
+    private record Limit(double ratePerSecond, int burst) {
+    }
+
+    static final class Bucket {
+        /** Nanoseconds one token takes to refill */
+        private final long emissionIntervalNanos;
+        /** How far ahead of now the arrival time may run, i.e. the burst size */
+        private final long toleranceNanos;
+        private final AtomicLong theoreticalArrival;
+        final LongAdder shed = new LongAdder();
+
+        private Bucket(Limit limit) {
+            this(limit.ratePerSecond, limit.burst, System.nanoTime());
+        }
+
+        Bucket(double ratePerSecond, int burst, long nowNanos) {
+            this.emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+            this.toleranceNanos = emissionIntervalNanos * Math.max(1, burst);
+            this.theoreticalArrival = new AtomicLong(nowNanos);
+        }
+
+        /** @return 0 when admitted, otherwise the nanoseconds until it would be */
+        long tryAcquire(long nowNanos, int permits) {
+            long cost = emissionIntervalNanos * permits;
+            while (true) {
+                long current = theoreticalArrival.get();
+                // nanoTime values are only compared by difference, as they may wrap
+                long next = (current - nowNanos > 0 ? current : nowNanos) + cost;
+                long excess = next - nowNanos - toleranceNanos;
+                if (excess > 0) {
+                    return excess;
+                }
+                if (theoreticalArrival.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.talya.searchanalytics.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.Product;
+import com.talya.searchanalytics.model.PurchaseEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoder for the order payload posted by the Shopify purchase
+ * webhook. The body is read token by token straight into a {@link PurchaseEvent}
+ * and its {@link Product} line items, without binding it to an intermediate map.
+ * Unknown fields (including nested objects) are skipped.
+ */
+@Component
+@Slf4j
+public class ShopifyOrderDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    public ShopifyOrderDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    public PurchaseEvent decode(InputStream body) throws IOException {
+        try (JsonParser p = jsonFactory.createParser(body)) {
+            return decode(p);
+        }
+    }
+
+    PurchaseEvent decode(JsonParser p) throws IOException {
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Order payload must be a JSON object");
+        }
+        PurchaseEvent.PurchaseEventBuilder purchase = PurchaseEvent.builder();
+        List<Product> products = new ArrayList<>();
+        double totalAmount = 0.0;
+        Long timestampMs = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "shopId":
+                    purchase.shopId(text(p));
+                    break;
+                case "searchai_user_id":
+                    purchase.clientId(text(p));
+                    break;
+                case "searchai_session_id":
+                    purchase.sessionId(text(p));
+                    break;
+                case "searchai_search_group":
+                    purchase.searchGroup(searchGroup(p));
+                    break;
+                case "order_id":
+                case "id":
+                    purchase.orderId(text(p));
+                    break;
+                case "currency":
+                    purchase.currency(EventFieldDecoder.currencyCode(text(p)));
+                    break;
+                case "financial_status":
+                    purchase.orderStatus(text(p));
+                    break;
+                case "time":
+                    if (value.isNumeric()) {
+                        timestampMs = p.getLongValue();
+                    }
+                    break;
+                case "products":
+                    if (value == JsonToken.START_ARRAY) {
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            Product product = lineItem(p);
+                            products.add(product);
+                            totalAmount += product.getPrice() * product.getAmount();
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+
+        return purchase
+                .products(products)
+                .totalAmount(totalAmount)
+                .timestampMs(timestampMs != null ? timestampMs : System.currentTimeMillis())
+                .build();
+    }
+
+    private Product lineItem(JsonParser p) throws IOException {
+        Product product = new Product();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "product_id":
+                    // Numeric ids keep their literal digits, as String.valueOf(Long) would
+                    product.setProductId(value == JsonToken.VALUE_NULL ? null : p.getText());
+                    break;
+                case "name":
+                    product.setName(text(p));
+                    break;
+                case "price":
+                    product.setPrice(value.isNumeric() ? p.getDoubleValue() : Double.parseDouble(p.getText().trim()));
+                    break;
+                case "amount":
+                    product.setAmount(value.isNumeric() ? p.getIntValue() : Integer.parseInt(p.getText().trim()));
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        if (product.getPrice() == null || product.getAmount() == null) {
+            throw new IllegalArgumentException("Line item " + product.getProductId() + " is missing price or amount");
+        }
+        return product;
+    }
+
+    private Integer searchGroup(JsonParser p) throws IOException {
+        JsonToken t = p.currentToken();
+        if (t.isNumeric()) {
+            return p.getIntValue();
+        }
+        if (t == JsonToken.VALUE_STRING) {
+            try {
+                return Integer.parseInt(p.getText());
+            } catch (NumberFormatException e) {
+                log.warn("Failed to parse searchai_search_group: {}", p.getText());
+            }
+        }
+        return null;
+    }
+
+    private static String text(JsonParser p) throws IOException {
+        JsonToken t = p.currentToken();
+        if (t == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (t.isStructStart()) {
+            p.skipChildren();
+            return null;
+        }
+        return p.getText();
+    }
+}
@@ -0,0 +1,211 @@
+package com.talya.searchanalytics.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving summary of the most frequent terms: at most {@code capacity}
+ * counters however many distinct terms are added. A new term takes over the
+ * smallest counter once all are used, inheriting its count as error, so each
+ * count is over-estimated by at most its own error and any term more frequent
+ * than total / capacity is kept. Summaries merge, so daily ones can be stored and
+ * combined for any range of days.
+ */
+public class SpaceSaving {
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<>();
+    /** Min-heap of the counters by count, each knowing its position */
+    private final Counter[] heap;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.heap = new Counter[capacity];
+    }
+
+    public record Term(String term, long count, long error) {
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void add(String term) {
+        add(term, 1, 0);
+    }
+
+    /** Adds {@code weight} occurrences of a term, of which up to {@code error} may be over-counted. */
+    public void add(String term, long weight, long error) {
+        Counter counter = counters.get(term);
+        if (counter == null && size < capacity) {
+            counter = new Counter(term, size);
+            counter.count = weight;
+            counter.error = error;
+            heap[size++] = counter;
+            counters.put(term, counter);
+            siftUp(counter.index);
+            return;
+        }
+        if (counter == null) {
+            // Replace the least frequent term, which may have been this one all along
+            counter = heap[0];
+            counters.remove(counter.term);
+            counter.term = term;
+            counter.error = counter.count;
+            counters.put(term, counter);
+        }
+        counter.count += weight;
+        counter.error += error;
+        siftDown(counter.index);
+    }
+
+    /**
+     * Adds every term of {@code other}. A term missing from a full summary may
+     * have been evicted from it, so it is counted with that summary's minimum.
+     */
+    public void merge(SpaceSaving other) {
+        long missingHere = size == capacity ? heap[0].count : 0;
+        long missingThere = other.size == other.capacity ? other.heap[0].count : 0;
+        Map<String, long[]> merged = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Counter c = heap[i];
+            merged.put(c.term, new long[] { c.count + missingThere, c.error + missingThere });
+        }
+        for (int i = 0; i < other.size; i++) {
+            Counter c = other.heap[i];
+            long[] entry = merged.get(c.term);
+            if (entry != null) {
+                entry[0] += c.count - missingThere;
+                entry[1] += c.error - missingThere;
+            } else {
+                merged.put(c.term, new long[] { c.count + missingHere, c.error + missingHere });
+            }
+        }
+        counters.clear();
+        size = 0;
+        merged.entrySet().stream()
+                .sorted(Map.Entry.<String, long[]>comparingByValue(Comparator.comparingLong(v -> -v[0]))
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(capacity)
+                .forEach(e -> {
+                    Counter counter = new Counter(e.getKey(), size);
+                    counter.count = e.getValue()[0];
+                    counter.error = e.getValue()[1];
+                    heap[size++] = counter;
+                    counters.put(counter.term, counter);
+                });
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /** Most times a term missing from a full summary may have been added. */
+    public long error() {
+        return size == capacity ? heap[0].count : 0;
+    }
+
+    /** The {@code limit} most frequent terms, most frequent first, ties by term. */
+    public List<Term> top(int limit) {
+        List<Term> terms = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            terms.add(new Term(heap[i].term, heap[i].count, heap[i].error));
+        }
+        terms.sort(Comparator.comparingLong(Term::count).reversed().thenComparing(Term::term));
+        return terms.size() > limit ? new ArrayList<>(terms.subList(0, limit)) : terms;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(capacity);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeUTF(heap[i].term);
+                out.writeLong(heap[i].count);
+                out.writeLong(heap[i].error);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** A summary stored with {@link #toBytes}, with its own capacity. */
+    public static SpaceSaving fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            SpaceSaving summary = new SpaceSaving(in.readInt());
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                summary.add(in.readUTF(), in.readLong(), in.readLong());
+            }
+            return summary;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt Space-Saving summary", e);
+        }
+    }
+
+    private void siftUp(int index) {
+        Counter counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].index = index;
+            index = parent;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (heap[child].count >= counter.count) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private static final class Counter {
+        String term;
+        long count;
+        long error;
+        int index;
+
+        Counter(String term, int index) {
+            this.term = term;
+            this.index = index;
+        }
+    }
+}
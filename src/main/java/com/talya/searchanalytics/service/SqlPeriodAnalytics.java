@@ -0,0 +1,226 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.SearchProductStorage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Computes {@link PeriodAnalytics} in the database ({@code analytics.summary.source=sql}):
+ * the search, cart, purchase and click funnel is joined with derived tables and
+ * {@code IN} semi-joins, so only per-query, per-bucket and per-currency
+ * aggregates are read instead of every event of the period. Gives the same
+ * numbers as {@link PeriodAnalytics#compute} over the period's rows.
+ * <p>
+ * Search result product ids are joined from {@code search_result_products},
+ * so this engine needs table storage ({@code search-events.product-ids.storage=table}).
+ * A period with searches whose ids are still packed, written before a switch to
+ * table storage and not migrated yet, is left to the row calculation. The SQL is
+ * plain enough for H2 and PostgreSQL; it avoids CTEs, as H2 2.1 drops bind
+ * parameters in a CTE that reads another one.
+ */
+@Service
+public class SqlPeriodAnalytics {
+
+    private static final long HOUR_MS = 3_600_000L;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private final NamedParameterJdbcTemplate jdbc;
+    private final boolean enabled;
+
+    public SqlPeriodAnalytics(NamedParameterJdbcTemplate jdbc, SearchProductStorage storage,
+            @Value("${analytics.summary.source:events}") String source) {
+        this.jdbc = jdbc;
+        this.enabled = "sql".equalsIgnoreCase(source.trim());
+        if (enabled && storage.mode() != SearchProductStorage.Mode.TABLE) {
+            throw new IllegalStateException(
+                    "analytics.summary.source=sql requires search-events.product-ids.storage=table");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The period's metrics, with the same inclusive range and group filter as the
+     * repository reads, or empty when some of its searches have packed product ids.
+     *
+     * @param searchGroup the group, or null for all groups
+     * @param series      filled with the counted events, or null; untouched when empty
+     */
+    Optional<PeriodAnalytics> compute(String shopId, long fromMs, long toMs, Integer searchGroup,
+            CurrencyService currencyService, Map<String, Double> conversionRatesUsed, TimeSeriesBuckets series) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("shop", shopId).addValue("from", fromMs).addValue("to", toMs)
+                .addValue("group", searchGroup);
+        String group = searchGroup != null ? " and search_group = :group" : "";
+        Integer packed = jdbc.queryForObject("select case when exists (select 1 from search_events" + where(group)
+                + " and packed_product_ids is not null) then 1 else 0 end", params, Integer.class);
+        if (packed != null && packed == 1) {
+            return Optional.empty();
+        }
+        // Events are grouped by time series bucket too when a series is filled
+        String bucket = bucket(series, "timestamp_ms");
+        PeriodAnalytics analytics = new PeriodAnalytics();
+
+        // Searches and their query word counts, per distinct query
+        jdbc.query("select query, count(*) from search_events" + where(group) + " group by query", params, rs -> {
+            String query = rs.getString(1);
+            long count = rs.getLong(2);
+            analytics.searchCount += count;
+            if (query != null && !query.trim().isEmpty()) {
+                int words = query.trim().split("\\s+").length;
+                analytics.totalWordCount += words * count;
+                analytics.queryCount += count;
+                if (words >= 3) {
+                    analytics.longQueryCount += count;
+                }
+            }
+        });
+
+        jdbc.query("select"
+                + " (select count(distinct s.session_id) from search_events s" + where(group, "s") + "),"
+                + " (select count(distinct session_id) from " + validCarts(group) + "),"
+                + " (select count(distinct session_id) from " + orders(group) + " where valid > 0),"
+                + " (select count(*) from product_click_events c" + where(group, "c") + clicked(group, "c") + "),"
+                + " (select count(distinct c.session_id) from product_click_events c" + where(group, "c")
+                + clicked(group, "c") + "),"
+                + " (select count(*) from buy_now_click_events c" + where(group, "c") + clicked(group, "c") + ")",
+                params, rs -> {
+                    analytics.searchSessionCount = rs.getLong(1);
+                    analytics.cartSessionCount = rs.getLong(2);
+                    analytics.purchaseSessionCount = rs.getLong(3);
+                    analytics.productClicks = rs.getLong(4);
+                    analytics.clickSessionCount = rs.getLong(5);
+                    analytics.buyNowClicks = rs.getLong(6);
+                });
+
+        // Valid add-to-carts by bucket and currency, earliest first; the first currency is the earliest cart's
+        long[] firstCurrencyAt = { Long.MAX_VALUE, Long.MAX_VALUE };
+        jdbc.query("select " + (bucket != null ? bucket : "0") + ", currency,"
+                + " min(timestamp_ms), min(id), count(*), sum(coalesce(price, 0)) from " + validCarts(group)
+                + " group by " + (bucket != null ? bucket + ", " : "") + "currency"
+                + " order by 3, 4", params, rs -> {
+                    String currency = rs.getString(2);
+                    long firstAt = rs.getLong(3);
+                    long firstId = rs.getLong(4);
+                    long count = rs.getLong(5);
+                    double amount = rs.getDouble(6);
+                    analytics.addToCartCount += count;
+                    analytics.addToCartAmount += amount;
+                    if (currency != null && !currency.isEmpty() && (firstAt < firstCurrencyAt[0]
+                            || firstAt == firstCurrencyAt[0] && firstId < firstCurrencyAt[1])) {
+                        analytics.currency = currency;
+                        firstCurrencyAt[0] = firstAt;
+                        firstCurrencyAt[1] = firstId;
+                    }
+                    if (series != null) {
+                        series.addCarts(firstAt, count, amount, currency);
+                    }
+                });
+
+        // Valid purchased products and revenue by bucket and order currency
+        jdbc.query("select " + (bucket != null ? bucket : "0") + ", upper(currency),"
+                + " min(timestamp_ms), sum(valid),"
+                + " sum(case when priced > 0 then priced_revenue"
+                + " when total_amount is not null then total_amount * valid / products end),"
+                + " sum(case when priced = 0 and total_amount is not null then 1 else 0 end)"
+                + " from " + orders(group) + " where valid > 0"
+                + " group by " + (bucket != null ? bucket + ", " : "") + "upper(currency)",
+                params, rs -> {
+                    String currency = rs.getString(2);
+                    long products = rs.getLong(4);
+                    double revenue = rs.getDouble(5);
+                    boolean hasRevenue = !rs.wasNull();
+                    analytics.validPurchasedProductCount += products;
+                    analytics.validPurchaseRevenue += revenue;
+                    analytics.fallbackOrdersCount += rs.getInt(6);
+                    if (currency != null && hasRevenue) {
+                        conversionRatesUsed.put(currency, currencyService.getExchangeRate(currency));
+                        analytics.totalPurchaseValueEur += currencyService.convertToEur(revenue, currency);
+                    }
+                    if (series != null) {
+                        series.addPurchases(rs.getLong(3), products);
+                    }
+                });
+
+        if (series != null) {
+            jdbc.query("select min(timestamp_ms), count(*) from search_events" + where(group)
+                    + " group by " + bucket, params,
+                    (RowCallbackHandler) rs -> series.addSearches(rs.getLong(1), rs.getLong(2)));
+        }
+        return Optional.of(analytics);
+    }
+
+    private static String where(String group) {
+        return " where shop_id = :shop and timestamp_ms between :from and :to" + group;
+    }
+
+    private static String where(String group, String alias) {
+        return " where " + alias + ".shop_id = :shop and " + alias + ".timestamp_ms between :from and :to"
+                + group.replace("search_group", alias + ".search_group");
+    }
+
+    /** Clicks from sessions that searched in the period, on product GIDs */
+    private static String clicked(String group, String alias) {
+        return " and " + alias + ".product_id like 'gid://shopify/Product/%'"
+                + " and " + alias + ".session_id in (select s.session_id from search_events s" + where(group, "s") + ")";
+    }
+
+    /** vc: add-to-carts of a product shown to the session by one of the period's searches */
+    private static String validCarts(String group) {
+        return "(select c.id, c.session_id, c.product_id, c.price, c.currency, c.timestamp_ms"
+                + " from add_to_cart_events c" + where(group, "c") + shown(group, "c") + ") vc";
+    }
+
+    /** The session was shown the product by one of the period's searches */
+    private static String shown(String group, String alias) {
+        return " and (" + alias + ".session_id, " + alias + ".product_id) in (select s.session_id, p.product_id"
+                + " from search_events s join search_result_products p on p.search_event_id = s.id"
+                + where(group, "s") + ")";
+    }
+
+    /**
+     * o: orders with their product counts, valid ones being products added to the
+     * cart in the session, and the revenue of valid products that have a price.
+     * Validity is an {@code IN} semi-join per purchased product rather than a join
+     * to the valid carts, which H2 would evaluate again for every order.
+     */
+    private static String orders(String group) {
+        return "(select id, session_id, timestamp_ms, currency, total_amount,"
+                + " count(*) as products,"
+                + " sum(valid) as valid,"
+                + " count(case when valid = 1 then price end) as priced,"
+                + " sum(case when valid = 1 then price * coalesce(amount, 1) end) as priced_revenue"
+                + " from (select e.id, e.session_id, e.timestamp_ms, e.currency, e.total_amount, p.price, p.amount,"
+                + " case when (e.session_id, p.product_id) in (select c.session_id, c.product_id"
+                + " from add_to_cart_events c" + where(group, "c") + shown(group, "c") + ")"
+                + " then 1 else 0 end as valid"
+                + " from purchase_events e"
+                + " join purchase_products p on p.purchase_event_id = e.id"
+                + where(group, "e") + " and e.session_id is not null) op"
+                + " group by id, session_id, timestamp_ms, currency, total_amount) o";
+    }
+
+    /** Integer bucket of a timestamp column at the series' granularity, or null without a series */
+    private static String bucket(TimeSeriesBuckets series, String column) {
+        if (series == null) {
+            return null;
+        }
+        switch (series.granularity()) {
+            case HOUR:
+                return column + " / " + HOUR_MS;
+            case WEEK:
+                // 1970-01-01 was a Thursday
+                return "(" + column + " / " + DAY_MS + " + 3) / 7";
+            default:
+                return column + " / " + DAY_MS;
+        }
+    }
+}
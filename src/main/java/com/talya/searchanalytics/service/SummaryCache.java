@@ -0,0 +1,166 @@
+package com.talya.searchanalytics.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.talya.searchanalytics.model.ShopWatermarks;
+import com.talya.searchanalytics.web.dto.ABTestComparisonResponse;
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import com.talya.searchanalytics.web.dto.GroupComparisonResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Results of the dashboard summary and group comparisons, keyed by shop, range,
+ * search groups and the shop's {@link ShopWatermarks} version. Ingesting or
+ * removing an event bumps the version, so the shop's next request misses and
+ * recomputes while stale entries age out. Ranges that end before the closed
+ * horizon depend on the closed version only and stay cached until evicted;
+ * open ranges also expire after {@code analytics.summary-cache.ttl-minutes}.
+ * Each cache is bounded by an estimate of its heap footprint.
+ */
+@Service
+public class SummaryCache {
+
+    private static final long DAY_MS = 86_400_000L;
+
+    private final ShopWatermarks watermarks;
+    private final boolean enabled;
+    private final Cache<Key, Entry> summaries;
+    private final Cache<Key, Entry> comparisons;
+
+    public SummaryCache(ShopWatermarks watermarks, MeterRegistry meterRegistry,
+            @Value("${analytics.summary-cache.enabled:true}") boolean enabled,
+            @Value("${analytics.summary-cache.max-bytes:33554432}") long maxBytes,
+            @Value("${analytics.summary-cache.ttl-minutes:10}") long ttlMinutes) {
+        this.watermarks = watermarks;
+        this.enabled = enabled;
+        this.summaries = build(meterRegistry, "analyticsSummary", maxBytes, ttlMinutes);
+        this.comparisons = build(meterRegistry, "analyticsCompare", maxBytes, ttlMinutes);
+    }
+
+    private static Cache<Key, Entry> build(MeterRegistry meterRegistry, String name, long maxBytes,
+            long ttlMinutes) {
+        long openTtlNanos = Duration.ofMinutes(ttlMinutes).toNanos();
+        Cache<Key, Entry> cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Entry entry) -> entry.bytes)
+                // Maintenance runs on the writing thread, so the weighted size gauge is current
+                .executor(Runnable::run)
+                .expireAfter(new Expiry<Key, Entry>() {
+                    @Override
+                    public long expireAfterCreate(Key key, Entry entry, long currentTime) {
+                        return key.version < 0 ? Long.MAX_VALUE : openTtlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Key key, Entry entry, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, entry, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(Key key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, name);
+        Tags tags = Tags.of("cache", name);
+        meterRegistry.gauge("analytics.summary.cache.bytes", tags, cache,
+                c -> c.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L));
+        meterRegistry.gauge("analytics.summary.cache.hit.ratio", tags, cache, c -> c.stats().hitRate());
+        return cache;
+    }
+
+    public AnalyticsSummaryResponse summary(String shopId, long fromMs, long toMs, Integer searchGroup,
+            AnalyticsService.Granularity granularity, Supplier<AnalyticsSummaryResponse> compute) {
+        return summary(shopId, fromMs, toMs, searchGroup, granularity, AnalyticsService.DEFAULT_TOP_QUERIES, compute);
+    }
+
+    public AnalyticsSummaryResponse summary(String shopId, long fromMs, long toMs, Integer searchGroup,
+            AnalyticsService.Granularity granularity, int topQueryLimit, Supplier<AnalyticsSummaryResponse> compute) {
+        return get(summaries, "summary", shopId, fromMs, toMs, searchGroup, granularity, topQueryLimit, compute);
+    }
+
+    public ABTestComparisonResponse compare(String shopId, long fromMs, long toMs, Integer groupA, Integer groupB,
+            Supplier<ABTestComparisonResponse> compute) {
+        return get(comparisons, "ab", shopId, fromMs, toMs, java.util.Arrays.asList(groupA, groupB), null,
+                AnalyticsService.DEFAULT_TOP_QUERIES, compute);
+    }
+
+    public GroupComparisonResponse compare(String shopId, long fromMs, long toMs, List<Integer> searchGroups,
+            Supplier<GroupComparisonResponse> compute) {
+        return get(comparisons, "groups", shopId, fromMs, toMs, List.copyOf(searchGroups), null,
+                AnalyticsService.DEFAULT_TOP_QUERIES, compute);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(Cache<Key, Entry> cache, String kind, String shopId, long fromMs, long toMs, Object groups,
+            AnalyticsService.Granularity granularity, int topQueryLimit, Supplier<T> compute) {
+        if (!enabled) {
+            return compute.get();
+        }
+        // Rollups are read by whole UTC days, so the result depends on events up to the end of toMs's day
+        long dependsUntilMs = (Math.floorDiv(toMs, DAY_MS) + 1) * DAY_MS - 1;
+        // Read before computing: an event stored meanwhile bumps it, and the entry is never hit again
+        Key key = new Key(kind, shopId, fromMs, toMs, groups, granularity, topQueryLimit,
+                watermarks.version(shopId, dependsUntilMs));
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            return (T) entry.value;
+        }
+        T value = compute.get();
+        cache.put(key, new Entry(value, estimateBytes(value)));
+        return value;
+    }
+
+    // Rough heap estimate: object and field overhead plus the lists of the response
+    private static int estimateBytes(Object value) {
+        long bytes = 64;
+        if (value instanceof AnalyticsSummaryResponse summary) {
+            bytes += summaryBytes(summary);
+        } else if (value instanceof ABTestComparisonResponse ab) {
+            bytes += 512 + summaryBytes(ab.getGroupA()) + summaryBytes(ab.getGroupB());
+        } else if (value instanceof GroupComparisonResponse groups) {
+            for (GroupComparisonResponse.Variant variant : groups.getVariants()) {
+                bytes += 640 + summaryBytes(variant.getSummary());
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long summaryBytes(AnalyticsSummaryResponse summary) {
+        if (summary == null) {
+            return 0;
+        }
+        long bytes = 1024;
+        if (summary.getTimeSeries() != null) {
+            bytes += 120L * summary.getTimeSeries().size();
+        }
+        if (summary.getTopQueries() != null) {
+            for (AnalyticsSummaryResponse.TopQuery q : summary.getTopQueries()) {
+                bytes += 64 + (q.getTerm() == null ? 0 : 40 + q.getTerm().length());
+            }
+        }
+        if (summary.getConversionRatesUsed() != null) {
+            bytes += 96L * summary.getConversionRatesUsed().size();
+        }
+        return bytes;
+    }
+
+    /** version is negative for ranges that depend on the closed version only */
+    private record Key(String kind, String shopId, long fromMs, long toMs, Object groups,
+            AnalyticsService.Granularity granularity, int topQueryLimit, long version) {
+    }
+
+    private record Entry(Object value, int bytes) {
+    }
+}
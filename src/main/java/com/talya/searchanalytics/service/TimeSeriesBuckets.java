@@ -0,0 +1,117 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The time series points of a range at hour, day or week (Monday-based)
+ * granularity, all in UTC. Events are added as they are scanned, so a series
+ * costs one pass over the range's events instead of one query per point.
+ */
+class TimeSeriesBuckets {
+
+    private static final long HOUR_MS = 3_600_000L;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private final AnalyticsService.Granularity granularity;
+    private final long firstStartMs;
+    private final AnalyticsSummaryResponse.TimePoint[] points;
+
+    TimeSeriesBuckets(AnalyticsService.Granularity granularity, long fromMs, long toMs) {
+        this.granularity = granularity;
+        this.firstStartMs = bucketStart(granularity, fromMs);
+        this.points = new AnalyticsSummaryResponse.TimePoint[(int) count(granularity, fromMs, toMs)];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = AnalyticsSummaryResponse.TimePoint.builder()
+                    .date(label(firstStartMs + i * width(granularity)))
+                    .searches(0).addToCart(0).purchases(0).addToCartAmount(0.0)
+                    .build();
+        }
+    }
+
+    AnalyticsService.Granularity granularity() {
+        return granularity;
+    }
+
+    /** Number of points a range has at a granularity. */
+    static long count(AnalyticsService.Granularity granularity, long fromMs, long toMs) {
+        return (bucketStart(granularity, toMs) - bucketStart(granularity, fromMs)) / width(granularity) + 1;
+    }
+
+    private static long width(AnalyticsService.Granularity granularity) {
+        switch (granularity) {
+            case HOUR:
+                return HOUR_MS;
+            case WEEK:
+                return 7 * DAY_MS;
+            default:
+                return DAY_MS;
+        }
+    }
+
+    private static long bucketStart(AnalyticsService.Granularity granularity, long ms) {
+        switch (granularity) {
+            case HOUR:
+                return Math.floorDiv(ms, HOUR_MS) * HOUR_MS;
+            case WEEK:
+                long day = Math.floorDiv(ms, DAY_MS);
+                // 1970-01-01 was a Thursday
+                return (day - Math.floorMod(day + 3, 7)) * DAY_MS;
+            default:
+                return Math.floorDiv(ms, DAY_MS) * DAY_MS;
+        }
+    }
+
+    private String label(long startMs) {
+        return granularity == AnalyticsService.Granularity.HOUR ? Instant.ofEpochMilli(startMs).toString()
+                : LocalDate.ofEpochDay(Math.floorDiv(startMs, DAY_MS)).toString();
+    }
+
+    private AnalyticsSummaryResponse.TimePoint at(Long timestampMs) {
+        if (timestampMs == null) {
+            return null;
+        }
+        long index = (bucketStart(granularity, timestampMs) - firstStartMs) / width(granularity);
+        return index >= 0 && index < points.length ? points[(int) index] : null;
+    }
+
+    void addSearches(Long timestampMs, long searches) {
+        AnalyticsSummaryResponse.TimePoint point = at(timestampMs);
+        if (point != null) {
+            point.setSearches(point.getSearches() + (int) searches);
+        }
+    }
+
+    void addCarts(Long timestampMs, long carts, double amount, String currency) {
+        AnalyticsSummaryResponse.TimePoint point = at(timestampMs);
+        if (point != null) {
+            point.setAddToCart(point.getAddToCart() + (int) carts);
+            point.setAddToCartAmount(point.getAddToCartAmount() + amount);
+            if (point.getCurrency() == null && currency != null && !currency.isEmpty()) {
+                point.setCurrency(currency);
+            }
+        }
+    }
+
+    void addPurchases(Long timestampMs, long products) {
+        AnalyticsSummaryResponse.TimePoint point = at(timestampMs);
+        if (point != null) {
+            point.setPurchases(point.getPurchases() + (int) products);
+        }
+    }
+
+    List<AnalyticsSummaryResponse.TimePoint> points() {
+        List<AnalyticsSummaryResponse.TimePoint> series = new ArrayList<>(points.length);
+        for (AnalyticsSummaryResponse.TimePoint point : points) {
+            if (point.getCurrency() == null) {
+                point.setCurrency("NIS");
+            }
+            series.add(point);
+        }
+        return series;
+    }
+}
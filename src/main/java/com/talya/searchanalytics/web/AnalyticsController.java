@@ -1,19 +1,30 @@
 package com.talya.searchanalytics.web;
 
 import com.talya.searchanalytics.service.AnalyticsService;
+import com.talya.searchanalytics.service.ColumnarEvents;
 import com.talya.searchanalytics.service.DataMigrationService;
+import com.talya.searchanalytics.service.EventExporter;
+import com.talya.searchanalytics.service.SummaryCache;
 import com.talya.searchanalytics.repo.TermsAgreementRepository;
 import lombok.RequiredArgsConstructor;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.server.ResponseStatusException;
 
 @RestController
@@ -32,8 +43,12 @@ import org.springframework.web.server.ResponseStatusException;
 public class AnalyticsController {
 
     private static final Logger log = LoggerFactory.getLogger(AnalyticsController.class);
+    /** Most search groups one /compare/groups request may ask for */
+    private static final int MAX_COMPARED_GROUPS = 20;
     private final AnalyticsService analyticsService;
+    private final SummaryCache summaryCache;
     private final DataMigrationService dataMigrationService;
+    private final EventExporter eventExporter;
     private final TermsAgreementRepository termsRepo;
 
     @GetMapping(value = "/test", produces = "application/json")
@@ -72,7 +87,9 @@ public class AnalyticsController {
             @RequestParam(name = "fromMs") long fromMs,
             @RequestParam(name = "toMs") long toMs,
             @RequestParam(name = "shopId", required = false) String legacyShopId,
-            @RequestParam(name = "searchGroup", required = false) Integer searchGroup) {
+            @RequestParam(name = "searchGroup", required = false) Integer searchGroup,
+            @RequestParam(name = "granularity", defaultValue = "day") String granularity,
+            @RequestParam(name = "limit", defaultValue = "10") int limit) {
         String shopId = currentShop();
         if (shopId == null)
             return error(HttpStatus.UNAUTHORIZED, "MISSING_TOKEN");
@@ -80,8 +97,20 @@ public class AnalyticsController {
             return error(HttpStatus.FORBIDDEN, "SHOP_ID_MISMATCH");
         if (fromMs > toMs)
             return error(HttpStatus.BAD_REQUEST, "INVALID_RANGE");
-        log.info("GET /summary - shopId: {}, fromMs: {}, toMs: {}, searchGroup: {}", shopId, fromMs, toMs, searchGroup);
-        return ResponseEntity.ok(analyticsService.summary(shopId, fromMs, toMs, searchGroup));
+        AnalyticsService.Granularity seriesGranularity;
+        try {
+            seriesGranularity = AnalyticsService.Granularity.valueOf(granularity.toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "INVALID_GRANULARITY");
+        }
+        if (AnalyticsService.seriesPoints(seriesGranularity, fromMs, toMs) > AnalyticsService.MAX_SERIES_POINTS)
+            return error(HttpStatus.BAD_REQUEST, "TOO_MANY_POINTS");
+        if (limit < 1 || limit > AnalyticsService.MAX_TOP_QUERIES)
+            return error(HttpStatus.BAD_REQUEST, "INVALID_LIMIT");
+        log.info("GET /summary - shopId: {}, fromMs: {}, toMs: {}, searchGroup: {}, granularity: {}, limit: {}",
+                shopId, fromMs, toMs, searchGroup, seriesGranularity, limit);
+        return ResponseEntity.ok(summaryCache.summary(shopId, fromMs, toMs, searchGroup, seriesGranularity, limit,
+                () -> analyticsService.summary(shopId, fromMs, toMs, searchGroup, seriesGranularity, limit)));
     }
 
     @GetMapping(value = "/compare", produces = "application/json")
@@ -103,15 +132,47 @@ public class AnalyticsController {
 
         log.info("GET /compare - shopId: {}, fromMs: {}, toMs: {}, groupA: {}, groupB: {}",
                 shopId, fromMs, toMs, groupA, groupB);
-        return ResponseEntity.ok(analyticsService.compareGroups(shopId, fromMs, toMs, groupA, groupB));
+        return ResponseEntity.ok(summaryCache.compare(shopId, fromMs, toMs, groupA, groupB,
+                () -> analyticsService.compareGroups(shopId, fromMs, toMs, groupA, groupB)));
     }
 
-    @GetMapping(value = "/full", produces = "application/json")
-    public ResponseEntity<?> full(
+    @GetMapping(value = "/compare/groups", produces = "application/json")
+    public ResponseEntity<?> compareMany(
             @RequestParam(name = "fromMs") long fromMs,
             @RequestParam(name = "toMs") long toMs,
+            @RequestParam(name = "groups", required = false) List<Integer> groups,
             @RequestParam(name = "shopId", required = false) String legacyShopId) {
         String shopId = currentShop();
+        if (shopId == null)
+            return error(HttpStatus.UNAUTHORIZED, "MISSING_TOKEN");
+        if (legacyShopId != null && !legacyShopId.equals(shopId))
+            return error(HttpStatus.FORBIDDEN, "SHOP_ID_MISMATCH");
+        if (fromMs > toMs)
+            return error(HttpStatus.BAD_REQUEST, "INVALID_RANGE");
+        if (groups == null || groups.isEmpty() || groups.contains(null))
+            return error(HttpStatus.BAD_REQUEST, "MISSING_GROUPS");
+        if (groups.size() > MAX_COMPARED_GROUPS)
+            return error(HttpStatus.BAD_REQUEST, "TOO_MANY_GROUPS");
+
+        log.info("GET /compare/groups - shopId: {}, fromMs: {}, toMs: {}, groups: {}", shopId, fromMs, toMs, groups);
+        return ResponseEntity.ok(summaryCache.compare(shopId, fromMs, toMs, groups,
+                () -> analyticsService.compareGroups(shopId, fromMs, toMs, groups)));
+    }
+
+    /**
+     * Every event of the range as JSON, or, when the client accepts
+     * {@value ColumnarEvents#CONTENT_TYPE}, streamed as one columnar section per
+     * event type.
+     */
+    @GetMapping(value = "/full", produces = { "application/json", ColumnarEvents.CONTENT_TYPE })
+    public ResponseEntity<?> full(
+            @RequestParam(name = "fromMs") long fromMs,
+            @RequestParam(name = "toMs") long toMs,
+            @RequestParam(name = "shopId", required = false) String legacyShopId,
+            @RequestHeader(name = "Accept", required = false) String accept,
+            @RequestHeader(name = "Accept-Encoding", required = false) String acceptEncoding,
+            HttpServletResponse response) throws IOException {
+        String shopId = currentShop();
         if (shopId == null)
             return error(HttpStatus.UNAUTHORIZED, "MISSING_TOKEN");
         if (legacyShopId != null && !legacyShopId.equals(shopId))
@@ -124,9 +185,112 @@ public class AnalyticsController {
         if (!agreed) {
             throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Terms not agreed");
         }
+        if (negotiate(accept) == EventExporter.Format.COLUMNAR) {
+            response.setContentType(ColumnarEvents.CONTENT_TYPE);
+            OutputStream out = exportStream(response, acceptEncoding);
+            EventExporter.Cursor start = EventExporter.start(fromMs, null);
+            for (EventExporter.Type type : EventExporter.Type.values()) {
+                eventExporter.write(shopId, type, EventExporter.Format.COLUMNAR, toMs, start, null, out);
+            }
+            out.close();
+            return null;
+        }
         return ResponseEntity.ok(analyticsService.full(shopId, fromMs, toMs));
     }
 
+    /**
+     * Streams one type of raw event for the range as NDJSON, CSV or columnar
+     * blocks, in timestamp order; {@code format}, else the Accept header, picks
+     * which. With {@code limit}, a {@code Link: rel="next"} header carries the
+     * cursor of the next page while events remain.
+     */
+    @GetMapping(value = "/export")
+    public ResponseEntity<?> export(
+            @RequestParam(name = "fromMs") long fromMs,
+            @RequestParam(name = "toMs") long toMs,
+            @RequestParam(name = "type") String type,
+            @RequestParam(name = "format", required = false) String format,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit,
+            @RequestParam(name = "shopId", required = false) String legacyShopId,
+            @RequestHeader(name = "Accept", required = false) String accept,
+            @RequestHeader(name = "Accept-Encoding", required = false) String acceptEncoding,
+            HttpServletResponse response) throws IOException {
+        String shopId = currentShop();
+        if (shopId == null)
+            return error(HttpStatus.UNAUTHORIZED, "MISSING_TOKEN");
+        if (legacyShopId != null && !legacyShopId.equals(shopId))
+            return error(HttpStatus.FORBIDDEN, "SHOP_ID_MISMATCH");
+        if (fromMs > toMs)
+            return error(HttpStatus.BAD_REQUEST, "INVALID_RANGE");
+        EventExporter.Type eventType;
+        EventExporter.Format exportFormat;
+        try {
+            eventType = EventExporter.Type.valueOf(type.toUpperCase(java.util.Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "INVALID_TYPE");
+        }
+        try {
+            exportFormat = format == null ? negotiate(accept)
+                    : EventExporter.Format.valueOf(format.toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "INVALID_FORMAT");
+        }
+        EventExporter.Cursor start;
+        try {
+            start = EventExporter.start(fromMs, cursor == null ? null : EventExporter.Cursor.parse(cursor));
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "INVALID_CURSOR");
+        }
+        if (limit != null && (limit < 1 || limit > EventExporter.MAX_PAGE_SIZE))
+            return error(HttpStatus.BAD_REQUEST, "INVALID_LIMIT");
+        if (termsRepo.findByShopId(shopId).isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Terms not agreed");
+        }
+        log.info("GET /export - shopId: {}, fromMs: {}, toMs: {}, type: {}, format: {}, cursor: {}, limit: {}",
+                shopId, fromMs, toMs, eventType, exportFormat, cursor, limit);
+
+        Optional<EventExporter.Cursor> end = limit == null ? Optional.empty()
+                : eventExporter.pageEnd(shopId, eventType, toMs, start, limit);
+        end.ifPresent(next -> response.setHeader("Link", "<" + ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("cursor", next.token()).toUriString() + ">; rel=\"next\""));
+        response.setContentType(exportFormat == EventExporter.Format.COLUMNAR ? exportFormat.contentType
+                : exportFormat.contentType + ";charset=UTF-8");
+        OutputStream out = exportStream(response, acceptEncoding);
+        eventExporter.write(shopId, eventType, exportFormat, toMs, start, end.orElse(null), out);
+        out.close();
+        // Already written to the response, so there is nothing left to render
+        return null;
+    }
+
+    /** The export format the Accept header prefers, NDJSON unless it names another. */
+    private static EventExporter.Format negotiate(String accept) {
+        if (accept == null)
+            return EventExporter.Format.NDJSON;
+        try {
+            List<MediaType> types = MediaType.parseMediaTypes(accept);
+            MediaType.sortBySpecificityAndQuality(types);
+            for (MediaType type : types) {
+                for (EventExporter.Format format : EventExporter.Format.values()) {
+                    if (type.equalsTypeAndSubtype(MediaType.parseMediaType(format.contentType)))
+                        return format;
+                }
+            }
+        } catch (InvalidMediaTypeException e) {
+            // Treated as no preference
+        }
+        return EventExporter.Format.NDJSON;
+    }
+
+    /** The response body, gzipped when the client accepts it; flushes reach the client as they happen. */
+    private static OutputStream exportStream(HttpServletResponse response, String acceptEncoding) throws IOException {
+        response.addHeader("Vary", "Accept, Accept-Encoding");
+        if (acceptEncoding == null || !acceptEncoding.toLowerCase(java.util.Locale.ROOT).contains("gzip"))
+            return response.getOutputStream();
+        response.setHeader("Content-Encoding", "gzip");
+        return new GZIPOutputStream(response.getOutputStream(), 1 << 16, true);
+    }
+
     private String currentShop() {
         Authentication a = SecurityContextHolder.getContext().getAuthentication();
         if (a == null)
@@ -1,14 +1,33 @@
 package com.talya.searchanalytics.web;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.talya.searchanalytics.model.*;
 import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.EventAuditTrail;
+import com.talya.searchanalytics.service.EventIngestionService;
+import com.talya.searchanalytics.service.EventWriteBehindQueue;
+import com.talya.searchanalytics.service.IdempotencyGuard;
+import com.talya.searchanalytics.service.ShopRateLimiter;
+import com.talya.searchanalytics.service.ShopifyOrderDecoder;
 import com.talya.searchanalytics.web.dto.EventDTOs.*;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/v1/events")
@@ -17,188 +36,237 @@ public class EventController {
 
     private static final Logger log = LoggerFactory.getLogger(EventController.class);
 
+    /** Idempotency scope of batch keys, which are scoped by the batch's shops */
+    private static final String BATCH_SCOPE = "batch";
+    /** Item errors a retry of the batch may get past, so its idempotency key is not kept */
+    private static final Set<String> RETRYABLE_ITEM_ERRORS = Set.of("RATE_LIMITED", "INGESTION_QUEUE_FULL");
+
     private final SearchEventRepository searchRepo;
     private final AddToCartEventRepository cartRepo;
     private final PurchaseEventRepository purchaseRepo;
     private final ProductClickEventRepository clickRepo;
     private final BuyNowClickEventRepository buyNowRepo;
+    private final EventWriteBehindQueue writeQueue;
+    private final EventIngestionService ingestionService;
+    private final ShopifyOrderDecoder orderDecoder;
+    private final IdempotencyGuard idempotency;
+    private final ShopRateLimiter rateLimiter;
+    private final EventAuditTrail auditTrail;
+    private final EventResponses responses;
+    private final ObjectMapper objectMapper;
+
+    @Value("${ingestion.batch.max-items:500}")
+    private int maxBatchItems;
 
     @PostMapping("/search")
-    public ResponseEntity<?> recordSearch(@RequestBody SearchEventRequest req) {
-        log.info("POST /api/v1/events/search - payload: {}", req);
-        SearchEvent e = SearchEvent.builder()
-                .shopId(req.getShopId())
-                .searchId(req.getSearchId())
-                .clientId(req.getClientId())
-                .sessionId(req.getSessionId())
-                .query(req.getQuery())
-                .productIds(req.getProductIds())
-                .searchGroup(req.getSearchGroup())
-                .timestampMs(req.getTimestampMs())
-                .build();
-        return ResponseEntity.ok(searchRepo.save(e).getId());
+    public CompletableFuture<ResponseEntity<?>> recordSearch(@RequestBody SearchEventRequest req,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) {
+        long retryAfterMs = rateLimiter.tryAcquire(req.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        log.debug("POST /api/v1/events/search - payload: {}", req);
+        String key = idempotencyKey != null ? idempotencyKey : req.getSearchId();
+        return responses.async(() -> responses.once(EventIngestionService.TYPE_SEARCH, req.getShopId(), key, () -> {
+            SearchEvent e = ingestionService.toSearchEvent(req);
+            ResponseEntity<?> response = responses.store(e, ev -> searchRepo.save(ev).getId(),
+                    idempotency.releaser(EventIngestionService.TYPE_SEARCH, req.getShopId(), key));
+            if (response.getStatusCode().is2xxSuccessful()) {
+                ingestionService.onSearchAccepted(e);
+            }
+            return response;
+        }));
     }
 
     @PostMapping("/add-to-cart")
-    public ResponseEntity<?> recordAddToCart(@RequestBody AddToCartRequest req) {
-        log.info("POST /api/v1/events/add-to-cart - payload: {}", req);
-        Double price = null;
-        String currency = null;
-        if (req.getPrice() != null) {
-            String[] parts = req.getPrice().trim().split(" ");
-            try {
-                price = Double.parseDouble(parts[0]);
-            } catch (Exception e) {
-                log.warn("Failed to parse price: {}", req.getPrice());
-            }
-            if (parts.length > 1) {
-                currency = parts[1];
+    public CompletableFuture<ResponseEntity<?>> recordAddToCart(@RequestBody AddToCartRequest req,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) {
+        long retryAfterMs = rateLimiter.tryAcquire(req.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        log.debug("POST /api/v1/events/add-to-cart - payload: {}", req);
+        return responses.async(() -> {
+            if (!ingestionService.isInSearchResults(req.getShopId(), req.getSessionId(), req.getSearchGroup(),
+                    req.getProductId())) {
+                return ResponseEntity.noContent().build();
             }
-        }
-        // Smart add-to-cart logic - validate product is in search results from the SAME
-        // search group
-        List<SearchEvent> searches = searchRepo.findAllByShopIdAndSessionIdAndSearchGroup(
-                req.getShopId(), req.getSessionId(), req.getSearchGroup());
-        log.info("🛒 Add-to-cart validation: sessionId={}, productId={}, searchGroup={}, found {} search events",
-                req.getSessionId(), req.getProductId(), req.getSearchGroup(), searches.size());
-
-        boolean found = false;
-        for (SearchEvent search : searches) {
-
-            if (search.getProductIds() != null) {
-                log.debug("Search {} (group {}) has {} products: {}", search.getSearchId(),
-                        search.getSearchGroup(), search.getProductIds().size(), search.getProductIds());
-                if (search.getProductIds().contains(req.getProductId())) {
-                    found = true;
-                    log.info("✅ Product {} found in search {} (group {})",
-                            req.getProductId(), search.getSearchId(), search.getSearchGroup());
-                    break;
-                }
-            }
-        }
-        if (!found) {
-            log.warn(
-                    "AddToCartEvent REJECTED: productId {} not found in search results for group {} in session {}. Searched {} events.",
-                    req.getProductId(), req.getSearchGroup(), req.getSessionId(), searches.size());
-            return ResponseEntity.noContent().build();
-        }
-        log.info("AddToCartEvent ACCEPTED: productId {} found in search results", req.getProductId());
-        AddToCartEvent e = AddToCartEvent.builder()
-                .shopId(req.getShopId())
-                .clientId(req.getClientId())
-                .sessionId(req.getSessionId())
-                .productId(req.getProductId())
-                .searchId(req.getSearchId())
-                .searchGroup(req.getSearchGroup())
-                .timestampMs(req.getTimestampMs())
-                .price(price)
-                .currency(currency)
-                .build();
-        return ResponseEntity.ok(cartRepo.save(e).getId());
+            log.debug("AddToCartEvent ACCEPTED: productId {} found in search results", req.getProductId());
+            return responses.once(EventIngestionService.TYPE_ADD_TO_CART, req.getShopId(), idempotencyKey, () -> {
+                AddToCartEvent e = ingestionService.toAddToCartEvent(req);
+                return responses.store(e, ev -> cartRepo.save(ev).getId(),
+                        idempotency.releaser(EventIngestionService.TYPE_ADD_TO_CART, req.getShopId(), idempotencyKey));
+            });
+        });
     }
 
     @PostMapping("/purchase")
-    public ResponseEntity<?> handleShopifyOrder(@RequestBody java.util.Map<String, Object> orderData) {
+    public CompletableFuture<ResponseEntity<?>> handleShopifyOrder(InputStream body,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) {
+        // The body is read here, on the request thread, before the work is handed off
+        PurchaseEvent purchase;
         try {
-            // --- Extract raw Shopify info ---
-            String shopId = (String) orderData.get("shopId");
-            log.info("📦 Received Shopify order from: {}", shopId);
-            log.info("📋 Raw order data: {}", orderData);
-
-            String searchaiUserId = (String) orderData.get("searchai_user_id");
-            String searchaiSessionId = (String) orderData.get("searchai_session_id");
-            Integer searchaiSearchGroup = null;
-
-            // Extract search group (0 or 1)
-            Object searchGroupObj = orderData.get("searchai_search_group");
-            if (searchGroupObj instanceof Number) {
-                searchaiSearchGroup = ((Number) searchGroupObj).intValue();
-            } else if (searchGroupObj instanceof String) {
-                try {
-                    searchaiSearchGroup = Integer.parseInt((String) searchGroupObj);
-                } catch (NumberFormatException e) {
-                    log.warn("Failed to parse searchai_search_group: {}", searchGroupObj);
-                }
+            purchase = orderDecoder.decode(body);
+        } catch (Exception e) {
+            return responses.done(badOrder(e));
+        }
+        long retryAfterMs = rateLimiter.tryAcquire(purchase.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        Integer searchGroup = purchase.getSearchGroup();
+        log.debug("📦 Received Shopify order {} from {}: {} products, total {} {}, status {}",
+                purchase.getOrderId(), purchase.getShopId(), purchase.getProducts().size(),
+                purchase.getTotalAmount(), purchase.getCurrency(), purchase.getOrderStatus());
+
+        String key = idempotencyKey != null ? idempotencyKey : purchase.getOrderId();
+        return responses.async(() -> {
+            try {
+                return responses.once(EventIngestionService.TYPE_PURCHASE, purchase.getShopId(), key, () -> {
+                    auditTrail.record(purchase);
+                    if (writeQueue.isEnabled()) {
+                        if (!writeQueue.offer(purchase, idempotency.releaser(EventIngestionService.TYPE_PURCHASE,
+                                purchase.getShopId(), key))) {
+                            return responses.error(HttpStatus.SERVICE_UNAVAILABLE, "INGESTION_QUEUE_FULL");
+                        }
+                    } else {
+                        purchaseRepo.save(purchase);
+                    }
+                    log.debug("✅ Saved purchase event for order with {} products, A/B Group: {} ({})",
+                            purchase.getProducts().size(),
+                            searchGroup,
+                            searchGroup != null && searchGroup == 1 ? "AI Search" : "Shopify Search");
+
+                    return writeQueue.isEnabled() ? ResponseEntity.accepted().build() : ResponseEntity.ok().build();
+                });
+            } catch (Exception e) {
+                return badOrder(e);
             }
+        });
+    }
 
-            String currency = (String) orderData.get("currency");
-            Object timeObj = orderData.get("time");
-            Long timestampMs = timeObj instanceof Number ? ((Number) timeObj).longValue() : System.currentTimeMillis();
+    private ResponseEntity<?> badOrder(Exception e) {
+        log.error("Error processing Shopify order: {}", e.getMessage(), e);
+        return ResponseEntity.badRequest().body("Error processing order: " + e.getMessage());
+    }
 
-            @SuppressWarnings("unchecked")
-            List<java.util.Map<String, Object>> products = (List<java.util.Map<String, Object>>) orderData
-                    .get("products");
+    @PostMapping("/product-click")
+    public CompletableFuture<ResponseEntity<?>> recordProductClick(@RequestBody ProductClickRequest req,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) {
+        long retryAfterMs = rateLimiter.tryAcquire(req.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        log.debug("POST /api/v1/events/product-click - payload: {}", req);
+        String scope = EventIngestionService.TYPE_PRODUCT_CLICK;
+        return responses.async(() -> responses.once(scope, req.getShopId(), idempotencyKey, () -> {
+            ProductClickEvent e = ingestionService.toProductClickEvent(req);
+            return responses.store(e, ev -> clickRepo.save(ev).getId(),
+                    idempotency.releaser(scope, req.getShopId(), idempotencyKey));
+        }));
+    }
 
-            // --- Convert product list ---
-            List<Product> products_list = new java.util.ArrayList<>();
-            double totalAmount = 0.0;
+    @PostMapping("/buy-now-click")
+    public CompletableFuture<ResponseEntity<?>> recordBuyNowClick(@RequestBody BuyNowClickRequest req,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) {
+        long retryAfterMs = rateLimiter.tryAcquire(req.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        log.debug("POST /api/v1/events/buy-now-click - payload: {}", req);
+        String scope = EventIngestionService.TYPE_BUY_NOW_CLICK;
+        return responses.async(() -> responses.once(scope, req.getShopId(), idempotencyKey, () -> {
+            BuyNowClickEvent e = ingestionService.toBuyNowClickEvent(req);
+            return responses.store(e, ev -> buyNowRepo.save(ev).getId(),
+                    idempotency.releaser(scope, req.getShopId(), idempotencyKey));
+        }));
+    }
 
-            if (products != null) {
-                for (java.util.Map<String, Object> p : products) {
-                    String productId = String.valueOf(p.get("product_id"));
-                    String name = (String) p.get("name");
-                    double price = Double.parseDouble(p.get("price").toString());
-                    int amount = Integer.parseInt(p.get("amount").toString());
+    /**
+     * Record several events in one request. The body is either a JSON array or an
+     * NDJSON stream (one JSON object per line); each item carries a {@code type} of
+     * search, add-to-cart, product-click or buy-now-click.
+     */
+    @PostMapping(value = "/batch", consumes = "application/json")
+    public CompletableFuture<ResponseEntity<?>> recordBatch(@RequestBody List<JsonNode> items,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) {
+        return batch(items, idempotencyKey);
+    }
 
-                    products_list.add(new Product(productId, name, price, amount));
-                    totalAmount += price * amount;
-                }
+    @PostMapping(value = "/batch", consumes = "application/x-ndjson")
+    public CompletableFuture<ResponseEntity<?>> recordBatchNdjson(BufferedReader body,
+            @RequestHeader(value = IdempotencyGuard.HEADER, required = false) String idempotencyKey) throws IOException {
+        List<JsonNode> items = new ArrayList<>();
+        String line;
+        while ((line = body.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
             }
+            if (items.size() >= maxBatchItems) {
+                return responses.done(responses.error(HttpStatus.PAYLOAD_TOO_LARGE, "BATCH_TOO_LARGE"));
+            }
+            try {
+                items.add(objectMapper.readTree(line));
+            } catch (IOException e) {
+                // Keep the item so the per-item result indexes still match the input lines
+                items.add(objectMapper.createObjectNode());
+            }
+        }
+        return batch(items, idempotencyKey);
+    }
 
-            // --- Build PurchaseEvent ---
-            PurchaseEvent purchase = PurchaseEvent.builder()
-                    .shopId(shopId)
-                    .clientId(searchaiUserId)
-                    .sessionId(searchaiSessionId)
-                    .searchGroup(searchaiSearchGroup)
-                    .products(products_list)
-                    .totalAmount(totalAmount)
-                    .currency(currency)
-                    .timestampMs(timestampMs)
-                    .orderStatus((String) orderData.get("financial_status"))
-                    .build();
-
-            purchaseRepo.save(purchase);
-            log.info("✅ Saved purchase event for order with {} products, A/B Group: {} ({})",
-                    products_list.size(),
-                    searchaiSearchGroup,
-                    searchaiSearchGroup != null && searchaiSearchGroup == 1 ? "AI Search" : "Shopify Search");
-
-            return ResponseEntity.ok().build();
+    /** The shops of a batch's items, which scope its idempotency key so shops never collide. */
+    private static String batchShops(List<JsonNode> items) {
+        if (items == null) {
+            return null;
+        }
+        SortedSet<String> shops = new TreeSet<>();
+        for (JsonNode item : items) {
+            if (item != null && item.hasNonNull("shopId")) {
+                shops.add(item.get("shopId").asText());
+            }
+        }
+        return String.join(",", shops);
+    }
 
-        } catch (Exception e) {
-            log.error("Error processing Shopify order: {}", e.getMessage(), e);
-            return ResponseEntity.badRequest().body("Error processing order: " + e.getMessage());
+    /**
+     * Check the batch, its idempotency key and its shops' rate limits on the
+     * request thread; a replayed batch is acknowledged without taking permits, and
+     * a batch whose items are all over the limit is answered 429 without taking an
+     * executor slot. The key is kept only when no item was rejected for a reason a
+     * retry may get past.
+     */
+    private CompletableFuture<ResponseEntity<?>> batch(List<JsonNode> items, String idempotencyKey) {
+        if (items == null || items.isEmpty())
+            return responses.done(responses.error(HttpStatus.BAD_REQUEST, "EMPTY_BATCH"));
+        if (items.size() > maxBatchItems)
+            return responses.done(responses.error(HttpStatus.PAYLOAD_TOO_LARGE, "BATCH_TOO_LARGE"));
+        String shops = batchShops(items);
+        if (!idempotency.claim(BATCH_SCOPE, shops, idempotencyKey))
+            return responses.done(responses.duplicate());
+        long[] retryAfterMs = ingestionService.acquireRateLimits(items);
+        long minRetryAfterMs = Arrays.stream(retryAfterMs).min().orElse(0);
+        if (minRetryAfterMs > 0) {
+            idempotency.release(BATCH_SCOPE, shops, idempotencyKey);
+            return responses.done(responses.tooManyRequests(minRetryAfterMs));
         }
+        return responses.async(() -> batch(items, retryAfterMs)).whenComplete((response, failure) -> {
+            if (failure != null || !response.getStatusCode().is2xxSuccessful() || hasRetryableItems(response)) {
+                idempotency.release(BATCH_SCOPE, shops, idempotencyKey);
+            }
+        });
     }
 
-    @PostMapping("/product-click")
-    public ResponseEntity<?> recordProductClick(@RequestBody ProductClickRequest req) {
-        log.info("POST /api/v1/events/product-click - payload: {}", req);
-        ProductClickEvent e = ProductClickEvent.builder()
-                .shopId(req.getShopId())
-                .clientId(req.getClientId())
-                .sessionId(req.getSessionId())
-                .productId(req.getProductId())
-                .searchId(req.getSearchId())
-                .searchGroup(req.getSearchGroup())
-                .timestampMs(req.getTimestampMs())
-                .build();
-        return ResponseEntity.ok(clickRepo.save(e).getId());
+    private static boolean hasRetryableItems(ResponseEntity<?> response) {
+        return response.getBody() instanceof BatchResponse body
+                && body.getResults().stream()
+                        .anyMatch(r -> r.getError() != null && RETRYABLE_ITEM_ERRORS.contains(r.getError()));
     }
 
-    @PostMapping("/buy-now-click")
-    public ResponseEntity<?> recordBuyNowClick(@RequestBody BuyNowClickRequest req) {
-        log.info("POST /api/v1/events/buy-now-click - payload: {}", req);
-        BuyNowClickEvent e = BuyNowClickEvent.builder()
-                .shopId(req.getShopId())
-                .clientId(req.getClientId())
-                .sessionId(req.getSessionId())
-                .productId(req.getProductId())
-                .searchGroup(req.getSearchGroup())
-                .timestampMs(req.getTimestampMs())
+    private ResponseEntity<?> batch(List<JsonNode> items, long[] retryAfterMs) {
+        log.debug("POST /api/v1/events/batch - {} items", items.size());
+        List<BatchItemResult> results = ingestionService.recordBatch(items, retryAfterMs);
+        int accepted = (int) results.stream().filter(r -> BatchItemResult.ACCEPTED.equals(r.getStatus())).count();
+        BatchResponse body = BatchResponse.builder()
+                .accepted(accepted)
+                .rejected(results.size() - accepted)
+                .results(results)
                 .build();
-        return ResponseEntity.ok(buyNowRepo.save(e).getId());
+        return writeQueue.isEnabled() ? ResponseEntity.accepted().body(body) : ResponseEntity.ok(body);
     }
-
 }
@@ -0,0 +1,115 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.service.EventAuditTrail;
+import com.talya.searchanalytics.service.EventWriteBehindQueue;
+import com.talya.searchanalytics.service.IdempotencyGuard;
+import com.talya.searchanalytics.service.IngestionExecutor;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The write path and responses the event endpoints share: handing a request to
+ * the ingestion executor, storing or queueing an event, idempotent handling and
+ * the error bodies, so {@link EventController} and {@link LegacyEventController}
+ * answer alike.
+ */
+@Component
+@RequiredArgsConstructor
+public class EventResponses {
+
+    private static final Logger log = LoggerFactory.getLogger(EventResponses.class);
+
+    private final IngestionExecutor ingestionExecutor;
+    private final EventWriteBehindQueue writeQueue;
+    private final EventAuditTrail auditTrail;
+    private final IdempotencyGuard idempotency;
+
+    /**
+     * Run the rest of a request on the ingestion executor, answering 503 when it
+     * is saturated instead of tying up the request thread.
+     */
+    public CompletableFuture<ResponseEntity<?>> async(Supplier<ResponseEntity<?>> handler) {
+        try {
+            return ingestionExecutor.submit(handler);
+        } catch (RejectedExecutionException e) {
+            log.warn("Ingestion executor saturated, rejecting request");
+            return done(error(HttpStatus.SERVICE_UNAVAILABLE, "INGESTION_BUSY"));
+        }
+    }
+
+    public CompletableFuture<ResponseEntity<?>> done(ResponseEntity<?> response) {
+        return CompletableFuture.completedFuture(response);
+    }
+
+    /** {@link #store(Object, Function, Runnable)} for an event without an idempotency key. */
+    public <T> ResponseEntity<?> store(T event, Function<T, Long> save) {
+        return store(event, save, null);
+    }
+
+    /**
+     * Persist synchronously and return the new id, or hand the event to the
+     * write-behind queue and acknowledge with 202 when async ingestion is enabled.
+     * {@code release} frees the request's idempotency key should the queued event
+     * be lost.
+     *
+     * @param release may be null
+     */
+    public <T> ResponseEntity<?> store(T event, Function<T, Long> save, Runnable release) {
+        auditTrail.record(event);
+        if (!writeQueue.isEnabled()) {
+            return ResponseEntity.ok(save.apply(event));
+        }
+        if (!writeQueue.offer(event, release)) {
+            log.warn("Ingestion queue full, rejecting {}", event.getClass().getSimpleName());
+            return error(HttpStatus.SERVICE_UNAVAILABLE, "INGESTION_QUEUE_FULL");
+        }
+        return ResponseEntity.accepted().build();
+    }
+
+    /**
+     * Run the handler unless the idempotency key was already seen, in which case
+     * the request is acknowledged as a duplicate without touching the write path.
+     * The key is released again when the handler does not accept the event.
+     */
+    public ResponseEntity<?> once(String scope, String shopId, String key, Supplier<ResponseEntity<?>> handler) {
+        if (!idempotency.claim(scope, shopId, key)) {
+            return duplicate();
+        }
+        ResponseEntity<?> response;
+        try {
+            response = handler.get();
+        } catch (RuntimeException e) {
+            idempotency.release(scope, shopId, key);
+            throw e;
+        }
+        if (!response.getStatusCode().is2xxSuccessful()) {
+            idempotency.release(scope, shopId, key);
+        }
+        return response;
+    }
+
+    public ResponseEntity<?> duplicate() {
+        return ResponseEntity.ok(Map.of("status", "duplicate"));
+    }
+
+    public ResponseEntity<?> tooManyRequests(long retryAfterMs) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf((retryAfterMs + 999) / 1000))
+                .body(Map.of("error", "RATE_LIMITED"));
+    }
+
+    public ResponseEntity<?> error(HttpStatus status, String code) {
+        return ResponseEntity.status(status).body(Map.of("error", code));
+    }
+}
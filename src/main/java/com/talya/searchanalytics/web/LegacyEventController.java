@@ -2,6 +2,11 @@ package com.talya.searchanalytics.web;
 
 import com.talya.searchanalytics.model.*;
 import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.EventFieldDecoder;
+import com.talya.searchanalytics.service.EventIngestionService;
+import com.talya.searchanalytics.service.ProductBloomFilter;
+import com.talya.searchanalytics.service.SessionProductFilters;
+import com.talya.searchanalytics.service.ShopRateLimiter;
 import com.talya.searchanalytics.web.dto.EventDTOs.*;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
@@ -12,6 +17,8 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletResponse;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @CrossOrigin(origins = "*")
@@ -25,10 +32,17 @@ public class LegacyEventController {
     private final PurchaseEventRepository purchaseRepo;
     private final ProductClickEventRepository clickRepo;
     private final BuyNowClickEventRepository buyNowRepo;
+    private final EventIngestionService ingestionService;
+    private final ShopRateLimiter rateLimiter;
+    private final SessionProductFilters sessionFilters;
+    private final EventResponses responses;
 
     @PostMapping("/dashboard/search")
-    public ResponseEntity<?> recordSearch(@RequestBody SearchEventRequest req) {
-        log.info("POST /dashboard/search - payload: {}", req);
+    public CompletableFuture<ResponseEntity<?>> recordSearch(@RequestBody SearchEventRequest req) {
+        long retryAfterMs = rateLimiter.tryAcquire(req.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        log.debug("POST /dashboard/search - payload: {}", req);
         SearchEvent e = SearchEvent.builder()
                 .shopId(req.getShopId())
                 .searchId(req.getSearchId())
@@ -38,7 +52,13 @@ public class LegacyEventController {
                 .productIds(req.getProductIds())
                 .timestampMs(req.getTimestampMs())
                 .build();
-        return ResponseEntity.ok(searchRepo.save(e).getId());
+        return responses.async(() -> {
+            ResponseEntity<?> response = responses.store(e, ev -> searchRepo.save(ev).getId());
+            if (response.getStatusCode().is2xxSuccessful()) {
+                ingestionService.onSearchAccepted(e);
+            }
+            return response;
+        });
     }
 
     @RequestMapping(value = "/dashboard/search", method = RequestMethod.OPTIONS)
@@ -51,19 +71,31 @@ public class LegacyEventController {
 
     private boolean isValidSearchEvent(String shopId, String sessionId, String productId, String eventType) {
         if (sessionId == null || productId == null) {
-            log.info("{} ignored: missing sessionId or productId", eventType);
+            log.debug("{} ignored: missing sessionId or productId", eventType);
             return false;
         }
 
-        List<SearchEvent> searches = searchRepo.findAllByShopIdAndSessionId(shopId, sessionId);
-        if (searches.isEmpty()) {
-            log.info("{} ignored: no search events found for session {}", eventType, sessionId);
+        ProductBloomFilter filter = sessionFilters.get(shopId, sessionId);
+        if (filter.searchCount() == 0) {
+            log.debug("{} ignored: no search events found for session {}", eventType, sessionId);
             return false;
         }
 
-        log.debug("{} - Found {} search events for session {}", eventType, searches.size(), sessionId);
+        // Valid Shopify products are allowed for any session with searches
+        // (session-based validation), so no exact lookup is needed for them
+        if (productId.startsWith("gid://shopify/Product/")) {
+            log.debug("{} - Session-based validation: allowing product {} (possible direct match: {})",
+                    eventType, productId, filter.mightContain(productId));
+            return true;
+        }
+
+        if (!filter.mightContain(productId)) {
+            log.debug("{} ignored: productId {} not validated for session {}", eventType, productId, sessionId);
+            return false;
+        }
 
-        // First try direct match
+        // Bloom filters can report false positives: confirm against the stored searches
+        List<SearchEvent> searches = searchRepo.findAllByShopIdAndSessionId(shopId, sessionId);
         for (SearchEvent search : searches) {
             if (search.getProductIds() != null && search.getProductIds().contains(productId)) {
                 log.debug("{} - Direct match found: {}", eventType, productId);
@@ -71,38 +103,16 @@ public class LegacyEventController {
             }
         }
 
-        // If no direct match and it's a valid Shopify product format, allow it
-        // (session-based validation)
-        if (productId.startsWith("gid://shopify/Product/")) {
-            log.debug("{} - Session-based validation: allowing product {} from session with {} searches",
-                    eventType, productId, searches.size());
-            return true;
-        }
-
-        log.info("{} ignored: productId {} not validated for session {}", eventType, productId, sessionId);
+        log.debug("{} ignored: productId {} not validated for session {}", eventType, productId, sessionId);
         return false;
     }
 
     @PostMapping("/dashboard/add-to-cart")
-    public ResponseEntity<?> recordAddToCart(@RequestBody AddToCartRequest req) {
-        log.info("POST /dashboard/add-to-cart - payload: {}", req);
-        Double price = null;
-        String currency = null;
-        if (req.getPrice() != null) {
-            String[] parts = req.getPrice().trim().split(" ");
-            try {
-                price = Double.parseDouble(parts[0]);
-            } catch (Exception e) {
-                log.warn("Failed to parse price: {}", req.getPrice());
-            }
-            if (parts.length > 1) {
-                currency = parts[1];
-            }
-        }
-
-        if (!isValidSearchEvent(req.getShopId(), req.getSessionId(), req.getProductId(), "AddToCartEvent")) {
-            return ResponseEntity.noContent().build();
-        }
+    public CompletableFuture<ResponseEntity<?>> recordAddToCart(@RequestBody AddToCartRequest req) {
+        long retryAfterMs = rateLimiter.tryAcquire(req.getShopId(), 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
+        log.debug("POST /dashboard/add-to-cart - payload: {}", req);
 
         AddToCartEvent e = AddToCartEvent.builder()
                 .shopId(req.getShopId())
@@ -111,10 +121,15 @@ public class LegacyEventController {
                 .productId(req.getProductId())
                 .searchId(req.getSearchId())
                 .timestampMs(req.getTimestampMs())
-                .price(price)
-                .currency(currency)
+                .price(EventFieldDecoder.price(req.getPrice()))
+                .currency(EventFieldDecoder.currency(req.getPrice()))
                 .build();
-        return ResponseEntity.ok(cartRepo.save(e).getId());
+        return responses.async(() -> {
+            if (!isValidSearchEvent(req.getShopId(), req.getSessionId(), req.getProductId(), "AddToCartEvent")) {
+                return ResponseEntity.noContent().build();
+            }
+            return responses.store(e, ev -> cartRepo.save(ev).getId());
+        });
     }
 
     @RequestMapping(value = "/dashboard/add-to-cart", method = RequestMethod.OPTIONS)
@@ -126,33 +141,19 @@ public class LegacyEventController {
     }
 
     @PostMapping("/dashboard/buy-now-click")
-    public ResponseEntity<?> buyNowClick(@RequestBody java.util.Map<String, Object> event) {
-        String shopId = (String) event.get("shopId");
-        String sessionId = (String) event.get("sessionId");
-        String productId = (String) event.get("productId");
+    public CompletableFuture<ResponseEntity<?>> buyNowClick(@RequestBody Map<String, Object> event) {
+        String shopId = EventFieldDecoder.string(event.get("shopId"));
+        String sessionId = EventFieldDecoder.string(event.get("sessionId"));
+        String productId = EventFieldDecoder.string(event.get("productId"));
         if (shopId == null)
-            return error(HttpStatus.BAD_REQUEST, "MISSING_SHOP_ID");
+            return responses.done(responses.error(HttpStatus.BAD_REQUEST, "MISSING_SHOP_ID"));
+        long retryAfterMs = rateLimiter.tryAcquire(shopId, 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
 
-        log.info("POST /dashboard/buy-now-click - shopId: {}, productId: {}, sessionId: {}", shopId, productId,
+        log.debug("POST /dashboard/buy-now-click - shopId: {}, productId: {}, sessionId: {}", shopId, productId,
                 sessionId);
 
-        // Parse price and currency
-        Double price = null;
-        String currency = null;
-        Object priceObj = event.get("price");
-        if (priceObj != null) {
-            String priceStr = priceObj.toString().trim();
-            String[] parts = priceStr.split(" ");
-            try {
-                price = Double.parseDouble(parts[0]);
-            } catch (Exception e) {
-                log.warn("Failed to parse price: {}", priceStr);
-            }
-            if (parts.length > 1) {
-                currency = parts[1];
-            }
-        }
-
         // TODO: Remove from comment
         /*
          * if (!isValidSearchEvent(shopId, sessionId, productId, "BuyNowClickEvent")) {
@@ -162,37 +163,30 @@ public class LegacyEventController {
 
         BuyNowClickEvent e = BuyNowClickEvent.builder()
                 .shopId(shopId)
-                .clientId((String) event.get("client_id"))
+                .clientId(EventFieldDecoder.string(event.get("client_id")))
                 .sessionId(sessionId)
                 .productId(productId)
-                .timestampMs(event.get("timestamp") != null ? ((Number) event.get("timestamp")).longValue()
-                        : System.currentTimeMillis())
-                .price(price)
-                .currency(currency)
+                .timestampMs(EventFieldDecoder.timestamp(event.get("timestamp"), System.currentTimeMillis()))
+                .price(EventFieldDecoder.price(event.get("price")))
+                .currency(EventFieldDecoder.currency(event.get("price")))
                 .build();
-        log.info("BuyNowClickEvent recorded: productId {} for session {}", productId, sessionId);
-        return ResponseEntity.ok(buyNowRepo.save(e).getId());
+        log.debug("BuyNowClickEvent recorded: productId {} for session {}", productId, sessionId);
+        return responses.async(() -> responses.store(e, ev -> buyNowRepo.save(ev).getId()));
     }
 
     @PostMapping("/dashboard/product-click")
-    public ResponseEntity<?> productClick(@RequestBody java.util.Map<String, Object> event) {
-        String shopId = (String) event.get("shopId");
-        String sessionId = (String) event.get("sessionId");
-        String productId = (String) event.get("productId");
-
-        // URL decode the product ID if it's encoded
-        if (productId != null && productId.contains("%")) {
-            try {
-                productId = java.net.URLDecoder.decode(productId, "UTF-8");
-            } catch (Exception ex) {
-                log.warn("Failed to decode productId: {}", productId);
-            }
-        }
+    public CompletableFuture<ResponseEntity<?>> productClick(@RequestBody Map<String, Object> event) {
+        String shopId = EventFieldDecoder.string(event.get("shopId"));
+        String sessionId = EventFieldDecoder.string(event.get("sessionId"));
+        String productId = EventFieldDecoder.productId(event.get("productId"));
 
         if (shopId == null)
-            return error(HttpStatus.BAD_REQUEST, "MISSING_SHOP_ID");
+            return responses.done(responses.error(HttpStatus.BAD_REQUEST, "MISSING_SHOP_ID"));
+        long retryAfterMs = rateLimiter.tryAcquire(shopId, 1);
+        if (retryAfterMs > 0)
+            return responses.done(responses.tooManyRequests(retryAfterMs));
 
-        log.info("POST /dashboard/product-click - shopId: {}, productId: {}, sessionId: {}", shopId, productId,
+        log.debug("POST /dashboard/product-click - shopId: {}, productId: {}, sessionId: {}", shopId, productId,
                 sessionId);
 
         // TODO: Remove from comment
@@ -204,21 +198,16 @@ public class LegacyEventController {
 
         ProductClickEvent e = ProductClickEvent.builder()
                 .shopId(shopId)
-                .clientId((String) event.get("client_id"))
+                .clientId(EventFieldDecoder.string(event.get("client_id")))
                 .sessionId(sessionId)
                 .productId(productId)
-                .searchId((String) event.get("search_id"))
-                .query((String) event.get("query"))
-                .productTitle((String) event.get("product_title"))
-                .url((String) event.get("url"))
-                .timestampMs(event.get("timestamp") != null ? ((Number) event.get("timestamp")).longValue()
-                        : System.currentTimeMillis())
+                .searchId(EventFieldDecoder.string(event.get("search_id")))
+                .query(EventFieldDecoder.string(event.get("query")))
+                .productTitle(EventFieldDecoder.string(event.get("product_title")))
+                .url(EventFieldDecoder.string(event.get("url")))
+                .timestampMs(EventFieldDecoder.timestamp(event.get("timestamp"), System.currentTimeMillis()))
                 .build();
-        log.info("ProductClickEvent recorded: productId {} for session {}", productId, sessionId);
-        return ResponseEntity.ok(clickRepo.save(e).getId());
-    }
-
-    private ResponseEntity<?> error(HttpStatus status, String code) {
-        return ResponseEntity.status(status).body(java.util.Map.of("error", code));
+        log.debug("ProductClickEvent recorded: productId {} for session {}", productId, sessionId);
+        return responses.async(() -> responses.store(e, ev -> clickRepo.save(ev).getId()));
     }
 }
@@ -1,17 +1,28 @@
 package com.talya.searchanalytics.web;
 
+import com.talya.searchanalytics.model.SearchProductStorage;
 import com.talya.searchanalytics.model.Shop;
 import com.talya.searchanalytics.repo.ShopRepository;
+import com.talya.searchanalytics.service.DailyRollupService;
+import com.talya.searchanalytics.service.DataMigrationService;
+import com.talya.searchanalytics.service.EventAuditTrail;
+import com.talya.searchanalytics.service.ShopRateLimiter;
 import com.talya.searchanalytics.service.ShopService;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -22,6 +33,11 @@ public class ShopAdminController {
 
     private final ShopService shopService;
     private final ShopRepository shopRepository;
+    private final ShopRateLimiter rateLimiter;
+    private final DataMigrationService dataMigrationService;
+    private final SearchProductStorage searchProductStorage;
+    private final EventAuditTrail auditTrail;
+    private final DailyRollupService dailyRollups;
 
     private boolean isOwner() {
         Authentication a = SecurityContextHolder.getContext().getAuthentication();
@@ -89,6 +105,66 @@ public class ShopAdminController {
         response.setStatus(HttpServletResponse.SC_OK);
     }
 
+    /** Shops whose ingestion requests were shed by the per-shop rate limiter, most shed first. */
+    @GetMapping("/rate-limits")
+    public ResponseEntity<?> rateLimits(@RequestParam(defaultValue = "50") int limit) {
+        if (!isOwner())
+            return error(HttpStatus.FORBIDDEN, "FORBIDDEN");
+        return ResponseEntity.ok(Map.of("shed", rateLimiter.shedByShop(limit)));
+    }
+
+    /** Move existing search events' product ids to the configured storage layout. */
+    @PostMapping("/search-products/migrate")
+    public ResponseEntity<?> migrateSearchProducts(@RequestParam(defaultValue = "500") int batchSize) {
+        if (!isOwner())
+            return error(HttpStatus.FORBIDDEN, "FORBIDDEN");
+        String result = dataMigrationService.migrateSearchProducts(searchProductStorage.mode(), batchSize);
+        return ResponseEntity.ok(Map.of("status", "success", "message", result));
+    }
+
+    /** Recompute the dashboard's daily rollups from the raw events, for one shop or all of them. */
+    @PostMapping("/rollups/rebuild")
+    public ResponseEntity<?> rebuildRollups(@RequestParam(required = false) String shopId) {
+        if (!isOwner())
+            return error(HttpStatus.FORBIDDEN, "FORBIDDEN");
+        int days = dailyRollups.rebuild(shopId);
+        return ResponseEntity.ok(Map.of("status", "success", "days", days));
+    }
+
+    /**
+     * The shop's most recent ingested events from the in-memory audit trail, newest
+     * first. {@code format=binary} dumps them as {@code int length | EventCodec bytes}
+     * records (truncated events are skipped).
+     */
+    @GetMapping("/{domain}/recent-events")
+    public ResponseEntity<?> recentEvents(@PathVariable String domain,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(defaultValue = "json") String format) throws IOException {
+        if (!isOwner())
+            return error(HttpStatus.FORBIDDEN, "FORBIDDEN");
+        List<EventAuditTrail.Entry> entries = auditTrail.recent(domain, limit);
+        if ("binary".equals(format)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (EventAuditTrail.Entry entry : entries) {
+                if (!entry.truncated()) {
+                    out.writeInt(entry.encoded().length);
+                    out.write(entry.encoded());
+                }
+            }
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(bytes.toByteArray());
+        }
+        return ResponseEntity.ok(Map.of("shopDomain", domain, "events", entries.stream().map(entry -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("seq", entry.seq());
+            item.put("receivedAt", entry.receivedAtMs());
+            item.put("type", entry.type());
+            item.put("truncated", entry.truncated());
+            item.put("event", entry.event());
+            return item;
+        }).collect(Collectors.toList())));
+    }
+
     @GetMapping("/{domain}")
     public ResponseEntity<?> get(@PathVariable String domain) {
         if (!isOwner())
@@ -49,6 +49,8 @@ public class AnalyticsSummaryResponse {
     private Double sessionsWithPurchasesChangePercent;
     private Double sessionsWithSearchesChangePercent;
     private Double addToCartRateChangePercent;
+    // Relative standard error of the session counts in percent, null when they are exact
+    private Double sessionCountErrorPercent;
 
     // Query complexity metrics
     private Double averageWordsPerQuery;
@@ -77,4 +77,30 @@ public class EventDTOs {
         private Integer searchGroup;
         private Long timestampMs;
     }
+
+    /** Outcome of one item of a {@code /api/v1/events/batch} request */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Builder
+    public static class BatchItemResult {
+        public static final String ACCEPTED = "accepted";
+        public static final String REJECTED = "rejected";
+
+        private int index;
+        private String type;
+        private String status;
+        private Long id; // null when rejected or persisted asynchronously
+        private String error;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Builder
+    public static class BatchResponse {
+        private int accepted;
+        private int rejected;
+        private List<BatchItemResult> results;
+    }
 }
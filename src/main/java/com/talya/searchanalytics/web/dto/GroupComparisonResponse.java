@@ -0,0 +1,30 @@
+package com.talya.searchanalytics.web.dto;
+
+import lombok.*;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class GroupComparisonResponse {
+
+    // Group every variant is compared with (the first one requested)
+    private Integer baselineGroup;
+
+    // One entry per requested group, baseline first
+    private List<Variant> variants;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Builder
+    public static class Variant {
+        private Integer searchGroup;
+        private String label;
+        private AnalyticsSummaryResponse summary;
+        // Differences of this group vs the baseline, as in ABTestComparisonResponse; null for the baseline
+        private ABTestComparisonResponse.ComparisonMetrics comparison;
+    }
+}
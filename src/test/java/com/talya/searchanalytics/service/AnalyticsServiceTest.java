@@ -4,16 +4,19 @@ import com.talya.searchanalytics.model.*;
 import com.talya.searchanalytics.repo.*;
 import com.talya.searchanalytics.web.dto.AnalyticsFullResponse;
 import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
 
-import java.util.Collections;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class AnalyticsServiceTest {
@@ -30,13 +33,20 @@ public class AnalyticsServiceTest {
     private BuyNowClickEventRepository buyNowRepo;
     @Mock
     private CurrencyService currencyService;
+    @Mock
+    private DailyRollupService dailyRollups;
+    @Mock
+    private SqlPeriodAnalytics sqlAnalytics;
 
     private AnalyticsService service;
 
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        service = new AnalyticsService(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo, currencyService);
+        service = new AnalyticsService(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo, currencyService,
+                dailyRollups, new AnalyticsExecutor(new SimpleMeterRegistry(), mock(PlatformTransactionManager.class),
+                        2, 10),
+                sqlAnalytics, mock(HotWindowStore.class));
     }
 
     @Test
@@ -47,36 +57,26 @@ public class AnalyticsServiceTest {
         when(purchaseRepo.countByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong())).thenReturn(1L);
         when(purchaseRepo.sumTotalAmountByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong()))
                 .thenReturn(100.0);
-        when(searchRepo.topQueries(anyString(), anyLong(), anyLong())).thenReturn(Collections.emptyList());
+        when(searchRepo.queryCounts(anyString(), anyLong(), anyLong())).thenReturn(Stream.empty());
         // Mock currency service
         when(currencyService.getExchangeRate(anyString())).thenReturn(1.0);
         when(currencyService.convertToEur(anyDouble(), anyString())).thenReturn(100.0);
 
-        // Mock for filtering logic: search event and add-to-cart event with matching
+        // Mock for filtering logic: search row and add-to-cart row with matching
         // sessionId/productId
-        SearchEvent searchEvent = new SearchEvent();
-        searchEvent.setSessionId("sess1");
-        searchEvent.setProductIds(List.of("prod1"));
-
-        AddToCartEvent cartEvent = new AddToCartEvent();
-        cartEvent.setSessionId("sess1");
-        cartEvent.setProductId("prod1");
-        cartEvent.setPrice(50.0);
-        cartEvent.setCurrency("NIS");
-
-        PurchaseEvent purchaseEvent = new PurchaseEvent();
-        purchaseEvent.setSessionId("sess1");
-        Product product = new Product("prod1", "Test Product", 100.0, 1);
-        purchaseEvent.setProducts(List.of(product));
-        purchaseEvent.setTotalAmount(100.0);
-        purchaseEvent.setCurrency("EUR");
-
-        when(searchRepo.findAllByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong()))
-                .thenReturn(List.of(searchEvent));
-        when(cartRepo.findAllByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong()))
-                .thenReturn(List.of(cartEvent));
-        when(purchaseRepo.findAllByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong()))
-                .thenReturn(List.of(purchaseEvent));
+        SearchRow searchRow = new SearchRow(1L, "sess1", "hat", null, 1L, List.of("prod1"));
+        CartRow cartRow = new CartRow(1L, "sess1", "prod1", 50.0, "NIS", null, 1L);
+        PurchaseRow purchaseRow = new PurchaseRow(1L, "sess1", 100.0, "EUR", null, 1L,
+                List.of(new PurchaseRow.Item("prod1", 100.0, 1)));
+
+        when(searchRepo.findAnalyticsRows(anyString(), anyLong(), anyLong(), isNull()))
+                .thenReturn(List.of(searchRow));
+        when(cartRepo.findAnalyticsRows(anyString(), anyLong(), anyLong(), isNull()))
+                .thenReturn(List.of(cartRow));
+        when(purchaseRepo.findAnalyticsRows(anyString(), anyLong(), anyLong(), isNull()))
+                .thenReturn(List.of(purchaseRow));
+        when(clickRepo.findAnalyticsRows(anyString(), anyLong(), anyLong(), isNull())).thenReturn(List.of());
+        when(buyNowRepo.findAnalyticsRows(anyString(), anyLong(), anyLong(), isNull())).thenReturn(List.of());
 
         AnalyticsSummaryResponse s = service.summary("shop1", 0L, System.currentTimeMillis(), null);
         assertNotNull(s);
@@ -93,6 +93,9 @@ public class AnalyticsServiceTest {
         when(buyNowRepo.findAllByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong()))
                 .thenReturn(List.of(new BuyNowClickEvent()));
 
+        when(searchRepo.findAllByShopIdAndTimestampMsBetween(anyString(), anyLong(), anyLong()))
+                .thenReturn(List.of(new SearchEvent()));
+
         AnalyticsFullResponse full = service.full("shop1", 0L, System.currentTimeMillis());
         assertNotNull(full);
         assertEquals(1, full.getSearchEvents().size());
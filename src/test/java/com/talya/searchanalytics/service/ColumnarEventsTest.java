@@ -0,0 +1,129 @@
+package com.talya.searchanalytics.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarEventsTest {
+
+    private static final String SHOP = "columnar-shop.myshopify.com";
+
+    private static String gid(long n) {
+        return "gid://shopify/Product/" + (8_000_000_000L + n);
+    }
+
+    /** Searches as the storefront sends them: one shop, repeated sessions and queries, Shopify gids. */
+    private static List<SearchEvent> searches(int count) {
+        List<SearchEvent> searches = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            searches.add(SearchEvent.builder().id(1000L + i).shopId(SHOP).searchId("search-" + i)
+                    .clientId("client-" + i / 20).sessionId("session-" + i / 5).query("query " + i % 50)
+                    .productIds(List.of(gid(i % 300), gid(i % 300 + 1), gid(i % 300 + 2), gid(i % 300 + 3)))
+                    .searchGroup(i % 2).timestampMs(1_772_452_800_000L + i * 1_500L).build());
+        }
+        return searches;
+    }
+
+    private static void section(ByteArrayOutputStream out, EventExporter.Type type, List<?>... blocks)
+            throws IOException {
+        out.write(ColumnarEvents.header(type));
+        for (List<?> block : blocks) {
+            out.write(ColumnarEvents.block(type, block));
+        }
+        out.write(ColumnarEvents.end());
+    }
+
+    @Test
+    void everyTypeRoundTrips() throws IOException {
+        List<SearchEvent> searches = searches(10);
+        // Nulls, non-gid ids, non-ASCII text and ids going backwards
+        searches.add(SearchEvent.builder().id(7L).shopId(SHOP).searchId("s").clientId("c").sessionId("x")
+                .query("כובע \"אדום\"").productIds(Arrays.asList("plain-id", null, "gid://shopify/Product/007"))
+                .timestampMs(5L).build());
+        searches.add(SearchEvent.builder().id(8L).shopId(SHOP).searchId("t").clientId("c").sessionId("x")
+                .query("").productIds(null).searchGroup(-3).timestampMs(5L).build());
+        List<ProductClickEvent> clicks = List.of(ProductClickEvent.builder().id(1L).shopId(SHOP).productId(gid(1))
+                .query("hat").productTitle("Hat").url("https://shop/hat").searchGroup(1).timestampMs(9L).build(),
+                ProductClickEvent.builder().id(2L).shopId(SHOP).timestampMs(3L).build());
+        List<AddToCartEvent> carts = List.of(AddToCartEvent.builder().id(1L).shopId(SHOP).sessionId("s")
+                .productId(gid(2)).price(19.9).currency("ILS").timestampMs(1L).build(),
+                AddToCartEvent.builder().id(3L).shopId(SHOP).sessionId("s").productId("p").timestampMs(2L).build());
+        List<PurchaseEvent> purchases = List.of(PurchaseEvent.builder().id(4L).shopId(SHOP).sessionId("s")
+                .orderId("1001").totalAmount(49.5).currency("ILS")
+                .products(List.of(new Product(gid(2), "Hat", 19.9, 1), new Product(null, null, null, null)))
+                .timestampMs(10L).build(),
+                PurchaseEvent.builder().id(5L).shopId(SHOP).totalAmount(0.0).products(null).timestampMs(11L).build(),
+                PurchaseEvent.builder().id(6L).shopId(SHOP).totalAmount(1.0).products(List.of()).timestampMs(12L)
+                        .build());
+        List<BuyNowClickEvent> buyNow = List.of(BuyNowClickEvent.builder().id(9L).shopId(SHOP).productId(gid(3))
+                .price(12.5).currency("USD").searchGroup(0).timestampMs(4L).build());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        section(out, EventExporter.Type.SEARCHES, searches.subList(0, 4), searches.subList(4, searches.size()));
+        section(out, EventExporter.Type.CLICKS, clicks);
+        section(out, EventExporter.Type.CARTS, carts);
+        section(out, EventExporter.Type.PURCHASES, purchases);
+        section(out, EventExporter.Type.BUY_NOW_CLICKS);
+        section(out, EventExporter.Type.BUY_NOW_CLICKS, buyNow);
+
+        List<Object> expected = new ArrayList<>(searches);
+        expected.addAll(clicks);
+        expected.addAll(carts);
+        expected.addAll(purchases);
+        expected.addAll(buyNow);
+        assertEquals(expected, ColumnarEventReader.readAll(new ByteArrayInputStream(out.toByteArray())));
+
+        try (ColumnarEventReader reader = ColumnarEventReader.open(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals(4, reader.nextBlock().size());
+            assertEquals(EventExporter.Type.SEARCHES, reader.type());
+            reader.nextBlock();
+            reader.nextBlock();
+            assertEquals(EventExporter.Type.CLICKS, reader.type());
+        }
+    }
+
+    @Test
+    void readsGzippedStreams() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            section(plain, EventExporter.Type.SEARCHES, searches(100));
+            gzip.write(plain.toByteArray());
+        }
+        assertEquals(new ArrayList<>(searches(100)),
+                ColumnarEventReader.readAll(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    void rejectsOtherStreams() {
+        assertThrows(IOException.class,
+                () -> ColumnarEventReader.readAll(new ByteArrayInputStream("{\"id\":1}".getBytes())));
+        byte[] truncated = Arrays.copyOf(ColumnarEvents.block(EventExporter.Type.SEARCHES, searches(10)), 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ColumnarEvents.header(EventExporter.Type.SEARCHES));
+        out.writeBytes(truncated);
+        assertThrows(IOException.class, () -> ColumnarEventReader.readAll(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    void muchSmallerThanJson() throws IOException {
+        List<SearchEvent> searches = searches(1000);
+        int json = 0;
+        for (SearchEvent search : searches) {
+            json += new ObjectMapper().writeValueAsBytes(search).length + 1;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        section(out, EventExporter.Type.SEARCHES, searches);
+        assertTrue(out.size() * 5 < json, out.size() + " bytes columnar, " + json + " bytes NDJSON");
+    }
+}
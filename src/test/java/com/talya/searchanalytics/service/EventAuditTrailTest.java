@@ -0,0 +1,90 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.AddToCartEvent;
+import com.talya.searchanalytics.model.SearchEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventAuditTrailTest {
+
+    private static EventAuditTrail trail(int slots, int slotBytes) {
+        return new EventAuditTrail(new SimpleMeterRegistry(), true, slots, slotBytes, 0, 0);
+    }
+
+    private static SearchEvent search(String shopId, String searchId, int results) {
+        return SearchEvent.builder().shopId(shopId).searchId(searchId).clientId("c").sessionId("sess")
+                .query("hat").productIds(Collections.nCopies(results, "gid://shopify/Product/8612345678901"))
+                .timestampMs(1000L).build();
+    }
+
+    @Test
+    void recentEventsAreFilteredByShopNewestFirst() {
+        EventAuditTrail trail = trail(16, 512);
+        for (int i = 0; i < 40; i++) {
+            trail.record(search(i % 2 == 0 ? "a.myshopify.com" : "b.myshopify.com", "s" + i, 1));
+        }
+        trail.record(AddToCartEvent.builder().shopId("a.myshopify.com").productId("p1").price(10.0).build());
+
+        List<EventAuditTrail.Entry> recent = trail.recent("a.myshopify.com", 5);
+
+        assertEquals(List.of("add-to-cart", "search", "search", "search", "search"),
+                recent.stream().map(EventAuditTrail.Entry::type).collect(Collectors.toList()));
+        assertEquals("s38", ((SearchEvent) recent.get(1).event()).getSearchId());
+        // Only the last 16 events are still in the ring: 7 of shop a's searches plus the add-to-cart
+        assertEquals(8, trail.recent("a.myshopify.com", 100).size());
+        assertEquals(16, trail.recent(null, 100).size());
+    }
+
+    @Test
+    void oversizedEventsAreKeptTruncated() {
+        EventAuditTrail trail = trail(8, 256);
+        trail.record(search("a.myshopify.com", "big", 200));
+
+        EventAuditTrail.Entry entry = trail.recent("a.myshopify.com", 1).get(0);
+
+        assertTrue(entry.truncated());
+        assertNull(entry.event());
+        assertEquals("search", entry.type());
+    }
+
+    @Test
+    void concurrentWritersNeverExposeTornEvents() throws Exception {
+        EventAuditTrail trail = trail(64, 512);
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String shop = "shop" + t;
+            writers.add(pool.submit(() -> IntStream.range(0, 20_000)
+                    .forEach(i -> trail.record(search(shop, shop + "-" + i, 1 + i % 5)))));
+        }
+        Future<Integer> reader = pool.submit(() -> {
+            int seen = 0;
+            while (writers.stream().anyMatch(w -> !w.isDone())) {
+                for (EventAuditTrail.Entry entry : trail.recent(null, 64)) {
+                    SearchEvent e = (SearchEvent) entry.event();
+                    int i = Integer.parseInt(e.getSearchId().substring(e.getSearchId().indexOf('-') + 1));
+                    assertTrue(e.getSearchId().startsWith(e.getShopId() + "-"));
+                    assertEquals(1 + i % 5, e.getProductIds().size());
+                    seen++;
+                }
+            }
+            return seen;
+        });
+        for (Future<?> w : writers) {
+            w.get();
+        }
+        assertTrue(reader.get() > 0);
+        pool.shutdown();
+    }
+}
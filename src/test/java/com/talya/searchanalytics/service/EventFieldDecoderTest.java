@@ -0,0 +1,117 @@
+package com.talya.searchanalytics.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventFieldDecoderTest {
+
+    @Test
+    void pricesMatchDoubleParsing() {
+        for (String s : List.of("0", "12.9", "12.90", "-3.5", "+7", "0.1", "19999.99", "123456789012.345",
+                "0.000000000000000000000000001", "1e3", "1.7976931348623157E308", "12345678901234567890.5")) {
+            assertEquals(Double.parseDouble(s), EventFieldDecoder.parsePrice(s), s);
+        }
+        assertEquals(12.9, EventFieldDecoder.price("  12.90 ILS"));
+        assertEquals(5.0, EventFieldDecoder.price(5));
+        assertNull(EventFieldDecoder.price("abc ILS"));
+        assertNull(EventFieldDecoder.price(""));
+        assertNull(EventFieldDecoder.price("."));
+        assertNull(EventFieldDecoder.price(null));
+    }
+
+    @Test
+    void currencyCodesAreShared() {
+        String first = EventFieldDecoder.currency("12.90 ILS");
+        String second = EventFieldDecoder.currency(new StringBuilder("3 ILS"));
+
+        assertEquals("ILS", first);
+        assertSame(first, second);
+        assertSame(first, EventFieldDecoder.currencyCode(new String("ILS")));
+        assertEquals("usd", EventFieldDecoder.currency("1 usd"));
+        assertNull(EventFieldDecoder.currency("12.90"));
+        assertNull(EventFieldDecoder.currency(12.9));
+    }
+
+    @Test
+    void productIdsAndTimestamps() {
+        String gid = "gid://shopify/Product/8612345678901";
+        assertSame(gid, EventFieldDecoder.productId(gid));
+        for (String encoded : List.of("gid%3A%2F%2Fshopify%2FProduct%2F8612345678901", "caf%C3%A9+cr%C3%A8me",
+                "שלום%20עולם")) {
+            assertEquals(URLDecoder.decode(encoded, StandardCharsets.UTF_8), EventFieldDecoder.productId(encoded));
+        }
+        assertEquals("bad%zz", EventFieldDecoder.productId("bad%zz"));
+        assertEquals("bad%2", EventFieldDecoder.productId("bad%2"));
+        assertEquals("42", EventFieldDecoder.productId(42));
+
+        assertEquals(1700000000000L, EventFieldDecoder.timestamp(1700000000000L, -1));
+        assertEquals(1700000000000L, EventFieldDecoder.timestamp("1700000000000", -1));
+        assertEquals(-1, EventFieldDecoder.timestamp("yesterday", -1));
+        assertEquals(-1, EventFieldDecoder.timestamp(null, -1));
+    }
+
+    /**
+     * Per-event decode cost and allocation, old split/parseDouble/URLDecoder code
+     * against the decoder. Not part of the regular build; run with
+     * {@code mvn test -Dtest=EventFieldDecoderTest -Ddecoder.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "decoder.benchmark", matches = "true")
+    void decodeBenchmark() throws Exception {
+        Map<String, Object> event = Map.of("price", "129.90 ILS", "timestamp", 1700000000000L,
+                "productId", "gid%3A%2F%2Fshopify%2FProduct%2F8612345678901");
+        Map<String, Object> plain = Map.of("price", "129.90 ILS", "timestamp", 1700000000000L,
+                "productId", "gid://shopify/Product/8612345678901");
+
+        ToLongFunction<Map<String, Object>> legacy = e -> {
+            String[] parts = e.get("price").toString().trim().split(" ");
+            double price = Double.parseDouble(parts[0]);
+            String currency = parts.length > 1 ? parts[1] : null;
+            String productId = (String) e.get("productId");
+            if (productId.contains("%")) {
+                productId = URLDecoder.decode(productId, StandardCharsets.UTF_8);
+            }
+            long ts = ((Number) e.get("timestamp")).longValue();
+            return (long) price + currency.length() + productId.length() + ts;
+        };
+        ToLongFunction<Map<String, Object>> decoder = e -> {
+            double price = EventFieldDecoder.price(e.get("price"));
+            String currency = EventFieldDecoder.currency(e.get("price"));
+            String productId = EventFieldDecoder.productId(e.get("productId"));
+            long ts = EventFieldDecoder.timestamp(e.get("timestamp"), 0);
+            return (long) price + currency.length() + productId.length() + ts;
+        };
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int iterations = 2_000_000;
+        for (String name : List.of("legacy", "decoder")) {
+            ToLongFunction<Map<String, Object>> f = name.equals("legacy") ? legacy : decoder;
+            for (Map<String, Object> input : List.of(plain, event)) {
+                long sink = 0;
+                for (int i = 0; i < iterations; i++) {
+                    sink += f.applyAsLong(input);
+                }
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += f.applyAsLong(input);
+                }
+                double ns = (System.nanoTime() - start) / (double) iterations;
+                double allocated = (threads.getThreadAllocatedBytes(thread) - bytes) / (double) iterations;
+                System.out.printf("decode %-7s %-7s %7.1f ns/event %7.1f B/event (%d)%n", name,
+                        input == plain ? "plain" : "encoded", ns, allocated, sink & 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.talya.searchanalytics.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.web.dto.EventDTOs.BatchItemResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EventWriteBehindQueueTest {
+
+    @Mock
+    private SearchEventRepository searchRepo;
+    @Mock
+    private AddToCartEventRepository cartRepo;
+    @Mock
+    private PurchaseEventRepository purchaseRepo;
+    @Mock
+    private ProductClickEventRepository clickRepo;
+    @Mock
+    private BuyNowClickEventRepository buyNowRepo;
+
+    @TempDir
+    Path dir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    /** Search ids in the order the repository stored them */
+    private final List<String> saved = Collections.synchronizedList(new ArrayList<>());
+    private final List<EventWriteBehindQueue> queues = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(searchRepo.saveAll(any())).thenAnswer(inv -> {
+            List<SearchEvent> events = new ArrayList<>();
+            inv.<Iterable<SearchEvent>>getArgument(0).forEach(events::add);
+            // A search without a client id fails the whole transaction it is saved in
+            if (events.stream().anyMatch(e -> e.getClientId() == null)) {
+                throw new IllegalStateException("client id is null");
+            }
+            events.forEach(e -> saved.add(e.getSearchId()));
+            return events;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        queues.forEach(EventWriteBehindQueue::stop);
+    }
+
+    private EventWriteBehindQueue queue(int capacity, int batchSize, long flushIntervalMs) {
+        IngestionJournal journal = new IngestionJournal(registry, false, dir.toString(), 1 << 16, "group", 5);
+        EventWriteBehindQueue queue = new EventWriteBehindQueue(searchRepo, cartRepo, purchaseRepo, clickRepo,
+                buyNowRepo, mock(PlatformTransactionManager.class), journal, registry, true, capacity, batchSize,
+                flushIntervalMs, 1);
+        queues.add(queue);
+        return queue;
+    }
+
+    private static SearchEvent search(String searchId) {
+        return SearchEvent.builder().shopId("shop").searchId(searchId).clientId("c").sessionId("sess")
+                .query("hat").productIds(List.of("p1")).timestampMs(1000L).build();
+    }
+
+    private void awaitSaved(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && saved.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void offeredEventsAreDrainedInBatches() throws Exception {
+        EventWriteBehindQueue queue = queue(100, 10, 20);
+        queue.start();
+        for (int i = 0; i < 25; i++) {
+            assertTrue(queue.offer(search("s" + i)));
+        }
+
+        awaitSaved(25);
+        assertEquals(25, saved.size());
+        assertEquals(25.0, registry.get("ingestion.queue.written").counter().count());
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    void fullQueueRejectsEvents() throws Exception {
+        // Not started, so nothing drains the queue
+        EventWriteBehindQueue queue = queue(2, 10, 20);
+        assertTrue(queue.offer(search("s1")));
+        assertTrue(queue.offer(search("s2")));
+        assertFalse(queue.offer(search("s3")));
+        assertEquals(1.0, registry.get("ingestion.queue.rejected").counter().count());
+
+        // The batch endpoint reports such items as INGESTION_QUEUE_FULL
+        IdempotencyGuard idempotency = mock(IdempotencyGuard.class);
+        when(idempotency.claimAll(anyString(), anyList())).thenAnswer(inv -> {
+            boolean[] fresh = new boolean[inv.<List<?>>getArgument(1).size()];
+            Arrays.fill(fresh, true);
+            return fresh;
+        });
+        // Configured like Spring's, which ignores the item's type property
+        ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+        EventIngestionService ingestion = new EventIngestionService(searchRepo, cartRepo, clickRepo, buyNowRepo,
+                queue, mock(SessionSearchIndex.class), mock(SessionProductFilters.class), idempotency,
+                mock(ShopRateLimiter.class), mock(EventAuditTrail.class), mapper);
+        List<JsonNode> items = List.of(mapper.readTree("{\"type\":\"product-click\",\"shopId\":\"shop\","
+                + "\"sessionId\":\"sess\",\"productId\":\"p1\",\"timestampMs\":1}"));
+        List<BatchItemResult> results = ingestion.recordBatch(items, new long[1]);
+        assertEquals("INGESTION_QUEUE_FULL", results.get(0).getError());
+    }
+
+    @Test
+    void failedBatchIsRetriedOneEventAtATime() throws Exception {
+        EventWriteBehindQueue queue = queue(100, 10, 200);
+        AtomicInteger lost = new AtomicInteger();
+        SearchEvent bad = search("bad");
+        bad.setClientId(null);
+        queue.offer(search("s1"), lost::incrementAndGet);
+        queue.offer(bad, lost::incrementAndGet);
+        queue.offer(search("s2"), lost::incrementAndGet);
+        queue.start();
+
+        awaitSaved(2);
+        for (int i = 0; i < 500 && registry.get("ingestion.queue.failed").counter().count() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("s1", "s2"), saved);
+        assertEquals(1.0, registry.get("ingestion.queue.failed").counter().count());
+        // Not journaled, so the bad event is lost and its callback runs
+        assertEquals(1, lost.get());
+    }
+
+    @Test
+    void stopPersistsQueuedEvents() throws Exception {
+        EventWriteBehindQueue queue = queue(200, 50, 10_000);
+        queue.start();
+        for (int i = 0; i < 120; i++) {
+            assertTrue(queue.offer(search("s" + i)));
+        }
+
+        queue.stop();
+        assertEquals(120, saved.size());
+        assertEquals(List.of("s0", "s1", "s2"), saved.stream().limit(3).collect(Collectors.toList()));
+        assertEquals(0, queue.depth());
+    }
+}
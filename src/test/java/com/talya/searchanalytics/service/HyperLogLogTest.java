@@ -0,0 +1,62 @@
+package com.talya.searchanalytics.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HyperLogLogTest {
+
+    private static HyperLogLog sessions(int from, int to) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = from; i < to; i++) {
+            sketch.add(new UUID(42, i).toString());
+        }
+        return sketch;
+    }
+
+    private static void assertWithinError(long expected, long estimate) {
+        // Three standard errors, plus one for tiny counts
+        double bound = 3 * HyperLogLog.RELATIVE_ERROR * expected + 1;
+        assertTrue(Math.abs(estimate - expected) <= bound, "expected " + expected + ", estimated " + estimate);
+    }
+
+    @Test
+    void estimatesWithinErrorAtAnySize() {
+        assertEquals(0, new HyperLogLog().estimate());
+        for (int n : new int[] { 1, 10, 500, 5_000, 50_000, 500_000 }) {
+            assertWithinError(n, sessions(0, n).estimate());
+        }
+    }
+
+    @Test
+    void repeatedSessionsCountOnce() {
+        HyperLogLog sketch = sessions(0, 1000);
+        HyperLogLog again = sessions(0, 1000);
+        sketch.merge(again);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(new UUID(42, i).toString());
+        }
+        assertArrayEquals(again.toBytes(), sketch.toBytes());
+    }
+
+    @Test
+    void mergedDaysEstimateTheirUnion() {
+        // Overlapping days, as returning sessions are
+        HyperLogLog union = new HyperLogLog();
+        for (int day = 0; day < 30; day++) {
+            union.merge(HyperLogLog.fromBytes(sessions(day * 1000, day * 1000 + 1500).toBytes()));
+        }
+        assertWithinError(30 * 1000 + 500, union.estimate());
+        assertArrayEquals(sessions(0, 30 * 1000 + 500).toBytes(), union.toBytes());
+    }
+
+    @Test
+    void storedBytesRoundTrip() {
+        HyperLogLog sketch = sessions(0, 2000);
+        assertArrayEquals(sketch.toBytes(), HyperLogLog.fromBytes(sketch.toBytes()).toBytes());
+        assertTrue(HyperLogLog.fromBytes(null).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> HyperLogLog.fromBytes(new byte[10]));
+    }
+}
@@ -0,0 +1,189 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IngestionJournalTest {
+
+    @TempDir
+    Path dir;
+
+    private IngestionJournal journal(int segmentBytes, String fsync) {
+        return new IngestionJournal(new SimpleMeterRegistry(), true, dir.toString(), segmentBytes, fsync, 5);
+    }
+
+    private static SearchEvent search(int i) {
+        return SearchEvent.builder().shopId("shop").searchId("s" + i).clientId("c").sessionId("sess")
+                .query("query " + i).productIds(List.of("gid://shopify/Product/" + i, "p" + i))
+                .searchGroup(i % 2).timestampMs(1000L + i).build();
+    }
+
+    private List<Path> segmentFiles() throws Exception {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void eventsRoundTripThroughTheCodec() {
+        List<Object> events = List.of(
+                search(1),
+                AddToCartEvent.builder().shopId("shop").productId("p1").price(10.5).currency("ILS").timestampMs(2L).build(),
+                PurchaseEvent.builder().shopId("shop").orderId("1001").totalAmount(21.0).timestampMs(3L)
+                        .products(List.of(new Product("p1", "Hat", 10.5, 2))).orderStatus("paid").build(),
+                ProductClickEvent.builder().shopId("shop").productId("p2").url("https://shop/p2").searchGroup(1)
+                        .timestampMs(4L).build(),
+                BuyNowClickEvent.builder().shopId("shop").productId("p3").timestampMs(5L).build());
+        for (Object event : events) {
+            assertEquals(event, EventCodec.decode(ByteBuffer.wrap(EventCodec.encode(event))));
+        }
+    }
+
+    @Test
+    void unacknowledgedEventsAreReplayedAndAcknowledgedSegmentsDeleted() throws Exception {
+        IngestionJournal journal = journal(1024, "per-event");
+        assertTrue(journal.open().isEmpty());
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            seqs.add(journal.append(search(i)));
+        }
+        int segmentsBefore = segmentFiles().size();
+        assertTrue(segmentsBefore > 3, "segments: " + segmentsBefore);
+        // Persist everything except events 25 and 31
+        List<Long> acked = new ArrayList<>(seqs);
+        acked.remove(seqs.get(31));
+        acked.remove(seqs.get(25));
+        journal.ack(acked);
+        assertTrue(segmentFiles().size() < segmentsBefore);
+
+        // Simulate a crash: the journal is reopened without being closed
+        IngestionJournal reopened = journal(1024, "per-event");
+        List<IngestionJournal.Entry> replay = reopened.open();
+        assertEquals(List.of(seqs.get(25), seqs.get(31)),
+                replay.stream().map(IngestionJournal.Entry::seq).collect(Collectors.toList()));
+        assertEquals(search(25), replay.get(0).event());
+
+        reopened.ack(List.of(seqs.get(25), seqs.get(31)));
+        reopened.close();
+        IngestionJournal recovered = journal(1024, "group");
+        assertTrue(recovered.open().isEmpty());
+        recovered.close();
+        // Only the new active segment is left
+        assertEquals(1, segmentFiles().size());
+    }
+
+    @Test
+    void tornRecordEndsReplay() throws Exception {
+        IngestionJournal journal = journal(1 << 16, "periodic");
+        journal.open();
+        journal.append(search(1));
+        journal.append(search(2));
+        journal.close();
+
+        Path segment = segmentFiles().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length;
+        while (bytes[end - 1] == 0) {
+            end--;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // Flip a byte inside the last record as if its write never completed
+            file.seek(end - 6);
+            file.write(bytes[end - 6] ^ 0xFF);
+        }
+
+        List<IngestionJournal.Entry> replay = journal(1 << 16, "periodic").open();
+        assertEquals(1, replay.size());
+        assertEquals(search(1), replay.get(0).event());
+    }
+
+    @Test
+    void periodicPolicyForcesOncePerInterval() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        IngestionJournal journal = new IngestionJournal(registry, true, dir.toString(), 1 << 20, "periodic", 400);
+        journal.open();
+        long end = System.currentTimeMillis() + 1000;
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; System.currentTimeMillis() < end; i++) {
+            seqs.add(journal.append(search(i)));
+            if (i % 10 == 9) {
+                journal.ack(seqs);
+                seqs.clear();
+            }
+            Thread.sleep(1);
+        }
+        journal.close();
+        // Appends and acks do not wake the flusher: about one force per 400 ms, plus the one on close
+        long forces = registry.get("ingestion.journal.fsync").timer().count();
+        assertTrue(forces <= 4, "forces: " + forces);
+    }
+
+    @Test
+    void acksAreForcedWithoutALaterAppend() throws Exception {
+        for (String policy : List.of("per-event", "group", "periodic")) {
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            Path policyDir = Files.createDirectory(dir.resolve(policy));
+            IngestionJournal journal = new IngestionJournal(registry, true, policyDir.toString(), 1 << 20, policy, 50);
+            journal.open();
+            long seq = journal.append(search(1));
+            Thread.sleep(200);
+            long forces = registry.get("ingestion.journal.fsync").timer().count();
+
+            journal.ack(List.of(seq));
+            Thread.sleep(200);
+            assertTrue(registry.get("ingestion.journal.fsync").timer().count() > forces, policy);
+            journal.close();
+        }
+    }
+
+    /**
+     * Append throughput per fsync policy. Not part of the regular build; run with
+     * {@code mvn test -Dtest=IngestionJournalTest -Djournal.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "journal.benchmark", matches = "true")
+    void fsyncPolicyThroughput() throws Exception {
+        int threads = 8;
+        int perThread = 2000;
+        for (String policy : List.of("per-event", "group", "periodic")) {
+            Path policyDir = Files.createDirectory(dir.resolve(policy));
+            IngestionJournal journal = new IngestionJournal(new SimpleMeterRegistry(), true, policyDir.toString(),
+                    16 << 20, policy, 100);
+            journal.open();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append(search(i));
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+            journal.close();
+            System.out.printf("journal fsync=%-9s %,10.0f events/s%n", policy, threads * perThread / seconds);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.talya.searchanalytics.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProductBloomFilterTest {
+
+    private static List<String> products(int from, int to) {
+        List<String> ids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add("gid://shopify/Product/" + (8000000000L + i));
+        }
+        return ids;
+    }
+
+    @Test
+    void noFalseNegativesAcrossGrowth() {
+        ProductBloomFilter filter = new ProductBloomFilter(16, 1 << 20);
+        for (int search = 0; search < 40; search++) {
+            filter.addAll(products(search * 50, search * 50 + 50));
+        }
+        assertEquals(40, filter.searchCount());
+        for (String id : products(0, 2000)) {
+            assertTrue(filter.mightContain(id), id);
+        }
+        int falsePositives = 0;
+        for (String id : products(100000, 110000)) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 500, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void footprintIsBoundedPerSession() {
+        ProductBloomFilter filter = new ProductBloomFilter(16, 8 * 1024);
+        filter.addAll(products(0, 20000));
+        assertTrue(filter.sizeInBytes() < 2048, "size: " + filter.sizeInBytes());
+        for (String id : products(0, 20000)) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    void emptySessionHasNoSearches() {
+        ProductBloomFilter filter = new ProductBloomFilter(16, 1 << 16);
+        assertEquals(0, filter.searchCount());
+        assertFalse(filter.mightContain("gid://shopify/Product/1"));
+        assertFalse(filter.mightContain(null));
+    }
+}
@@ -0,0 +1,169 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.repo.CartRow;
+import com.talya.searchanalytics.repo.ClickRow;
+import com.talya.searchanalytics.repo.PurchaseRow;
+import com.talya.searchanalytics.repo.SearchRow;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Metrics computed on the hot window columns against {@link PeriodAnalytics#compute} over the same rows. */
+public class ShopColumnsTest {
+
+    private static final long START_MS = 1_772_452_800_000L;
+    private static final long HOUR_MS = 3_600_000L;
+
+    private final CurrencyService currencyService = new CurrencyService();
+    private final List<SearchRow> searches = new ArrayList<>();
+    private final List<CartRow> carts = new ArrayList<>();
+    private final List<ClickRow> clicks = new ArrayList<>();
+    private final List<ClickRow> buyNows = new ArrayList<>();
+    private final List<PurchaseRow> purchases = new ArrayList<>();
+
+    private static String gid(int n) {
+        return "gid://shopify/Product/" + (8_000_000_000L + n);
+    }
+
+    /**
+     * Random sessions that search, click, add to cart and buy, with the rows the
+     * repositories can return: sessions, groups, prices, amounts and currencies
+     * missing, blank queries, and products that were never shown or are not gids.
+     */
+    private ShopColumns ingest(long seed) {
+        Random random = new Random(seed);
+        long id = 1;
+        for (int s = 0; s < 300; s++) {
+            String session = random.nextInt(20) == 0 ? null : "session-" + random.nextInt(200);
+            Integer group = random.nextInt(10) == 0 ? null : random.nextInt(3) - 1;
+            long ts = START_MS + random.nextInt(72) * HOUR_MS + random.nextInt(1000);
+            List<String> shown = new ArrayList<>();
+            for (int p = random.nextInt(5); p > 0; p--) {
+                shown.add(gid(random.nextInt(60)));
+            }
+            String query = switch (random.nextInt(5)) {
+                case 0 -> null;
+                case 1 -> "  ";
+                case 2 -> "wool hat";
+                default -> " red  wool\that " + random.nextInt(4);
+            };
+            searches.add(new SearchRow(id++, session, query, group, ts, shown));
+            String product = shown.isEmpty() || random.nextInt(4) == 0 ? gid(random.nextInt(60))
+                    : shown.get(random.nextInt(shown.size()));
+            for (int c = random.nextInt(3); c > 0; c--) {
+                clicks.add(new ClickRow(id++, session, random.nextInt(8) == 0 ? "not-a-gid" : product, group,
+                        ts + random.nextInt(3) * HOUR_MS));
+            }
+            if (random.nextInt(3) == 0) {
+                buyNows.add(new ClickRow(id++, random.nextInt(5) == 0 ? "other-" + s : session, product, group,
+                        ts + HOUR_MS));
+            }
+            if (random.nextBoolean()) {
+                carts.add(new CartRow(id++, session, product, random.nextInt(6) == 0 ? null : 10.0 + s % 7,
+                        random.nextInt(6) == 0 ? null : random.nextBoolean() ? "ILS" : "", group,
+                        ts + random.nextInt(5) * HOUR_MS));
+                if (random.nextBoolean()) {
+                    List<PurchaseRow.Item> items = new ArrayList<>();
+                    items.add(new PurchaseRow.Item(product, random.nextBoolean() ? 10.0 + s % 7 : null,
+                            random.nextInt(4) == 0 ? null : 1 + random.nextInt(3)));
+                    items.add(new PurchaseRow.Item(gid(random.nextInt(60)), null, null));
+                    purchases.add(new PurchaseRow(id++, random.nextInt(10) == 0 ? null : session,
+                            random.nextInt(5) == 0 ? null : 50.0 + s, random.nextBoolean() ? "usd" : null, group,
+                            ts + 6 * HOUR_MS, items));
+                }
+            }
+        }
+        ShopColumns columns = new ShopColumns(START_MS);
+        searches.forEach(r -> columns.add(EventExporter.Type.SEARCHES, r));
+        carts.forEach(r -> columns.add(EventExporter.Type.CARTS, r));
+        clicks.forEach(r -> columns.add(EventExporter.Type.CLICKS, r));
+        buyNows.forEach(r -> columns.add(EventExporter.Type.BUY_NOW_CLICKS, r));
+        purchases.forEach(r -> columns.add(EventExporter.Type.PURCHASES, r));
+        return columns;
+    }
+
+    /** The rows a repository query of the range and group returns. */
+    private static <T> List<T> select(List<T> rows, Function<T, Integer> group, Function<T, Long> timestamp,
+            Integer searchGroup, long fromMs, long toMs) {
+        List<T> selected = new ArrayList<>();
+        for (T row : rows) {
+            long ts = timestamp.apply(row);
+            if (ts >= fromMs && ts <= toMs && (searchGroup == null || searchGroup.equals(group.apply(row)))) {
+                selected.add(row);
+            }
+        }
+        return selected;
+    }
+
+    private void assertMatchesRows(ShopColumns columns, Integer searchGroup, long fromMs, long toMs,
+            boolean approximateSessions) {
+        Map<String, Double> expectedRates = new HashMap<>();
+        TimeSeriesBuckets expectedSeries = new TimeSeriesBuckets(AnalyticsService.Granularity.HOUR, fromMs, toMs);
+        PeriodAnalytics expected = PeriodAnalytics.compute(
+                select(searches, SearchRow::searchGroup, SearchRow::timestampMs, searchGroup, fromMs, toMs),
+                select(carts, CartRow::searchGroup, CartRow::timestampMs, searchGroup, fromMs, toMs),
+                select(clicks, ClickRow::searchGroup, ClickRow::timestampMs, searchGroup, fromMs, toMs),
+                select(buyNows, ClickRow::searchGroup, ClickRow::timestampMs, searchGroup, fromMs, toMs),
+                select(purchases, PurchaseRow::searchGroup, PurchaseRow::timestampMs, searchGroup, fromMs, toMs),
+                currencyService, expectedRates, expectedSeries, approximateSessions);
+        Map<String, Double> rates = new HashMap<>();
+        TimeSeriesBuckets series = new TimeSeriesBuckets(AnalyticsService.Granularity.HOUR, fromMs, toMs);
+        PeriodAnalytics actual = columns.compute(fromMs, toMs, searchGroup, currencyService, rates, series,
+                approximateSessions);
+
+        String period = "group " + searchGroup + " from " + fromMs + " to " + toMs;
+        assertTrue(expected.searchCount > 0, period);
+        assertEquals(expected.searchCount, actual.searchCount, period);
+        assertEquals(expected.queryCount, actual.queryCount, period);
+        assertEquals(expected.totalWordCount, actual.totalWordCount, period);
+        assertEquals(expected.longQueryCount, actual.longQueryCount, period);
+        assertEquals(expected.addToCartCount, actual.addToCartCount, period);
+        assertEquals(expected.addToCartAmount, actual.addToCartAmount, period);
+        assertEquals(expected.currency, actual.currency, period);
+        assertEquals(expected.validPurchasedProductCount, actual.validPurchasedProductCount, period);
+        assertEquals(expected.validPurchaseRevenue, actual.validPurchaseRevenue, period);
+        assertEquals(expected.totalPurchaseValueEur, actual.totalPurchaseValueEur, period);
+        assertEquals(expected.fallbackOrdersCount, actual.fallbackOrdersCount, period);
+        assertEquals(expected.productClicks, actual.productClicks, period);
+        assertEquals(expected.buyNowClicks, actual.buyNowClicks, period);
+        assertEquals(expected.searchSessionCount, actual.searchSessionCount, period);
+        assertEquals(expected.clickSessionCount, actual.clickSessionCount, period);
+        assertEquals(expected.cartSessionCount, actual.cartSessionCount, period);
+        assertEquals(expected.purchaseSessionCount, actual.purchaseSessionCount, period);
+        assertEquals(expected.sessionCountError, actual.sessionCountError, period);
+        assertEquals(expectedRates, rates, period);
+        assertEquals(expectedSeries.points(), series.points(), period);
+    }
+
+    @Test
+    void metricsMatchRowCalculation() {
+        for (long seed = 1; seed <= 5; seed++) {
+            ShopColumns columns = ingest(seed);
+            for (Integer group : new Integer[] { null, -1, 0, 1 }) {
+                assertMatchesRows(columns, group, START_MS, START_MS + 80 * HOUR_MS, false);
+                // A sub-range that cuts sessions' events off on both sides
+                assertMatchesRows(columns, group, START_MS + 20 * HOUR_MS, START_MS + 50 * HOUR_MS - 1, false);
+            }
+            searches.clear();
+            carts.clear();
+            clicks.clear();
+            buyNows.clear();
+            purchases.clear();
+        }
+    }
+
+    @Test
+    void approximateSessionCountsMatchRowCalculation() {
+        ShopColumns columns = ingest(7);
+        for (Integer group : new Integer[] { null, 0 }) {
+            assertMatchesRows(columns, group, START_MS, START_MS + 80 * HOUR_MS, true);
+        }
+    }
+}
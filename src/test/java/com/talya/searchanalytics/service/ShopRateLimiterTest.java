@@ -0,0 +1,51 @@
+package com.talya.searchanalytics.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShopRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void bucketAdmitsBurstThenRefillsAtRate() {
+        long now = 123_456_789L;
+        ShopRateLimiter.Bucket bucket = new ShopRateLimiter.Bucket(10, 5, now);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(now, 1));
+        }
+        long wait = bucket.tryAcquire(now, 1);
+        assertEquals(SECOND / 10, wait);
+
+        // One token refills every 100ms
+        assertEquals(0, bucket.tryAcquire(now + SECOND / 10, 1));
+        assertTrue(bucket.tryAcquire(now + SECOND / 10, 1) > 0);
+        // Idle time never accumulates more than the burst
+        long later = now + 60 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(later, 1));
+        }
+        assertTrue(bucket.tryAcquire(later, 1) > 0);
+    }
+
+    @Test
+    void shopsHaveIndependentBucketsAndOverrides() {
+        ShopRateLimiter limiter = new ShopRateLimiter(new SimpleMeterRegistry(), true, 1, 2,
+                "big.myshopify.com=1000:50", 1000);
+
+        assertEquals(0, limiter.tryAcquire("noisy", 1));
+        assertEquals(0, limiter.tryAcquire("noisy", 1));
+        assertTrue(limiter.tryAcquire("noisy", 1) > 0);
+        assertEquals(0, limiter.tryAcquire("quiet", 1));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(0, limiter.tryAcquire("big.myshopify.com", 1));
+        }
+        assertEquals(1L, limiter.shedByShop(10).get("noisy"));
+        assertFalse(limiter.shedByShop(10).containsKey("quiet"));
+    }
+}
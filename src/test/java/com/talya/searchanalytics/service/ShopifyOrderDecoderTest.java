@@ -0,0 +1,134 @@
+package com.talya.searchanalytics.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.Product;
+import com.talya.searchanalytics.model.PurchaseEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShopifyOrderDecoderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ShopifyOrderDecoder decoder = new ShopifyOrderDecoder(objectMapper);
+
+    private PurchaseEvent decode(String json) throws Exception {
+        return decoder.decode(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void decodesOrderWithMixedValueTypes() throws Exception {
+        PurchaseEvent e = decode("{\"shopId\":\"shop.myshopify.com\",\"searchai_user_id\":\"u1\","
+                + "\"searchai_session_id\":\"s1\",\"searchai_search_group\":\"1\",\"currency\":\"ILS\","
+                + "\"order_id\":5551234,\"time\":1700000000000,\"financial_status\":\"paid\","
+                + "\"customer\":{\"id\":5,\"tags\":[\"a\",{\"b\":1}]},"
+                + "\"products\":[{\"product_id\":8123456789,\"name\":\"Shirt\",\"price\":\"19.90\",\"amount\":2},"
+                + "{\"product_id\":\"gid://shopify/Product/42\",\"name\":\"Hat\",\"price\":5,\"amount\":\"3\",\"sku\":null}]}");
+
+        assertEquals("shop.myshopify.com", e.getShopId());
+        assertEquals("u1", e.getClientId());
+        assertEquals("s1", e.getSessionId());
+        assertEquals(1, e.getSearchGroup());
+        assertEquals("5551234", e.getOrderId());
+        assertEquals("ILS", e.getCurrency());
+        assertEquals("paid", e.getOrderStatus());
+        assertEquals(1700000000000L, e.getTimestampMs());
+        assertEquals(2, e.getProducts().size());
+        assertEquals(new Product("8123456789", "Shirt", 19.90, 2), e.getProducts().get(0));
+        assertEquals(new Product("gid://shopify/Product/42", "Hat", 5.0, 3), e.getProducts().get(1));
+        assertEquals(19.90 * 2 + 5.0 * 3, e.getTotalAmount(), 1e-9);
+    }
+
+    @Test
+    void missingTimeAndProductsDefault() throws Exception {
+        long before = System.currentTimeMillis();
+        PurchaseEvent e = decode("{\"shopId\":\"shop\",\"searchai_search_group\":\"x\"}");
+
+        assertNull(e.getSearchGroup());
+        assertTrue(e.getTimestampMs() >= before);
+        assertTrue(e.getProducts().isEmpty());
+        assertEquals(0.0, e.getTotalAmount());
+    }
+
+    @Test
+    void lineItemWithoutPriceIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> decode("{\"shopId\":\"shop\",\"products\":[{\"product_id\":1,\"amount\":1}]}"));
+        assertThrows(NumberFormatException.class,
+                () -> decode("{\"shopId\":\"shop\",\"products\":[{\"product_id\":1,\"price\":\"abc\",\"amount\":1}]}"));
+    }
+
+    /**
+     * Old map-bound decoding of the order against the streaming decoder, per order
+     * time and allocation. Not part of the regular build; run with
+     * {@code mvn test -Dtest=ShopifyOrderDecoderTest -Dorder-decoder.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "order-decoder.benchmark", matches = "true")
+    void decodeBenchmark() throws Exception {
+        StringBuilder order = new StringBuilder("{\"shopId\":\"shop.myshopify.com\",\"searchai_user_id\":\"u1\","
+                + "\"searchai_session_id\":\"s1\",\"searchai_search_group\":\"1\",\"currency\":\"ILS\","
+                + "\"order_id\":5551234,\"time\":1700000000000,\"financial_status\":\"paid\","
+                + "\"customer\":{\"id\":5,\"email\":\"a@b.c\",\"tags\":[\"vip\",\"returning\"]},"
+                + "\"shipping_address\":{\"city\":\"Haifa\",\"zip\":\"3200003\",\"country\":\"IL\"},"
+                + "\"products\":[");
+        for (int i = 0; i < 5; i++) {
+            order.append(i > 0 ? "," : "").append("{\"product_id\":812345678").append(i)
+                    .append(",\"name\":\"Wool hat ").append(i).append("\",\"price\":\"19.90\",\"amount\":2,")
+                    .append("\"sku\":\"HAT-").append(i).append("\",\"properties\":[]}");
+        }
+        byte[] body = order.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+        ThrowingDecode legacy = bytes -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> data = objectMapper.readValue(bytes, Map.class);
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> items = (List<Map<String, Object>>) data.get("products");
+            List<Product> products = new ArrayList<>();
+            double total = 0.0;
+            for (Map<String, Object> item : items) {
+                double price = Double.parseDouble(item.get("price").toString());
+                int amount = Integer.parseInt(item.get("amount").toString());
+                products.add(new Product(String.valueOf(item.get("product_id")), (String) item.get("name"), price,
+                        amount));
+                total += price * amount;
+            }
+            return PurchaseEvent.builder().shopId((String) data.get("shopId")).products(products)
+                    .totalAmount(total).build();
+        };
+        ThrowingDecode streaming = bytes -> decoder.decode(new ByteArrayInputStream(bytes));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int iterations = 200_000;
+        for (String name : List.of("map", "stream")) {
+            ThrowingDecode f = name.equals("map") ? legacy : streaming;
+            long sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                sink += f.decode(body).getProducts().size();
+            }
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += f.decode(body).getProducts().size();
+            }
+            double ns = (System.nanoTime() - start) / (double) iterations;
+            double allocated = (threads.getThreadAllocatedBytes(thread) - bytes) / (double) iterations;
+            System.out.printf("order decode %-6s %8.1f ns/order %8.1f B/order (%d)%n", name, ns, allocated,
+                    sink & 1);
+        }
+    }
+
+    private interface ThrowingDecode {
+        PurchaseEvent decode(byte[] body) throws Exception;
+    }
+}
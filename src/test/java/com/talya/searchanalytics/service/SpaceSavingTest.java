@@ -0,0 +1,94 @@
+package com.talya.searchanalytics.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpaceSavingTest {
+
+    /** Heavy terms "q0".."q9", term i added (10 - i) * 1000 times, among a long tail of one-off terms. */
+    private static SpaceSaving day(int capacity, int seed, int tail) {
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            terms.addAll(Collections.nCopies((10 - i) * 1000, "q" + i));
+        }
+        for (int i = 0; i < tail; i++) {
+            terms.add("tail-" + seed + "-" + i);
+        }
+        Collections.shuffle(terms, new Random(seed));
+        SpaceSaving summary = new SpaceSaving(capacity);
+        terms.forEach(summary::add);
+        return summary;
+    }
+
+    private static void assertHeavyTerms(List<SpaceSaving.Term> top, int days) {
+        assertEquals(10, top.size());
+        for (int i = 0; i < 10; i++) {
+            long exact = (long) days * (10 - i) * 1000;
+            SpaceSaving.Term term = top.get(i);
+            assertEquals("q" + i, term.term());
+            // Each count is over-estimated by at most its own error
+            assertTrue(term.count() >= exact && term.count() - term.error() <= exact,
+                    term + ", exactly " + exact);
+        }
+    }
+
+    @Test
+    void exactWhileDistinctTermsFit() {
+        SpaceSaving summary = new SpaceSaving(10);
+        for (int i = 0; i < 5; i++) {
+            for (int n = 0; n <= i; n++) {
+                summary.add("term" + i);
+            }
+        }
+        assertEquals(0, summary.error());
+        assertEquals(List.of(new SpaceSaving.Term("term4", 5, 0), new SpaceSaving.Term("term3", 4, 0)), summary.top(2));
+        assertEquals(5, summary.top(100).size());
+    }
+
+    @Test
+    void keepsHeavyTermsUnderLongTail() {
+        SpaceSaving summary = day(200, 1, 100_000);
+        assertTrue(summary.error() > 0);
+        assertTrue(summary.error() <= (55_000 + 100_000) / 200);
+        assertHeavyTerms(summary.top(10), 1);
+    }
+
+    @Test
+    void mergedDaysKeepHeavyTerms() {
+        SpaceSaving range = new SpaceSaving(200);
+        for (int day = 0; day < 7; day++) {
+            range.merge(SpaceSaving.fromBytes(day(200, day, 20_000).toBytes()));
+        }
+        assertHeavyTerms(range.top(10), 7);
+    }
+
+    @Test
+    void mergeOfSmallSummariesIsExact() {
+        SpaceSaving a = new SpaceSaving(10);
+        SpaceSaving b = new SpaceSaving(10);
+        a.add("shoes", 3, 0);
+        a.add("hats", 1, 0);
+        b.add("shoes", 2, 0);
+        b.add("socks", 4, 0);
+        a.merge(b);
+        assertEquals(List.of(new SpaceSaving.Term("shoes", 5, 0), new SpaceSaving.Term("socks", 4, 0),
+                new SpaceSaving.Term("hats", 1, 0)), a.top(10));
+    }
+
+    @Test
+    void storedBytesRoundTrip() {
+        SpaceSaving summary = day(50, 3, 5_000);
+        SpaceSaving copy = SpaceSaving.fromBytes(summary.toBytes());
+        assertEquals(summary.capacity(), copy.capacity());
+        assertEquals(summary.error(), copy.error());
+        assertEquals(summary.top(50), copy.top(50));
+        assertTrue(SpaceSaving.fromBytes(new SpaceSaving(5).toBytes()).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> SpaceSaving.fromBytes(new byte[3]));
+    }
+}
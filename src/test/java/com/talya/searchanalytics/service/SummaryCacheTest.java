@@ -0,0 +1,63 @@
+package com.talya.searchanalytics.service;
+
+import com.talya.searchanalytics.model.SearchEvent;
+import com.talya.searchanalytics.model.ShopWatermarks;
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SummaryCacheTest {
+
+    private static final long HOUR_MS = 3_600_000L;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private final ShopWatermarks watermarks = new ShopWatermarks(HOUR_MS);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final SummaryCache cache = new SummaryCache(watermarks, registry, true, 1 << 20, 10);
+    private final AtomicInteger computed = new AtomicInteger();
+
+    private AnalyticsSummaryResponse summary(String shopId, long fromMs, long toMs) {
+        return cache.summary(shopId, fromMs, toMs, null, AnalyticsService.Granularity.DAY, () -> {
+            computed.incrementAndGet();
+            return AnalyticsSummaryResponse.builder().totalSearches(computed.get()).timeSeries(List.of()).build();
+        });
+    }
+
+    private void ingest(String shopId, long timestampMs) {
+        watermarks.changed(SearchEvent.builder().shopId(shopId).timestampMs(timestampMs).build());
+    }
+
+    @Test
+    void openRangesAreRecomputedAfterIngestion() {
+        long now = System.currentTimeMillis();
+        AnalyticsSummaryResponse first = summary("a", now - 7 * DAY_MS, now);
+
+        assertSame(first, summary("a", now - 7 * DAY_MS, now));
+        ingest("b", now);
+        assertSame(first, summary("a", now - 7 * DAY_MS, now));
+        ingest("a", now);
+        assertNotSame(first, summary("a", now - 7 * DAY_MS, now));
+        assertEquals(2, computed.get());
+    }
+
+    @Test
+    void closedRangesOnlyChangeWithLateEvents() {
+        long lastMonthEnd = Math.floorDiv(System.currentTimeMillis(), DAY_MS) * DAY_MS - 30 * DAY_MS;
+        AnalyticsSummaryResponse first = summary("a", lastMonthEnd - 30 * DAY_MS, lastMonthEnd);
+
+        ingest("a", System.currentTimeMillis());
+        assertSame(first, summary("a", lastMonthEnd - 30 * DAY_MS, lastMonthEnd));
+        ingest("a", lastMonthEnd - DAY_MS);
+        assertNotSame(first, summary("a", lastMonthEnd - 30 * DAY_MS, lastMonthEnd));
+
+        assertEquals(1.0 / 3, registry.get("analytics.summary.cache.hit.ratio").tag("cache", "analyticsSummary")
+                .gauge().value(), 1e-9);
+        assertTrue(registry.get("analytics.summary.cache.bytes").tag("cache", "analyticsSummary")
+                .gauge().value() > 0);
+    }
+}
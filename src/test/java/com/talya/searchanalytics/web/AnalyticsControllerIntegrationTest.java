@@ -53,4 +53,18 @@ public class AnalyticsControllerIntegrationTest {
         assertThat(resp.getStatusCode().is2xxSuccessful()).isTrue();
         assertThat(resp.getBody()).isNotNull();
     }
+
+    @Test
+    public void summaryLimitIsValidated() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(jwtService.generateToken("shop1", Shop.Role.SHOP));
+        String url = "http://localhost:" + port + "/api/v1/analytics/summary?fromMs=0&toMs=1&limit=";
+        for (String limit : new String[] { "0", "101" }) {
+            ResponseEntity<String> resp = restTemplate.exchange(url + limit, org.springframework.http.HttpMethod.GET, new HttpEntity<>(headers), String.class);
+            assertThat(resp.getStatusCodeValue()).isEqualTo(400);
+            assertThat(resp.getBody()).contains("INVALID_LIMIT");
+        }
+        ResponseEntity<AnalyticsSummaryResponse> resp = restTemplate.exchange(url + "5", org.springframework.http.HttpMethod.GET, new HttpEntity<>(headers), AnalyticsSummaryResponse.class);
+        assertThat(resp.getStatusCode().is2xxSuccessful()).isTrue();
+    }
 }
@@ -0,0 +1,185 @@
+package com.talya.searchanalytics.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.ColumnarEventReader;
+import com.talya.searchanalytics.service.ColumnarEvents;
+import com.talya.searchanalytics.service.JwtService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Exports walked in chunks of three events, whole, page by page through the
+ * {@code Link} headers and as columnar blocks, against the stored events.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.datasource.url=jdbc:h2:mem:export;DB_CLOSE_DELAY=-1",
+                "spring.datasource.driver-class-name=org.h2.Driver",
+                "spring.datasource.username=sa",
+                "spring.datasource.password=",
+                "spring.jpa.hibernate.ddl-auto=create-drop",
+                "analytics.export.chunk-size=3",
+                "search-events.product-ids.storage=packed"
+        })
+public class AnalyticsExportIntegrationTest {
+
+    private static final String SHOP = "export-shop.myshopify.com";
+    private static final Pattern NEXT = Pattern.compile("<([^>]+)>; rel=\"next\"");
+
+    @LocalServerPort
+    private int port;
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private ShopRepository shopRepo;
+    @Autowired
+    private TermsAgreementRepository termsRepo;
+    @Autowired
+    private SearchEventRepository searchRepo;
+    @Autowired
+    private PurchaseEventRepository purchaseRepo;
+    @Autowired
+    private JwtService jwtService;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @BeforeEach
+    void setup() {
+        if (shopRepo.findByShopDomain(SHOP).isPresent()) {
+            return;
+        }
+        shopRepo.save(Shop.builder().shopDomain(SHOP).passwordHash(new BCryptPasswordEncoder(10).encode("Password!123"))
+                .role(Shop.Role.SHOP).status(Shop.Status.ACTIVE).build());
+        termsRepo.save(TermsAgreement.builder().shopId(SHOP).termsVersion("1").acceptedAt(Instant.now()).build());
+        // Searches sharing timestamps, so pages split ties by id
+        for (int i = 0; i < 11; i++) {
+            searchRepo.save(SearchEvent.builder().shopId(SHOP).searchId("q" + i).clientId("c").sessionId("s" + i)
+                    .query(i == 4 ? "red, \"wool\" hat" : "hat " + i)
+                    .productIds(List.of("gid://shopify/Product/" + i)).timestampMs(1000L + i / 2).build());
+        }
+        searchRepo.save(SearchEvent.builder().shopId("other-shop").searchId("q").clientId("c").sessionId("s")
+                .query("hat").productIds(List.of()).timestampMs(1001L).build());
+        purchaseRepo.save(PurchaseEvent.builder().shopId(SHOP).sessionId("s1").clientId("c").totalAmount(30.0)
+                .currency("ILS").products(List.of(new Product("gid://shopify/Product/1", "Hat", 10.0, 1),
+                        new Product("gid://shopify/Product/2", "Scarf", 20.0, 1)))
+                .timestampMs(1002L).build());
+    }
+
+    private ResponseEntity<String> get(String url) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(jwtService.generateToken(SHOP, Shop.Role.SHOP));
+        return restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    }
+
+    private String url(String query) {
+        return "http://localhost:" + port + "/api/v1/analytics/export?fromMs=0&toMs=5000&" + query;
+    }
+
+    private List<Long> ids(String ndjson) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (String line : ndjson.split("\n")) {
+            JsonNode event = objectMapper.readTree(line);
+            assertThat(event.get("shopId").asText()).isEqualTo(SHOP);
+            ids.add(event.get("id").asLong());
+        }
+        return ids;
+    }
+
+    @Test
+    void exportsWholeRangeAndPages() throws Exception {
+        List<Long> expected = searchRepo.findAllByShopIdAndTimestampMsBetween(SHOP, 0L, 5000L).stream()
+                .sorted(java.util.Comparator.comparing(SearchEvent::getTimestampMs).thenComparing(SearchEvent::getId))
+                .map(SearchEvent::getId).toList();
+
+        ResponseEntity<String> whole = get(url("type=searches"));
+        assertThat(whole.getStatusCodeValue()).isEqualTo(200);
+        assertThat(whole.getHeaders().getContentType().toString()).startsWith("application/x-ndjson");
+        assertThat(whole.getHeaders().getFirst("Link")).isNull();
+        assertThat(ids(whole.getBody())).isEqualTo(expected);
+        assertThat(whole.getBody()).contains("\"productIds\":[\"gid://shopify/Product/4\"]");
+        assertThat(whole.getBody()).doesNotContain("packedProductIds");
+
+        List<Long> paged = new ArrayList<>();
+        String next = url("type=searches&limit=4");
+        int pages = 0;
+        while (next != null) {
+            ResponseEntity<String> page = get(next);
+            assertThat(page.getStatusCodeValue()).isEqualTo(200);
+            paged.addAll(ids(page.getBody()));
+            String link = page.getHeaders().getFirst("Link");
+            Matcher matcher = link == null ? null : NEXT.matcher(link);
+            next = matcher != null && matcher.find() ? matcher.group(1) : null;
+            pages++;
+        }
+        assertThat(pages).isEqualTo(3);
+        assertThat(paged).isEqualTo(expected);
+    }
+
+    @Test
+    void exportsCsv() {
+        String searches = get(url("type=searches&format=csv")).getBody();
+        String[] lines = searches.split("\r\n");
+        assertThat(lines).hasSize(12);
+        assertThat(lines[0]).isEqualTo("id,shopId,searchId,clientId,sessionId,query,searchGroup,timestampMs,productIds");
+        assertThat(searches).contains(",\"red, \"\"wool\"\" hat\",,1002,gid://shopify/Product/4\r\n");
+
+        String purchases = get(url("type=purchases&format=csv")).getBody();
+        assertThat(purchases.split("\r\n")).hasSize(3);
+        assertThat(purchases).contains(",30.0,ILS,,,1002,gid://shopify/Product/2,Scarf,20.0,1\r\n");
+    }
+
+    @Test
+    void exportsColumnarBlocks() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(jwtService.generateToken(SHOP, Shop.Role.SHOP));
+        headers.setAccept(List.of(MediaType.parseMediaType(ColumnarEvents.CONTENT_TYPE)));
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        HttpEntity<?> request = new HttpEntity<>(headers);
+
+        ResponseEntity<byte[]> searches = restTemplate.exchange(url("type=searches"), HttpMethod.GET, request,
+                byte[].class);
+        assertThat(searches.getHeaders().getContentType().toString()).isEqualTo(ColumnarEvents.CONTENT_TYPE);
+        assertThat(searches.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        List<Object> events = ColumnarEventReader.readAll(new ByteArrayInputStream(searches.getBody()));
+        assertThat(events).extracting(e -> ((SearchEvent) e).getId()).isEqualTo(ids(get(url("type=searches")).getBody()));
+        assertThat(((SearchEvent) events.get(8)).getProductIds()).containsExactly("gid://shopify/Product/8");
+
+        // /full negotiates the same format, one section per event type
+        ResponseEntity<byte[]> full = restTemplate.exchange("http://localhost:" + port
+                + "/api/v1/analytics/full?fromMs=0&toMs=5000", HttpMethod.GET, request, byte[].class);
+        List<Object> all = ColumnarEventReader.readAll(new ByteArrayInputStream(full.getBody()));
+        assertThat(all).hasSize(12);
+        assertThat(all.get(11)).isInstanceOfSatisfying(PurchaseEvent.class,
+                p -> assertThat(p.getProducts()).extracting(Product::getName).containsExactly("Hat", "Scarf"));
+    }
+
+    @Test
+    void rejectsInvalidRequests() {
+        assertThat(get(url("type=orders")).getBody()).contains("INVALID_TYPE");
+        assertThat(get(url("type=searches&format=xml")).getBody()).contains("INVALID_FORMAT");
+        assertThat(get(url("type=searches&cursor=abc")).getBody()).contains("INVALID_CURSOR");
+        assertThat(get(url("type=searches&limit=0")).getStatusCodeValue()).isEqualTo(400);
+    }
+}
@@ -0,0 +1,174 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.AnalyticsExecutor;
+import com.talya.searchanalytics.service.AnalyticsService;
+import com.talya.searchanalytics.service.CurrencyService;
+import com.talya.searchanalytics.service.DailyRollupService;
+import com.talya.searchanalytics.service.HotWindowStore;
+import com.talya.searchanalytics.service.HyperLogLog;
+import com.talya.searchanalytics.service.SqlPeriodAnalytics;
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Session counts from the daily sketches ({@code analytics.sessions.counting=approximate})
+ * against the exact counts over the same events, for sessions that come back on
+ * later days.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:sketches;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "analytics.summary.source=rollups",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "analytics.sessions.counting=approximate"
+})
+public class ApproximateSessionsIntegrationTest {
+
+    private static final long DAY_MS = 86_400_000L;
+    private static final long FIRST_DAY = LocalDate.of(2026, 3, 2).toEpochDay();
+    private static final int DAYS = 4;
+
+    @Autowired
+    AnalyticsService analyticsService;
+    @Autowired
+    DailyRollupService dailyRollups;
+    @Autowired
+    AnalyticsExecutor analyticsExecutor;
+    @Autowired
+    SqlPeriodAnalytics sqlAnalytics;
+    @Autowired
+    SearchEventRepository searchRepo;
+    @Autowired
+    AddToCartEventRepository cartRepo;
+    @Autowired
+    PurchaseEventRepository purchaseRepo;
+    @Autowired
+    ProductClickEventRepository clickRepo;
+    @Autowired
+    BuyNowClickEventRepository buyNowRepo;
+    @Autowired
+    CurrencyService currencyService;
+
+    private AnalyticsService rawAnalytics(boolean approximateSessions) {
+        DailyRollupService counting = Mockito.mock(DailyRollupService.class);
+        when(counting.approximateSessions()).thenReturn(approximateSessions);
+        return new AnalyticsService(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo, currencyService,
+                counting, analyticsExecutor, sqlAnalytics, Mockito.mock(HotWindowStore.class));
+    }
+
+    private static String gid(int n) {
+        return "gid://shopify/Product/" + (8_000_000_000L + n);
+    }
+
+    /** 900 sessions a day, a third of them back from the day before, in groups 0 and 1. */
+    private void ingest(String shop) {
+        for (int day = 0; day < DAYS; day++) {
+            long noon = (FIRST_DAY + day) * DAY_MS + DAY_MS / 2;
+            List<SearchEvent> searches = new ArrayList<>();
+            List<ProductClickEvent> clicks = new ArrayList<>();
+            List<AddToCartEvent> carts = new ArrayList<>();
+            List<PurchaseEvent> purchases = new ArrayList<>();
+            for (int s = day * 600; s < day * 600 + 900; s++) {
+                String session = "sess-" + s;
+                int group = (s / 2) % 2;
+                long t = noon + s;
+                searches.add(SearchEvent.builder().shopId(shop).searchId(session + "-" + day).clientId("c")
+                        .sessionId(session).query("red hat").productIds(List.of(gid(s % 50)))
+                        .searchGroup(group).timestampMs(t).build());
+                if (s % 2 == 0) {
+                    clicks.add(ProductClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .productId(gid(s % 50)).searchGroup(group).timestampMs(t + 1).build());
+                }
+                if (s % 3 == 0) {
+                    carts.add(AddToCartEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .productId(gid(s % 50)).price(10.0).currency("ILS").searchGroup(group)
+                            .timestampMs(t + 2).build());
+                }
+                if (s % 6 == 0) {
+                    purchases.add(PurchaseEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .products(List.of(new Product(gid(s % 50), "hat", 10.0, 1))).totalAmount(10.0)
+                            .currency("ILS").searchGroup(group).timestampMs(t + 3).build());
+                }
+            }
+            searchRepo.saveAll(searches);
+            clickRepo.saveAll(clicks);
+            cartRepo.saveAll(carts);
+            purchaseRepo.saveAll(purchases);
+        }
+    }
+
+    private static void assertEstimates(AnalyticsSummaryResponse approximate, AnalyticsSummaryResponse exact) {
+        assertThat(approximate.getSessionCountErrorPercent()).isEqualTo(1.6);
+        assertThat(exact.getSessionCountErrorPercent()).isNull();
+        assertThat(exact.getSessionsWithSearches()).isPositive();
+        assertThat(exact.getSessionsWithPurchases()).isPositive();
+        assertClose(approximate.getSessionsWithSearches(), exact.getSessionsWithSearches());
+        assertClose(approximate.getSessionsWithClicks(), exact.getSessionsWithClicks());
+        assertClose(approximate.getSessionsWithAddToCarts(), exact.getSessionsWithAddToCarts());
+        assertClose(approximate.getSessionsWithPurchases(), exact.getSessionsWithPurchases());
+        // Everything but the session counts and their rates is exact
+        assertThat(approximate.getTotalSearches()).isEqualTo(exact.getTotalSearches());
+        assertThat(approximate.getTotalPurchases()).isEqualTo(exact.getTotalPurchases());
+    }
+
+    private static void assertClose(long estimate, long exact) {
+        assertThat((double) estimate).isCloseTo(exact, org.assertj.core.data.Offset.offset(
+                3 * HyperLogLog.RELATIVE_ERROR * exact + 1));
+    }
+
+    @Test
+    void rollupSketchesEstimateDistinctSessions() {
+        String shop = "sketch-shop.myshopify.com";
+        ingest(shop);
+        long fromMs = (FIRST_DAY + DAYS / 2) * DAY_MS;
+        long toMs = (FIRST_DAY + DAYS) * DAY_MS - 1;
+        assertThat(dailyRollups.useForSummary()).isTrue();
+        assertThat(dailyRollups.approximateSessions()).isTrue();
+
+        AnalyticsService exact = rawAnalytics(false);
+        Map<Integer, AnalyticsSummaryResponse> summaries = analyticsService.summaries(shop, fromMs, toMs,
+                List.of(0, 1), AnalyticsService.Granularity.DAY);
+        for (Integer group : new Integer[] { null, 0, 1 }) {
+            AnalyticsSummaryResponse expected = exact.summary(shop, fromMs, toMs, group);
+            assertEstimates(analyticsService.summary(shop, fromMs, toMs, group), expected);
+            if (group != null) {
+                assertEstimates(summaries.get(group), expected);
+            }
+        }
+
+        // Rebuilt sketches estimate the same as the ones kept up to date
+        AnalyticsSummaryResponse folded = analyticsService.summary(shop, fromMs, toMs, null);
+        dailyRollups.rebuild(shop);
+        AnalyticsSummaryResponse rebuilt = analyticsService.summary(shop, fromMs, toMs, null);
+        assertThat(rebuilt.getSessionsWithSearches()).isEqualTo(folded.getSessionsWithSearches());
+        assertThat(rebuilt.getSessionsWithPurchases()).isEqualTo(folded.getSessionsWithPurchases());
+    }
+
+    @Test
+    void rawEventSketchesEstimateDistinctSessions() {
+        String shop = "raw-sketch-shop.myshopify.com";
+        ingest(shop);
+        long fromMs = FIRST_DAY * DAY_MS;
+        long toMs = (FIRST_DAY + DAYS) * DAY_MS - 1;
+        AnalyticsService exact = rawAnalytics(false);
+        AnalyticsService approximate = rawAnalytics(true);
+        for (Integer group : new Integer[] { null, 0, 1 }) {
+            assertEstimates(approximate.summary(shop, fromMs, toMs, group), exact.summary(shop, fromMs, toMs, group));
+        }
+    }
+}
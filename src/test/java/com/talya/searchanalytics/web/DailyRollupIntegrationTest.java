@@ -0,0 +1,426 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.AnalyticsExecutor;
+import com.talya.searchanalytics.service.AnalyticsService;
+import com.talya.searchanalytics.service.CurrencyService;
+import com.talya.searchanalytics.service.DailyRollupService;
+import com.talya.searchanalytics.service.HotWindowStore;
+import com.talya.searchanalytics.service.SqlPeriodAnalytics;
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import com.talya.searchanalytics.web.dto.GroupComparisonResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:rollups;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "analytics.summary.source=rollups",
+        "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+public class DailyRollupIntegrationTest {
+
+    private static final String SHOP = "rollup-shop.myshopify.com";
+    private static final long DAY_MS = 86_400_000L;
+    private static final long FIRST_DAY = LocalDate.of(2026, 3, 2).toEpochDay();
+
+    @Autowired
+    AnalyticsService analyticsService;
+    @Autowired
+    DailyRollupService dailyRollups;
+    @Autowired
+    AnalyticsExecutor analyticsExecutor;
+    @Autowired
+    SqlPeriodAnalytics sqlAnalytics;
+    @Autowired
+    SearchEventRepository searchRepo;
+    @Autowired
+    AddToCartEventRepository cartRepo;
+    @Autowired
+    PurchaseEventRepository purchaseRepo;
+    @Autowired
+    ProductClickEventRepository clickRepo;
+    @Autowired
+    BuyNowClickEventRepository buyNowRepo;
+    @Autowired
+    CurrencyService currencyService;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private AnalyticsService rawAnalytics() {
+        return new AnalyticsService(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo, currencyService,
+                Mockito.mock(DailyRollupService.class), analyticsExecutor, sqlAnalytics,
+                Mockito.mock(HotWindowStore.class));
+    }
+
+    private static String gid(int n) {
+        return "gid://shopify/Product/" + (8_000_000_000L + n);
+    }
+
+    /**
+     * Six days of sessions (the last three are the range, the first three its
+     * previous period) that search, click, add to cart and buy in varying
+     * combinations and groups, plus events that must not count.
+     */
+    private void ingest(String shop) {
+        String[] queries = { "hat", "red wool hat", "  winter   hat  ", "", "blue summer linen shirt", "   " };
+        Integer[] groups = { 0, 1, null };
+        for (int day = -3; day < 3; day++) {
+            long noon = (FIRST_DAY + day) * DAY_MS + DAY_MS / 2;
+            for (int s = 0; s < 6 + day + 3; s++) {
+                String session = "d" + day + "-s" + s;
+                Integer group = groups[s % groups.length];
+                long t = noon + s * 60_000L;
+                searchRepo.save(SearchEvent.builder().shopId(shop).searchId(session + "-q").clientId("c")
+                        .sessionId(session).query(queries[(s + day + 3) % queries.length])
+                        .productIds(List.of(gid(s), gid(s + 1), gid(s + 2))).searchGroup(group)
+                        .timestampMs(t).build());
+                if (s % 2 == 0) {
+                    clickRepo.save(ProductClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .productId(gid(s)).searchGroup(group).timestampMs(t + 1000).build());
+                    buyNowRepo.save(BuyNowClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .productId(s % 4 == 0 ? gid(s + 1) : "not-a-gid").price(12.5).searchGroup(group)
+                            .timestampMs(t + 1500).build());
+                }
+                if (s % 3 != 1) {
+                    cartRepo.save(AddToCartEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .productId(gid(s + 1)).price(20.0 + s).currency(s == 0 ? null : "ILS")
+                            .searchGroup(group).timestampMs(t + 2000).build());
+                }
+                if (s % 3 == 0) {
+                    Product carted = new Product(gid(s + 1), "carted", s % 2 == 0 ? 40.0 : null, 2);
+                    Product other = new Product(gid(99), "other", 5.0, 1);
+                    purchaseRepo.save(PurchaseEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .products(List.of(carted, other)).totalAmount(90.0).currency("ils")
+                            .searchGroup(group).timestampMs(t + 3000).build());
+                }
+            }
+            // Not from a search session: never counted
+            clickRepo.save(ProductClickEvent.builder().shopId(shop).sessionId("no-search").clientId("c")
+                    .productId(gid(1)).timestampMs(noon).build());
+            purchaseRepo.save(PurchaseEvent.builder().shopId(shop).sessionId("no-search").clientId("c")
+                    .products(List.of(new Product(gid(1), "x", 10.0, 1))).totalAmount(10.0).currency("ILS")
+                    .timestampMs(noon).build());
+        }
+    }
+
+    private void assertMatchesRawEvents(String shop) {
+        assertMatchesRawEvents(shop, AnalyticsService.Granularity.DAY);
+    }
+
+    private void assertMatchesRawEvents(String shop, AnalyticsService.Granularity granularity) {
+        AnalyticsService raw = rawAnalytics();
+        long fromMs = FIRST_DAY * DAY_MS;
+        long toMs = (FIRST_DAY + 3) * DAY_MS - 1;
+        for (Integer group : Arrays.asList(null, 0, 1)) {
+            // Raw events load their purchase products lazily, as under open-session-in-view
+            TransactionTemplate tx = new TransactionTemplate(transactionManager);
+            AnalyticsSummaryResponse expected = tx.execute(
+                    status -> raw.summary(shop, fromMs, toMs, group, granularity));
+            AnalyticsSummaryResponse actual = tx.execute(
+                    status -> analyticsService.summary(shop, fromMs, toMs, group, granularity));
+            assertThat(actual).as("group %s by %s", group, granularity).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void rollupSummaryMatchesRawEvents() {
+        assertThat(dailyRollups.useForSummary()).isTrue();
+        ingest(SHOP);
+
+        assertMatchesRawEvents(SHOP);
+        AnalyticsSummaryResponse summary = analyticsService.summary(SHOP, FIRST_DAY * DAY_MS,
+                (FIRST_DAY + 3) * DAY_MS - 1, null);
+        assertThat(summary.getTotalSearches()).isEqualTo(9 + 10 + 11);
+        assertThat(summary.getTotalPurchases()).isPositive();
+        assertThat(summary.getSessionsWithPurchases()).isPositive();
+        assertThat(summary.getTimeSeries()).hasSize(3);
+
+        // Removed events are taken out by recomputing their day
+        SearchEvent removed = searchRepo.findAllByShopIdAndTimestampMsBetween(SHOP, FIRST_DAY * DAY_MS,
+                (FIRST_DAY + 1) * DAY_MS - 1).get(0);
+        searchRepo.delete(removed);
+        assertMatchesRawEvents(SHOP);
+
+        assertThat(dailyRollups.rebuild(SHOP)).isEqualTo(6);
+        assertMatchesRawEvents(SHOP);
+    }
+
+    @Test
+    void rolledBackInsertsAreNotCounted() {
+        String shop = "rollback-shop.myshopify.com";
+        ingest(shop);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            searchRepo.saveAndFlush(SearchEvent.builder().shopId(shop).searchId("rolled-back").clientId("c")
+                    .sessionId("rolled-back").query("hat").productIds(List.of(gid(1)))
+                    .timestampMs(FIRST_DAY * DAY_MS + 1000).build());
+            status.setRollbackOnly();
+        });
+
+        dailyRollups.flush();
+        assertMatchesRawEvents(shop);
+    }
+
+    @Test
+    void addToCartsOfProductsNotShownAreNotCounted() {
+        String shop = "unshown-shop.myshopify.com";
+        ingest(shop);
+        // d0-s0 searched gid(0..2) in group 0
+        long t = FIRST_DAY * DAY_MS + DAY_MS / 2 + 5000;
+        cartRepo.save(AddToCartEvent.builder().shopId(shop).sessionId("d0-s0").clientId("c").productId(gid(50))
+                .price(30.0).currency("ILS").searchGroup(0).timestampMs(t).build());
+        purchaseRepo.save(PurchaseEvent.builder().shopId(shop).sessionId("d0-s0").clientId("c")
+                .products(List.of(new Product(gid(50), "unshown", 30.0, 1))).totalAmount(30.0).currency("ILS")
+                .searchGroup(0).timestampMs(t + 1000).build());
+
+        assertMatchesRawEvents(shop);
+    }
+
+    @Test
+    void eventsFoldedInBeforeTheirSearchAreCountedOnceItArrives() {
+        String shop = "late-search-shop.myshopify.com";
+        long t = FIRST_DAY * DAY_MS + DAY_MS / 2;
+        clickRepo.save(ProductClickEvent.builder().shopId(shop).sessionId("late").clientId("c")
+                .productId(gid(1)).searchGroup(1).timestampMs(t + 1000).build());
+        cartRepo.save(AddToCartEvent.builder().shopId(shop).sessionId("late").clientId("c").productId(gid(1))
+                .price(20.0).currency("ILS").searchGroup(1).timestampMs(t + 2000).build());
+        purchaseRepo.save(PurchaseEvent.builder().shopId(shop).sessionId("late").clientId("c")
+                .products(List.of(new Product(gid(1), "hat", 20.0, 1))).totalAmount(20.0).currency("ILS")
+                .searchGroup(1).timestampMs(t + 3000).build());
+        dailyRollups.flush();
+
+        // The search was written by another transaction that committed last
+        searchRepo.save(SearchEvent.builder().shopId(shop).searchId("late-q").clientId("c").sessionId("late")
+                .query("hat").productIds(List.of(gid(1), gid(2))).searchGroup(1).timestampMs(t).build());
+
+        assertMatchesRawEvents(shop);
+        AnalyticsSummaryResponse summary = analyticsService.summary(shop, FIRST_DAY * DAY_MS,
+                (FIRST_DAY + 3) * DAY_MS - 1, null);
+        assertThat(summary.getTotalProductClicks()).isEqualTo(1);
+        assertThat(summary.getTotalAddToCart()).isEqualTo(1);
+        assertThat(summary.getTotalPurchases()).isEqualTo(1);
+    }
+
+    @Test
+    void timeSeriesGranularities() {
+        String shop = "series-shop.myshopify.com";
+        ingest(shop);
+        long fromMs = FIRST_DAY * DAY_MS;
+        long toMs = (FIRST_DAY + 3) * DAY_MS - 1;
+
+        assertMatchesRawEvents(shop, AnalyticsService.Granularity.HOUR);
+        assertMatchesRawEvents(shop, AnalyticsService.Granularity.WEEK);
+
+        List<AnalyticsSummaryResponse.TimePoint> hours = new TransactionTemplate(transactionManager).execute(
+                status -> analyticsService.summary(shop, fromMs, toMs, null, AnalyticsService.Granularity.HOUR))
+                .getTimeSeries();
+        assertThat(hours).hasSize(72);
+        assertThat(hours.get(12).getDate()).isEqualTo("2026-03-02T12:00:00Z");
+        assertThat(hours.stream().mapToInt(AnalyticsSummaryResponse.TimePoint::getSearches).sum())
+                .isEqualTo(9 + 10 + 11);
+
+        // 2026-03-02 is a Monday, so the range is one week
+        List<AnalyticsSummaryResponse.TimePoint> weeks = analyticsService
+                .summary(shop, fromMs, toMs, null, AnalyticsService.Granularity.WEEK).getTimeSeries();
+        assertThat(weeks).extracting(AnalyticsSummaryResponse.TimePoint::getDate).containsExactly("2026-03-02");
+        assertThat(weeks.get(0).getSearches()).isEqualTo(9 + 10 + 11);
+        assertThat(AnalyticsService.seriesPoints(AnalyticsService.Granularity.WEEK, fromMs - DAY_MS, toMs))
+                .isEqualTo(2);
+    }
+
+    @Test
+    void groupSummariesMatchSingleGroupSummaries() {
+        String shop = "groups-shop.myshopify.com";
+        ingest(shop);
+        long fromMs = FIRST_DAY * DAY_MS;
+        long toMs = (FIRST_DAY + 3) * DAY_MS - 1;
+        List<Integer> groups = Arrays.asList(1, 0, 2, null);
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        for (AnalyticsService service : List.of(analyticsService, rawAnalytics())) {
+            Map<Integer, AnalyticsSummaryResponse> summaries = tx.execute(status -> service.summaries(shop, fromMs,
+                    toMs, groups, AnalyticsService.Granularity.DAY));
+            assertThat(summaries.keySet()).containsExactlyElementsOf(groups);
+            for (Integer group : groups) {
+                assertThat(summaries.get(group)).as("group %s", group)
+                        .isEqualTo(tx.execute(status -> service.summary(shop, fromMs, toMs, group)));
+            }
+            assertThat(summaries.get(2).getTotalSearches()).isZero();
+        }
+
+        GroupComparisonResponse comparison = tx.execute(
+                status -> analyticsService.compareGroups(shop, fromMs, toMs, List.of(0, 1, 2)));
+        assertThat(comparison.getVariants()).extracting(GroupComparisonResponse.Variant::getLabel)
+                .containsExactly("Shopify Search", "AI Search", "Group 2");
+        assertThat(comparison.getVariants().get(0).getComparison()).isNull();
+        assertThat(comparison.getVariants().get(1).getComparison()).isEqualTo(
+                tx.execute(status -> analyticsService.compareGroups(shop, fromMs, toMs, 0, 1)).getComparison());
+    }
+
+    @Test
+    void topQueriesAreNormalizedAndLimited() {
+        String shop = "queries-shop.myshopify.com";
+        ingest(shop);
+        long fromMs = FIRST_DAY * DAY_MS;
+        long toMs = (FIRST_DAY + 3) * DAY_MS - 1;
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        List<AnalyticsSummaryResponse.TopQuery> all = analyticsService.summary(shop, fromMs, toMs, null,
+                AnalyticsService.Granularity.DAY, AnalyticsService.MAX_TOP_QUERIES).getTopQueries();
+        assertThat(all).extracting(AnalyticsSummaryResponse.TopQuery::getTerm)
+                .containsExactlyInAnyOrder("hat", "red wool hat", "winter hat", "blue summer linen shirt");
+        assertThat(all.stream().mapToLong(AnalyticsSummaryResponse.TopQuery::getCount).sum())
+                .isEqualTo(searchRepo.findAllByShopIdAndTimestampMsBetween(shop, fromMs, toMs).stream()
+                        .filter(s -> !s.getQuery().isBlank()).count());
+
+        for (AnalyticsService service : List.of(analyticsService, rawAnalytics())) {
+            List<AnalyticsSummaryResponse.TopQuery> top = tx.execute(status -> service.summary(shop, fromMs, toMs,
+                    null, AnalyticsService.Granularity.DAY, 2)).getTopQueries();
+            assertThat(top).isEqualTo(all.subList(0, 2));
+        }
+    }
+
+    /**
+     * Summary latency over 7, 30, 90 and 365 days, from raw events and from the
+     * rollups. Run with
+     * {@code mvn test -Dtest=DailyRollupIntegrationTest -Dsummary.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "summary.benchmark", matches = "true")
+    void summaryBenchmark() {
+        String shop = "bench-shop.myshopify.com";
+        long lastDay = FIRST_DAY + 400;
+        for (long day = lastDay - 2 * 365; day <= lastDay; day++) {
+            List<SearchEvent> searches = new java.util.ArrayList<>();
+            List<AddToCartEvent> carts = new java.util.ArrayList<>();
+            for (int s = 0; s < 20; s++) {
+                String session = "b" + day + "-" + s;
+                long t = day * DAY_MS + s * 3_600_000L;
+                searches.add(SearchEvent.builder().shopId(shop).searchId(session).clientId("c").sessionId(session)
+                        .query("wool hat").productIds(List.of(gid(s), gid(s + 1))).searchGroup(s % 2)
+                        .timestampMs(t).build());
+                carts.add(AddToCartEvent.builder().shopId(shop).sessionId(session).clientId("c").productId(gid(s))
+                        .price(20.0).currency("ILS").searchGroup(s % 2).timestampMs(t + 1000).build());
+            }
+            searchRepo.saveAll(searches);
+            cartRepo.saveAll(carts);
+        }
+        dailyRollups.flush();
+        AnalyticsService raw = rawAnalytics();
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        for (int days : new int[] { 7, 30, 90, 365 }) {
+            long fromMs = (lastDay - days + 1) * DAY_MS;
+            long toMs = (lastDay + 1) * DAY_MS - 1;
+            for (AnalyticsService.Granularity granularity : AnalyticsService.Granularity.values()) {
+                double rawMs = time(() -> tx.execute(status -> raw.summary(shop, fromMs, toMs, null, granularity)));
+                double rollupMs = time(() -> tx.execute(
+                        status -> analyticsService.summary(shop, fromMs, toMs, null, granularity)));
+                System.out.printf("summary %3d days by %-4s raw=%8.1f ms rollups=%8.1f ms%n",
+                        days, granularity, rawMs, rollupMs);
+            }
+        }
+    }
+
+    /**
+     * Latency, allocation and retained heap of reading a large shop's period as
+     * entities (with their collections) and as analytics rows. Run with
+     * {@code mvn test -Dtest=DailyRollupIntegrationTest -Danalytics.read.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "analytics.read.benchmark", matches = "true")
+    void analyticsReadBenchmark() {
+        String shop = "read-bench-shop.myshopify.com";
+        int days = 30;
+        for (long day = FIRST_DAY; day < FIRST_DAY + days; day++) {
+            List<SearchEvent> searches = new java.util.ArrayList<>();
+            List<AddToCartEvent> carts = new java.util.ArrayList<>();
+            List<PurchaseEvent> purchases = new java.util.ArrayList<>();
+            for (int s = 0; s < 1000; s++) {
+                String session = "r" + day + "-" + s;
+                long t = day * DAY_MS + s * 60_000L;
+                searches.add(SearchEvent.builder().shopId(shop).searchId(session).clientId("c").sessionId(session)
+                        .query("red wool hat").productIds(List.of(gid(s), gid(s + 1), gid(s + 2), gid(s + 3)))
+                        .searchGroup(s % 2).timestampMs(t).build());
+                if (s % 3 == 0) {
+                    carts.add(AddToCartEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .productId(gid(s)).price(20.0).currency("ILS").searchGroup(s % 2)
+                            .timestampMs(t + 1000).build());
+                }
+                if (s % 9 == 0) {
+                    purchases.add(PurchaseEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                            .products(List.of(new Product(gid(s), "hat", 20.0, 1), new Product(gid(99), "x", 5.0, 1)))
+                            .totalAmount(25.0).currency("ILS").searchGroup(s % 2).timestampMs(t + 2000).build());
+                }
+            }
+            searchRepo.saveAll(searches);
+            cartRepo.saveAll(carts);
+            purchaseRepo.saveAll(purchases);
+        }
+        long fromMs = FIRST_DAY * DAY_MS;
+        long toMs = (FIRST_DAY + days) * DAY_MS - 1;
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        tx.setReadOnly(true);
+        java.util.function.Supplier<List<?>> entities = () -> tx.execute(status -> {
+            List<SearchEvent> searches = searchRepo.findAllByShopIdAndTimestampMsBetween(shop, fromMs, toMs);
+            searches.forEach(e -> org.hibernate.Hibernate.initialize(e.getProductIds()));
+            List<PurchaseEvent> purchases = purchaseRepo.findAllByShopIdAndTimestampMsBetween(shop, fromMs, toMs);
+            purchases.forEach(e -> org.hibernate.Hibernate.initialize(e.getProducts()));
+            return List.of(searches, cartRepo.findAllByShopIdAndTimestampMsBetween(shop, fromMs, toMs),
+                    clickRepo.findAllByShopIdAndTimestampMsBetween(shop, fromMs, toMs),
+                    buyNowRepo.findAllByShopIdAndTimestampMsBetween(shop, fromMs, toMs), purchases);
+        });
+        java.util.function.Supplier<List<?>> rows = () -> tx.execute(status -> List.of(
+                searchRepo.findAnalyticsRows(shop, fromMs, toMs, null),
+                cartRepo.findAnalyticsRows(shop, fromMs, toMs, null),
+                clickRepo.findAnalyticsRows(shop, fromMs, toMs, null),
+                buyNowRepo.findAnalyticsRows(shop, fromMs, toMs, null),
+                purchaseRepo.findAnalyticsRows(shop, fromMs, toMs, null)));
+        for (String name : new String[] { "entities", "rows" }) {
+            java.util.function.Supplier<List<?>> read = name.equals("entities") ? entities : rows;
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            double ms = time(read::get);
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            read.get();
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            long before = usedHeap();
+            List<?> held = read.get();
+            long retained = usedHeap() - before;
+            System.out.printf("analytics read %-8s %d days x 1000 searches: %8.1f ms, %7.1f MB allocated,"
+                    + " %7.1f MB retained (%d lists)%n", name, days, ms, allocated / 1e6, retained / 1e6, held.size());
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double time(Runnable summary) {
+        summary.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            summary.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / 3;
+    }
+}
@@ -0,0 +1,168 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.repo.AddToCartEventRepository;
+import com.talya.searchanalytics.repo.SearchEventRepository;
+import com.talya.searchanalytics.web.dto.EventDTOs.BatchResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.datasource.url=jdbc:h2:mem:testdb;DB_CLOSE_DELAY=-1",
+                "spring.datasource.driver-class-name=org.h2.Driver",
+                "spring.datasource.username=sa",
+                "spring.datasource.password=",
+                "spring.jpa.hibernate.ddl-auto=create-drop",
+                "ingestion.rate-limit.overrides=shopLimited=0.01:5,shopKeyed=0.01:2,shopReplayed=0.01:1"
+        })
+public class EventBatchIntegrationTest {
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    TestRestTemplate rest;
+    @Autowired
+    SearchEventRepository searchRepo;
+    @Autowired
+    AddToCartEventRepository cartRepo;
+
+    @BeforeEach
+    void setup() {
+        cartRepo.deleteAll();
+        searchRepo.deleteAll();
+    }
+
+    @Test
+    void batchPersistsMixedEventsAndReportsPerItemResults() {
+        String body = "["
+                + "{\"type\":\"search\",\"shopId\":\"shopA\",\"searchId\":\"s1\",\"clientId\":\"c1\",\"sessionId\":\"sess1\","
+                + "\"query\":\"red hat\",\"productIds\":[\"p1\",\"p2\"],\"searchGroup\":1,\"timestampMs\":1000},"
+                + "{\"type\":\"add-to-cart\",\"shopId\":\"shopA\",\"clientId\":\"c1\",\"sessionId\":\"sess1\",\"productId\":\"p2\","
+                + "\"searchGroup\":1,\"timestampMs\":2000,\"price\":\"10.5 ILS\"},"
+                + "{\"type\":\"add-to-cart\",\"shopId\":\"shopA\",\"clientId\":\"c1\",\"sessionId\":\"sess1\",\"productId\":\"p9\","
+                + "\"searchGroup\":1,\"timestampMs\":3000},"
+                + "{\"type\":\"unknown\"}"
+                + "]";
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<BatchResponse> resp = rest.postForEntity(
+                "http://localhost:" + port + "/api/v1/events/batch", new HttpEntity<>(body, h), BatchResponse.class);
+
+        assertThat(resp.getStatusCode().is2xxSuccessful()).isTrue();
+        assertThat(resp.getBody().getAccepted()).isEqualTo(2);
+        assertThat(resp.getBody().getRejected()).isEqualTo(2);
+        assertThat(resp.getBody().getResults().get(1).getId()).isNotNull();
+        assertThat(resp.getBody().getResults().get(2).getError()).isEqualTo("NOT_IN_SEARCH_RESULTS");
+        assertThat(resp.getBody().getResults().get(3).getError()).isEqualTo("UNKNOWN_TYPE");
+        assertThat(searchRepo.count()).isEqualTo(1);
+        assertThat(cartRepo.count()).isEqualTo(1);
+    }
+
+    @Test
+    void batchAcceptsNdjson() {
+        String body = "{\"type\":\"product-click\",\"shopId\":\"shopA\",\"sessionId\":\"sess1\",\"productId\":\"p1\",\"timestampMs\":1}\n"
+                + "{\"type\":\"buy-now-click\",\"shopId\":\"shopA\",\"sessionId\":\"sess1\",\"productId\":\"p1\",\"timestampMs\":2}\n";
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.valueOf("application/x-ndjson"));
+        ResponseEntity<BatchResponse> resp = rest.postForEntity(
+                "http://localhost:" + port + "/api/v1/events/batch", new HttpEntity<>(body, h), BatchResponse.class);
+
+        assertThat(resp.getStatusCode().is2xxSuccessful()).isTrue();
+        assertThat(resp.getBody().getAccepted()).isEqualTo(2);
+    }
+
+    @Test
+    void searchesOfAFailedBatchAreNotIndexed() {
+        // The search has no clientId, so saving the batch fails and rolls back
+        String body = "["
+                + "{\"type\":\"search\",\"shopId\":\"shopB\",\"searchId\":\"s-rb\",\"sessionId\":\"sess-rb\","
+                + "\"query\":\"hat\",\"productIds\":[\"p7\"],\"searchGroup\":1,\"timestampMs\":1000},"
+                + "{\"type\":\"add-to-cart\",\"shopId\":\"shopB\",\"clientId\":\"c1\",\"sessionId\":\"sess-rb\","
+                + "\"productId\":\"p7\",\"searchGroup\":1,\"timestampMs\":2000}"
+                + "]";
+        String cart = "{\"shopId\":\"shopB\",\"clientId\":\"c1\",\"sessionId\":\"sess-rb\",\"productId\":\"p7\","
+                + "\"searchGroup\":1,\"timestampMs\":3000}";
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> batch = rest.postForEntity(
+                "http://localhost:" + port + "/api/v1/events/batch", new HttpEntity<>(body, h), String.class);
+        ResponseEntity<String> single = rest.postForEntity(
+                "http://localhost:" + port + "/api/v1/events/add-to-cart", new HttpEntity<>(cart, h), String.class);
+
+        assertThat(batch.getStatusCode().is2xxSuccessful()).isFalse();
+        assertThat(searchRepo.count()).isZero();
+        assertThat(single.getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        assertThat(cartRepo.count()).isZero();
+    }
+
+    @Test
+    void batchOverTheRateLimitIsAnsweredBeforeItIsQueued() {
+        StringBuilder over = new StringBuilder("[");
+        for (int i = 0; i < 10; i++) {
+            over.append(i == 0 ? "" : ",").append("{\"type\":\"product-click\",\"shopId\":\"shopLimited\",")
+                    .append("\"sessionId\":\"sess1\",\"productId\":\"p1\",\"timestampMs\":").append(i).append('}');
+        }
+        String limited = "[{\"type\":\"product-click\",\"shopId\":\"shopLimited\",\"sessionId\":\"sess1\","
+                + "\"productId\":\"p1\",\"timestampMs\":1}]";
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.APPLICATION_JSON);
+        String url = "http://localhost:" + port + "/api/v1/events/batch";
+
+        ResponseEntity<BatchResponse> partial = rest.postForEntity(url, new HttpEntity<>(over.append(']').toString(), h),
+                BatchResponse.class);
+        ResponseEntity<String> rejected = rest.postForEntity(url, new HttpEntity<>(limited, h), String.class);
+
+        // Items over the burst of 5 are rejected individually
+        assertThat(partial.getStatusCode().is2xxSuccessful()).isTrue();
+        assertThat(partial.getBody().getAccepted()).isEqualTo(5);
+        assertThat(partial.getBody().getResults()).extracting(r -> r.getError()).contains("RATE_LIMITED");
+        // A batch with nothing left under the limit gets a 429 instead of a per-item result
+        assertThat(rejected.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+        assertThat(rejected.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isNotNull();
+    }
+
+    private static String clicks(String shopId, int count) {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            body.append(i == 0 ? "" : ",").append("{\"type\":\"product-click\",\"shopId\":\"").append(shopId)
+                    .append("\",\"sessionId\":\"sess1\",\"productId\":\"p1\",\"timestampMs\":").append(i)
+                    .append('}');
+        }
+        return body.append(']').toString();
+    }
+
+    private ResponseEntity<String> postBatch(String body, String idempotencyKey) {
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.APPLICATION_JSON);
+        h.set("x-idempotency-key", idempotencyKey);
+        return rest.postForEntity("http://localhost:" + port + "/api/v1/events/batch", new HttpEntity<>(body, h),
+                String.class);
+    }
+
+    @Test
+    void batchKeyIsReleasedWhenItemsWereRateLimited() {
+        ResponseEntity<String> partial = postBatch(clicks("shopKeyed", 3), "keyed-1");
+        ResponseEntity<String> retry = postBatch(clicks("shopKeyed", 3), "keyed-1");
+
+        assertThat(partial.getBody()).contains("\"accepted\":2").contains("RATE_LIMITED");
+        // The retry reaches the rate limiter again instead of being acknowledged as a duplicate
+        assertThat(retry.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    @Test
+    void replayedBatchIsNotChargedToTheRateLimit() {
+        ResponseEntity<String> first = postBatch(clicks("shopReplayed", 1), "replayed-1");
+        ResponseEntity<String> replay = postBatch(clicks("shopReplayed", 1), "replayed-1");
+
+        assertThat(first.getBody()).contains("\"accepted\":1");
+        assertThat(replay.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(replay.getBody()).contains("duplicate");
+    }
+}
@@ -0,0 +1,115 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.config.EventIdSequenceBootstrap;
+import com.talya.searchanalytics.model.BuyNowClickEvent;
+import com.talya.searchanalytics.model.SearchEvent;
+import com.talya.searchanalytics.repo.BuyNowClickEventRepository;
+import org.hibernate.Session;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:eventids;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+public class EventIdSequenceIntegrationTest {
+
+    @Autowired
+    EventIdSequenceBootstrap bootstrap;
+    @Autowired
+    BuyNowClickEventRepository buyNowRepo;
+    @Autowired
+    JdbcTemplate jdbc;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+    @PersistenceContext
+    EntityManager entityManager;
+
+    @Test
+    void sequencesContinuePastExistingIds() {
+        // A row inserted with an id of its own, as the IDENTITY column used to assign them
+        long existing = 1_000_000L;
+        jdbc.update("insert into buy_now_click_events (id, shop_id, product_id, timestamp_ms) values (?, ?, ?, ?)",
+                existing, "ids-shop", "p1", 1000L);
+
+        bootstrap.alignSequences();
+
+        for (int i = 0; i < 3; i++) {
+            BuyNowClickEvent saved = buyNowRepo.save(BuyNowClickEvent.builder().shopId("ids-shop").productId("p2")
+                    .timestampMs(2000L + i).build());
+            assertThat(saved.getId()).isGreaterThan(existing);
+        }
+    }
+
+    @Test
+    void alignmentFailureFailsStartup() {
+        JdbcTemplate failing = mock(JdbcTemplate.class);
+        when(failing.queryForObject(anyString(), any(Class.class)))
+                .thenThrow(new DataAccessResourceFailureException("database unavailable"));
+
+        assertThatThrownBy(() -> new EventIdSequenceBootstrap(failing, entityManagerFactory).alignSequences())
+                .isInstanceOf(DataAccessResourceFailureException.class);
+    }
+
+    /**
+     * Search inserts per second with the pooled sequence ids sent as JDBC batches,
+     * against the same inserts sent one statement per round trip as IDENTITY ids
+     * forced. Run with
+     * {@code mvn test -Dtest=EventIdSequenceIntegrationTest -Devent-ids.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "event-ids.benchmark", matches = "true")
+    void insertThroughputBenchmark() {
+        int events = 20_000;
+        int perTransaction = 200;
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        for (int round = 0; round < 2; round++) {
+            for (int jdbcBatchSize : new int[] { 1, 50 }) {
+                String shopId = "bench-" + round + "-" + jdbcBatchSize;
+                long start = System.nanoTime();
+                for (int from = 0; from < events; from += perTransaction) {
+                    int first = from;
+                    tx.executeWithoutResult(status -> {
+                        entityManager.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+                        for (int i = first; i < first + perTransaction; i++) {
+                            entityManager.persist(SearchEvent.builder().shopId(shopId).searchId("s" + i)
+                                    .clientId("c").sessionId("sess-" + i).query("wool hat")
+                                    .productIds(List.of("gid://shopify/Product/" + i)).timestampMs(1000L + i)
+                                    .build());
+                        }
+                        entityManager.flush();
+                        entityManager.clear();
+                    });
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (round > 0) {
+                    System.out.printf("search inserts jdbc batch %2d: %8.0f events/s (%d events)%n",
+                            jdbcBatchSize, events / seconds, events);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.AnalyticsExecutor;
+import com.talya.searchanalytics.service.AnalyticsService;
+import com.talya.searchanalytics.service.CurrencyService;
+import com.talya.searchanalytics.service.DailyRollupService;
+import com.talya.searchanalytics.service.HotWindowStore;
+import com.talya.searchanalytics.service.SqlPeriodAnalytics;
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Summaries answered from the hot window against the same summaries read from
+ * the event tables, for events loaded from the database and events added as
+ * they are persisted.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:hotwindow;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "analytics.summary.source=events",
+        "analytics.hot-window.enabled=true",
+        "analytics.hot-window.days=30"
+})
+public class HotWindowIntegrationTest {
+
+    private static final long DAY_MS = 86_400_000L;
+    private static final long TODAY = Math.floorDiv(System.currentTimeMillis(), DAY_MS);
+
+    @Autowired
+    AnalyticsService analyticsService;
+    @Autowired
+    HotWindowStore hotWindow;
+    @Autowired
+    AnalyticsExecutor analyticsExecutor;
+    @Autowired
+    SqlPeriodAnalytics sqlAnalytics;
+    @Autowired
+    DailyRollupService dailyRollups;
+    @Autowired
+    CurrencyService currencyService;
+    @Autowired
+    MeterRegistry meterRegistry;
+    @Autowired
+    SearchEventRepository searchRepo;
+    @Autowired
+    AddToCartEventRepository cartRepo;
+    @Autowired
+    PurchaseEventRepository purchaseRepo;
+    @Autowired
+    ProductClickEventRepository clickRepo;
+    @Autowired
+    BuyNowClickEventRepository buyNowRepo;
+
+    private AnalyticsService databaseAnalytics() {
+        return new AnalyticsService(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo, currencyService,
+                dailyRollups, analyticsExecutor, sqlAnalytics, Mockito.mock(HotWindowStore.class));
+    }
+
+    private static String gid(int n) {
+        return "gid://shopify/Product/" + (8_000_000_000L + n);
+    }
+
+    private static <T> T pick(Random random, T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /** Random sessions over days {@code firstDay..firstDay+9}, plus events from sessions that never searched. */
+    private void ingest(String shop, long seed, long firstDay) {
+        Random random = new Random(seed);
+        String[] queries = { "hat", "red wool hat", "  winter   hat  ", "", "Red Wool Hat" };
+        Integer[] groups = { 0, 1, null };
+        Double[] prices = { null, 10.0, 12.5 };
+        String[] cartCurrencies = { null, "", "ILS" };
+        Integer[] amounts = { null, 1, 2 };
+        String[] orderCurrencies = { null, "ils", "USD" };
+        for (int s = 0; s < 120; s++) {
+            String session = "sess-" + seed + "-" + s;
+            Integer group = pick(random, groups);
+            long t = (firstDay + random.nextInt(10)) * DAY_MS + random.nextInt((int) DAY_MS - 3_600_000);
+            for (int q = 0, n = s % 10 == 9 ? 0 : 1 + random.nextInt(3); q < n; q++) {
+                List<String> products = new ArrayList<>();
+                for (int p = 0, k = random.nextInt(5); p < k; p++) {
+                    products.add(gid(random.nextInt(12)));
+                }
+                searchRepo.save(SearchEvent.builder().shopId(shop).searchId(session + "-" + q).clientId("c")
+                        .sessionId(session).query(pick(random, queries)).productIds(products).searchGroup(group)
+                        .timestampMs(t + q * 1000L).build());
+            }
+            for (int c = 0, n = random.nextInt(4); c < n; c++) {
+                cartRepo.save(AddToCartEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                        .productId(gid(random.nextInt(12))).price(pick(random, prices))
+                        .currency(pick(random, cartCurrencies)).searchGroup(group).timestampMs(t + 60_000L + c)
+                        .build());
+            }
+            for (int c = 0, n = random.nextInt(3); c < n; c++) {
+                clickRepo.save(ProductClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                        .productId(random.nextInt(4) == 0 ? "not-a-gid" : gid(random.nextInt(12)))
+                        .searchGroup(group).timestampMs(t + 30_000L + c).build());
+                buyNowRepo.save(BuyNowClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                        .productId(gid(random.nextInt(12))).price(12.5).searchGroup(group)
+                        .timestampMs(t + 40_000L + c).build());
+            }
+            for (int o = 0, n = random.nextInt(3); o < n; o++) {
+                List<Product> products = new ArrayList<>();
+                for (int p = 0, k = random.nextInt(4); p < k; p++) {
+                    products.add(new Product(gid(random.nextInt(12)), "p" + p, pick(random, prices),
+                            pick(random, amounts)));
+                }
+                purchaseRepo.save(PurchaseEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                        .products(products).totalAmount(90.0).currency(pick(random, orderCurrencies))
+                        .searchGroup(group).timestampMs(t + 120_000L + o).build());
+            }
+        }
+    }
+
+    private static <T> void assertSameNumbers(T actual, T expected, String description) {
+        // Sums are added up in a different order, so doubles may differ in their last bits
+        Comparator<Double> closeTo = (a, b) -> Math.abs(a - b) <= 1e-9 * Math.max(1, Math.abs(a)) ? 0
+                : Double.compare(a, b);
+        assertThat(actual).as(description).usingRecursiveComparison()
+                .withComparatorForType(closeTo, Double.class).isEqualTo(expected);
+    }
+
+    private double hits() {
+        return meterRegistry.counter("analytics.hot-window.reads", "result", "hit").count();
+    }
+
+    private void assertMatchesDatabase(String shop, long fromMs, long toMs) {
+        AnalyticsService database = databaseAnalytics();
+        for (AnalyticsService.Granularity granularity : List.of(AnalyticsService.Granularity.DAY,
+                AnalyticsService.Granularity.HOUR)) {
+            for (Integer group : Arrays.asList(null, 0, 1)) {
+                AnalyticsSummaryResponse expected = database.summary(shop, fromMs, toMs, group, granularity);
+                assertThat(expected.getTotalSearches()).isPositive();
+                assertSameNumbers(analyticsService.summary(shop, fromMs, toMs, group, granularity), expected,
+                        "group " + group + " by " + granularity);
+            }
+        }
+        List<Integer> groups = Arrays.asList(0, 1, null);
+        Map<Integer, AnalyticsSummaryResponse> expected = database.summaries(shop, fromMs, toMs, groups,
+                AnalyticsService.Granularity.DAY);
+        Map<Integer, AnalyticsSummaryResponse> actual = analyticsService.summaries(shop, fromMs, toMs, groups,
+                AnalyticsService.Granularity.DAY);
+        for (Integer group : groups) {
+            assertSameNumbers(actual.get(group), expected.get(group), "summaries of group " + group);
+        }
+    }
+
+    @Test
+    void summariesMatchDatabase() {
+        String shop = "hot-shop.myshopify.com";
+        ingest(shop, 1, TODAY - 12);
+        assertThat(hotWindow.load(shop)).isTrue();
+
+        long fromMs = (TODAY - 6) * DAY_MS;
+        long toMs = TODAY * DAY_MS - 1;
+        double hits = hits();
+        assertMatchesDatabase(shop, fromMs, toMs);
+        assertThat(hits()).isGreaterThan(hits);
+        assertThat(analyticsService.summary(shop, fromMs, toMs, null).getTopQueries())
+                .extracting(AnalyticsSummaryResponse.TopQuery::getTerm).contains("red wool hat", "winter hat");
+
+        // Events persisted after the load are added to the columns
+        ingest(shop, 2, TODAY - 10);
+        assertThat(hotWindow.isResident(shop)).isTrue();
+        assertMatchesDatabase(shop, fromMs, toMs);
+
+        // A range starting before the window reads the database
+        hits = hits();
+        assertMatchesDatabase(shop, (TODAY - 40) * DAY_MS, toMs);
+        assertThat(hits()).isEqualTo(hits);
+    }
+
+    @Test
+    void removedEventsDropTheShop() {
+        String shop = "hot-removal-shop.myshopify.com";
+        ingest(shop, 3, TODAY - 12);
+        assertThat(hotWindow.load(shop)).isTrue();
+
+        searchRepo.delete(searchRepo.findAllByShopIdAndTimestampMsBetween(shop, 0L, Long.MAX_VALUE).get(0));
+        assertThat(hotWindow.isResident(shop)).isFalse();
+        assertThat(hotWindow.load(shop)).isTrue();
+        assertMatchesDatabase(shop, (TODAY - 6) * DAY_MS, TODAY * DAY_MS - 1);
+    }
+
+    @Test
+    void shopsBeyondTheMemoryCeilingReadTheDatabase() {
+        String shop = "hot-large-shop.myshopify.com";
+        ingest(shop, 4, TODAY - 12);
+        HotWindowStore small = new HotWindowStore(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo,
+                analyticsExecutor, new SimpleMeterRegistry(), true, 30, 16 * 1024);
+
+        assertThat(small.load(shop)).isFalse();
+        assertThat(small.isResident(shop)).isFalse();
+        assertThat(small.queryCounts(shop, (TODAY - 6) * DAY_MS, TODAY * DAY_MS - 1)).isEmpty();
+    }
+}
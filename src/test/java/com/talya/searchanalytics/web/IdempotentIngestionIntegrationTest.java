@@ -0,0 +1,109 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.repo.PurchaseEventRepository;
+import com.talya.searchanalytics.repo.SearchEventRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.datasource.url=jdbc:h2:mem:testdb;DB_CLOSE_DELAY=-1",
+                "spring.datasource.driver-class-name=org.h2.Driver",
+                "spring.datasource.username=sa",
+                "spring.datasource.password=",
+                "spring.jpa.hibernate.ddl-auto=create-drop"
+        })
+public class IdempotentIngestionIntegrationTest {
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    TestRestTemplate rest;
+    @Autowired
+    PurchaseEventRepository purchaseRepo;
+    @Autowired
+    SearchEventRepository searchRepo;
+
+    private ResponseEntity<String> post(String path, String body, String idempotencyKey) {
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.APPLICATION_JSON);
+        if (idempotencyKey != null) {
+            h.set("x-idempotency-key", idempotencyKey);
+        }
+        return rest.postForEntity("http://localhost:" + port + "/api/v1/events/" + path,
+                new HttpEntity<>(body, h), String.class);
+    }
+
+    @Test
+    void redeliveredPurchaseIsStoredOnce() {
+        String order = "{\"shopId\":\"idem-shop\",\"order_id\":\"1001\",\"currency\":\"ILS\","
+                + "\"products\":[{\"product_id\":1,\"name\":\"Hat\",\"price\":10,\"amount\":1}]}";
+
+        ResponseEntity<String> first = post("purchase", order, null);
+        ResponseEntity<String> second = post("purchase", order, null);
+
+        assertThat(first.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(second.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(second.getBody()).contains("duplicate");
+        assertThat(purchaseRepo.findAll().stream().filter(p -> "idem-shop".equals(p.getShopId())).count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void headerKeyIsReleasedWhenTheRequestFails() {
+        String bad = "{\"shopId\":\"idem-shop-2\",\"products\":[{\"product_id\":1}]}";
+        String good = "{\"shopId\":\"idem-shop-2\",\"products\":[{\"product_id\":1,\"price\":5,\"amount\":2}]}";
+
+        assertThat(post("purchase", bad, "retry-1").getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(post("purchase", good, "retry-1").getBody()).isNull();
+        assertThat(post("purchase", good, "retry-1").getBody()).contains("duplicate");
+        assertThat(purchaseRepo.findAll().stream().filter(p -> "idem-shop-2".equals(p.getShopId())).count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void searchIsDeduplicatedBySearchId() {
+        String search = "{\"shopId\":\"idem-shop\",\"searchId\":\"q-1\",\"clientId\":\"c\",\"sessionId\":\"sess\","
+                + "\"query\":\"hat\",\"timestampMs\":1000}";
+
+        assertThat(post("search", search, null).getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(post("search", search, null).getBody()).contains("duplicate");
+        assertThat(searchRepo.findAll().stream().filter(e -> "q-1".equals(e.getSearchId())).count()).isEqualTo(1);
+    }
+
+    private static String batchSearch(String shopId, String searchId) {
+        return "{\"type\":\"search\",\"shopId\":\"" + shopId + "\",\"searchId\":\"" + searchId
+                + "\",\"clientId\":\"c\",\"sessionId\":\"sess\",\"query\":\"hat\",\"timestampMs\":1000}";
+    }
+
+    @Test
+    void batchSearchesAreDeduplicatedTogether() {
+        String batch = "[" + batchSearch("idem-batch-shop", "b-1") + "," + batchSearch("idem-batch-shop", "b-2")
+                + "," + batchSearch("idem-batch-shop", "b-1") + "]";
+        String retry = "[" + batchSearch("idem-batch-shop", "b-2") + "," + batchSearch("idem-batch-shop", "b-3")
+                + "]";
+
+        assertThat(post("batch", batch, null).getBody())
+                .contains("\"accepted\":2").contains("DUPLICATE");
+        assertThat(post("batch", retry, null).getBody()).contains("\"accepted\":1");
+        assertThat(searchRepo.findAll().stream().filter(e -> "idem-batch-shop".equals(e.getShopId())).count())
+                .isEqualTo(3);
+    }
+
+    @Test
+    void batchKeysOfDifferentShopsDoNotCollide() {
+        ResponseEntity<String> first = post("batch", "[" + batchSearch("idem-shop-a", "k-1") + "]", "batch-1");
+        ResponseEntity<String> second = post("batch", "[" + batchSearch("idem-shop-b", "k-1") + "]", "batch-1");
+        ResponseEntity<String> retry = post("batch", "[" + batchSearch("idem-shop-b", "k-1") + "]", "batch-1");
+
+        assertThat(first.getBody()).contains("\"accepted\":1");
+        assertThat(second.getBody()).contains("\"accepted\":1");
+        assertThat(retry.getBody()).contains("duplicate");
+    }
+}
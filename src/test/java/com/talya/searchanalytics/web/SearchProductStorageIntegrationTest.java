@@ -0,0 +1,160 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.model.ProductIdListConverter;
+import com.talya.searchanalytics.model.SearchEvent;
+import com.talya.searchanalytics.model.SearchProductStorage;
+import com.talya.searchanalytics.repo.SearchEventRepository;
+import com.talya.searchanalytics.repo.SearchRow;
+import com.talya.searchanalytics.service.DataMigrationService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs with table storage so both layouts can be written side by side: events
+ * built with {@code packedProductIds} keep it, the rest get collection rows.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:productstorage;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "search-events.product-ids.storage=table"
+})
+public class SearchProductStorageIntegrationTest {
+
+    @Autowired
+    SearchEventRepository searchRepo;
+    @Autowired
+    DataMigrationService dataMigrationService;
+    @Autowired
+    JdbcTemplate jdbc;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private static List<String> results(int seed, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> "gid://shopify/Product/" + (7_000_000_000L + seed * 100L + i))
+                .collect(Collectors.toList());
+    }
+
+    private static SearchEvent search(String shopId, int i, boolean packed) {
+        SearchEvent.SearchEventBuilder b = SearchEvent.builder().shopId(shopId).searchId("s" + i).clientId("c")
+                .sessionId("sess-" + i).query("query " + i).timestampMs(1000L + i);
+        return packed ? b.packedProductIds(results(i, 48)).build() : b.productIds(results(i, 48)).build();
+    }
+
+    private List<List<String>> readProductIds(String shopId) {
+        return new TransactionTemplate(transactionManager).execute(status -> searchRepo
+                .findAllByShopIdAndTimestampMsBetween(shopId, 0L, Long.MAX_VALUE).stream()
+                .map(e -> new ArrayList<>(e.getProductIds()))
+                .collect(Collectors.toList()));
+    }
+
+    private long collectionRows(String shopId) {
+        return jdbc.queryForObject("select count(*) from search_result_products p join search_events e"
+                + " on e.id = p.search_event_id where e.shop_id = ?", Long.class, shopId);
+    }
+
+    @Test
+    void converterRoundTripsMixedIds() {
+        ProductIdListConverter converter = new ProductIdListConverter();
+        List<String> ids = List.of("gid://shopify/Product/8612345678901", "42", "0", "007",
+                "gid://shopify/Product/", "gid://shopify/ProductVariant/1", "sku-αβ", "",
+                "99999999999999999999", "gid://shopify/Product/-1");
+
+        byte[] packed = converter.convertToDatabaseColumn(ids);
+
+        assertThat(converter.convertToEntityAttribute(packed)).isEqualTo(ids);
+        assertThat(converter.convertToEntityAttribute(converter.convertToDatabaseColumn(List.of()))).isEmpty();
+        assertThat(converter.convertToDatabaseColumn(results(1, 48)).length).isLessThan(48 * 8);
+    }
+
+    @Test
+    void packedModePacksOnInsert() {
+        SearchEvent event = search("pack-shop", 1, false);
+
+        new SearchProductStorage("packed").beforeInsert(event);
+
+        assertThat(event.getPackedProductIds()).isEqualTo(results(1, 48));
+        assertThat(event.getProductIds()).isEqualTo(results(1, 48));
+    }
+
+    @Test
+    void migrationMovesRowsBetweenLayouts() {
+        searchRepo.saveAll(List.of(search("migrate-shop", 1, false), search("migrate-shop", 2, true),
+                search("migrate-shop", 3, false)));
+        List<List<String>> before = readProductIds("migrate-shop");
+        assertThat(collectionRows("migrate-shop")).isEqualTo(2 * 48);
+
+        dataMigrationService.migrateSearchProducts(SearchProductStorage.Mode.PACKED, 1);
+
+        assertThat(readProductIds("migrate-shop")).isEqualTo(before);
+        assertThat(collectionRows("migrate-shop")).isZero();
+
+        dataMigrationService.migrateSearchProducts(SearchProductStorage.Mode.TABLE, 2);
+
+        assertThat(readProductIds("migrate-shop")).isEqualTo(before);
+        assertThat(collectionRows("migrate-shop")).isEqualTo(3 * 48);
+    }
+
+    @Test
+    void analyticsRowsReadBothLayouts() {
+        SearchEvent grouped = search("rows-shop", 3, false);
+        grouped.setSearchGroup(1);
+        searchRepo.saveAll(List.of(search("rows-shop", 1, false), search("rows-shop", 2, true), grouped));
+
+        List<SearchRow> rows = searchRepo.findAnalyticsRows("rows-shop", 0L, Long.MAX_VALUE, null);
+        List<SearchRow> inGroup = searchRepo.findAnalyticsRows("rows-shop", 0L, Long.MAX_VALUE, 1);
+
+        assertThat(rows).hasSize(3);
+        for (SearchRow row : rows) {
+            int i = Integer.parseInt(row.sessionId().substring("sess-".length()));
+            assertThat(row.productIds()).containsExactlyInAnyOrderElementsOf(results(i, 48));
+        }
+        assertThat(inGroup).singleElement()
+                .satisfies(row -> assertThat(row.productIds()).containsExactlyInAnyOrderElementsOf(results(3, 48)));
+    }
+
+    /**
+     * Write amplification and read latency of the two layouts. Not part of the
+     * regular build; run with
+     * {@code mvn test -Dtest=SearchProductStorageIntegrationTest -Dsearch-products.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "search-products.benchmark", matches = "true")
+    void layoutBenchmark() {
+        int events = 2000;
+        for (boolean packed : new boolean[] { false, true }) {
+            String shopId = packed ? "bench-packed" : "bench-table";
+            long start = System.nanoTime();
+            for (int from = 0; from < events; from += 200) {
+                searchRepo.saveAll(IntStream.range(from, from + 200).mapToObj(i -> search(shopId, i, packed))
+                        .collect(Collectors.toList()));
+            }
+            double writeMs = (System.nanoTime() - start) / 1e6;
+            long rows = events + collectionRows(shopId);
+
+            readProductIds(shopId);
+            start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                readProductIds(shopId);
+            }
+            double readMs = (System.nanoTime() - start) / 1e6 / 5;
+            System.out.printf("search products %-6s rows/search=%5.1f write=%8.1f ms read=%8.1f ms (%d searches x 48 ids)%n",
+                    packed ? "packed" : "table", (double) rows / events, writeMs, readMs, events);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.talya.searchanalytics.web;
+
+import com.talya.searchanalytics.model.*;
+import com.talya.searchanalytics.repo.*;
+import com.talya.searchanalytics.service.AnalyticsExecutor;
+import com.talya.searchanalytics.service.AnalyticsService;
+import com.talya.searchanalytics.service.CurrencyService;
+import com.talya.searchanalytics.service.DailyRollupService;
+import com.talya.searchanalytics.service.HotWindowStore;
+import com.talya.searchanalytics.service.SqlPeriodAnalytics;
+import com.talya.searchanalytics.web.dto.AnalyticsSummaryResponse;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The SQL engine against {@link com.talya.searchanalytics.service.AnalyticsService}'s
+ * in-Java calculation over the same events: random sessions that search, click,
+ * add to cart and buy in every combination the funnel filters on.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:sqlfunnel;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "analytics.summary.source=sql",
+        "search-events.product-ids.storage=table"
+})
+public class SqlPeriodAnalyticsIntegrationTest {
+
+    private static final long DAY_MS = 86_400_000L;
+    private static final long FIRST_DAY = LocalDate.of(2026, 3, 2).toEpochDay();
+    private static final int DAYS = 10;
+
+    @Autowired
+    AnalyticsService analyticsService;
+    @Autowired
+    SqlPeriodAnalytics sqlAnalytics;
+    @Autowired
+    AnalyticsExecutor analyticsExecutor;
+    @Autowired
+    SearchEventRepository searchRepo;
+    @Autowired
+    AddToCartEventRepository cartRepo;
+    @Autowired
+    PurchaseEventRepository purchaseRepo;
+    @Autowired
+    ProductClickEventRepository clickRepo;
+    @Autowired
+    BuyNowClickEventRepository buyNowRepo;
+    @Autowired
+    CurrencyService currencyService;
+    @Autowired
+    NamedParameterJdbcTemplate jdbc;
+    @Autowired
+    SearchProductStorage storage;
+
+    private AnalyticsService javaAnalytics() {
+        return new AnalyticsService(searchRepo, cartRepo, purchaseRepo, clickRepo, buyNowRepo, currencyService,
+                Mockito.mock(DailyRollupService.class), analyticsExecutor,
+                new SqlPeriodAnalytics(jdbc, storage, "events"), Mockito.mock(HotWindowStore.class));
+    }
+
+    private static String gid(int n) {
+        return "gid://shopify/Product/" + (8_000_000_000L + n);
+    }
+
+    private static <T> T pick(Random random, T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private void ingest(String shop, long seed) {
+        ingest(shop, seed, false);
+    }
+
+    /**
+     * Random sessions over {@link #DAYS} days, plus events from sessions that never searched.
+     *
+     * @param packSome store every other session's first search with packed product ids
+     */
+    private void ingest(String shop, long seed, boolean packSome) {
+        Random random = new Random(seed);
+        String[] queries = { "hat", "red wool hat", "  winter   hat  ", "", "blue summer linen shirt", "   " };
+        Integer[] groups = { 0, 1, null };
+        Double[] cartPrices = { null, 10.0, 12.5, 20.25 };
+        String[] cartCurrencies = { null, "", "ILS" };
+        Double[] productPrices = { null, 40.0, 7.5 };
+        Integer[] amounts = { null, 1, 2 };
+        Double[] totals = { 0.0, 90.0, 33.0 };
+        String[] orderCurrencies = { null, "ils", "USD", "EUR" };
+        for (int s = 0; s < 400; s++) {
+            boolean searched = s % 10 != 9;
+            String session = "sess-" + s;
+            Integer group = pick(random, groups);
+            long t = (FIRST_DAY + random.nextInt(DAYS)) * DAY_MS + random.nextInt((int) DAY_MS - 3_600_000);
+            for (int q = 0, n = searched ? 1 + random.nextInt(3) : 0; q < n; q++) {
+                List<String> products = new ArrayList<>();
+                for (int p = 0, k = random.nextInt(5); p < k; p++) {
+                    products.add(gid(random.nextInt(12)));
+                }
+                boolean packed = packSome && q == 0 && s % 2 == 0;
+                searchRepo.save(SearchEvent.builder().shopId(shop).searchId(session + "-" + q).clientId("c")
+                        .sessionId(session).query(pick(random, queries)).productIds(packed ? null : products)
+                        .packedProductIds(packed ? products : null)
+                        .searchGroup(q == 2 ? pick(random, groups) : group).timestampMs(t + q * 1000L).build());
+            }
+            for (int c = 0, n = random.nextInt(4); c < n; c++) {
+                cartRepo.save(AddToCartEvent.builder().shopId(shop).sessionId(c == 3 ? null : session)
+                        .clientId("c").productId(gid(random.nextInt(12))).price(pick(random, cartPrices))
+                        .currency(pick(random, cartCurrencies)).searchGroup(group).timestampMs(t + 60_000L + c)
+                        .build());
+            }
+            for (int c = 0, n = random.nextInt(3); c < n; c++) {
+                clickRepo.save(ProductClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                        .productId(random.nextInt(4) == 0 ? "not-a-gid" : gid(random.nextInt(12)))
+                        .searchGroup(group).timestampMs(t + 30_000L + c).build());
+                buyNowRepo.save(BuyNowClickEvent.builder().shopId(shop).sessionId(session).clientId("c")
+                        .productId(random.nextInt(4) == 0 ? "not-a-gid" : gid(random.nextInt(12))).price(12.5)
+                        .searchGroup(group).timestampMs(t + 40_000L + c).build());
+            }
+            for (int o = 0, n = random.nextInt(3); o < n; o++) {
+                List<Product> products = new ArrayList<>();
+                for (int p = 0, k = random.nextInt(4); p < k; p++) {
+                    products.add(new Product(gid(random.nextInt(12)), "p" + p, pick(random, productPrices),
+                            pick(random, amounts)));
+                }
+                purchaseRepo.save(PurchaseEvent.builder().shopId(shop).sessionId(o == 2 ? null : session)
+                        .clientId("c").products(products).totalAmount(pick(random, totals))
+                        .currency(pick(random, orderCurrencies)).searchGroup(group).timestampMs(t + 120_000L + o)
+                        .build());
+            }
+        }
+    }
+
+    private static <T> void assertSameNumbers(T actual, T expected, String description) {
+        // Sums are added up in a different order, so doubles may differ in their last bits
+        Comparator<Double> closeTo = (a, b) -> Math.abs(a - b) <= 1e-9 * Math.max(1, Math.abs(a)) ? 0
+                : Double.compare(a, b);
+        assertThat(actual).as(description).usingRecursiveComparison()
+                .withComparatorForType(closeTo, Double.class).isEqualTo(expected);
+    }
+
+    @Test
+    void summariesMatchJavaCalculation() {
+        String shop = "sql-shop.myshopify.com";
+        ingest(shop, 42);
+        AnalyticsService java = javaAnalytics();
+        long fromMs = (FIRST_DAY + DAYS / 2) * DAY_MS;
+        long toMs = (FIRST_DAY + DAYS) * DAY_MS - 1;
+        for (AnalyticsService.Granularity granularity : AnalyticsService.Granularity.values()) {
+            for (Integer group : Arrays.asList(null, 0, 1)) {
+                AnalyticsSummaryResponse expected = java.summary(shop, fromMs, toMs, group, granularity);
+                AnalyticsSummaryResponse actual = analyticsService.summary(shop, fromMs, toMs, group, granularity);
+                assertThat(expected.getTotalSearches()).isPositive();
+                assertThat(expected.getTotalPurchases()).isPositive();
+                assertSameNumbers(actual, expected, "group " + group + " by " + granularity);
+            }
+        }
+    }
+
+    @Test
+    void groupSummariesMatchJavaCalculation() {
+        String shop = "sql-groups-shop.myshopify.com";
+        ingest(shop, 7);
+        long fromMs = (FIRST_DAY + 3) * DAY_MS;
+        long toMs = (FIRST_DAY + DAYS) * DAY_MS - 1;
+        List<Integer> groups = Arrays.asList(0, 1, null);
+
+        Map<Integer, AnalyticsSummaryResponse> expected = javaAnalytics().summaries(shop, fromMs, toMs, groups,
+                AnalyticsService.Granularity.DAY);
+        Map<Integer, AnalyticsSummaryResponse> actual = analyticsService.summaries(shop, fromMs, toMs, groups,
+                AnalyticsService.Granularity.DAY);
+
+        assertThat(actual.keySet()).containsExactlyElementsOf(groups);
+        for (Integer group : groups) {
+            assertSameNumbers(actual.get(group), expected.get(group), "group " + group);
+        }
+    }
+
+    @Test
+    void periodsWithPackedSearchesMatchJavaCalculation() {
+        // Written with packed ids before a switch to table storage, and not migrated yet
+        String shop = "sql-packed-shop.myshopify.com";
+        ingest(shop, 3, true);
+        AnalyticsService java = javaAnalytics();
+        long fromMs = (FIRST_DAY + DAYS / 2) * DAY_MS;
+        long toMs = (FIRST_DAY + DAYS) * DAY_MS - 1;
+        for (Integer group : Arrays.asList(null, 0, 1)) {
+            AnalyticsSummaryResponse expected = java.summary(shop, fromMs, toMs, group,
+                    AnalyticsService.Granularity.DAY);
+            assertThat(expected.getTotalAddToCart()).isPositive();
+            assertSameNumbers(analyticsService.summary(shop, fromMs, toMs, group, AnalyticsService.Granularity.DAY),
+                    expected, "group " + group);
+        }
+    }
+}